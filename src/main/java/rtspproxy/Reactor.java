@@ -17,6 +17,8 @@ package rtspproxy;
 
 import org.apache.log4j.Logger;
 
+import rtspproxy.rtp.BufferPool;
+
 /**
  * 
  */
@@ -40,6 +42,8 @@ public class Reactor {
    * Constructor. Creates a new Reactor and starts it.
    */
   static public void start() throws Exception {
+    if (Config.getBoolean("proxy.rtp.bufferPool", true)) BufferPool.install();
+
     rtspService = new RtspService();
     rtspService.start();
 
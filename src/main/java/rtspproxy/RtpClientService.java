@@ -17,13 +17,14 @@ package rtspproxy;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 
 import org.apache.log4j.Logger;
-import org.apache.mina.core.session.IoSession;
 
 import rtspproxy.lib.NoPortAvailableException;
 import rtspproxy.lib.PortManager;
+import rtspproxy.proxy.ClientRtpPacketHandler;
+import rtspproxy.proxy.ClientRtcpPacketHandler;
+import rtspproxy.rtp.DatagramEndpoint;
 
 /**
  * This service is responsible of receiving and sending RTP and RTCP packets to clients.
@@ -37,6 +38,9 @@ public class RtpClientService implements ProxyService {
   static InetSocketAddress rtpAddress = null;
   static InetSocketAddress rtcpAddress = null;
 
+  private static DatagramEndpoint rtpEndpoint = null;
+  private static DatagramEndpoint rtcpEndpoint = null;
+
   public void start() throws IOException, NoPortAvailableException {
     int rtpPort = Config.getInt("proxy.client.rtp.port", 8002);
     int rtcpPort = Config.getInt("proxy.client.rtcp.port", 8003);
@@ -58,45 +62,40 @@ public class RtpClientService implements ProxyService {
     rtpAddress = new InetSocketAddress(InetAddress.getByName(netInterface), rtpPort);
     rtcpAddress = new InetSocketAddress(InetAddress.getByName(netInterface), rtcpPort);
 
-    // try {
-    // Service rtpService, rtcpService;
-
-    // rtpService = new Service("RtpClientService", TransportType.DATAGRAM, rtpAddress);
-    // rtcpService = new Service("RtcpClientService", TransportType.DATAGRAM, rtcpAddress);
-
-    // Reactor.getRegistry().bind(rtpService, new ClientRtpPacketHandler());
-    // Reactor.getRegistry().bind(rtcpService, new ClientRtcpPacketHandler());
-    // log.info("RtpClientService Started - Listening on: " + InetAddress.getByName(netInterface) +
-    // " " + rtpPort
-    // + "-" + rtcpPort);
-
-    // } catch (IOException e) {
-    // log.fatal("Can't start RtpClientService. " + e);
-    // throw e;
-    // }
+    rtpEndpoint = new DatagramEndpoint("RtpClient", rtpAddress, new ClientRtpPacketHandler());
+    rtcpEndpoint = new DatagramEndpoint("RtcpClient", rtcpAddress, new ClientRtcpPacketHandler());
+    try {
+      rtpEndpoint.start();
+      rtcpEndpoint.start();
+      log.info("RtpClientService Started - Listening on: " + rtpAddress.getAddress() + " " + rtpPort
+          + "-" + rtcpPort);
+
+    } catch (IOException e) {
+      log.fatal("Can't start RtpClientService. " + e);
+      stop();
+      throw e;
+    }
   }
 
   public void stop() {
-    // for (Object service : Reactor.getRegistry().getServices("RtpClientService")) {
-    // Reactor.getRegistry().unbind((Service) service);
-    // }
-    // for (Object service : Reactor.getRegistry().getServices("RtcpClientService")) {
-    // Reactor.getRegistry().unbind((Service) service);
-    // }
+    if (rtpEndpoint != null) rtpEndpoint.stop();
+    if (rtcpEndpoint != null) rtcpEndpoint.stop();
 
     log.info("RtpClientService Stopped");
   }
 
-  public static IoSession newRtpSession(SocketAddress remoteAddress) {
-    // return Reactor.getRegistry().getAcceptor(TransportType.DATAGRAM).newSession(remoteAddress,
-    // rtpAddress);
-    return null;
+  /**
+   * @return the endpoint used to exchange RTP packets with clients
+   */
+  public static DatagramEndpoint getRtpEndpoint() {
+    return rtpEndpoint;
   }
 
-  public static IoSession newRtcpSession(SocketAddress remoteAddress) {
-    // return Reactor.getRegistry().getAcceptor(TransportType.DATAGRAM).newSession(remoteAddress,
-    // rtcpAddress);
-    return null;
+  /**
+   * @return the endpoint used to exchange RTCP packets with clients
+   */
+  public static DatagramEndpoint getRtcpEndpoint() {
+    return rtcpEndpoint;
   }
 
   public static InetSocketAddress getRtpAddress() {
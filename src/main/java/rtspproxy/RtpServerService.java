@@ -14,14 +14,16 @@
 
 package rtspproxy;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 
 import org.apache.log4j.Logger;
-import org.apache.mina.core.session.IoSession;
 
 import rtspproxy.lib.PortManager;
+import rtspproxy.proxy.ServerRtpPacketHandler;
+import rtspproxy.proxy.ServerRtcpPacketHandler;
+import rtspproxy.rtp.DatagramEndpoint;
 
 /**
  * @author Matteo Merli
@@ -33,6 +35,9 @@ public class RtpServerService implements ProxyService {
   static InetSocketAddress rtpAddress = null;
   static InetSocketAddress rtcpAddress = null;
 
+  private static DatagramEndpoint rtpEndpoint = null;
+  private static DatagramEndpoint rtcpEndpoint = null;
+
   /*
    * (non-Javadoc)
    * 
@@ -59,51 +64,40 @@ public class RtpServerService implements ProxyService {
     rtpAddress = new InetSocketAddress(InetAddress.getByName(netInterface), rtpPort);
     rtcpAddress = new InetSocketAddress(InetAddress.getByName(netInterface), rtcpPort);
 
-    // try {
-    // Service rtpService, rtcpService;
-
-    // rtpService = new Service("RtpServerService", TransportType.DATAGRAM, rtpAddress);
-    // rtcpService = new Service("RtcpServerService", TransportType.DATAGRAM, rtcpAddress);
-
-    // Reactor.getRegistry().bind(rtpService, new ServerRtpPacketHandler());
-    // Reactor.getRegistry().bind(rtcpService, new ServerRtcpPacketHandler());
-    // log.info("RtpServerService Started - Listening on: " + InetAddress.getByName(netInterface) +
-    // " " + rtpPort
-    // + "-" + rtcpPort);
-
-    // } catch (IOException e) {
-    // log.fatal("Can't start the service. " + e);
-    // throw e;
-    // }
-
+    rtpEndpoint = new DatagramEndpoint("RtpServer", rtpAddress, new ServerRtpPacketHandler());
+    rtcpEndpoint = new DatagramEndpoint("RtcpServer", rtcpAddress, new ServerRtcpPacketHandler());
+    try {
+      rtpEndpoint.start();
+      rtcpEndpoint.start();
+      log.info("RtpServerService Started - Listening on: " + rtpAddress.getAddress() + " " + rtpPort
+          + "-" + rtcpPort);
+
+    } catch (IOException e) {
+      log.fatal("Can't start RtpServerService. " + e);
+      stop();
+      throw e;
+    }
   }
 
-  /*
-   * (non-Javadoc)
-   * 
-   * @see rtspproxy.ProxyService#stop()
-   */
-  public void stop() throws Exception {
-    // for (Object service : Reactor.getRegistry().getServices("RtpServerService")) {
-    // Reactor.getRegistry().unbind((Service) service);
-    // }
-    // for (Object service : Reactor.getRegistry().getServices("RtcpServerService")) {
-    // Reactor.getRegistry().unbind((Service) service);
-    // }
+  public void stop() {
+    if (rtpEndpoint != null) rtpEndpoint.stop();
+    if (rtcpEndpoint != null) rtcpEndpoint.stop();
 
     log.info("RtpServerService Stopped");
   }
 
-  public static IoSession newRtpSession(SocketAddress remoteAddress) {
-    // return Reactor.getRegistry().getAcceptor(TransportType.DATAGRAM).newSession(remoteAddress,
-    // rtpAddress);
-    return null;
+  /**
+   * @return the endpoint used to exchange RTP packets with servers
+   */
+  public static DatagramEndpoint getRtpEndpoint() {
+    return rtpEndpoint;
   }
 
-  public static IoSession newRtcpSession(SocketAddress remoteAddress) {
-    // return Reactor.getRegistry().getAcceptor(TransportType.DATAGRAM).newSession(remoteAddress,
-    // rtcpAddress);
-    return null;
+  /**
+   * @return the endpoint used to exchange RTCP packets with servers
+   */
+  public static DatagramEndpoint getRtcpEndpoint() {
+    return rtcpEndpoint;
   }
 
   public static InetSocketAddress getRtpAddress() {
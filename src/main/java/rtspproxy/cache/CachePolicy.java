@@ -0,0 +1,64 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.util.List;
+
+/**
+ * Decides what the {@link MediaCache} keeps within its size limit. The entries are whole streams
+ * or segments of their tracks, depending on <code>proxy.cache.granularity</code>, identified by
+ * a key and weighted by their size in bytes.
+ * <p>
+ * The policy only keeps the accounting: the cache deletes the entries it's told to evict. The
+ * methods may be called by several threads, and must not call back into the cache. An
+ * implementation is selected with <code>proxy.cache.policy</code>, by name or by class name; it
+ * must have a public constructor taking the capacity, in bytes, as a <code>long</code>.
+ *
+ * @author Matteo Merli
+ */
+public interface CachePolicy {
+
+  /**
+   * Records a request for an entry, whether it's cached or not.
+   *
+   * @return true if the entry is cached
+   */
+  boolean access(String key);
+
+  /**
+   * @param size the expected size of the entry, in bytes
+   * @return false if the entry must not be stored at all
+   */
+  boolean admit(String key, long size);
+
+  /**
+   * Adds an entry, or updates the size of a cached entry, which counts as a use.
+   */
+  void put(String key, long size);
+
+  /**
+   * Removes an entry deleted by the cache.
+   */
+  void remove(String key);
+
+  /**
+   * @return the entries to delete for the cache to fit its capacity, which are no longer
+   *         accounted for
+   */
+  List<String> evict();
+
+  /**
+   * @return the size of the cached entries, in bytes
+   */
+  long getSize();
+
+  /**
+   * @return the size above which entries are evicted, in bytes
+   */
+  long getCapacity();
+}
@@ -0,0 +1,395 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import rtspproxy.lib.Npt;
+import rtspproxy.rtsp.MediaFormats;
+
+/**
+ * An on demand stream kept by the {@link MediaCache}: its SDP, as described by the server, and the
+ * packets of each of its tracks recorded so far, see {@link CachedTrack}.
+ * <p>
+ * The stream is stored in its own directory: <code>stream.properties</code> holds the URL, the
+ * validator and the duration of the stream, <code>stream.sdp</code> its description, and each
+ * track has segment files and an index file.
+ *
+ * @author Matteo Merli
+ */
+public class CachedStream {
+
+  private static Logger log = Logger.getLogger(CachedStream.class);
+
+  private final File directory;
+  private final String key;
+  private final String url;
+  private final String contentBase;
+  private final String sdp;
+  private final String validator;
+  private final List<CachedTrack> tracks = new ArrayList<CachedTrack>();
+
+  /** Duration of the presentation, in milliseconds, or -1 if unknown */
+  private volatile long duration;
+  /** When the stream was last validated with the server, and for how long it stays fresh */
+  private volatile long validated;
+  private volatile long maxAge = -1;
+
+  private boolean recording = false;
+  private volatile boolean removed = false;
+
+  /**
+   * @param directory the directory of the stream
+   * @param key the normalized URL of the stream
+   * @param url the URL of the stream, as described
+   * @param contentBase the base of the relative control URLs of the SDP
+   * @param sdp the description of the stream
+   * @param validator tells whether the stream changed on the server, see
+   *          {@link MediaCache#getValidator(rtspproxy.rtsp.RtspResponse, String)}
+   */
+  CachedStream(File directory, String key, String url, String contentBase, String sdp,
+      String validator) {
+    this.directory = directory;
+    this.key = key;
+    this.url = url;
+    this.contentBase = contentBase;
+    this.sdp = sdp;
+    this.validator = validator;
+    this.duration = getDuration(sdp);
+    this.validated = System.currentTimeMillis();
+
+    MediaFormats formats = new MediaFormats(sdp);
+    List<String> controls = formats.getControls();
+    for (int i = 0; i < controls.size(); i++) {
+      String control = controls.get(i);
+      tracks.add(new CachedTrack(directory, i, resolve(contentBase, control), formats
+          .getEncoding(control), formats.getClockRate(control), MediaCache.getSegmentSize()));
+    }
+    for (CachedTrack track : tracks)
+      track.setStream(this);
+  }
+
+  /**
+   * @return the duration announced by the <code>a=range</code> attribute of the SDP, in
+   *         milliseconds, or -1 if there's none or if the stream is live
+   */
+  static long getDuration(String sdp) {
+    for (String line : sdp.split("\r?\n")) {
+      if (!line.startsWith("a=range:")) continue;
+      Npt npt = parseRange(line.substring(8));
+      return npt != null ? (long) (npt.getTimeEnd() * 1000) : -1;
+    }
+    return -1;
+  }
+
+  /**
+   * @param range a NPT range, such as <code>npt=0-120.5</code>, possibly followed by parameters
+   * @return the range, or null if it's not a NPT range with a finite end
+   */
+  public static Npt parseRange(String range) {
+    if (range == null) return null;
+    int semicolon = range.indexOf(';');
+    if (semicolon >= 0) range = range.substring(0, semicolon);
+    range = range.trim();
+    if (!range.startsWith("npt=") || range.endsWith("-")) return null;
+    Npt npt = Npt.fromString(range);
+    if (npt == null || npt.isLive() || npt.getTimeEnd() <= npt.getTimeStart()) return null;
+    return npt;
+  }
+
+  /**
+   * @return the absolute URL of a control URL of the SDP
+   */
+  static String resolve(String base, String control) {
+    if (control.startsWith("rtsp://") || control.startsWith("rtspu://")) return control;
+    if (control.equals("*")) return base;
+    return base.endsWith("/") ? base + control : base + "/" + control;
+  }
+
+  /**
+   * Loads a stream saved in a directory.
+   *
+   * @throws IOException if the stream can't be read
+   */
+  static CachedStream load(File directory) throws IOException {
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(new File(directory, "stream.properties"));
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    byte[] bytes = new byte[(int) new File(directory, "stream.sdp").length()];
+    in = new FileInputStream(new File(directory, "stream.sdp"));
+    try {
+      int read = 0;
+      while (read < bytes.length) {
+        int n = in.read(bytes, read, bytes.length - read);
+        if (n < 0) throw new IOException("Truncated SDP in " + directory);
+        read += n;
+      }
+    } finally {
+      in.close();
+    }
+
+    String url = properties.getProperty("url");
+    if (url == null) throw new IOException("No URL in " + directory);
+    CachedStream stream =
+        new CachedStream(directory, properties.getProperty("key", url), url, properties
+            .getProperty("contentBase", url), new String(bytes, "UTF-8"), properties
+            .getProperty("validator"));
+    try {
+      stream.duration = Long.parseLong(properties.getProperty("duration", "-1"));
+      stream.validated = Long.parseLong(properties.getProperty("validated", "0"));
+      stream.maxAge = Long.parseLong(properties.getProperty("maxAge", "-1"));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid properties in " + directory);
+    }
+    for (CachedTrack track : stream.tracks)
+      track.load();
+    return stream;
+  }
+
+  /**
+   * Writes the description of the stream in its directory. The packets of the tracks are saved
+   * when each recording ends.
+   */
+  synchronized void save() throws IOException {
+    if (removed) return;
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Cannot create " + directory);
+
+    Properties properties = new Properties();
+    properties.setProperty("url", url);
+    properties.setProperty("key", key);
+    properties.setProperty("contentBase", contentBase);
+    if (validator != null) properties.setProperty("validator", validator);
+    properties.setProperty("duration", Long.toString(duration));
+    properties.setProperty("validated", Long.toString(validated));
+    properties.setProperty("maxAge", Long.toString(maxAge));
+
+    write(new File(directory, "stream.sdp"), sdp.getBytes("UTF-8"));
+    File tmp = new File(directory, "stream.properties.tmp");
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      properties.store(out, "Cached stream");
+    } finally {
+      out.close();
+    }
+    rename(tmp, new File(directory, "stream.properties"));
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+    rename(tmp, file);
+  }
+
+  private static void rename(File from, File to) throws IOException {
+    if (from.renameTo(to)) return;
+    to.delete();
+    if (!from.renameTo(to)) throw new IOException("Cannot write " + to);
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public String getContentBase() {
+    return contentBase;
+  }
+
+  /**
+   * @return the description of the stream, as sent by the server
+   */
+  public String getSdp() {
+    return sdp;
+  }
+
+  public String getValidator() {
+    return validator;
+  }
+
+  /**
+   * @return the duration of the presentation, in milliseconds, or -1 if unknown
+   */
+  public long getDuration() {
+    return duration;
+  }
+
+  /**
+   * Sets the duration of the presentation, when the SDP didn't tell it.
+   */
+  public void setDuration(long duration) {
+    if (this.duration < 0) this.duration = duration;
+  }
+
+  /**
+   * @return the tracks of the stream, in the order of the SDP
+   */
+  public List<CachedTrack> getTracks() {
+    return Collections.unmodifiableList(tracks);
+  }
+
+  /**
+   * @param trackUrl the control URL of a track
+   * @return the track, or null if the stream has no track with that URL
+   */
+  public CachedTrack getTrack(String trackUrl) {
+    String normalized = MediaCache.normalize(trackUrl);
+    for (CachedTrack track : tracks) {
+      if (MediaCache.normalize(track.getUrl()).equals(normalized)) return track;
+    }
+    return null;
+  }
+
+  /**
+   * Tells the stream was found unchanged on the server.
+   *
+   * @param maxAge the time the server allows the stream to be used without asking it again, in
+   *          milliseconds, or -1 to use the default
+   */
+  public void validated(long maxAge) {
+    this.validated = System.currentTimeMillis();
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * @param defaultMaxAge the time, in milliseconds, a stream is used without asking the server
+   *          whether it changed, unless the server told otherwise
+   * @return true if the stream can be used without asking the server
+   */
+  public boolean isFresh(long defaultMaxAge) {
+    long age = System.currentTimeMillis() - validated;
+    return age >= 0 && age < (maxAge >= 0 ? maxAge : defaultMaxAge);
+  }
+
+  /**
+   * @return true if every track has packets recorded
+   */
+  public boolean hasContent() {
+    if (tracks.isEmpty()) return false;
+    for (CachedTrack track : tracks) {
+      if (!track.hasContent()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param from a media time, in milliseconds
+   * @return the media time up to which every track is recorded, starting from the given time, or
+   *         -1 if one of the tracks is not recorded at that time
+   */
+  public long getCoveredUntil(long from) {
+    long until = Long.MAX_VALUE;
+    for (CachedTrack track : tracks) {
+      until = Math.min(until, track.getCoveredUntil(from));
+      if (until < 0) return -1;
+    }
+    return tracks.isEmpty() ? -1 : until;
+  }
+
+  /**
+   * @return true if the whole presentation is recorded
+   */
+  public boolean isComplete() {
+    return duration > 0 && getCoveredUntil(0) >= duration - 1000;
+  }
+
+  /**
+   * @return the number of bytes of packets stored
+   */
+  public long getSize() {
+    long size = 0;
+    for (CachedTrack track : tracks)
+      size += track.getSize();
+    return size;
+  }
+
+  /**
+   * Reserves the stream for a recording: a stream is recorded by one session at a time.
+   *
+   * @return false if the stream is already being recorded, was removed from the cache, or is not
+   *         admitted by the cache policy
+   */
+  public boolean startRecording() {
+    if (!MediaCache.admit(this)) return false;
+    synchronized (this) {
+      if (recording || removed) return false;
+      recording = true;
+      return true;
+    }
+  }
+
+  /**
+   * Releases the stream after a recording, whose runs were ended, and saves it.
+   */
+  public void stopRecording() {
+    synchronized (this) {
+      if (!recording) return;
+      recording = false;
+    }
+    try {
+      save();
+    } catch (IOException e) {
+      log.warn("Cannot save cached stream " + url + ": " + e.getMessage());
+    }
+    MediaCache.recorded(this);
+  }
+
+  /**
+   * @return true once the stream was removed from the cache
+   */
+  public boolean isRemoved() {
+    return removed;
+  }
+
+  /**
+   * Deletes the files of the stream. The readers of its tracks fail from then on.
+   */
+  synchronized void remove() {
+    removed = true;
+    for (CachedTrack track : tracks)
+      track.delete();
+    new File(directory, "stream.properties").delete();
+    new File(directory, "stream.sdp").delete();
+    directory.delete();
+  }
+
+  /**
+   * Closes the files of the tracks.
+   */
+  synchronized void close() {
+    for (CachedTrack track : tracks)
+      track.close();
+  }
+
+  public String toString() {
+    return "CachedStream(url=\"" + url + "\", tracks=" + tracks.size() + ")";
+  }
+}
@@ -0,0 +1,828 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.rtp.BufferPool;
+
+/**
+ * The RTP packets of a track of a {@link CachedStream}, stored on disk.
+ * <p>
+ * The packets are appended to segment files of a bounded size (see {@link Segment}) as records
+ * made of the length of the packet, flagged when it starts a keyframe, of its media time, in
+ * milliseconds from the start of the presentation, of a CRC-32 of the packet and of the packet
+ * itself, as received from the server. A record never spans two segments; it's located by its
+ * <i>address</i>: the number of its segment in the upper 32 bits and its offset in the segment in
+ * the lower ones, so that addresses grow in the order records are appended.
+ * <p>
+ * Each recording appends a <i>run</i> of records covering an interval of media time; the runs
+ * recorded by different sessions may overlap or leave gaps, and a {@link Reader} goes from one run
+ * to the next in media time order. Each run has an index of the records playback can start from:
+ * the keyframes of H.264 and H.265 video, and one record every half second for the other
+ * payloads.
+ * <p>
+ * A segment is deleted when the {@link MediaCache} evicts it, with the runs it holds part of: the
+ * numbers of the other segments don't change.
+ * <p>
+ * The runs and their index are written to an index file when a recording ends, which commits them.
+ * When the track is loaded again, only the records appended after the last committed run are
+ * scanned: the ones left by a recording interrupted by a crash are recovered as a new run, up to
+ * the first record that is incomplete or fails its checksum, which is discarded with whatever
+ * follows.
+ *
+ * @author Matteo Merli
+ */
+public class CachedTrack {
+
+  private static Logger log = Logger.getLogger(CachedTrack.class);
+
+  /** Size of the header of a record: the length and flag, the media time and the checksum */
+  static final int RECORD_HEADER_SIZE = 12;
+  private static final int KEYFRAME_FLAG = 0x80000000;
+
+  /** Interval between the index entries of the payloads without keyframes, in milliseconds */
+  static final long INDEX_INTERVAL = 500;
+
+  /** Runs closer than this, in milliseconds, are played one after the other */
+  static final long GAP_TOLERANCE = 250;
+
+  private static final int INDEX_MAGIC = 0x52545058;
+  private static final int INDEX_VERSION = 2;
+
+  private static final int WRITE_BUFFER_SIZE = 65536;
+
+  static long address(int segment, long offset) {
+    return ((long) segment << 32) | offset;
+  }
+
+  static int segmentOf(long address) {
+    return (int) (address >>> 32);
+  }
+
+  static long offsetOf(long address) {
+    return address & 0xFFFFFFFFL;
+  }
+
+  /** A part of the track recorded by a single session */
+  static class Run {
+    /** Media times of the first and of the last record, in milliseconds */
+    long start;
+    long end;
+    /** Addresses of the first record and after the last one */
+    long startAddress;
+    long endAddress;
+
+    /** Media times and addresses of the records playback can start from */
+    int[] times = new int[16];
+    long[] addresses = new long[16];
+    int count = 0;
+    private long lastIndexTime;
+
+    /**
+     * Adds a record appended to the run to its bounds and, if playback can start from it, to its
+     * index.
+     */
+    void add(long time, long address, boolean keyframe, boolean keyframes) {
+      if (count == 0) {
+        start = time;
+        end = time;
+      }
+      if (count == 0
+          || (keyframes ? keyframe && time > lastIndexTime : time >= lastIndexTime + INDEX_INTERVAL)) {
+        addIndex(time, address);
+        lastIndexTime = time;
+      }
+      if (time < start) start = time;
+      if (time > end) end = time;
+    }
+
+    void addIndex(long time, long address) {
+      if (count == times.length) {
+        int[] t = new int[count * 2];
+        long[] a = new long[count * 2];
+        System.arraycopy(times, 0, t, 0, count);
+        System.arraycopy(addresses, 0, a, 0, count);
+        times = t;
+        addresses = a;
+      }
+      times[count] = (int) time;
+      addresses[count] = address;
+      count++;
+    }
+
+    /**
+     * @return the address of the last record playback can start from at or before the given time,
+     *         or the start of the run
+     */
+    long seek(long time) {
+      int low = 0;
+      int high = count - 1;
+      int found = -1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        if (times[middle] <= time) {
+          found = middle;
+          low = middle + 1;
+        } else {
+          high = middle - 1;
+        }
+      }
+      return found >= 0 ? addresses[found] : startAddress;
+    }
+  }
+
+  private static final Comparator<Run> byStart = new Comparator<Run>() {
+    public int compare(Run a, Run b) {
+      return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+    }
+  };
+
+  private final File directory;
+  private final int number;
+  private final String url;
+  private final String encoding;
+  private final int clockRate;
+  private final boolean keyframes;
+  private final long segmentSize;
+  private final File indexFile;
+
+  /** The committed runs, ordered by start time. Replaced as a whole, read without locking. */
+  private volatile Run[] runs = new Run[0];
+  /** The segments, by number, null once evicted. Replaced as a whole, read without locking. */
+  private volatile Segment[] segments = new Segment[0];
+
+  /** The stream of the track, told about the segments started and read, if any */
+  private CachedStream stream = null;
+
+  /** Address of the next record appended, including the ones not written yet */
+  private long appendAddress = 0;
+
+  private Run recording = null;
+  private ByteBuffer pending = null;
+  private final CRC32 checksum = new CRC32();
+  private boolean closed = false;
+
+  /**
+   * @param directory the directory of the stream
+   * @param number the number of the track in the stream, starting from 0
+   * @param url the control URL of the track
+   * @param encoding the encoding name of the payload, or null if unknown
+   * @param clockRate the RTP clock rate of the payload, or 0 if unknown
+   * @param segmentSize the size above which a new segment file is started, in bytes
+   */
+  CachedTrack(File directory, int number, String url, String encoding, int clockRate,
+      long segmentSize) {
+    this.directory = directory;
+    this.number = number;
+    this.url = url;
+    this.encoding = encoding;
+    this.clockRate = clockRate;
+    this.keyframes =
+        "H264".equalsIgnoreCase(encoding) || "H265".equalsIgnoreCase(encoding)
+            || "HEVC".equalsIgnoreCase(encoding);
+    this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+    this.indexFile = new File(directory, "track" + number + ".index");
+  }
+
+  void setStream(CachedStream stream) {
+    this.stream = stream;
+  }
+
+  private File getSegmentFile(int segment) {
+    return new File(directory, "track" + number + "-" + String.format("%06d", segment) + ".seg");
+  }
+
+  public int getNumber() {
+    return number;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public String getEncoding() {
+    return encoding;
+  }
+
+  public int getClockRate() {
+    return clockRate;
+  }
+
+  /**
+   * @return true if the track is indexed on its keyframes (H.264 or H.265 video)
+   */
+  public boolean hasKeyframes() {
+    return keyframes;
+  }
+
+  /**
+   * @return the number of bytes written to the segment files
+   */
+  public long getSize() {
+    long size = 0;
+    for (Segment segment : segments) {
+      if (segment != null) size += segment.getLength();
+    }
+    return size;
+  }
+
+  /**
+   * @return the number of segment files
+   */
+  public int getSegmentCount() {
+    int count = 0;
+    for (Segment segment : segments) {
+      if (segment != null) count++;
+    }
+    return count;
+  }
+
+  /**
+   * @return the segments, by number, null for the ones evicted
+   */
+  Segment[] getSegments() {
+    return segments;
+  }
+
+  /**
+   * @return true if at least one run was recorded
+   */
+  public boolean hasContent() {
+    return runs.length > 0;
+  }
+
+  /**
+   * Starts recording a new run, ending the current one if any.
+   */
+  public synchronized void startRun() throws IOException {
+    if (closed) throw new IOException("Track " + url + " is closed");
+    if (recording != null) endRun();
+    recording = new Run();
+    recording.startAddress = appendAddress;
+    recording.endAddress = appendAddress;
+    if (pending == null) pending = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+  }
+
+  /**
+   * Appends a packet to the run being recorded.
+   *
+   * @param buffer a buffer containing a RTP packet, starting at its current position, which is left
+   *          unchanged
+   * @param time the media time of the packet, in milliseconds
+   * @param keyframe true if the packet starts a keyframe (or its parameter sets)
+   */
+  public synchronized void append(IoBuffer buffer, long time, boolean keyframe)
+      throws IOException {
+    Run run = recording;
+    if (run == null || closed) return;
+    int length = buffer.remaining();
+    int recordSize = RECORD_HEADER_SIZE + length;
+
+    long offset = offsetOf(appendAddress);
+    Segment[] current = segments;
+    if (current.length == 0 || current[current.length - 1] == null || offset > 0
+        && offset + recordSize > segmentSize) {
+      flush();
+      appendAddress = address(newSegment().getNumber(), 0);
+      if (run.count == 0) run.startAddress = appendAddress;
+    }
+    if (pending.remaining() < recordSize) {
+      flush();
+      if (pending.capacity() < recordSize) pending = ByteBuffer.allocate(recordSize);
+    }
+    run.add(time, appendAddress, keyframe, keyframes);
+
+    int start = pending.position();
+    pending.putInt(keyframe ? length | KEYFRAME_FLAG : length);
+    pending.putInt((int) time);
+    pending.putInt(0);
+    ByteBuffer packet = buffer.buf().duplicate();
+    packet.limit(buffer.limit());
+    packet.position(buffer.position());
+    pending.put(packet);
+    checksum.reset();
+    checksum.update(pending.array(), pending.arrayOffset() + start + RECORD_HEADER_SIZE, length);
+    pending.putInt(start + 8, (int) checksum.getValue());
+
+    appendAddress += recordSize;
+    run.endAddress = appendAddress;
+    if (stream != null) MediaCache.written(recordSize);
+  }
+
+  private Segment newSegment() throws IOException {
+    Segment[] current = segments;
+    Segment segment = new Segment(getSegmentFile(current.length), current.length);
+    segment.getChannel();
+    Segment[] updated = new Segment[current.length + 1];
+    System.arraycopy(current, 0, updated, 0, current.length);
+    updated[current.length] = segment;
+    segments = updated;
+    if (stream != null) MediaCache.segmentStarted(stream, this, segment);
+    return segment;
+  }
+
+  private void flush() throws IOException {
+    pending.flip();
+    if (pending.hasRemaining()) segments[segments.length - 1].write(pending);
+    pending.clear();
+  }
+
+  /**
+   * Ends the run being recorded, and commits it with its index.
+   */
+  public synchronized void endRun() throws IOException {
+    Run run = recording;
+    if (run == null) return;
+    recording = null;
+    flush();
+    if (run.count == 0) return;
+
+    Segment[] current = segments;
+    for (int i = segmentOf(run.startAddress); i < current.length; i++) {
+      if (current[i] != null) current[i].force();
+    }
+    commit(run);
+    log.debug("Track " + url + ": recorded " + run.start + "-" + run.end + " ms in "
+        + (segmentOf(run.endAddress) - segmentOf(run.startAddress) + 1) + " segments");
+  }
+
+  private void commit(Run run) throws IOException {
+    List<Run> updated = new ArrayList<Run>();
+    Collections.addAll(updated, runs);
+    updated.add(run);
+    Collections.sort(updated, byStart);
+    Run[] committed = updated.toArray(new Run[updated.size()]);
+    save(committed);
+    runs = committed;
+  }
+
+  /**
+   * Ends the run being recorded without committing it: its records are discarded.
+   */
+  public synchronized void abortRun() {
+    Run run = recording;
+    recording = null;
+    if (run == null) return;
+    if (pending != null) pending.clear();
+    appendAddress = run.startAddress;
+    if (closed) return;
+    try {
+      truncate(run.startAddress);
+    } catch (IOException e) {
+      log.warn("Track " + url + ": cannot discard an aborted run: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Discards the records from the given address on, and the segments started after it.
+   */
+  private void truncate(long address) throws IOException {
+    Segment[] current = segments;
+    int last = segmentOf(address);
+    if (last < current.length && current[last] != null) current[last].truncate(offsetOf(address));
+    if (last + 1 >= current.length) return;
+    for (int i = last + 1; i < current.length; i++) {
+      if (current[i] != null) current[i].delete();
+    }
+    Segment[] updated = new Segment[last + 1];
+    System.arraycopy(current, 0, updated, 0, last + 1);
+    segments = updated;
+  }
+
+  /**
+   * Deletes a segment evicted from the cache, with the committed runs it holds part of, and the
+   * other segments holding no committed run anymore. The segments being recorded are kept.
+   *
+   * @return the segments deleted, or an empty list if the segment is being recorded
+   */
+  synchronized List<Segment> dropSegment(int segment) throws IOException {
+    List<Segment> dropped = new ArrayList<Segment>();
+    Segment[] current = segments;
+    int recorded = recording != null ? segmentOf(recording.startAddress) : current.length;
+    if (closed || segment >= current.length || current[segment] == null || segment >= recorded)
+      return dropped;
+
+    List<Run> kept = new ArrayList<Run>();
+    boolean[] used = new boolean[current.length];
+    for (Run run : runs) {
+      int first = segmentOf(run.startAddress);
+      int last = segmentOf(run.endAddress);
+      if (first <= segment && segment <= last) continue;
+      kept.add(run);
+      for (int i = first; i <= last; i++)
+        used[i] = true;
+    }
+    Run[] committed = kept.toArray(new Run[kept.size()]);
+    save(committed);
+    runs = committed;
+
+    Segment[] updated = current.clone();
+    for (int i = 0; i < recorded; i++) {
+      if (updated[i] == null || used[i]) continue;
+      dropped.add(updated[i]);
+      updated[i] = null;
+    }
+    segments = updated;
+    // the readers of the dropped runs stop at the missing segments
+    for (Segment deleted : dropped)
+      deleted.delete();
+    log.debug("Track " + url + ": evicted " + dropped.size() + " segments");
+    return dropped;
+  }
+
+  private void save(Run[] committed) throws IOException {
+    File tmp = new File(indexFile.getPath() + ".tmp");
+    FileOutputStream file = new FileOutputStream(tmp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+    try {
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(INDEX_VERSION);
+      out.writeInt(committed.length);
+      for (Run run : committed) {
+        out.writeLong(run.start);
+        out.writeLong(run.end);
+        out.writeLong(run.startAddress);
+        out.writeLong(run.endAddress);
+        out.writeInt(run.count);
+        for (int i = 0; i < run.count; i++) {
+          out.writeInt(run.times[i]);
+          out.writeLong(run.addresses[i]);
+        }
+      }
+      // on disk before it replaces the index, like the segments it refers to
+      out.flush();
+      file.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(indexFile)) {
+      indexFile.delete();
+      if (!tmp.renameTo(indexFile)) throw new IOException("Cannot write " + indexFile);
+    }
+  }
+
+  /**
+   * Reads the committed runs of the track, and recovers the records appended after them.
+   *
+   * @throws IOException if the index is unreadable or refers to missing segments
+   */
+  synchronized void load() throws IOException {
+    String prefix = "track" + number + "-";
+    String[] names = directory.list();
+    int found = 0;
+    if (names != null) {
+      for (String name : names) {
+        if (!name.startsWith(prefix) || !name.endsWith(".seg")) continue;
+        try {
+          int segment = Integer.parseInt(name.substring(prefix.length(), name.length() - 4));
+          found = Math.max(found, segment + 1);
+        } catch (NumberFormatException e) {
+          // not a segment
+        }
+      }
+    }
+    Segment[] existing = new Segment[found];
+    for (int i = 0; i < found; i++) {
+      if (getSegmentFile(i).exists()) existing[i] = new Segment(getSegmentFile(i), i);
+    }
+    segments = existing;
+
+    List<Run> loaded = new ArrayList<Run>();
+    long committed = 0;
+    if (indexFile.exists()) {
+      DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+      try {
+        if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+          throw new IOException("Unknown format of " + indexFile);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          Run run = new Run();
+          run.start = in.readLong();
+          run.end = in.readLong();
+          run.startAddress = in.readLong();
+          run.endAddress = in.readLong();
+          int entries = in.readInt();
+          for (int j = 0; j < entries; j++)
+            run.addIndex(in.readInt(), in.readLong());
+          loaded.add(run);
+          committed = Math.max(committed, run.endAddress);
+        }
+      } catch (EOFException e) {
+        throw new IOException("Truncated index " + indexFile);
+      } finally {
+        in.close();
+      }
+    }
+    int last = segmentOf(committed);
+    if (committed > 0
+        && (last >= segments.length || segments[last] == null || offsetOf(committed) > segments[
+            last].getLength()))
+      throw new IOException("Missing segments of " + indexFile);
+    Collections.sort(loaded, byStart);
+    runs = loaded.toArray(new Run[loaded.size()]);
+
+    Run recovered = recover(committed);
+    if (recovered != null) {
+      log.info("Track " + url + ": recovered " + recovered.start + "-" + recovered.end
+          + " ms of an interrupted recording");
+      commit(recovered);
+    }
+    Segment[] current = segments;
+    Segment tail = current.length > 0 ? current[current.length - 1] : null;
+    appendAddress = tail != null ? address(tail.getNumber(), tail.getLength()) : 0;
+  }
+
+  /**
+   * Scans the records following the committed runs, and discards the first one that is
+   * incomplete or corrupted with whatever follows it.
+   *
+   * @param from the address following the committed runs
+   * @return a run made of the valid records, or null if there's none
+   */
+  private Run recover(long from) throws IOException {
+    Run run = null;
+    long address = from;
+    byte[] packet = new byte[0];
+    while (segmentOf(address) < segments.length) {
+      Segment segment = segments[segmentOf(address)];
+      long offset = offsetOf(address);
+      long length = segment != null ? segment.getLength() : 0;
+      if (offset == length) {
+        if (segmentOf(address) + 1 == segments.length) break;
+        address = address(segmentOf(address) + 1, 0);
+        continue;
+      }
+
+      boolean valid = offset + RECORD_HEADER_SIZE <= length;
+      int flags = 0;
+      int size = 0;
+      if (valid) {
+        ByteBuffer mapping = segment.map(length).duplicate();
+        mapping.position((int) offset);
+        flags = mapping.getInt();
+        size = flags & ~KEYFRAME_FLAG;
+        valid = size > 0 && offset + RECORD_HEADER_SIZE + size <= length;
+        if (valid) {
+          int time = mapping.getInt();
+          int crc = mapping.getInt();
+          if (packet.length < size) packet = new byte[size];
+          mapping.get(packet, 0, size);
+          checksum.reset();
+          checksum.update(packet, 0, size);
+          valid = (int) checksum.getValue() == crc;
+          if (valid) {
+            if (run == null) {
+              run = new Run();
+              run.startAddress = address;
+            }
+            run.add(time, address, (flags & KEYFRAME_FLAG) != 0, keyframes);
+            address += RECORD_HEADER_SIZE + size;
+            run.endAddress = address;
+          }
+        }
+      }
+      if (!valid) {
+        log.info("Track " + url + ": discarding an invalid record at " + segment.getFile() + ":"
+            + offset);
+        truncate(address);
+        break;
+      }
+    }
+    return run;
+  }
+
+  /**
+   * @param from a media time, in milliseconds
+   * @return the media time up to which the track is recorded without gaps, starting from the given
+   *         time, or -1 if that time is not recorded
+   */
+  public long getCoveredUntil(long from) {
+    Run[] current = runs;
+    Run run = find(current, from, from, Long.MIN_VALUE);
+    if (run == null) return -1;
+    long until = run.end;
+    while ((run = find(current, until + GAP_TOLERANCE, until, until)) != null)
+      until = run.end;
+    return until;
+  }
+
+  /**
+   * @return the run starting at or before <code>start</code> and ending at or after
+   *         <code>end</code> and after <code>after</code>, which ends last, or null if there is
+   *         none
+   */
+  private static Run find(Run[] runs, long start, long end, long after) {
+    Run best = null;
+    for (Run run : runs) {
+      if (run.start > start) break;
+      if (run.end >= end && run.end > after && (best == null || run.end > best.end)) best = run;
+    }
+    return best;
+  }
+
+  /**
+   * @return a new reader of the packets of the track, which must be positioned with
+   *         {@link Reader#seek(long)}
+   */
+  public Reader newReader() {
+    return new Reader();
+  }
+
+  /**
+   * Closes the segment files. Nothing can be read or recorded anymore.
+   */
+  public synchronized void close() {
+    abortRun();
+    closed = true;
+    for (Segment segment : segments) {
+      if (segment != null) segment.close();
+    }
+  }
+
+  /**
+   * Deletes the files of the track.
+   */
+  synchronized void delete() {
+    close();
+    for (Segment segment : segments) {
+      if (segment != null) segment.delete();
+    }
+    segments = new Segment[0];
+    indexFile.delete();
+  }
+
+  public String toString() {
+    return "CachedTrack(url=\"" + url + "\", runs=" + runs.length + ", segments="
+        + segments.length + ")";
+  }
+
+  /**
+   * Reads the packets of the track in media time order, from a seek position to the end of the
+   * recorded interval. A reader is used by a single thread; several readers may read the same
+   * track, while it's being recorded, without locking: the committed records are read through
+   * the mappings of the segments.
+   */
+  public class Reader {
+
+    private Run run = null;
+    private long address;
+    /** Records up to this time are skipped, after moving to another run */
+    private long skipUntil = Long.MIN_VALUE;
+    private boolean discontinuity = false;
+
+    private boolean peeked = false;
+    private long nextTime;
+    private int nextLength;
+    private ByteBuffer nextMapping;
+    private long lastTime = -1;
+    private int lastSegment = -1;
+
+    private Reader() {}
+
+    /**
+     * Positions the reader on the last record playback can start from at or before the given
+     * time.
+     *
+     * @param time a media time, in milliseconds
+     * @return false if the track is not recorded at that time
+     */
+    public boolean seek(long time) {
+      peeked = false;
+      nextMapping = null;
+      skipUntil = Long.MIN_VALUE;
+      lastTime = -1;
+      run = find(runs, time, time, Long.MIN_VALUE);
+      if (run == null) return false;
+      address = run.seek(time);
+      discontinuity = true;
+      return true;
+    }
+
+    /**
+     * @return the media time of the next packet, in milliseconds, or -1 at the end of the
+     *         recorded interval
+     */
+    public long peek() throws IOException {
+      while (!peeked) {
+        if (run == null) return -1;
+        if (address >= run.endAddress) {
+          nextRun();
+          continue;
+        }
+        Segment[] current = segments;
+        int number = segmentOf(address);
+        long offset = offsetOf(address);
+        if (number >= current.length || current[number] == null) {
+          log.debug("Track " + url + ": missing segment " + number);
+          run = null;
+          return -1;
+        }
+        if (number != lastSegment) {
+          lastSegment = number;
+          if (stream != null) MediaCache.segmentRead(stream, CachedTrack.this, number);
+        }
+        if (offset + RECORD_HEADER_SIZE > current[number].getLength()) {
+          // the record didn't fit, it starts the next segment
+          address = address(number + 1, 0);
+          continue;
+        }
+        ByteBuffer mapping = current[number].map(offset + RECORD_HEADER_SIZE);
+        int length = mapping.getInt((int) offset) & ~KEYFRAME_FLAG;
+        long time = mapping.getInt((int) offset + 4);
+        if (length <= 0 || address + RECORD_HEADER_SIZE + length > run.endAddress) {
+          log.warn("Track " + url + ": invalid record at " + number + ":" + offset);
+          run = null;
+          return -1;
+        }
+        if (time <= skipUntil) {
+          address += RECORD_HEADER_SIZE + length;
+          continue;
+        }
+        nextMapping = current[number].map(offset + RECORD_HEADER_SIZE + length);
+        nextTime = time;
+        nextLength = length;
+        peeked = true;
+      }
+      return nextTime;
+    }
+
+    /**
+     * Moves to the run continuing the current one, if any.
+     */
+    private void nextRun() {
+      long end = lastTime >= 0 ? lastTime : run.end;
+      Run next = find(runs, end + GAP_TOLERANCE, end, run.end);
+      if (next == null) {
+        run = null;
+        return;
+      }
+      run = next;
+      address = next.seek(end);
+      skipUntil = lastTime >= 0 ? lastTime : Long.MIN_VALUE;
+      discontinuity = true;
+    }
+
+    /**
+     * @return a buffer from the pool holding a copy of the next packet, or null at the end of the
+     *         recorded interval
+     */
+    public IoBuffer read() throws IOException {
+      if (peek() < 0) return null;
+      int offset = (int) offsetOf(address) + RECORD_HEADER_SIZE;
+      ByteBuffer packet = nextMapping.duplicate();
+      packet.limit(offset + nextLength);
+      packet.position(offset);
+      // copied, since the packets sent to the clients are rewritten in place
+      IoBuffer buffer = BufferPool.allocate(nextLength);
+      buffer.buf().put(packet);
+      buffer.position(0);
+      buffer.limit(nextLength);
+      if (stream != null) MediaCache.read(nextLength);
+      address += RECORD_HEADER_SIZE + nextLength;
+      lastTime = nextTime;
+      peeked = false;
+      nextMapping = null;
+      return buffer;
+    }
+
+    /**
+     * @return the media time of the last packet read, in milliseconds, or -1
+     */
+    public long getLastTime() {
+      return lastTime;
+    }
+
+    /**
+     * Tells whether the packets read from now on don't follow the previous ones in the recording,
+     * after a seek or when moving to another run: their timestamps and sequence numbers start from
+     * other values. The flag is cleared by this call.
+     */
+    public boolean isDiscontinuity() {
+      boolean result = discontinuity;
+      discontinuity = false;
+      return result;
+    }
+  }
+}
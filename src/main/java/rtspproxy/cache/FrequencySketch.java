@@ -0,0 +1,98 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+/**
+ * Estimates how often keys were requested recently, in a fixed amount of memory: a count-min
+ * sketch of four rows of counters saturating at 15. The estimate of a key is the smallest of its
+ * counters, which may only overestimate it when other keys share them.
+ * <p>
+ * Once ten times as many increments as counters per row were made, every counter is halved, so
+ * that the keys that stopped being requested are forgotten.
+ *
+ * @author Matteo Merli
+ */
+class FrequencySketch {
+
+  private static final int DEPTH = 4;
+  private static final int MAX_COUNT = 15;
+  private static final int[] SEEDS = {0x97cb3127, 0xb7c33b2f, 0xcd9d6c9d, 0x8eb8d2a1};
+
+  private byte[] counters = new byte[0];
+  private int width = 0;
+  private int additions = 0;
+  private int sampleSize = 0;
+
+  /**
+   * @param entries the number of entries expected to be tracked
+   */
+  FrequencySketch(int entries) {
+    ensureCapacity(entries);
+  }
+
+  /**
+   * Widens the rows for a larger number of entries. The counts are lost.
+   */
+  void ensureCapacity(int entries) {
+    int needed = 16;
+    while (needed < entries && needed < (1 << 28))
+      needed <<= 1;
+    if (needed <= width) return;
+    width = needed;
+    counters = new byte[DEPTH * width];
+    sampleSize = 10 * width;
+    additions = 0;
+  }
+
+  /**
+   * @return the estimated number of recent requests of a key, at most 15
+   */
+  int frequency(String key) {
+    int hash = spread(key.hashCode());
+    int frequency = MAX_COUNT;
+    for (int row = 0; row < DEPTH; row++)
+      frequency = Math.min(frequency, counters[index(hash, row)]);
+    return frequency;
+  }
+
+  /**
+   * Counts a request of a key.
+   */
+  void increment(String key) {
+    int hash = spread(key.hashCode());
+    boolean added = false;
+    for (int row = 0; row < DEPTH; row++) {
+      int index = index(hash, row);
+      if (counters[index] < MAX_COUNT) {
+        counters[index]++;
+        added = true;
+      }
+    }
+    if (added && ++additions >= sampleSize) reset();
+  }
+
+  /**
+   * Halves every counter.
+   */
+  private void reset() {
+    for (int i = 0; i < counters.length; i++)
+      counters[i] >>= 1;
+    additions /= 2;
+  }
+
+  private int index(int hash, int row) {
+    int h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 16;
+    return row * width + (h & (width - 1));
+  }
+
+  private static int spread(int hash) {
+    hash *= 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -0,0 +1,75 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evicts the least recently used entries first, whatever their size. A scan of entries used once
+ * flushes the whole cache: this is the reference the other policies are measured against.
+ *
+ * @author Matteo Merli
+ */
+public class LruPolicy implements CachePolicy {
+
+  private final long capacity;
+  /** Sizes of the entries, from the least to the most recently used */
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f,
+      true);
+  private long size = 0;
+
+  public LruPolicy(long capacity) {
+    this.capacity = capacity;
+  }
+
+  public synchronized boolean access(String key) {
+    return entries.get(key) != null;
+  }
+
+  public boolean admit(String key, long size) {
+    return size <= capacity;
+  }
+
+  public synchronized void put(String key, long size) {
+    Long previous = entries.put(key, size);
+    this.size += size - (previous != null ? previous : 0);
+  }
+
+  public synchronized void remove(String key) {
+    Long previous = entries.remove(key);
+    if (previous != null) size -= previous;
+  }
+
+  public synchronized List<String> evict() {
+    List<String> evicted = new ArrayList<String>();
+    Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator();
+    while (size > capacity && i.hasNext()) {
+      Map.Entry<String, Long> eldest = i.next();
+      size -= eldest.getValue();
+      evicted.add(eldest.getKey());
+      i.remove();
+    }
+    return evicted;
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public String toString() {
+    return "LruPolicy(capacity=" + capacity + ")";
+  }
+}
@@ -0,0 +1,642 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import rtspproxy.Config;
+import rtspproxy.rtsp.RtspRequest;
+import rtspproxy.rtsp.RtspResponse;
+
+/**
+ * The cache of on demand streams, stored on disk. This is the Java port of the cache management of
+ * the original C++ proxy.
+ * <p>
+ * A stream is entered in the cache when the server answers a <code>DESCRIBE</code> request: the
+ * SDP is kept, with a validator telling whether the stream changed on the server: the
+ * <code>ETag</code> of the response, else its <code>Last-Modified</code> date, else the session
+ * id and version of the <code>o=</code> line of the SDP. The packets of the stream are recorded,
+ * with their media time, when a session plays it from the server; several sessions may record
+ * different parts of the stream (see {@link CachedTrack}).
+ * <p>
+ * The streams are keyed by normalized URL. A stream is used without asking the server for
+ * <code>proxy.cache.revalidate</code> seconds after it was last validated, unless the
+ * <code>Expires</code> and <code>Date</code> headers of the server tell otherwise. It's then
+ * described again by the server, with a conditional request, and replaced if its validator
+ * changed. Responses with <code>Cache-Control: no-cache</code>, <code>no-store</code> or
+ * <code>private</code> are not cached.
+ * <p>
+ * The streams are stored under <code>proxy.cache.dir</code>, each track in segment files of
+ * <code>proxy.cache.segmentSize</code> bytes, and loaded when the cache is first used. The cache
+ * is used when <code>proxy.cache.enable</code> is true.
+ * <p>
+ * When <code>proxy.cache.maxSize</code> is set, a {@link CachePolicy} chosen with
+ * <code>proxy.cache.policy</code> decides what is evicted to stay within that size, and what is
+ * admitted at all. Its entries are either whole streams or the segments of their tracks, as set
+ * by <code>proxy.cache.granularity</code>: with segments, only the parts of the streams that are
+ * watched stay cached. Evicted entries are deleted by a background thread.
+ *
+ * @author Matteo Merli
+ */
+public class MediaCache {
+
+  private static Logger log = Logger.getLogger(MediaCache.class);
+
+  private static final boolean enabled = Config.getBoolean("proxy.cache.enable", false);
+  private static final long revalidate =
+      Math.max(Config.getInt("proxy.cache.revalidate", 60), 0) * 1000L;
+  private static final long segmentSize =
+      Math.max(Config.getInt("proxy.cache.segmentSize", 64 * 1024 * 1024), 65536);
+  private static final long maxSize =
+      Math.max(Config.getInt("proxy.cache.maxSize", 0), 0) * 1024L * 1024L;
+  private static final boolean segmentGranularity =
+      "segment".equalsIgnoreCase(Config.get("proxy.cache.granularity", "stream"));
+  private static final CachePolicy policy =
+      maxSize > 0 ? newPolicy(Config.get("proxy.cache.policy", "tinylfu"), maxSize) : null;
+
+  private static final String ETAG = "etag:";
+  private static final String LAST_MODIFIED = "last-modified:";
+  private static final String ORIGIN = "o=";
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong validations = new AtomicLong();
+  private static final AtomicLong invalidations = new AtomicLong();
+  private static final AtomicLong bytesRead = new AtomicLong();
+  private static final AtomicLong bytesWritten = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+  private static final AtomicLong evictedBytes = new AtomicLong();
+
+  /** Deletes the evicted entries, without holding the locks of the threads accounting for them */
+  private static final ExecutorService evictor = policy != null ? newEvictor() : null;
+  private static final AtomicBoolean evictionScheduled = new AtomicBoolean();
+
+  /** The streams by key, loaded on first use */
+  private static Map<String, CachedStream> streams = null;
+  /** The streams by normalized control URL of their tracks */
+  private static Map<String, CachedStream> trackUrls = new HashMap<String, CachedStream>();
+
+  private static File directory = null;
+
+  /**
+   * @return true if on demand streams are cached
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return the time, in milliseconds, a stream is used without asking the server whether it
+   *         changed, unless the server told otherwise
+   */
+  public static long getRevalidateInterval() {
+    return revalidate;
+  }
+
+  /**
+   * @return the size above which the packets of a track are appended to a new segment file, in
+   *         bytes
+   */
+  public static long getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * @param name <code>lru</code>, <code>slru</code>, <code>tinylfu</code> or the name of a class
+   *          implementing {@link CachePolicy}
+   * @param capacity the size of the cache, in bytes
+   * @return the policy, or a {@link TinyLfuPolicy} if the class can't be used
+   */
+  static CachePolicy newPolicy(String name, long capacity) {
+    if ("lru".equalsIgnoreCase(name)) return new LruPolicy(capacity);
+    if ("slru".equalsIgnoreCase(name)) return new SegmentedLruPolicy(capacity);
+    if ("tinylfu".equalsIgnoreCase(name)) return new TinyLfuPolicy(capacity);
+    try {
+      return (CachePolicy) Class.forName(name).getConstructor(long.class).newInstance(capacity);
+    } catch (Exception e) {
+      log.error("Invalid cache policy " + name + ": " + e);
+      return new TinyLfuPolicy(capacity);
+    }
+  }
+
+  /**
+   * Normalizes a URL, so that the different ways of writing the URL of a stream give the same key:
+   * the scheme and the host are lower cased, the default port and the fragment are removed, and
+   * so is the trailing slash of the path.
+   *
+   * @param url an absolute URL
+   * @return the normalized URL
+   */
+  public static String normalize(String url) {
+    int hash = url.indexOf('#');
+    if (hash >= 0) url = url.substring(0, hash);
+    int scheme = url.indexOf("://");
+    if (scheme < 0) return url;
+    int path = url.indexOf('/', scheme + 3);
+    String authority = url.substring(scheme + 3, path >= 0 ? path : url.length()).toLowerCase();
+    if (authority.endsWith(":554")) authority = authority.substring(0, authority.length() - 4);
+    String rest = path >= 0 ? url.substring(path) : "";
+    int query = rest.indexOf('?');
+    String file = query >= 0 ? rest.substring(0, query) : rest;
+    while (file.endsWith("/"))
+      file = file.substring(0, file.length() - 1);
+    if (query >= 0) file += rest.substring(query);
+    return url.substring(0, scheme).toLowerCase() + "://" + authority + file;
+  }
+
+  private static synchronized Map<String, CachedStream> getStreams() {
+    if (streams != null) return streams;
+    streams = new HashMap<String, CachedStream>();
+    File root = getDirectory();
+    File[] entries = root.listFiles();
+    if (entries == null) return streams;
+
+    for (File entry : entries) {
+      if (!entry.isDirectory()) continue;
+      try {
+        CachedStream stream = CachedStream.load(entry);
+        add(stream);
+      } catch (IOException e) {
+        log.warn("Discarding cached stream " + entry + ": " + e.getMessage());
+        removeDirectory(entry);
+      }
+    }
+    log.info("Loaded " + streams.size() + " cached streams from " + root);
+    scheduleEviction();
+    return streams;
+  }
+
+  private static File getDirectory() {
+    if (directory == null) {
+      File dir = new File(Config.get("proxy.cache.dir", "cache"));
+      if (!dir.isAbsolute() && Config.getHome() != null)
+        dir = new File(Config.getHome(), dir.getPath());
+      directory = dir;
+    }
+    return directory;
+  }
+
+  private static void add(CachedStream stream) {
+    streams.put(stream.getKey(), stream);
+    for (CachedTrack track : stream.getTracks())
+      trackUrls.put(normalize(track.getUrl()), stream);
+    recorded(stream);
+  }
+
+  /**
+   * @return the key of a segment for the cache policy
+   */
+  private static String getKey(CachedStream stream, CachedTrack track, int segment) {
+    return stream.getKey() + "#" + track.getNumber() + "/" + segment;
+  }
+  private static void removeDirectory(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) for (File file : files)
+      file.delete();
+    dir.delete();
+  }
+
+  /**
+   * @param url the URL of a stream
+   * @return the cached stream, or null if the stream is not cached
+   */
+  public static synchronized CachedStream get(String url) {
+    return getStreams().get(normalize(url));
+  }
+
+  /**
+   * @param url the control URL of a track
+   * @return the cached stream the track belongs to, or null if it's not cached
+   */
+  public static synchronized CachedStream getByTrackUrl(String url) {
+    getStreams();
+    return trackUrls.get(normalize(url));
+  }
+
+  /**
+   * Looks up a stream about to be described to a client.
+   *
+   * @param url the URL of the stream
+   * @return the cached stream, if it can be described without asking the server, or null
+   */
+  public static CachedStream lookup(String url) {
+    if (policy != null && !segmentGranularity) policy.access(normalize(url));
+    CachedStream stream = get(url);
+    if (stream != null && stream.hasContent() && stream.isFresh(revalidate)) {
+      hits.incrementAndGet();
+      return stream;
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Makes a <code>DESCRIBE</code> request for a stale stream conditional, so that the server
+   * answers <code>304 Not Modified</code> if the stream didn't change. Requests that are
+   * already conditional are left unchanged.
+   *
+   * @param request the request sent to the server
+   * @return true if the request was made conditional
+   */
+  public static boolean addConditions(RtspRequest request) {
+    if (request.getUrl() == null || request.getHeader("If-Modified-Since") != null
+        || request.getHeader("If-None-Match") != null) return false;
+    CachedStream stream = get(request.getUrl().toString());
+    if (stream == null || !stream.hasContent() || stream.getValidator() == null) return false;
+
+    String validator = stream.getValidator();
+    if (validator.startsWith(ETAG)) {
+      request.setHeader("If-None-Match", validator.substring(ETAG.length()));
+      return true;
+    } else if (validator.startsWith(LAST_MODIFIED)) {
+      request.setHeader("If-Modified-Since", validator.substring(LAST_MODIFIED.length()));
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Handles the response of the server to a <code>DESCRIBE</code> request. A cached stream whose
+   * validator didn't change is kept; otherwise it's replaced with a new entry, holding no packets
+   * yet.
+   *
+   * @param url the URL of the stream
+   * @param response a successful response, with the SDP of the stream
+   * @return the cached stream, or null if the response can't be cached
+   */
+  public static synchronized CachedStream describe(String url, RtspResponse response) {
+    String key = normalize(url);
+    CachedStream stream = getStreams().get(key);
+    String sdp = response.getBuffer().toString();
+    String validator = getValidator(response, sdp);
+
+    if (stream != null && validator != null && validator.equals(stream.getValidator())) {
+      validated(stream, response);
+      return stream;
+    }
+    if (stream != null) {
+      log.info("Cached stream " + url + " changed on the server");
+      invalidations.incrementAndGet();
+      remove(stream);
+    }
+    if (!isCacheable(response)) return null;
+
+    String base = response.getHeader("Content-Base", response.getHeader("Content-Location", url));
+    stream = new CachedStream(new File(getDirectory(), hash(key)), key, url, base, sdp, validator);
+    if (stream.getTracks().isEmpty()) return null;
+    stream.validated(getMaxAge(response));
+    try {
+      stream.save();
+    } catch (IOException e) {
+      log.warn("Cannot cache stream " + url + ": " + e.getMessage());
+      stream.remove();
+      return null;
+    }
+    add(stream);
+    log.debug("Caching stream " + url);
+    return stream;
+  }
+
+  /**
+   * Handles a <code>304 Not Modified</code> response of the server to a conditional
+   * <code>DESCRIBE</code> request.
+   *
+   * @return the cached stream, or null if it's not cached anymore
+   */
+  public static synchronized CachedStream notModified(String url, RtspResponse response) {
+    CachedStream stream = getStreams().get(normalize(url));
+    if (stream != null) validated(stream, response);
+    return stream;
+  }
+
+  private static void validated(CachedStream stream, RtspResponse response) {
+    validations.incrementAndGet();
+    stream.validated(getMaxAge(response));
+    try {
+      stream.save();
+    } catch (IOException e) {
+      log.debug("Cannot save cached stream " + stream.getUrl() + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Removes a stream from the cache and deletes its files.
+   */
+  public static synchronized void remove(CachedStream stream) {
+    if (streams == null || streams.get(stream.getKey()) != stream) return;
+    streams.remove(stream.getKey());
+    for (CachedTrack track : stream.getTracks())
+      trackUrls.remove(normalize(track.getUrl()));
+    if (policy != null && !segmentGranularity) policy.remove(stream.getKey());
+    if (policy != null && segmentGranularity) {
+      for (CachedTrack track : stream.getTracks()) {
+        for (Segment segment : track.getSegments()) {
+          if (segment != null) policy.remove(getKey(stream, track, segment.getNumber()));
+        }
+      }
+    }
+    stream.remove();
+  }
+
+  /**
+   * Asks the policy whether a stream should be recorded.
+   */
+  static boolean admit(CachedStream stream) {
+    if (policy == null) return true;
+    return segmentGranularity ? policy.admit(stream.getKey(), segmentSize) : policy.admit(stream
+        .getKey(), stream.getSize());
+  }
+
+  /**
+   * Tells the policy a recording started a new segment. The segment is accounted for its maximum
+   * size, until the recording ends.
+   */
+  static void segmentStarted(CachedStream stream, CachedTrack track, Segment segment) {
+    if (policy == null || stream.isRemoved()) return;
+    if (segmentGranularity) {
+      Segment[] segments = track.getSegments();
+      int previous = segment.getNumber() - 1;
+      if (previous >= 0 && segments[previous] != null) account(stream, track, segments[previous]);
+      policy.put(getKey(stream, track, segment.getNumber()), segmentSize);
+      segment.setAccounted(segmentSize);
+    } else {
+      policy.put(stream.getKey(), stream.getSize());
+    }
+    scheduleEviction();
+  }
+
+  /**
+   * Tells the policy the actual size of the segments of a stream, after a recording.
+   */
+  static void recorded(CachedStream stream) {
+    if (policy == null || stream.isRemoved()) return;
+    if (segmentGranularity) {
+      for (CachedTrack track : stream.getTracks()) {
+        for (Segment segment : track.getSegments()) {
+          if (segment != null) account(stream, track, segment);
+        }
+      }
+    } else {
+      policy.put(stream.getKey(), stream.getSize());
+    }
+    scheduleEviction();
+  }
+
+  private static void account(CachedStream stream, CachedTrack track, Segment segment) {
+    long length = segment.getLength();
+    if (segment.getAccounted() == length) return;
+    policy.put(getKey(stream, track, segment.getNumber()), length);
+    segment.setAccounted(length);
+  }
+
+  /**
+   * Tells the policy a reader started reading a segment.
+   */
+  static void segmentRead(CachedStream stream, CachedTrack track, int segment) {
+    if (policy != null && segmentGranularity) policy.access(getKey(stream, track, segment));
+  }
+
+  static void read(long bytes) {
+    bytesRead.addAndGet(bytes);
+  }
+
+  static void written(long bytes) {
+    bytesWritten.addAndGet(bytes);
+  }
+
+  private static ExecutorService newEvictor() {
+    return Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "MediaCache");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private static void scheduleEviction() {
+    if (policy == null || !evictionScheduled.compareAndSet(false, true)) return;
+    evictor.execute(new Runnable() {
+      public void run() {
+        evictionScheduled.set(false);
+        evict();
+      }
+    });
+  }
+
+  /**
+   * Deletes the entries the policy evicts. Called by the eviction thread, holding no lock.
+   */
+  private static void evict() {
+    List<String> evicted = policy.evict();
+    for (String key : evicted) {
+      evictions.incrementAndGet();
+      if (segmentGranularity) {
+        evictSegment(key);
+      } else {
+        CachedStream stream;
+        synchronized (MediaCache.class) {
+          stream = streams != null ? streams.get(key) : null;
+        }
+        if (stream == null) continue;
+        log.debug("Evicting cached stream " + stream.getUrl());
+        evictedBytes.addAndGet(stream.getSize());
+        remove(stream);
+      }
+    }
+  }
+
+  private static void evictSegment(String key) {
+    int hash = key.lastIndexOf('#');
+    int slash = key.lastIndexOf('/');
+    CachedStream stream;
+    synchronized (MediaCache.class) {
+      stream = streams != null ? streams.get(key.substring(0, hash)) : null;
+    }
+    int number = Integer.parseInt(key.substring(hash + 1, slash));
+    int segment = Integer.parseInt(key.substring(slash + 1));
+    if (stream == null || number >= stream.getTracks().size()) return;
+    CachedTrack track = stream.getTracks().get(number);
+    try {
+      List<Segment> dropped = track.dropSegment(segment);
+      Segment[] segments = track.getSegments();
+      if (dropped.isEmpty() && segment < segments.length && segments[segment] != null) {
+        // being recorded: kept
+        policy.put(key, segments[segment].getLength());
+        return;
+      }
+      for (Segment deleted : dropped) {
+        evictedBytes.addAndGet(deleted.getLength());
+        if (deleted.getNumber() != segment)
+          policy.remove(getKey(stream, track, deleted.getNumber()));
+      }
+    } catch (IOException e) {
+      log.warn("Cannot evict " + key + " from the cache: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return what tells whether a stream changed on the server: the ETag of the response, its
+   *         Last-Modified date or the session id and version of the SDP, or null if there's none
+   */
+  public static String getValidator(RtspResponse response, String sdp) {
+    if (response.getHeader("ETag") != null) return ETAG + response.getHeader("ETag").trim();
+    if (response.getHeader("Last-Modified") != null)
+      return LAST_MODIFIED + response.getHeader("Last-Modified").trim();
+    for (String line : sdp.split("\r?\n")) {
+      if (!line.startsWith("o=")) continue;
+      // o=<username> <sess-id> <sess-version> <nettype> <addrtype> <unicast-address>
+      String[] fields = line.substring(2).trim().split("\\s+");
+      if (fields.length >= 3) return ORIGIN + fields[1] + " " + fields[2];
+    }
+    return null;
+  }
+
+  /**
+   * @return false if the <code>Cache-Control</code> header of the server forbids to keep the
+   *         response
+   */
+  public static boolean isCacheable(RtspResponse response) {
+    String control = response.getHeader("Cache-Control");
+    if (control == null) return true;
+    control = control.toLowerCase();
+    return !control.contains("no-cache") && !control.contains("no-store")
+        && !control.contains("private");
+  }
+
+  /**
+   * @return the time the server allows the stream to be used without asking it again, in
+   *         milliseconds, from its <code>Expires</code> and <code>Date</code> headers, or -1
+   */
+  public static long getMaxAge(RtspResponse response) {
+    String expires = response.getHeader("Expires");
+    String date = response.getHeader("Date");
+    if (expires == null || date == null) return -1;
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    try {
+      return Math.max(format.parse(expires.trim()).getTime() - format.parse(date.trim()).getTime(),
+          0);
+    } catch (ParseException e) {
+      // an invalid date means already expired (RFC 2326, section 12.19)
+      return 0;
+    }
+  }
+
+  private static String hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest)
+        sb.append(Integer.toHexString((b >> 4) & 0xF)).append(Integer.toHexString(b & 0xF));
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return Integer.toHexString(key.hashCode());
+    } catch (UnsupportedEncodingException e) {
+      return Integer.toHexString(key.hashCode());
+    }
+  }
+
+  /**
+   * @return the number of streams described from the cache
+   */
+  public static long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of streams described by the servers, because they were not cached or not
+   *         fresh
+   */
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of cached streams found unchanged by the servers
+   */
+  public static long getValidations() {
+    return validations.get();
+  }
+
+  /**
+   * @return the number of cached streams replaced because they changed on the servers
+   */
+  public static long getInvalidations() {
+    return invalidations.get();
+  }
+
+  /**
+   * @return the part of the streams described from the cache
+   */
+  public static double getHitRatio() {
+    long requests = hits.get() + misses.get();
+    return requests > 0 ? (double) hits.get() / requests : 0;
+  }
+
+  /**
+   * @return the number of bytes of packets read from the cache
+   */
+  public static long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  /**
+   * @return the number of bytes of packets recorded from the servers
+   */
+  public static long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /**
+   * @return the part of the packets played from the cache rather than from the servers, in bytes
+   */
+  public static double getByteHitRatio() {
+    long total = bytesRead.get() + bytesWritten.get();
+    return total > 0 ? (double) bytesRead.get() / total : 0;
+  }
+
+  /**
+   * @return the number of entries evicted by the policy
+   */
+  public static long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the number of bytes deleted by evictions
+   */
+  public static long getEvictedBytes() {
+    return evictedBytes.get();
+  }
+
+  /**
+   * @return the bytes evicted per byte recorded: close to 1 when what is recorded doesn't stay
+   *         cached long enough to be played again
+   */
+  public static double getEvictionChurn() {
+    long written = bytesWritten.get();
+    return written > 0 ? (double) evictedBytes.get() / written : 0;
+  }
+}
@@ -0,0 +1,144 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A segment file of a {@link CachedTrack}: records are only appended to the last segment of a
+ * track, and a segment is never written again once the next one is started.
+ * <p>
+ * Segments are read through a read-only memory mapping, shared by all the readers, so that
+ * reading a packet is a memory copy rather than a system call. The mapping covers the bytes
+ * written when it was made; it's made again when a reader needs bytes appended since.
+ *
+ * @author Matteo Merli
+ */
+class Segment {
+
+  private static Logger log = Logger.getLogger(Segment.class);
+
+  private final File file;
+  private final int number;
+
+  private FileChannel channel = null;
+  /** Bytes written to the file */
+  private volatile long length;
+  private volatile MappedByteBuffer mapping = null;
+  private boolean closed = false;
+  /** Size last given to the cache policy, in bytes */
+  private volatile long accounted = -1;
+
+  /**
+   * @param file the segment file, which may already exist
+   * @param number the number of the segment in the track, starting from 0
+   */
+  Segment(File file, int number) {
+    this.file = file;
+    this.number = number;
+    this.length = file.length();
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  int getNumber() {
+    return number;
+  }
+
+  long getLength() {
+    return length;
+  }
+
+  long getAccounted() {
+    return accounted;
+  }
+
+  void setAccounted(long accounted) {
+    this.accounted = accounted;
+  }
+
+  synchronized FileChannel getChannel() throws IOException {
+    if (closed) throw new IOException("Segment " + file + " is closed");
+    if (channel == null) channel = new RandomAccessFile(file, "rw").getChannel();
+    return channel;
+  }
+
+  /**
+   * Writes bytes at the end of the segment.
+   */
+  synchronized void write(ByteBuffer buffer) throws IOException {
+    FileChannel file = getChannel();
+    long position = length;
+    while (buffer.hasRemaining())
+      position += file.write(buffer, position);
+    length = position;
+  }
+
+  synchronized void force() throws IOException {
+    if (channel != null) channel.force(false);
+  }
+
+  /**
+   * @param needed the number of bytes, from the start of the segment, the mapping must cover
+   * @return a read-only mapping of the segment, to be read with absolute positions or through a
+   *         duplicate
+   * @throws IOException if the segment is shorter than needed
+   */
+  ByteBuffer map(long needed) throws IOException {
+    MappedByteBuffer current = mapping;
+    if (current != null && current.capacity() >= needed) return current;
+    synchronized (this) {
+      if (needed > length) throw new IOException("Unexpected end of " + file);
+      if (mapping == null || mapping.capacity() < needed)
+        mapping = getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      return mapping;
+    }
+  }
+
+  /**
+   * Discards the bytes of the segment past the given length.
+   */
+  synchronized void truncate(long newLength) throws IOException {
+    if (newLength >= length) return;
+    // the mapping may cover the discarded bytes
+    mapping = null;
+    getChannel().truncate(newLength);
+    length = newLength;
+  }
+
+  synchronized void close() {
+    closed = true;
+    mapping = null;
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Cannot close " + file + ": " + e);
+      }
+      channel = null;
+    }
+  }
+
+  synchronized void delete() {
+    close();
+    file.delete();
+  }
+
+  public String toString() {
+    return "Segment(file=\"" + file + "\", length=" + length + ")";
+  }
+}
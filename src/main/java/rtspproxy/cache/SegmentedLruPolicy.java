@@ -0,0 +1,158 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Segmented LRU: new entries are put on probation, and only the ones used again are moved to the
+ * protected segment, which holds at most 80% of the capacity. Entries are evicted from the least
+ * recently used end of the probation segment first, so a scan of entries used once only replaces
+ * other entries on probation. The protected entries pushed out by newly protected ones go back on
+ * probation.
+ *
+ * @author Matteo Merli
+ */
+public class SegmentedLruPolicy implements CachePolicy {
+
+  /** Part of the capacity given to the protected segment, in percent */
+  private static final int PROTECTED_PERCENT = 80;
+
+  private final long capacity;
+  private final long protectedCapacity;
+
+  /** Sizes of the entries of each segment, from the least to the most recently used */
+  private final LinkedHashMap<String, Long> probation = new LinkedHashMap<String, Long>(16,
+      0.75f, true);
+  private final LinkedHashMap<String, Long> protect = new LinkedHashMap<String, Long>(16, 0.75f,
+      true);
+  private long probationSize = 0;
+  private long protectedSize = 0;
+
+  public SegmentedLruPolicy(long capacity) {
+    this.capacity = capacity;
+    this.protectedCapacity = capacity * PROTECTED_PERCENT / 100;
+  }
+
+  public synchronized boolean access(String key) {
+    if (protect.get(key) != null) return true;
+    Long size = probation.remove(key);
+    if (size == null) return false;
+    probationSize -= size;
+    protect.put(key, size);
+    protectedSize += size;
+    demote();
+    return true;
+  }
+
+  /**
+   * Moves the least recently used protected entries back on probation, until the protected
+   * segment fits its capacity.
+   */
+  private void demote() {
+    Iterator<Map.Entry<String, Long>> i = protect.entrySet().iterator();
+    while (protectedSize > protectedCapacity && i.hasNext()) {
+      Map.Entry<String, Long> eldest = i.next();
+      i.remove();
+      protectedSize -= eldest.getValue();
+      probation.put(eldest.getKey(), eldest.getValue());
+      probationSize += eldest.getValue();
+    }
+  }
+
+  public boolean admit(String key, long size) {
+    return size <= capacity;
+  }
+
+  public synchronized void put(String key, long size) {
+    Long previous = protect.get(key);
+    if (previous != null) {
+      protect.put(key, size);
+      protectedSize += size - previous;
+      demote();
+      return;
+    }
+    previous = probation.put(key, size);
+    probationSize += size - (previous != null ? previous : 0);
+  }
+
+  public synchronized void remove(String key) {
+    Long previous = probation.remove(key);
+    if (previous != null) probationSize -= previous;
+    previous = protect.remove(key);
+    if (previous != null) protectedSize -= previous;
+  }
+
+  /**
+   * @return true if the entry is cached
+   */
+  synchronized boolean contains(String key) {
+    return probation.containsKey(key) || protect.containsKey(key);
+  }
+
+  /**
+   * @param needed a number of bytes
+   * @return the entries that would be evicted first to free that many bytes, without evicting them
+   */
+  synchronized List<String> victims(long needed) {
+    List<String> victims = new ArrayList<String>();
+    long freed = 0;
+    for (Map.Entry<String, Long> entry : probation.entrySet()) {
+      if (freed >= needed) return victims;
+      victims.add(entry.getKey());
+      freed += entry.getValue();
+    }
+    for (Map.Entry<String, Long> entry : protect.entrySet()) {
+      if (freed >= needed) return victims;
+      victims.add(entry.getKey());
+      freed += entry.getValue();
+    }
+    return victims;
+  }
+
+  public synchronized List<String> evict() {
+    List<String> evicted = new ArrayList<String>();
+    probationSize -= evict(probation, evicted);
+    protectedSize -= evict(protect, evicted);
+    return evicted;
+  }
+
+  /**
+   * Evicts the least recently used entries of a segment while the cache exceeds its capacity.
+   *
+   * @return the number of bytes freed
+   */
+  private long evict(LinkedHashMap<String, Long> segment, List<String> evicted) {
+    long size = getSize();
+    long freed = 0;
+    Iterator<Map.Entry<String, Long>> i = segment.entrySet().iterator();
+    while (size - freed > capacity && i.hasNext()) {
+      Map.Entry<String, Long> eldest = i.next();
+      freed += eldest.getValue();
+      evicted.add(eldest.getKey());
+      i.remove();
+    }
+    return freed;
+  }
+
+  public synchronized long getSize() {
+    return probationSize + protectedSize;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public String toString() {
+    return "SegmentedLruPolicy(capacity=" + capacity + ")";
+  }
+}
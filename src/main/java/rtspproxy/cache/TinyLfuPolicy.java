@@ -0,0 +1,135 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Window TinyLFU: new entries go to a small LRU window, 1% of the capacity, which absorbs bursts
+ * of entries used once. The entries leaving the window are only admitted to the main part of the
+ * cache, a {@link SegmentedLruPolicy}, if they were requested more often, recently, than every
+ * entry they would push out; otherwise they are evicted themselves. The recent requests of every
+ * key, cached or not, are estimated by a {@link FrequencySketch}.
+ * <p>
+ * A scan of streams requested once, such as a crawl, only goes through the window, and the
+ * popular streams stay cached.
+ *
+ * @author Matteo Merli
+ */
+public class TinyLfuPolicy implements CachePolicy {
+
+  /** Part of the capacity given to the window, in percent */
+  private static final int WINDOW_PERCENT = 1;
+
+  private final long capacity;
+  private final long windowCapacity;
+
+  /** Sizes of the entries of the window, from the least to the most recently used */
+  private final LinkedHashMap<String, Long> window = new LinkedHashMap<String, Long>(16, 0.75f,
+      true);
+  private long windowSize = 0;
+  private final SegmentedLruPolicy main;
+  private final FrequencySketch sketch = new FrequencySketch(1024);
+  private int count = 0;
+
+  public TinyLfuPolicy(long capacity) {
+    this.capacity = capacity;
+    this.windowCapacity = capacity * WINDOW_PERCENT / 100;
+    this.main = new SegmentedLruPolicy(capacity - windowCapacity);
+  }
+
+  public synchronized boolean access(String key) {
+    sketch.increment(key);
+    return window.get(key) != null || main.access(key);
+  }
+
+  public boolean admit(String key, long size) {
+    return size <= capacity;
+  }
+
+  public synchronized void put(String key, long size) {
+    if (main.contains(key)) {
+      main.put(key, size);
+      return;
+    }
+    Long previous = window.put(key, size);
+    windowSize += size - (previous != null ? previous : 0);
+    if (previous == null && ++count > 1024) sketch.ensureCapacity(count);
+  }
+
+  public synchronized void remove(String key) {
+    Long previous = window.remove(key);
+    if (previous != null) {
+      windowSize -= previous;
+      count--;
+    } else if (main.contains(key)) {
+      main.remove(key);
+      count--;
+    }
+  }
+
+  public synchronized List<String> evict() {
+    List<String> evicted = new ArrayList<String>();
+    Iterator<Map.Entry<String, Long>> i = window.entrySet().iterator();
+    while (windowSize > windowCapacity && i.hasNext()) {
+      Map.Entry<String, Long> candidate = i.next();
+      i.remove();
+      windowSize -= candidate.getValue();
+      if (admitToMain(candidate.getKey(), candidate.getValue(), evicted)) {
+        main.put(candidate.getKey(), candidate.getValue());
+      } else {
+        evicted.add(candidate.getKey());
+        count--;
+      }
+    }
+    // the entries of the main part may have grown
+    List<String> overflow = main.evict();
+    count -= overflow.size();
+    evicted.addAll(overflow);
+    return evicted;
+  }
+
+  /**
+   * Makes room in the main part for an entry leaving the window, if it was requested more often
+   * than every entry it would push out.
+   *
+   * @return false if the entry must be evicted instead
+   */
+  private boolean admitToMain(String key, long size, List<String> evicted) {
+    long needed = main.getSize() + size - main.getCapacity();
+    if (needed <= 0) return true;
+    if (size > main.getCapacity()) return false;
+    List<String> victims = main.victims(needed);
+    int frequency = sketch.frequency(key);
+    for (String victim : victims) {
+      if (sketch.frequency(victim) >= frequency) return false;
+    }
+    for (String victim : victims) {
+      main.remove(victim);
+      evicted.add(victim);
+      count--;
+    }
+    return true;
+  }
+
+  public synchronized long getSize() {
+    return windowSize + main.getSize();
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public String toString() {
+    return "TinyLfuPolicy(capacity=" + capacity + ")";
+  }
+}
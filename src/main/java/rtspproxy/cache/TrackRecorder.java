@@ -0,0 +1,127 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.rtp.H264Payload;
+import rtspproxy.rtp.H265Payload;
+import rtspproxy.rtp.RtpPacketView;
+
+/**
+ * Records the packets of a track played from a server into a {@link CachedTrack}, as a new run.
+ * <p>
+ * The media time of each packet is the start of the range played, as given by the
+ * <code>Range</code> header of the <code>PLAY</code> response, plus the time elapsed since the
+ * timestamp announced by its <code>RTP-Info</code> header, or since the first packet when the
+ * server didn't announce it. Timestamps are unwrapped, so a recording can last longer than the 32
+ * bit RTP timestamps.
+ *
+ * @author Matteo Merli
+ */
+public class TrackRecorder {
+
+  private static Logger log = Logger.getLogger(TrackRecorder.class);
+
+  private final CachedTrack track;
+  private final long start;
+  private final long rtptime;
+  private final int clockRate;
+  private final boolean h265;
+  private final RtpPacketView view = new RtpPacketView();
+
+  private boolean anchored = false;
+  private int lastTimestamp;
+  /** Timestamp units elapsed since the start of the range */
+  private long elapsed = 0;
+  private long packets = 0;
+  private boolean closed = false;
+
+  /**
+   * Starts recording a new run of a track.
+   *
+   * @param track the cached track, whose clock rate must be known
+   * @param start the media time of the start of the range played, in milliseconds
+   * @param rtptime the RTP timestamp of the start of the range, or -1 if unknown
+   * @throws IOException if the track can't be recorded
+   */
+  public TrackRecorder(CachedTrack track, long start, long rtptime) throws IOException {
+    if (track.getClockRate() <= 0) throw new IOException("Unknown clock rate");
+    this.track = track;
+    this.start = start;
+    this.rtptime = rtptime;
+    this.clockRate = track.getClockRate();
+    this.h265 = !"H264".equalsIgnoreCase(track.getEncoding());
+    track.startRun();
+  }
+
+  /**
+   * Records a packet received from the server.
+   *
+   * @param buffer a buffer containing a RTP packet, starting at its current position, which is left
+   *          unchanged
+   */
+  public synchronized void record(IoBuffer buffer) {
+    if (closed || buffer.remaining() < 12) return;
+    int timestamp = buffer.getInt(buffer.position() + 4);
+    if (!anchored) {
+      lastTimestamp = rtptime >= 0 ? (int) rtptime : timestamp;
+      anchored = true;
+    }
+    elapsed += timestamp - lastTimestamp;
+    lastTimestamp = timestamp;
+    long time = Math.max(start + elapsed * 1000 / clockRate, 0);
+
+    boolean keyframe = false;
+    if (track.hasKeyframes()) {
+      view.wrap(buffer);
+      if (view.isValid()) {
+        int offset = view.getPayloadOffset();
+        int length = view.getPayloadLength();
+        int flags =
+            h265 ? H265Payload.classify(buffer, offset, length) : H264Payload.classify(buffer,
+                offset, length);
+        keyframe = (flags & H264Payload.KEYFRAME) != 0;
+      }
+      view.wrap(null, 0, 0);
+    }
+
+    try {
+      track.append(buffer, time, keyframe);
+      packets++;
+    } catch (IOException e) {
+      log.warn("Cannot record track " + track.getUrl() + ": " + e.getMessage());
+      closed = true;
+      track.abortRun();
+    }
+  }
+
+  /**
+   * @return the number of packets recorded
+   */
+  public synchronized long getPackets() {
+    return packets;
+  }
+
+  /**
+   * Ends the recording, committing the packets recorded.
+   */
+  public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    try {
+      track.endRun();
+    } catch (IOException e) {
+      log.warn("Cannot record track " + track.getUrl() + ": " + e.getMessage());
+      track.abortRun();
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.filter;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+
+import rtspproxy.lib.MemoryGovernor;
+
+/**
+ * Accounts for the bytes waiting in the write queue of a connection in its {@link MemoryGovernor}
+ * budget, and releases the budget when the connection is closed.
+ * <p>
+ * This must be the first filter in the chain, so that it sees the encoded buffers.
+ *
+ * @author Matteo Merli
+ */
+public class MemoryFilter extends IoFilterAdapter {
+
+  private final MemoryGovernor governor = MemoryGovernor.getInstance();
+
+  @Override
+  public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest)
+      throws Exception {
+    Object message = writeRequest.getMessage();
+    if (message instanceof IoBuffer)
+      governor.getBudget(session).force(((IoBuffer) message).remaining());
+    nextFilter.filterWrite(session, writeRequest);
+  }
+
+  @Override
+  public void messageSent(NextFilter nextFilter, IoSession session, WriteRequest writeRequest)
+      throws Exception {
+    // the buffer position is reset before the write is notified
+    Object message = writeRequest.getMessage();
+    if (message instanceof IoBuffer)
+      governor.getBudget(session).release(((IoBuffer) message).remaining());
+    nextFilter.messageSent(session, writeRequest);
+  }
+
+  @Override
+  public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+    MemoryGovernor.Budget budget = MemoryGovernor.peekBudget(session);
+    if (budget != null) budget.close();
+    nextFilter.sessionClosed(session);
+  }
+}
@@ -26,6 +26,7 @@ public class RtspClientFilters extends RtspFilters {
 
   public void buildFilterChain(IoFilterChain chain) throws Exception {
     addIpAddressFilter(chain);
+    addMemoryFilter(chain);
     addRtspCodecFilter(chain);
     addAuthenticationFilter(chain);
   }
@@ -57,6 +57,8 @@ public abstract class RtspFilters implements IoFilterChainBuilder {
 
   private static IoFilter codecFilter = new ProtocolCodecFilter(codecFactory);
 
+  private static IoFilter memoryFilter = new MemoryFilter();
+
   // These filters are instanciated only one time, when requested
   private static IpAddressFilter ipAddressFilter = null;
   private static AuthenticationFilter authenticationFilter = null;
@@ -76,6 +78,14 @@ public abstract class RtspFilters implements IoFilterChainBuilder {
     }
   }
 
+  /**
+   * The memory filter is always present, and always the first, in order to account for the encoded
+   * data waiting to be written.
+   */
+  protected void addMemoryFilter(IoFilterChain chain) {
+    chain.addFirst("memory", memoryFilter);
+  }
+
   /**
    * The RTSP codec filter is always present. Translates the incoming streams into RTSP messages.
    */
@@ -27,6 +27,7 @@ public class RtspServerFilters extends RtspFilters {
   public void buildFilterChain(IoFilterChain chain) throws Exception {
     // When connecting to the server we don't need to use AAA filters
     addRtspCodecFilter(chain);
+    addMemoryFilter(chain);
   }
 
 }
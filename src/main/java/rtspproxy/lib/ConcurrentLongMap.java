@@ -0,0 +1,269 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.lib;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent hash map with primitive <code>long</code> keys, used to demultiplex packets on the
+ * data path (e.g. by SSRC id or by packed socket address) without boxing the key.
+ * <p>
+ * The map is split into segments, each one being an open addressing table with linear probing.
+ * Lookups never lock and never retry: they read the current table of the segment and probe at
+ * most the whole table, so they are wait-free and allocation-free. Updates lock only the segment
+ * they belong to; removed entries are replaced with a tombstone and are purged when the segment is
+ * rehashed.
+ * <p>
+ * <code>null</code> values are not allowed.
+ *
+ * @param <V> the type of the values
+ */
+public class ConcurrentLongMap<V> {
+
+  private static final Object TOMBSTONE = new Object();
+
+  private static final int MIN_SEGMENT_CAPACITY = 8;
+
+  private final Segment<V>[] segments;
+  private final int segmentShift;
+
+  /**
+   * Creates a map with a number of segments proportional to the number of available processors.
+   */
+  public ConcurrentLongMap() {
+    this(4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param concurrencyLevel the estimated number of concurrently updating threads
+   */
+  @SuppressWarnings("unchecked")
+  public ConcurrentLongMap(int concurrencyLevel) {
+    int shift = 0;
+    int count = 1;
+    while (count < concurrencyLevel) {
+      count <<= 1;
+      shift++;
+    }
+    segmentShift = 32 - shift;
+    segments = (Segment<V>[]) new Segment<?>[count];
+    for (int i = 0; i < count; i++)
+      segments[i] = new Segment<V>();
+  }
+
+  /**
+   * @param key the key
+   * @return the value mapped to the key or null if there's no mapping
+   */
+  public V get(long key) {
+    int hash = hash(key);
+    return segmentFor(hash).get(key, hash);
+  }
+
+  public boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Maps the key to the value, replacing any previous mapping.
+   *
+   * @return the previous value or null
+   */
+  public V put(long key, V value) {
+    if (value == null) throw new NullPointerException();
+    int hash = hash(key);
+    return segmentFor(hash).put(key, hash, value, false);
+  }
+
+  /**
+   * Maps the key to the value, only if the key is not already mapped.
+   *
+   * @return the current value if the key was already mapped, otherwise null
+   */
+  public V putIfAbsent(long key, V value) {
+    if (value == null) throw new NullPointerException();
+    int hash = hash(key);
+    return segmentFor(hash).put(key, hash, value, true);
+  }
+
+  /**
+   * Removes the mapping for the key.
+   *
+   * @return the removed value or null
+   */
+  public V remove(long key) {
+    int hash = hash(key);
+    return segmentFor(hash).remove(key, hash, null);
+  }
+
+  /**
+   * Removes the mapping for the key only if it is currently mapped to the given value.
+   *
+   * @return true if the mapping was removed
+   */
+  public boolean remove(long key, V value) {
+    if (value == null) return false;
+    int hash = hash(key);
+    return segmentFor(hash).remove(key, hash, value) != null;
+  }
+
+  /**
+   * @return the number of mappings. The value is not a snapshot if the map is being modified.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment<V> segment : segments)
+      size += segment.size;
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public void clear() {
+    for (Segment<V> segment : segments)
+      segment.clear();
+  }
+
+  private Segment<V> segmentFor(int hash) {
+    // segmentShift is 32 with a single segment, and shifting an int by 32 is a no-op
+    return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+  }
+
+  /**
+   * Spreads the key bits, since keys are often sequential or differ only in the low bits (ports).
+   */
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private static final class Entry<V> {
+    final long key;
+    final V value;
+
+    Entry(long key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  private static final class Segment<V> {
+
+    /** Slots contain null, TOMBSTONE or an Entry. Replaced as a whole on rehash. */
+    volatile AtomicReferenceArray<Object> table =
+        new AtomicReferenceArray<Object>(MIN_SEGMENT_CAPACITY);
+
+    /** Number of live entries */
+    volatile int size = 0;
+
+    /** Number of non-null slots (live entries + tombstones), guarded by the segment lock */
+    int used = 0;
+
+    @SuppressWarnings("unchecked")
+    V get(long key, int hash) {
+      AtomicReferenceArray<Object> t = table;
+      int mask = t.length() - 1;
+      int index = hash & mask;
+      for (int probes = 0; probes <= mask; probes++) {
+        Object slot = t.get(index);
+        if (slot == null) return null;
+        if (slot != TOMBSTONE && ((Entry<V>) slot).key == key) return ((Entry<V>) slot).value;
+        index = (index + 1) & mask;
+      }
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized V put(long key, int hash, V value, boolean onlyIfAbsent) {
+      AtomicReferenceArray<Object> t = table;
+      int mask = t.length() - 1;
+      int index = hash & mask;
+      int free = -1;
+      for (int probes = 0; probes <= mask; probes++) {
+        Object slot = t.get(index);
+        if (slot == null) {
+          if (free < 0) free = index;
+          break;
+        }
+        if (slot == TOMBSTONE) {
+          if (free < 0) free = index;
+        } else if (((Entry<V>) slot).key == key) {
+          V old = ((Entry<V>) slot).value;
+          if (!onlyIfAbsent) t.set(index, new Entry<V>(key, value));
+          return old;
+        }
+        index = (index + 1) & mask;
+      }
+
+      if (free < 0 || (t.get(free) == null && (used + 1) * 2 > t.length())) {
+        // Table is too crowded: rehash and retry on the new table
+        rehash();
+        return put(key, hash, value, onlyIfAbsent);
+      }
+
+      if (t.get(free) == null) used++;
+      t.set(free, new Entry<V>(key, value));
+      size++;
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized V remove(long key, int hash, V expected) {
+      AtomicReferenceArray<Object> t = table;
+      int mask = t.length() - 1;
+      int index = hash & mask;
+      for (int probes = 0; probes <= mask; probes++) {
+        Object slot = t.get(index);
+        if (slot == null) return null;
+        if (slot != TOMBSTONE && ((Entry<V>) slot).key == key) {
+          V old = ((Entry<V>) slot).value;
+          if (expected != null && expected != old) return null;
+          t.set(index, TOMBSTONE);
+          size--;
+          return old;
+        }
+        index = (index + 1) & mask;
+      }
+      return null;
+    }
+
+    synchronized void clear() {
+      table = new AtomicReferenceArray<Object>(MIN_SEGMENT_CAPACITY);
+      size = 0;
+      used = 0;
+    }
+
+    /**
+     * Copies the live entries into a new table, sized to keep the load factor below 50%. Readers
+     * keep using the old table until the new one is published.
+     */
+    @SuppressWarnings("unchecked")
+    private void rehash() {
+      AtomicReferenceArray<Object> old = table;
+      int capacity = MIN_SEGMENT_CAPACITY;
+      while (capacity < (size + 1) * 4)
+        capacity <<= 1;
+
+      AtomicReferenceArray<Object> t = new AtomicReferenceArray<Object>(capacity);
+      int mask = capacity - 1;
+      for (int i = 0; i < old.length(); i++) {
+        Object slot = old.get(i);
+        if (slot == null || slot == TOMBSTONE) continue;
+        int index = hash(((Entry<V>) slot).key) & mask;
+        while (t.get(index) != null)
+          index = (index + 1) & mask;
+        t.set(index, slot);
+      }
+
+      used = size;
+      table = t;
+    }
+  }
+}
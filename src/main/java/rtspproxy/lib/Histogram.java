@@ -0,0 +1,103 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values in buckets of increasing powers of two: bucket 0 counts the zeros, bucket 1 the
+ * ones, bucket 2 the values from 2 to 3, bucket 3 from 4 to 7, and so on. The last bucket counts
+ * every value above. Values are recorded from any thread, without locking.
+ *
+ * @author Matteo Merli
+ */
+public class Histogram {
+
+  private final AtomicLongArray buckets;
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param size the number of buckets
+   */
+  public Histogram(int size) {
+    buckets = new AtomicLongArray(Math.max(size, 1));
+  }
+
+  /**
+   * Records a value. Negative values are counted as zeros.
+   */
+  public void record(long value) {
+    if (value < 0) value = 0;
+    int index = Math.min(64 - Long.numberOfLeadingZeros(value), buckets.length() - 1);
+    buckets.incrementAndGet(index);
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long current;
+    while (value > (current = max.get())) {
+      if (max.compareAndSet(current, value)) break;
+    }
+  }
+
+  public int size() {
+    return buckets.length();
+  }
+
+  /**
+   * @return the number of values recorded in a bucket
+   */
+  public long getBucket(int index) {
+    return buckets.get(index);
+  }
+
+  /**
+   * @return the highest value counted in a bucket, or Long.MAX_VALUE for the last one
+   */
+  public long getBucketLimit(int index) {
+    if (index == buckets.length() - 1) return Long.MAX_VALUE;
+    return index == 0 ? 0 : (1L << index) - 1;
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getMean() {
+    long values = count.get();
+    return values == 0 ? 0 : sum.get() / values;
+  }
+
+  /**
+   * @param percent a percentage, from 0 to 100
+   * @return the upper limit of the bucket containing the given percentile, or the maximum value if
+   *         it's lower
+   */
+  public long getPercentile(double percent) {
+    long values = count.get();
+    if (values == 0) return 0;
+    long rank = (long) Math.ceil(values * percent / 100);
+    long seen = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) return Math.min(getBucketLimit(i), max.get());
+    }
+    return max.get();
+  }
+
+  public String toString() {
+    return "Histogram(count=" + getCount() + " mean=" + getMean() + " p50=" + getPercentile(50)
+        + " p99=" + getPercentile(99) + " max=" + getMax() + ")";
+  }
+}
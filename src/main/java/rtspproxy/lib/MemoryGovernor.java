@@ -0,0 +1,325 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.lib;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.session.IoSession;
+
+import rtspproxy.Config;
+
+/**
+ * Bounds the memory held by the data buffered in the proxy: the bytes written to the RTSP
+ * connections and not sent yet, the interleaved packets waiting in their queue, and the messages
+ * and packets partially decoded.
+ * <p>
+ * Every buffering point reserves the bytes it holds against the {@link Budget} of its connection,
+ * and releases them once they're gone. A connection can't hold more than
+ * <code>proxy.memory.sessionLimit</code> bytes, and all the connections together no more than
+ * <code>proxy.memory.limit</code>. As the total usage climbs, the proxy sheds load in steps, each
+ * one set as a percentage of the global limit:
+ * <ol>
+ * <li>{@link Level#DROP_MEDIA}: media packets that would have to be queued are dropped;</li>
+ * <li>{@link Level#PAUSE_ORIGIN}: the proxy stops reading the interleaved packets sent by the
+ * servers, until the usage goes back below this level;</li>
+ * <li>{@link Level#REFUSE_SESSIONS}: new sessions are refused.</li>
+ * </ol>
+ *
+ * @author Matteo Merli
+ */
+public class MemoryGovernor {
+
+  private static Logger log = Logger.getLogger(MemoryGovernor.class);
+
+  /** Used to save the budget of a connection in the IoSession */
+  private static final String ATTR = MemoryGovernor.class.getName() + "Attr";
+
+  /** The steps of the load shedding, in order of increasing usage */
+  public enum Level {
+    NORMAL, DROP_MEDIA, PAUSE_ORIGIN, REFUSE_SESSIONS
+  }
+
+  private static MemoryGovernor instance = null;
+
+  /**
+   * @return the governor shared by all the connections
+   */
+  public static synchronized MemoryGovernor getInstance() {
+    if (instance == null) instance = new MemoryGovernor();
+    return instance;
+  }
+
+  private final long limit = Config.getInt("proxy.memory.limit", 134217728);
+  private final long sessionLimit = Config.getInt("proxy.memory.sessionLimit", 4194304);
+  private final long dropMediaLevel = limit * Config.getInt("proxy.memory.dropMedia", 70) / 100;
+  private final long pauseOriginLevel = limit * Config.getInt("proxy.memory.pauseOrigin", 85) / 100;
+  private final long refuseSessionsLevel =
+      limit * Config.getInt("proxy.memory.refuseSessions", 95) / 100;
+
+  private final AtomicLong used = new AtomicLong();
+  private final AtomicLong peak = new AtomicLong();
+  private final AtomicLong refused = new AtomicLong();
+  private final AtomicLong refusedBytes = new AtomicLong();
+  private final AtomicLong sessionsRefused = new AtomicLong();
+  private volatile Level level = Level.NORMAL;
+
+  /** Connections with a server which are not read, while the level is PAUSE_ORIGIN or above */
+  private final Set<IoSession> pausedSessions = new HashSet<IoSession>();
+  private volatile boolean paused = false;
+
+  /**
+   * Creates a governor with the limits set in the configuration.
+   */
+  public MemoryGovernor() {}
+
+  /**
+   * @return the budget of a connection, created on first use
+   */
+  public Budget getBudget(IoSession session) {
+    synchronized (session) {
+      Budget budget = (Budget) session.getAttribute(ATTR);
+      if (budget == null) {
+        budget = new Budget(session);
+        session.setAttribute(ATTR, budget);
+      }
+      return budget;
+    }
+  }
+
+  /**
+   * @return the budget of a connection, or null if nothing was ever reserved on it
+   */
+  public static Budget peekBudget(IoSession session) {
+    return (Budget) session.getAttribute(ATTR);
+  }
+
+  /**
+   * Stops reading from a server connection, if the usage is at {@link Level#PAUSE_ORIGIN} or above.
+   * Reading resumes once the usage has gone back below this level.
+   *
+   * @return true if the connection has been paused
+   */
+  public boolean pauseIfNeeded(IoSession session) {
+    if (level.compareTo(Level.PAUSE_ORIGIN) < 0) return false;
+    synchronized (pausedSessions) {
+      // the level may have dropped meanwhile
+      if (level.compareTo(Level.PAUSE_ORIGIN) < 0 || !pausedSessions.add(session)) return false;
+      paused = true;
+    }
+    session.suspendRead();
+    log.debug("Paused reading from " + session.getRemoteAddress());
+    return true;
+  }
+
+  /**
+   * Checks whether a new session can be created, and counts it as refused if not.
+   *
+   * @return false if new sessions are being refused
+   */
+  public boolean acceptSession() {
+    if (level != Level.REFUSE_SESSIONS) return true;
+    sessionsRefused.incrementAndGet();
+    return false;
+  }
+
+  private boolean add(long bytes, long ceiling) {
+    long total = used.addAndGet(bytes);
+    if (total > ceiling) {
+      used.addAndGet(-bytes);
+      refused.incrementAndGet();
+      refusedBytes.addAndGet(bytes);
+      return false;
+    }
+    long current;
+    while (total > (current = peak.get())) {
+      if (peak.compareAndSet(current, total)) break;
+    }
+    updateLevel(total);
+    return true;
+  }
+
+  private void remove(long bytes) {
+    updateLevel(used.addAndGet(-bytes));
+  }
+
+  private Level levelOf(long total) {
+    if (total >= refuseSessionsLevel) return Level.REFUSE_SESSIONS;
+    if (total >= pauseOriginLevel) return Level.PAUSE_ORIGIN;
+    if (total >= dropMediaLevel) return Level.DROP_MEDIA;
+    return Level.NORMAL;
+  }
+
+  private void updateLevel(long total) {
+    Level oldLevel = level;
+    Level newLevel = levelOf(total);
+    if (newLevel == oldLevel) return;
+    // going down needs some margin, so that the level doesn't flip at every packet
+    if (newLevel.compareTo(oldLevel) < 0 && levelOf(total + limit / 20).compareTo(oldLevel) >= 0)
+      return;
+
+    level = newLevel;
+    if (newLevel.compareTo(oldLevel) > 0)
+      log.warn("Buffered data: " + total + " bytes, now " + newLevel);
+    else log.info("Buffered data: " + total + " bytes, back to " + newLevel);
+
+    if (paused && newLevel.compareTo(Level.PAUSE_ORIGIN) < 0) resumeAll();
+  }
+
+  private void resumeAll() {
+    IoSession[] sessions;
+    synchronized (pausedSessions) {
+      sessions = pausedSessions.toArray(new IoSession[pausedSessions.size()]);
+      pausedSessions.clear();
+      paused = false;
+    }
+    for (IoSession session : sessions)
+      session.resumeRead();
+    log.debug("Resumed reading from " + sessions.length + " server connection(s)");
+  }
+
+  public Level getLevel() {
+    return level;
+  }
+
+  public long getLimit() {
+    return limit;
+  }
+
+  public long getSessionLimit() {
+    return sessionLimit;
+  }
+
+  /**
+   * @return the number of bytes currently reserved by all the connections
+   */
+  public long getUsed() {
+    return used.get();
+  }
+
+  /**
+   * @return the maximum number of bytes reserved at the same time
+   */
+  public long getPeak() {
+    return peak.get();
+  }
+
+  /**
+   * @return the number of reservations refused, either by the global or by a connection limit
+   */
+  public long getRefused() {
+    return refused.get();
+  }
+
+  public long getRefusedBytes() {
+    return refusedBytes.get();
+  }
+
+  public long getSessionsRefused() {
+    return sessionsRefused.get();
+  }
+
+  /**
+   * @return the number of server connections currently not read
+   */
+  public int getPausedCount() {
+    synchronized (pausedSessions) {
+      return pausedSessions.size();
+    }
+  }
+
+  /**
+   * The bytes held on behalf of a connection. Once the connection is closed, its budget is closed
+   * as well and all its bytes are released at once, whatever the buffering points still hold.
+   */
+  public class Budget {
+
+    private final IoSession session;
+    private long used = 0;
+    private long peak = 0;
+    private long refused = 0;
+    private boolean closed = false;
+
+    private Budget(IoSession session) {
+      this.session = session;
+    }
+
+    /**
+     * Reserves bytes about to be buffered.
+     *
+     * @param bytes the number of bytes
+     * @param media true for media packets, which are refused from the {@link Level#DROP_MEDIA}
+     *          level; false for RTSP messages, only refused at the global limit
+     * @return false if the reservation is refused, and the data should be dropped
+     */
+    public synchronized boolean reserve(int bytes, boolean media) {
+      if (closed || used + bytes > sessionLimit) {
+        refused++;
+        MemoryGovernor.this.refused.incrementAndGet();
+        MemoryGovernor.this.refusedBytes.addAndGet(bytes);
+        return false;
+      }
+      if (!add(bytes, media ? dropMediaLevel : limit)) {
+        refused++;
+        return false;
+      }
+      used += bytes;
+      if (used > peak) peak = used;
+      return true;
+    }
+
+    /**
+     * Accounts for bytes already buffered, which can't be refused, such as those written to the
+     * connection.
+     */
+    public synchronized void force(int bytes) {
+      if (closed) return;
+      add(bytes, Long.MAX_VALUE);
+      used += bytes;
+      if (used > peak) peak = used;
+    }
+
+    /**
+     * Releases bytes reserved or forced before.
+     */
+    public synchronized void release(int bytes) {
+      if (closed) return;
+      bytes = (int) Math.min(bytes, used);
+      used -= bytes;
+      remove(bytes);
+    }
+
+    /**
+     * Releases all the bytes of the connection, once it's closed.
+     */
+    public synchronized void close() {
+      if (closed) return;
+      closed = true;
+      remove(used);
+      used = 0;
+      synchronized (pausedSessions) {
+        pausedSessions.remove(session);
+      }
+    }
+
+    public synchronized long getUsed() {
+      return used;
+    }
+
+    public synchronized long getPeak() {
+      return peak;
+    }
+
+    public synchronized long getRefused() {
+      return refused;
+    }
+  }
+}
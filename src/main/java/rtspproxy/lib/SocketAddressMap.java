@@ -0,0 +1,76 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.lib;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A concurrent map keyed by socket address (IP address + port).
+ * <p>
+ * IPv4 addresses are packed together with the port into a single <code>long</code> and stored in a
+ * {@link ConcurrentLongMap}, so looking up the address of a received packet neither allocates nor
+ * hashes an {@link InetSocketAddress}. Other addresses (IPv6, unresolved) fall back to a regular
+ * {@link ConcurrentHashMap}.
+ *
+ * @param <V> the type of the values
+ */
+public class SocketAddressMap<V> {
+
+  private final ConcurrentLongMap<V> inet4Map = new ConcurrentLongMap<V>();
+  private final ConcurrentMap<InetSocketAddress, V> otherMap =
+      new ConcurrentHashMap<InetSocketAddress, V>();
+
+  public V get(InetSocketAddress address) {
+    InetAddress inetAddress = address.getAddress();
+    if (inetAddress instanceof Inet4Address)
+      return inet4Map.get(pack((Inet4Address) inetAddress, address.getPort()));
+    return otherMap.get(address);
+  }
+
+  public V get(InetAddress address, int port) {
+    if (address instanceof Inet4Address) return inet4Map.get(pack((Inet4Address) address, port));
+    return otherMap.get(new InetSocketAddress(address, port));
+  }
+
+  public V put(InetAddress address, int port, V value) {
+    if (address instanceof Inet4Address)
+      return inet4Map.put(pack((Inet4Address) address, port), value);
+    return otherMap.put(new InetSocketAddress(address, port), value);
+  }
+
+  /**
+   * Removes the mapping only if the address is mapped to the given value, so that a stale owner
+   * cannot remove a mapping that was re-assigned in the meantime.
+   *
+   * @return true if the mapping was removed
+   */
+  public boolean remove(InetAddress address, int port, V value) {
+    if (address instanceof Inet4Address)
+      return inet4Map.remove(pack((Inet4Address) address, port), value);
+    if (address == null) return false;
+    return otherMap.remove(new InetSocketAddress(address, port), value);
+  }
+
+  public int size() {
+    return inet4Map.size() + otherMap.size();
+  }
+
+  /**
+   * Packs an IPv4 address and a port in the lower 48 bits of a long.
+   * <p>
+   * The hash code of an Inet4Address is the address itself, in network byte order, so it can be
+   * read without copying the address bytes.
+   */
+  static long pack(Inet4Address address, int port) {
+    return ((address.hashCode() & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+  }
+}
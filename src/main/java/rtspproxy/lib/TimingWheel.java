@@ -0,0 +1,185 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.lib;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A hashed timing wheel: a single thread expires any number of timers, with a resolution of one
+ * tick.
+ * <p>
+ * The wheel is an array of buckets, one per tick, used circularly. A timer is linked in the bucket
+ * of the tick at which it expires; timers expiring one or more turns later share the bucket and
+ * are skipped until their turn comes. Scheduling a timer costs a compare-and-set, and every tick
+ * only walks the timers of one bucket, so that thousands of timers cost one thread and no
+ * allocation.
+ * <p>
+ * Timers are scheduled from any thread: they're pushed on a lock-free stack, which the wheel
+ * thread moves into the buckets at every tick. A timer must not be scheduled again before it has
+ * expired.
+ *
+ * @author Matteo Merli
+ */
+public class TimingWheel implements Runnable {
+
+  private static Logger log = Logger.getLogger(TimingWheel.class);
+
+  /**
+   * A task run by the wheel thread at a given time. The fields are used by the wheel to link the
+   * timer, which can therefore be scheduled again and again without allocating anything.
+   */
+  public abstract static class Timer {
+
+    /** The tick at which the timer expires */
+    private long deadline;
+    /** Next timer in the bucket or in the stack of pending timers */
+    private Timer next;
+
+    /**
+     * Runs the task, in the wheel thread. Exceptions are logged and otherwise ignored.
+     *
+     * @param now the current time, as given by {@link System#nanoTime()}
+     */
+    protected abstract void expire(long now);
+  }
+
+  private final String name;
+  private final long tickNanos;
+  private final Timer[] buckets;
+  private final int mask;
+  private final long origin;
+
+  /** Timers scheduled but not yet moved in their bucket */
+  private final AtomicReference<Timer> pending = new AtomicReference<Timer>();
+
+  /** The next tick to expire. Only used by the wheel thread. */
+  private long tick = 0;
+
+  private volatile Thread thread = null;
+  private volatile boolean running = false;
+
+  /**
+   * @param name a name for the wheel thread
+   * @param tickNanos the duration of a tick, in nanoseconds
+   * @param size the number of buckets, rounded up to a power of two
+   */
+  public TimingWheel(String name, long tickNanos, int size) {
+    this.name = name;
+    this.tickNanos = Math.max(tickNanos, 1);
+    int count = Integer.highestOneBit(Math.max(size, 1) - 1) << 1;
+    this.buckets = new Timer[Math.max(count, 1)];
+    this.mask = buckets.length - 1;
+    this.origin = System.nanoTime();
+  }
+
+  /**
+   * Starts the wheel thread.
+   */
+  public synchronized void start() {
+    if (running) return;
+    running = true;
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops the wheel thread. The timers not yet expired are forgotten.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (thread != null) LockSupport.unpark(thread);
+    thread = null;
+  }
+
+  /**
+   * Schedules a timer.
+   *
+   * @param timer the timer, which must not be already scheduled
+   * @param time the time at which the timer expires, as given by {@link System#nanoTime()}. A time
+   *          in the past expires the timer at the next tick.
+   */
+  public void schedule(Timer timer, long time) {
+    // round up, so that a timer never expires before its time
+    timer.deadline = (time - origin + tickNanos - 1) / tickNanos;
+    Timer head;
+    do {
+      head = pending.get();
+      timer.next = head;
+    } while (!pending.compareAndSet(head, timer));
+  }
+
+  public long getTickNanos() {
+    return tickNanos;
+  }
+
+  public void run() {
+    log.debug(name + " started, tick " + tickNanos + " ns, " + buckets.length + " buckets");
+    while (running) {
+      advance(System.nanoTime());
+      long sleep = origin + tick * tickNanos - System.nanoTime();
+      if (sleep > 0) LockSupport.parkNanos(this, sleep);
+    }
+    log.debug(name + " stopped");
+  }
+
+  /**
+   * Expires all the timers due at the given time. Called by the wheel thread at every tick.
+   *
+   * @param now the current time, as given by {@link System#nanoTime()}
+   */
+  void advance(long now) {
+    long current = (now - origin) / tickNanos;
+    transferPending();
+    // after a long pause, don't walk the same buckets several times
+    if (current - tick > buckets.length) tick = current - buckets.length;
+    while (tick <= current) {
+      expireBucket((int) (tick & mask), current, now);
+      tick++;
+    }
+  }
+
+  private void transferPending() {
+    Timer timer = pending.getAndSet(null);
+    while (timer != null) {
+      Timer next = timer.next;
+      // a deadline in the past is expired at the next tick
+      if (timer.deadline < tick) timer.deadline = tick;
+      int index = (int) (timer.deadline & mask);
+      timer.next = buckets[index];
+      buckets[index] = timer;
+      timer = next;
+    }
+  }
+
+  private void expireBucket(int index, long current, long now) {
+    Timer previous = null;
+    Timer timer = buckets[index];
+    while (timer != null) {
+      Timer next = timer.next;
+      if (timer.deadline <= current) {
+        // unlink before running, since the timer may schedule itself again
+        if (previous == null) buckets[index] = next;
+        else previous.next = next;
+        timer.next = null;
+        try {
+          timer.expire(now);
+        } catch (Throwable t) {
+          log.warn(name + ": timer failed", t);
+        }
+      } else {
+        previous = timer;
+      }
+      timer = next;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import rtspproxy.cache.CachedStream;
+import rtspproxy.cache.CachedTrack;
+import rtspproxy.cache.MediaCache;
+import rtspproxy.cache.TrackRecorder;
+import rtspproxy.lib.Npt;
+
+/**
+ * Records in the {@link MediaCache} the tracks of a session playing an on demand stream from its
+ * server, from the <code>PLAY</code> response to the next request changing the playback.
+ *
+ * @author Matteo Merli
+ */
+public class CacheRecording {
+
+  private static Logger log = Logger.getLogger(CacheRecording.class);
+
+  private final CachedStream stream;
+  private final Map<Track, TrackRecorder> recorders = new HashMap<Track, TrackRecorder>();
+  private boolean closed = false;
+
+  private CacheRecording(CachedStream stream) {
+    this.stream = stream;
+  }
+
+  /**
+   * Starts recording the tracks of a session, unless the stream is already recorded entirely or
+   * by another session.
+   *
+   * @param stream the cached stream
+   * @param tracks the tracks of the session
+   * @param range the <code>Range</code> header of the <code>PLAY</code> response
+   * @param rtpInfo the <code>RTP-Info</code> header of the <code>PLAY</code> response, or null
+   * @return the recording, or null if nothing is recorded
+   */
+  public static CacheRecording start(CachedStream stream, Iterable<Track> tracks, String range,
+      String rtpInfo) {
+    Npt npt = CachedStream.parseRange(range);
+    if (npt == null) return null;
+    stream.setDuration((long) (npt.getTimeEnd() * 1000));
+    if (stream.isComplete() || !stream.startRecording()) return null;
+
+    CacheRecording recording = new CacheRecording(stream);
+    long start = (long) (npt.getTimeStart() * 1000);
+    for (Track track : tracks) {
+      CachedTrack cached = stream.getTrack(track.getUrl());
+      if (cached == null || cached.getClockRate() <= 0) continue;
+      try {
+        TrackRecorder recorder =
+            new TrackRecorder(cached, start, getRtpTime(rtpInfo, track.getUrl()));
+        recording.recorders.put(track, recorder);
+        track.setRecorder(recorder);
+      } catch (IOException e) {
+        log.warn("Cannot record track " + track.getUrl() + ": " + e.getMessage());
+      }
+    }
+    if (recording.recorders.isEmpty()) {
+      stream.stopRecording();
+      return null;
+    }
+    log.debug("Recording " + stream.getUrl() + " from " + start + " ms");
+    return recording;
+  }
+
+  /**
+   * @return the timestamp given by a <code>RTP-Info</code> header to a track, or -1 if none
+   */
+  static long getRtpTime(String rtpInfo, String trackUrl) {
+    if (rtpInfo == null) return -1;
+    for (String entry : rtpInfo.split(",")) {
+      String url = null;
+      long rtptime = -1;
+      for (String field : entry.trim().split(";")) {
+        field = field.trim();
+        try {
+          if (field.startsWith("url=")) url = field.substring(4);
+          else if (field.startsWith("rtptime=")) rtptime = Long.parseLong(field.substring(8));
+        } catch (NumberFormatException e) {
+          // ignored
+        }
+      }
+      if (url == null || rtptime < 0) continue;
+      if (url.equals(trackUrl) || trackUrl.endsWith("/" + url)
+          || MediaCache.normalize(url).equals(MediaCache.normalize(trackUrl))) return rtptime;
+    }
+    return -1;
+  }
+
+  public CachedStream getStream() {
+    return stream;
+  }
+
+  /**
+   * Stops recording and commits what was recorded.
+   */
+  public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    for (Map.Entry<Track, TrackRecorder> entry : recorders.entrySet()) {
+      if (entry.getKey().getRecorder() == entry.getValue()) entry.getKey().setRecorder(null);
+      entry.getValue().close();
+    }
+    stream.stopRecording();
+  }
+}
@@ -0,0 +1,438 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.cache.CachedStream;
+import rtspproxy.cache.CachedTrack;
+import rtspproxy.lib.Npt;
+import rtspproxy.rtp.BufferPool;
+import rtspproxy.rtp.rtcp.RtcpPacket;
+import rtspproxy.rtp.rtcp.RtcpPacketWriter;
+
+/**
+ * Plays an on demand stream to a client from the {@link rtspproxy.cache.MediaCache}, without
+ * contacting the server.
+ * <p>
+ * The packets recorded are sent at the pace of their media time, a little ahead of it, through the
+ * tracks of the session: the sequence numbers and the timestamps are rewritten, so that they
+ * follow each other across seeks and recordings. The proxy sends its own sender reports, mapping
+ * the timestamps to the wall clock.
+ * <p>
+ * When the range played goes past what is recorded, the rest is asked to the server by a
+ * {@link GapFiller}, whose packets are spliced after the ones sent from the cache, and recorded in
+ * turn.
+ *
+ * @author Matteo Merli
+ */
+public class CachedPlayback implements Runnable {
+
+  private static Logger log = Logger.getLogger(CachedPlayback.class);
+
+  /** Interval at which the packets due are sent, in milliseconds */
+  private static final long TICK = 10;
+  /** How far ahead of the media clock packets are sent, in milliseconds */
+  private static final long LEAD = 500;
+  /** Interval between the sender reports of a track, in milliseconds */
+  private static final long REPORT_INTERVAL = 5000;
+  /** Seconds between the NTP epoch (1900) and the Unix epoch (1970) */
+  private static final long NTP_OFFSET = 2208988800L;
+
+  private static final AtomicLong packetsServed = new AtomicLong();
+  private static final AtomicLong bytesServed = new AtomicLong();
+  private static final AtomicLong gapFills = new AtomicLong();
+
+  private static ScheduledExecutorService timer = null;
+  private static Random random = new Random();
+
+  static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "CachedPlayback");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return timer;
+  }
+
+  /**
+   * A track of the session, and where it's read in the cache.
+   */
+  private static class Output {
+    final Track track;
+    final CachedTrack cached;
+    final CachedTrack.Reader reader;
+    final int clockRate;
+
+    /** Sequence number and timestamp of the next and of the last packet sent */
+    int sequence;
+    int timestamp;
+    /** Timestamp of the start of the range being played */
+    int rtpStart;
+    /** Timestamp given to the first packet read after a discontinuity, and its recorded one */
+    int runBase;
+    int runOrigin;
+
+    long packets = 0;
+    long octets = 0;
+    boolean done = true;
+
+    Output(Track track, CachedTrack cached) {
+      this.track = track;
+      this.cached = cached;
+      this.reader = cached.newReader();
+      this.clockRate = cached.getClockRate() > 0 ? cached.getClockRate() : 90000;
+      synchronized (random) {
+        sequence = random.nextInt() & 0xFFFF;
+        timestamp = random.nextInt();
+      }
+    }
+  }
+
+  private final CachedStream stream;
+  private final ProxySession proxySession;
+  private final ProxyHandler proxyHandler;
+  private final List<Output> outputs = new ArrayList<Output>();
+
+  private ScheduledFuture<?> task = null;
+  private GapFiller filler = null;
+
+  /** Media times, in milliseconds, of the range being played and of the end of the cached part */
+  private long playStart = 0;
+  private long playEnd = 0;
+  private long coveredEnd = 0;
+  /** When the start of the range was played, as given by {@link System#nanoTime()} */
+  private long startTime;
+  /** Where playback resumes if no range is given */
+  private long position = 0;
+  private long lastReport;
+
+  private String range = null;
+  private String rtpInfo = null;
+
+  /**
+   * @param stream the cached stream
+   * @param proxySession the session of the client
+   * @param proxyHandler the handler of the client connection
+   */
+  public CachedPlayback(CachedStream stream, ProxySession proxySession, ProxyHandler proxyHandler) {
+    this.stream = stream;
+    this.proxySession = proxySession;
+    this.proxyHandler = proxyHandler;
+  }
+
+  public CachedStream getStream() {
+    return stream;
+  }
+
+  /**
+   * Adds a track of the session, replacing the one set up before with the same URL.
+   */
+  public synchronized void addTrack(Track track, CachedTrack cached) {
+    for (int i = 0; i < outputs.size(); i++) {
+      if (outputs.get(i).track.getUrl().equals(track.getUrl())) {
+        outputs.remove(i);
+        break;
+      }
+    }
+    outputs.add(new Output(track, cached));
+  }
+
+  /**
+   * @return the tracks of the session
+   */
+  synchronized List<Track> getTracks() {
+    List<Track> tracks = new ArrayList<Track>(outputs.size());
+    for (Output out : outputs)
+      tracks.add(out.track);
+    return tracks;
+  }
+
+  /**
+   * Starts playing a range of the stream.
+   *
+   * @param range the <code>Range</code> header of the <code>PLAY</code> request, or null to
+   *          resume from where the playback was paused
+   * @return false if the range is not within the stream
+   */
+  public synchronized boolean play(String range) {
+    long duration = stream.getDuration();
+    long start = position;
+    long end = duration;
+    if (range != null) {
+      int semicolon = range.indexOf(';');
+      String value = (semicolon >= 0 ? range.substring(0, semicolon) : range).trim();
+      if (!value.startsWith("npt=")) return false;
+      Npt npt = Npt.fromString(value);
+      start = (long) (npt.getTimeStart() * 1000);
+      if (!value.endsWith("-") && npt.getTimeEnd() > npt.getTimeStart())
+        end = Math.min((long) (npt.getTimeEnd() * 1000), duration);
+    }
+    if (start < 0 || start >= duration) return false;
+
+    stop();
+    long covered = stream.getCoveredUntil(start);
+    coveredEnd = Math.min(Math.max(covered, start), end);
+    playStart = start;
+    playEnd = end;
+    for (Output out : outputs) {
+      out.done = !out.reader.seek(start);
+      out.rtpStart = out.timestamp + out.clockRate;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (Subscriber subscriber : proxySession.getSubscribers()) {
+      Output out = getOutput(subscriber.getTrack());
+      if (out == null) continue;
+      if (sb.length() > 0) sb.append(",");
+      sb.append("url=").append(out.track.getUrl());
+      sb.append(";seq=").append(subscriber.toClientSequence(out.sequence));
+      sb.append(";rtptime=").append(subscriber.toClientTimestamp(out.rtpStart));
+    }
+    this.rtpInfo = sb.length() > 0 ? sb.toString() : null;
+    this.range = "npt=" + toSeconds(start) + "-" + toSeconds(end);
+
+    proxySession.setPlaying(true);
+    startTime = System.nanoTime();
+    lastReport = 0;
+    if (coveredEnd > start) {
+      task = getTimer().scheduleAtFixedRate(this, 0, TICK, TimeUnit.MILLISECONDS);
+    } else {
+      // nothing recorded there: the server is asked right away
+      fill(start, startTime);
+    }
+    log.debug("Playing " + stream.getUrl() + " from cache, " + this.range + ", cached until "
+        + coveredEnd);
+    return true;
+  }
+
+  private Output getOutput(Track track) {
+    for (Output out : outputs) {
+      if (out.track == track) return out;
+    }
+    return null;
+  }
+
+  private static String toSeconds(long time) {
+    return (time / 1000) + "." + String.format("%03d", time % 1000);
+  }
+
+  /**
+   * @return the <code>Range</code> header of the last <code>PLAY</code> response
+   */
+  public synchronized String getRange() {
+    return range;
+  }
+
+  /**
+   * @return the <code>RTP-Info</code> header of the last <code>PLAY</code> response, or null
+   */
+  public synchronized String getRtpInfo() {
+    return rtpInfo;
+  }
+
+  /**
+   * @return the media time being played, in milliseconds
+   */
+  private long getMediaTime() {
+    return playStart + (System.nanoTime() - startTime) / 1000000;
+  }
+
+  /**
+   * Sends the packets that are due.
+   */
+  public synchronized void run() {
+    if (task == null) return;
+    long media = getMediaTime();
+    boolean finished = true;
+    for (Output out : outputs) {
+      if (!out.done) send(out, media + LEAD);
+      if (!out.done) finished = false;
+    }
+
+    long now = System.currentTimeMillis();
+    if (now - lastReport >= REPORT_INTERVAL) {
+      lastReport = now;
+      for (Output out : outputs)
+        sendReport(out, media, now);
+    }
+
+    if (finished) {
+      task.cancel(false);
+      task = null;
+      if (coveredEnd < playEnd) {
+        // the packets sent last are played at this time
+        fill(coveredEnd, startTime + (coveredEnd - playStart) * 1000000);
+      } else {
+        log.debug("Played " + stream.getUrl() + " from cache until " + playEnd);
+      }
+    }
+  }
+
+  /**
+   * Sends the packets of a track up to a media time.
+   */
+  private void send(Output out, long until) {
+    long stopAt = Math.min(coveredEnd, playEnd);
+    try {
+      while (true) {
+        long time = out.reader.peek();
+        if (time < 0 || time >= stopAt) {
+          out.done = true;
+          return;
+        }
+        if (time > until) return;
+        boolean discontinuity = out.reader.isDiscontinuity();
+        IoBuffer buffer = out.reader.read();
+        if (buffer == null) continue;
+        if (buffer.remaining() < 12) {
+          buffer.free();
+          continue;
+        }
+
+        int position = buffer.position();
+        int timestamp = buffer.getInt(position + 4);
+        if (discontinuity) {
+          out.runOrigin = timestamp;
+          out.runBase = out.rtpStart + (int) ((time - playStart) * out.clockRate / 1000);
+        }
+        out.timestamp = out.runBase + (timestamp - out.runOrigin);
+        buffer.putShort(position + 2, (short) out.sequence);
+        buffer.putInt(position + 4, out.timestamp);
+        out.sequence = (out.sequence + 1) & 0xFFFF;
+        out.packets++;
+        out.octets += buffer.remaining() - 12;
+        packetsServed.incrementAndGet();
+        bytesServed.addAndGet(buffer.remaining());
+        out.track.sendRtpToClients(buffer);
+      }
+    } catch (IOException e) {
+      log.warn("Cannot read cached track " + out.cached.getUrl() + ": " + e.getMessage());
+      out.done = true;
+      // the rest is asked to the server
+      coveredEnd = Math.max(Math.min(coveredEnd, out.reader.getLastTime()), playStart);
+    }
+  }
+
+  /**
+   * Sends a sender report for a track, followed by the SDES of the proxy.
+   */
+  private void sendReport(Output out, long media, long now) {
+    if (out.packets == 0) return;
+    int ssrc = out.track.getProxySsrcValue();
+    String cname = "rtspproxy-" + Integer.toHexString(ssrc);
+    long ntp = ((now / 1000 + NTP_OFFSET) << 32) | (((now % 1000) << 32) / 1000);
+    int rtptime = out.rtpStart + (int) ((media - playStart) * out.clockRate / 1000);
+
+    IoBuffer buffer = BufferPool.allocate(2 * RtcpPacket.HEADER_SIZE + 28 + cname.length());
+    RtcpPacketWriter writer = new RtcpPacketWriter(buffer);
+    writer.startSenderReport(ssrc, ntp, rtptime & 0xFFFFFFFFL, out.packets, out.octets);
+    writer.endPacket();
+    writer.startSdes();
+    writer.addSdesChunk(ssrc, cname);
+    writer.endPacket();
+    buffer.flip();
+    out.track.relayRtcpToClient(buffer);
+  }
+
+  /**
+   * Asks the server for the rest of the range, past what is recorded.
+   *
+   * @param from the media time to play from, in milliseconds
+   * @param stallTime when the last packet sent from the cache is played, as given by
+   *          {@link System#nanoTime()}
+   */
+  private void fill(long from, long stallTime) {
+    gapFills.incrementAndGet();
+    // the packets of the server continue from the timestamp of the media time they start at
+    for (Output out : outputs)
+      out.track.setLastPacket(out.sequence - 1, out.rtpStart
+          + (int) ((from - playStart) * out.clockRate / 1000));
+    log.debug("Filling " + stream.getUrl() + " from the server, from " + from + " ms");
+    filler = new GapFiller(this, stream, from, playEnd, stallTime);
+    filler.start();
+  }
+
+  /**
+   * Called by the {@link GapFiller} when the server can't play the rest of the range: the client
+   * is disconnected, as the stream can't go on.
+   */
+  void fillFailed(GapFiller failed) {
+    synchronized (this) {
+      if (filler != failed) return;
+      filler = null;
+    }
+    log.warn("Cannot play " + stream.getUrl() + " past " + coveredEnd + " ms");
+    proxyHandler.closeAll();
+  }
+
+  /**
+   * Stops sending the packets and remembers where to resume.
+   */
+  public synchronized void pause() {
+    if (task != null || filler != null)
+      position = Math.max(Math.min(getMediaTime(), playEnd), playStart);
+    stop();
+    proxySession.setPlaying(false);
+  }
+
+  private void stop() {
+    if (task != null) task.cancel(false);
+    task = null;
+    if (filler != null) filler.close();
+    filler = null;
+  }
+
+  /**
+   * Stops the playback. The tracks are closed with the session.
+   */
+  public synchronized void close() {
+    stop();
+  }
+
+  /**
+   * @return the number of packets sent to clients from the cache
+   */
+  public static long getPacketsServed() {
+    return packetsServed.get();
+  }
+
+  /**
+   * @return the number of bytes sent to clients from the cache
+   */
+  public static long getBytesServed() {
+    return bytesServed.get();
+  }
+
+  /**
+   * @return the number of times the server was asked for a range that was not recorded
+   */
+  public static long getGapFills() {
+    return gapFills.get();
+  }
+
+  public String toString() {
+    return "CachedPlayback(url=\"" + stream.getUrl() + "\", tracks=" + outputs.size() + ")";
+  }
+}
@@ -19,10 +19,10 @@ import java.net.InetSocketAddress;
 
 import org.apache.log4j.Logger;
 import org.apache.mina.core.buffer.IoBuffer;
-import org.apache.mina.core.service.IoHandlerAdapter;
-import org.apache.mina.core.session.IoSession;
 
-import rtspproxy.lib.Exceptions;
+import rtspproxy.Config;
+import rtspproxy.rtp.DatagramEndpoint;
+import rtspproxy.rtp.PacketHandler;
 import rtspproxy.rtp.rtcp.RtcpPacket;
 
 /**
@@ -31,37 +31,55 @@ import rtspproxy.rtp.rtcp.RtcpPacket;
  * 
  * @author Matteo Merli
  */
-public class ClientRtcpPacketHandler extends IoHandlerAdapter {
+public class ClientRtcpPacketHandler implements PacketHandler {
 
   private static Logger log = Logger.getLogger(ClientRtcpPacketHandler.class);
 
-  @Override
-  public void sessionCreated(IoSession session) throws Exception {}
+  private final boolean zeroCopy = Config.getBoolean("proxy.rtp.zeroCopy", true);
 
-  @Override
-  public void messageReceived(IoSession session, Object buffer) throws Exception {
-    RtcpPacket packet = new RtcpPacket((IoBuffer) buffer);
-    // log.debug( "Received RTCP packet: " + packet.getType() );
+  public void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source, IoBuffer buffer) {
+    if (!zeroCopy) {
+      forwardPacket(source, buffer);
+      return;
+    }
 
-    // / Track track = (Track)session.getAttribute( "track" );
+    if (buffer.remaining() < RtcpPacket.HEADER_SIZE) {
+      log.debug("Dropping truncated RTCP packet from " + source);
+      buffer.free();
+      return;
+    }
 
-    Track track = Track.getByClientAddress((InetSocketAddress) session.getRemoteAddress());
+    Subscriber subscriber = Track.getSubscriberByClientAddress(source);
 
-    if (track == null) {
+    if (subscriber == null) {
       // drop packet
-      log.debug("Invalid address: " + (InetSocketAddress) session.getRemoteAddress() + " - Class: "
-          + ((InetSocketAddress) session.getRemoteAddress()).getAddress().getClass());
+      log.debug("Packet received from unknown client: " + source);
+      buffer.free();
       return;
     }
 
-    track.forwardRtcpToServer(packet);
+    subscriber.getTrack().relayRtcpToServer(buffer, subscriber);
   }
 
-  @SuppressWarnings("deprecation")
-  @Override
-  public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
-    log.debug("Exception: " + cause);
-    Exceptions.logStackTrace(cause);
-    session.close();
+  /**
+   * Decodes the packet and forwards it to the server, re-encoding it in a new buffer.
+   */
+  private void forwardPacket(InetSocketAddress source, IoBuffer buffer) {
+    RtcpPacket packet = new RtcpPacket(buffer);
+    buffer.free();
+    // log.debug( "Received RTCP packet: " + packet.getType() );
+
+    // / Track track = (Track)session.getAttribute( "track" );
+
+    Subscriber subscriber = Track.getSubscriberByClientAddress(source);
+
+    if (subscriber == null) {
+      // drop packet
+      log.debug("Invalid address: " + source + " - Class: "
+          + (source).getAddress().getClass());
+      return;
+    }
+
+    subscriber.getTrack().forwardRtcpToServer(packet, subscriber);
   }
 }
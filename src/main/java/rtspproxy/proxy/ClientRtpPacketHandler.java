@@ -19,10 +19,10 @@ import java.net.InetSocketAddress;
 
 import org.apache.log4j.Logger;
 import org.apache.mina.core.buffer.IoBuffer;
-import org.apache.mina.core.service.IoHandlerAdapter;
-import org.apache.mina.core.session.IoSession;
 
-import rtspproxy.lib.Exceptions;
+import rtspproxy.Config;
+import rtspproxy.rtp.DatagramEndpoint;
+import rtspproxy.rtp.PacketHandler;
 import rtspproxy.rtp.RtpPacket;
 
 /**
@@ -31,34 +31,52 @@ import rtspproxy.rtp.RtpPacket;
  * 
  * @author Matteo Merli
  */
-public class ClientRtpPacketHandler extends IoHandlerAdapter {
+public class ClientRtpPacketHandler implements PacketHandler {
 
   private static Logger log = Logger.getLogger(ClientRtpPacketHandler.class);
 
-  @Override
-  public void sessionCreated(IoSession session) throws Exception {}
+  private final boolean zeroCopy = Config.getBoolean("proxy.rtp.zeroCopy", true);
 
-  @Override
-  public void messageReceived(IoSession session, Object buffer) throws Exception {
-    RtpPacket packet = new RtpPacket((IoBuffer) buffer);
-    log.debug("Received RTP packet: " + packet.getSequence());
+  public void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source, IoBuffer buffer) {
+    if (!zeroCopy) {
+      forwardPacket(source, buffer);
+      return;
+    }
+
+    if (buffer.remaining() < RtpPacket.HEADER_SIZE) {
+      log.debug("Dropping truncated RTP packet from " + source);
+      buffer.free();
+      return;
+    }
 
-    Track track = Track.getByClientAddress((InetSocketAddress) session.getRemoteAddress());
+    Track track = Track.getByClientAddress(source);
 
     if (track == null) {
       // drop packet
-      log.debug("Packet received from unknown client: " + session.getRemoteAddress());
+      log.debug("Packet received from unknown client: " + source);
+      buffer.free();
       return;
     }
 
-    track.forwardRtpToServer(packet);
+    track.relayRtpToServer(buffer);
   }
 
-  @SuppressWarnings("deprecation")
-  @Override
-  public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
-    log.debug("Exception: " + cause);
-    Exceptions.logStackTrace(cause);
-    session.close();
+  /**
+   * Decodes the packet and forwards it to the server, re-encoding it in a new buffer.
+   */
+  private void forwardPacket(InetSocketAddress source, IoBuffer buffer) {
+    RtpPacket packet = new RtpPacket(buffer);
+    buffer.free();
+    log.debug("Received RTP packet: " + packet.getSequence());
+
+    Track track = Track.getByClientAddress(source);
+
+    if (track == null) {
+      // drop packet
+      log.debug("Packet received from unknown client: " + source);
+      return;
+    }
+
+    track.forwardRtpToServer(packet);
   }
 }
@@ -21,6 +21,7 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoderException;
 
 import rtspproxy.lib.Exceptions;
+import rtspproxy.rtsp.InterleavedPacket;
 import rtspproxy.rtsp.RtspCode;
 import rtspproxy.rtsp.RtspMessage;
 import rtspproxy.rtsp.RtspRequest;
@@ -44,6 +45,8 @@ public class ClientSide extends IoHandlerAdapter {
 
   @Override
   public void sessionClosed(IoSession session) {
+    InterleavedChannels channels = InterleavedChannels.peek(session);
+    if (channels != null) channels.clear();
     ProxyHandler proxyHandler = (ProxyHandler) (session.getAttribute(ProxyHandler.ATTR));
     if (proxyHandler != null) {
       proxyHandler.closeAll();
@@ -72,7 +75,7 @@ public class ClientSide extends IoHandlerAdapter {
 
   public void onRequestDescribe(ProxyHandler proxyHandler, RtspRequest request) {
     log.debug("REQUEST DESCRIBE");
-    proxyHandler.passToServer(request);
+    proxyHandler.passDescribeRequestToServer(request);
   }
 
   public void onRequestGetParam(ProxyHandler proxyHandler, RtspRequest request) {
@@ -184,8 +187,22 @@ public class ClientSide extends IoHandlerAdapter {
     proxyHandler.passToServer(response);
   }
 
+  @Override
+  public void messageSent(IoSession session, Object message) {
+    if (message instanceof InterleavedPacket) {
+      InterleavedChannels channels = InterleavedChannels.peek(session);
+      if (channels != null) channels.packetSent((InterleavedPacket) message);
+    }
+  }
+
   @Override
   public void messageReceived(IoSession session, Object message) {
+    if (message instanceof InterleavedPacket) {
+      InterleavedChannels channels = InterleavedChannels.peek(session);
+      if (channels != null) channels.relayToServer((InterleavedPacket) message);
+      return;
+    }
+
     RtspMessage rtspMessage = (RtspMessage) message;
     log.debug("Received message:\n" + message);
 
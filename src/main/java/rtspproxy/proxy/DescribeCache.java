@@ -0,0 +1,417 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import rtspproxy.Config;
+import rtspproxy.cache.MediaCache;
+import rtspproxy.rtsp.RtspCode;
+import rtspproxy.rtsp.RtspRequest;
+import rtspproxy.rtsp.RtspResponse;
+
+/**
+ * Answers the bursts of identical <code>DESCRIBE</code> requests of popular streams with a single
+ * request to the server.
+ * <p>
+ * The requests are keyed by normalized URL and by the headers the description may depend on:
+ * <code>Accept</code>, <code>Accept-Language</code>, <code>Accept-Encoding</code>,
+ * <code>Authorization</code> and <code>Require</code>. Requests within a session, and conditional
+ * requests, are always forwarded.
+ * <p>
+ * When <code>proxy.describe.coalesce</code> is true (the default), the first request of a key is
+ * forwarded to the server, and the same requests received meanwhile wait for its response, which
+ * is copied to each of them with its own <code>CSeq</code>. If the forwarded request fails
+ * without a response, or isn't answered within <code>proxy.describe.timeout</code> seconds, the
+ * waiting requests are sent again, the first one being forwarded on behalf of the others.
+ * <p>
+ * When <code>proxy.describe.cache.enable</code> is true, successful responses are also kept, the
+ * SDP with the other headers of the server but <code>CSeq</code>, <code>Session</code> and
+ * <code>Date</code>, and used for <code>proxy.describe.cache.ttl</code> seconds, unless the
+ * <code>Expires</code> and <code>Date</code> headers of the server tell otherwise. At most
+ * <code>proxy.describe.cache.maxEntries</code> responses are kept, the least recently used ones
+ * being dropped first. Responses with <code>Cache-Control: no-cache</code>, <code>no-store</code>
+ * or <code>private</code> are not kept, and requests with <code>Cache-Control: no-cache</code> are
+ * forwarded. The server invalidates the responses of a URL by answering it with an error (but for
+ * authentication), with a new validator (see {@link MediaCache#getValidator}), or by sending an
+ * <code>ANNOUNCE</code> or <code>REDIRECT</code> request for it.
+ *
+ * @author Matteo Merli
+ */
+public class DescribeCache {
+
+  private static Logger log = Logger.getLogger(DescribeCache.class);
+
+  /** The request headers the description may depend on */
+  private static final String[] CONTEXT =
+      {"Accept", "Accept-Language", "Accept-Encoding", "Authorization", "Require"};
+  /** The response headers that only belong to one request */
+  private static final String[] REQUEST_HEADERS = {"CSeq", "Session", "Connection"};
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong coalesced = new AtomicLong();
+  private static final AtomicLong invalidations = new AtomicLong();
+
+  private static final DescribeCache instance = new DescribeCache(
+      Config.getBoolean("proxy.describe.cache.enable", false),
+      Math.max(Config.getInt("proxy.describe.cache.ttl", 10), 0) * 1000L,
+      Math.max(Config.getInt("proxy.describe.cache.maxEntries", 1024), 1),
+      Config.getBoolean("proxy.describe.coalesce", true),
+      Math.max(Config.getInt("proxy.describe.timeout", 10), 1) * 1000L);
+
+  /** Abandons the flights not answered in time */
+  private static ScheduledExecutorService timer = null;
+
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "DescribeTimeout");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return timer;
+  }
+
+  /** A request waiting for the response to the same request */
+  static class Waiter {
+    final ProxyHandler handler;
+    final RtspRequest request;
+
+    Waiter(ProxyHandler handler, RtspRequest request) {
+      this.handler = handler;
+      this.request = request;
+    }
+  }
+
+  /** A request forwarded to the server, with the requests waiting for its response */
+  static class Flight {
+    final String key;
+    final long started;
+    final List<Waiter> waiters = new ArrayList<Waiter>();
+    /** Abandons the flight when the server doesn't answer in time */
+    ScheduledFuture<?> timeout;
+
+    Flight(String key, long started) {
+      this.key = key;
+      this.started = started;
+    }
+  }
+
+  /** A response kept for a key */
+  private static class Description {
+    final String url;
+    final RtspResponse response;
+    final String validator;
+    final long expires;
+
+    Description(String url, RtspResponse response, String validator, long expires) {
+      this.url = url;
+      this.response = response;
+      this.validator = validator;
+      this.expires = expires;
+    }
+  }
+
+  private final boolean caching;
+  private final long ttl;
+  private final boolean coalescing;
+  private final long timeout;
+
+  /** The responses by key, from the least to the most recently used */
+  private final LinkedHashMap<String, Description> descriptions;
+  /** The requests forwarded to the servers, by key */
+  private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+  /**
+   * @param caching whether the responses are kept
+   * @param ttl the time a response is used, in milliseconds, unless the server told otherwise
+   * @param maxEntries the number of responses kept
+   * @param coalescing whether the same requests wait for the response to the first one
+   * @param timeout the time a request waits for the response to another one, in milliseconds
+   */
+  DescribeCache(boolean caching, long ttl, final int maxEntries, boolean coalescing, long timeout) {
+    this.caching = caching;
+    this.ttl = ttl;
+    this.coalescing = coalescing;
+    this.timeout = timeout;
+    this.descriptions = new LinkedHashMap<String, Description>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry(Map.Entry<String, Description> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public static DescribeCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * @return the key of a DESCRIBE request, or null if it must be forwarded on its own
+   */
+  String getKey(RtspRequest request) {
+    if (!caching && !coalescing) return null;
+    if (request.getUrl() == null || request.getHeader("Session") != null
+        || request.getHeader("If-Modified-Since") != null
+        || request.getHeader("If-None-Match") != null) return null;
+    StringBuilder key = new StringBuilder(MediaCache.normalize(request.getUrl().toString()));
+    for (String header : CONTEXT)
+      key.append('\n').append(request.getHeader(header, ""));
+    return key.toString();
+  }
+
+  /**
+   * @param key the key of the request
+   * @param request the request
+   * @return the response kept for the request, which must not be modified, or null
+   */
+  synchronized RtspResponse get(String key, RtspRequest request) {
+    if (!caching) return null;
+    String control = request.getHeader("Cache-Control");
+    if (control != null && control.toLowerCase().contains("no-cache")) return null;
+    Description description = descriptions.get(key);
+    if (description == null) return null;
+    if (description.expires <= System.currentTimeMillis()) {
+      descriptions.remove(key);
+      return null;
+    }
+    hits.incrementAndGet();
+    return description.response;
+  }
+
+  /**
+   * Makes a request wait for the response to the same request, if one was forwarded to the
+   * server.
+   *
+   * @param key the key of the request
+   * @param waiter the request
+   * @return null if the request waits, else the flight of the request, which must be forwarded to
+   *         the server, and then completed or abandoned
+   */
+  synchronized Flight join(String key, Waiter waiter) {
+    Flight flight = flights.get(key);
+    if (coalescing && flight != null) {
+      flight.waiters.add(waiter);
+      coalesced.incrementAndGet();
+      return null;
+    }
+
+    misses.incrementAndGet();
+    final Flight leader = new Flight(key, System.currentTimeMillis());
+    if (!coalescing) return leader;
+    flights.put(key, leader);
+    try {
+      leader.timeout = getTimer().schedule(new Runnable() {
+        public void run() {
+          expire(leader);
+        }
+      }, timeout, TimeUnit.MILLISECONDS);
+    } catch (RuntimeException e) {
+      log.warn("Cannot schedule the timeout of DESCRIBE " + getUrl(key) + ": " + e);
+    }
+    return leader;
+  }
+
+  /**
+   * Abandons a flight the server didn't answer in time, and sends again the requests waiting for
+   * its response.
+   */
+  void expire(Flight flight) {
+    List<Waiter> waiters;
+    synchronized (this) {
+      if (flights.get(flight.key) != flight) return;
+      log.debug("No response to DESCRIBE " + getUrl(flight.key) + " in "
+          + (System.currentTimeMillis() - flight.started) + " ms");
+      waiters = abandon(flight);
+    }
+    for (Waiter waiter : waiters) {
+      try {
+        resend(waiter);
+      } catch (RuntimeException e) {
+        log.warn("Cannot send again DESCRIBE " + waiter.request.getUrl() + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Sends again a request whose flight was abandoned.
+   */
+  void resend(Waiter waiter) {
+    waiter.handler.describeAgain(waiter.request);
+  }
+
+  /**
+   * Handles the response of the server to a forwarded request: it's kept, if it can be, and the
+   * descriptions it invalidates are dropped.
+   *
+   * @param flight the flight of the request
+   * @param response the response of the server
+   * @return the requests waiting for the response
+   */
+  synchronized List<Waiter> complete(Flight flight, RtspResponse response) {
+    if (flights.get(flight.key) == flight) flights.remove(flight.key);
+    if (flight.timeout != null) flight.timeout.cancel(false);
+    if (caching) store(flight.key, response);
+    List<Waiter> waiters = new ArrayList<Waiter>(flight.waiters);
+    flight.waiters.clear();
+    return waiters;
+  }
+
+  /**
+   * Handles a forwarded request that won't be answered by the server.
+   *
+   * @param flight the flight of the request
+   * @return the requests waiting for the response, which must be sent again
+   */
+  synchronized List<Waiter> abandon(Flight flight) {
+    if (flights.get(flight.key) == flight) flights.remove(flight.key);
+    if (flight.timeout != null) flight.timeout.cancel(false);
+    List<Waiter> waiters = new ArrayList<Waiter>(flight.waiters);
+    flight.waiters.clear();
+    return waiters;
+  }
+
+  /**
+   * @return the normalized URL of a key
+   */
+  private static String getUrl(String key) {
+    return key.substring(0, key.indexOf('\n'));
+  }
+
+  private void store(String key, RtspResponse response) {
+    String url = getUrl(key);
+    if (response.getCode() != RtspCode.OK) {
+      if (response.getCode() == RtspCode.Unauthorized
+          || response.getCode() == RtspCode.ProxyAuthenticationRequired) {
+        descriptions.remove(key);
+      } else {
+        drop(url, null);
+      }
+      return;
+    }
+
+    String validator = MediaCache.getValidator(response, response.getBuffer().toString());
+    descriptions.remove(key);
+    // the descriptions of the stream with another validator are stale
+    drop(url, validator);
+
+    if (response.getBufferSize() == 0 || !MediaCache.isCacheable(response)) return;
+    long maxAge = MediaCache.getMaxAge(response);
+    if (maxAge < 0) maxAge = ttl;
+    if (maxAge <= 0) return;
+    RtspResponse kept = copy(response, null);
+    kept.removeHeader("Date");
+    long expires = System.currentTimeMillis() + maxAge;
+    descriptions.put(key, new Description(url, kept, validator, expires));
+  }
+
+  /**
+   * Drops the responses of a URL.
+   *
+   * @param validator the validator of the responses kept, or null to drop them all
+   */
+  private void drop(String url, String validator) {
+    for (Iterator<Description> i = descriptions.values().iterator(); i.hasNext();) {
+      Description description = i.next();
+      if (!description.url.equals(url)
+          || (validator != null && validator.equals(description.validator))) continue;
+      i.remove();
+      invalidations.incrementAndGet();
+      log.debug("Description of " + url + " invalidated by the server");
+    }
+  }
+
+  /**
+   * Drops the responses kept for a stream, which the server told has changed.
+   *
+   * @param url the URL of the stream
+   */
+  public synchronized void invalidate(String url) {
+    drop(MediaCache.normalize(url), null);
+  }
+
+  /**
+   * @return the number of responses kept
+   */
+  public synchronized int size() {
+    return descriptions.size();
+  }
+
+  /**
+   * Copies a response for another request.
+   *
+   * @param response the response
+   * @param cseq the sequence number of the request, or null
+   * @return a copy of the response, without the headers that only belong to the original request
+   */
+  static RtspResponse copy(RtspResponse response, String cseq) {
+    RtspResponse copy = RtspResponse.errorResponse(response.getCode());
+    copy.setRequestVerb(response.getRequestVerb());
+    for (Map.Entry<Object, Object> header : response.getHeaders().entrySet()) {
+      String name = (String) header.getKey();
+      if (!isRequestHeader(name)) copy.setHeader(name, (String) header.getValue());
+    }
+    if (cseq != null) copy.setHeader("CSeq", cseq);
+    copy.setBuffer(new StringBuffer(response.getBuffer()));
+    return copy;
+  }
+
+  private static boolean isRequestHeader(String name) {
+    for (String header : REQUEST_HEADERS) {
+      if (header.equalsIgnoreCase(name)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of DESCRIBE requests answered with a kept response
+   */
+  public static long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of DESCRIBE requests forwarded to the servers
+   */
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of DESCRIBE requests answered with the response to the same request
+   */
+  public static long getCoalesced() {
+    return coalesced.get();
+  }
+
+  /**
+   * @return the number of responses dropped because the servers told they changed
+   */
+  public static long getInvalidations() {
+    return invalidations.get();
+  }
+}
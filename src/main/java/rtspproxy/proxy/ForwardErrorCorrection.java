@@ -0,0 +1,143 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import rtspproxy.Config;
+import rtspproxy.rtp.UlpfecEncoder;
+import rtspproxy.rtsp.MediaFormats;
+
+/**
+ * Decides which clients are sent ULPFEC packets (RFC 5109) along with the RTP packets, and offers
+ * them in the session descriptions.
+ * <p>
+ * The clients whose address starts with one of the prefixes of <code>proxy.fec.clients</code> (or
+ * all of them, with <code>*</code>) are given a SDP where each RTP media has one more payload
+ * type, mapped to <code>ulpfec</code>. The tracks they set up are then protected by a
+ * {@link UlpfecEncoder} of their {@link Subscriber}: one FEC packet is sent every
+ * <code>proxy.fec.groupSize</code> packets, with the SSRC announced to the client plus two and
+ * its own sequence numbers. FEC is enabled when <code>proxy.fec.enable</code> is true.
+ *
+ * @author Matteo Merli
+ */
+public class ForwardErrorCorrection {
+
+  private static final boolean enabled = Config.getBoolean("proxy.fec.enable", false);
+  private static final int groupSize = Config.getInt("proxy.fec.groupSize", 4);
+  private static final int payloadType = Config.getInt("proxy.fec.payloadType", 127);
+
+  private static final Set<String> clients = new HashSet<String>();
+
+  static {
+    for (String client : Config.get("proxy.fec.clients", "*").split(",")) {
+      if (client.trim().length() > 0) clients.add(client.trim());
+    }
+  }
+
+  private ForwardErrorCorrection() {}
+
+  /**
+   * @param client the address of a client
+   * @return true if the client should be offered FEC
+   */
+  public static boolean isEnabled(InetAddress client) {
+    if (!enabled || client == null) return false;
+    if (clients.contains("*")) return true;
+    String address = client.getHostAddress();
+    for (String prefix : clients) {
+      if (address.startsWith(prefix)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param formats the formats of the SDP given to the client, as rewritten by
+   *          {@link #rewriteSdp(String)}
+   * @param url the control URL of a track
+   * @return the encoder protecting the track for the client, or null if FEC wasn't offered
+   */
+  public static UlpfecEncoder newEncoder(MediaFormats formats, String url) {
+    int fecPayloadType = formats != null ? formats.getFecPayloadType(url) : -1;
+    return fecPayloadType >= 0 ? new UlpfecEncoder(groupSize, fecPayloadType) : null;
+  }
+
+  /**
+   * Adds a ULPFEC payload type to each RTP media of a session description. The payload type is
+   * <code>proxy.fec.payloadType</code>, or the next lower dynamic one if the media already uses
+   * it, with the clock rate of the first payload type of the media.
+   *
+   * @param sdp the body of a DESCRIBE response
+   * @return the rewritten session description
+   */
+  public static String rewriteSdp(String sdp) {
+    String eol = sdp.contains("\r\n") ? "\r\n" : "\n";
+    List<String> lines = new ArrayList<String>();
+    for (String line : sdp.split("\r?\n"))
+      lines.add(line);
+
+    StringBuilder result = new StringBuilder(sdp.length() + 128);
+    int index = 0;
+    while (index < lines.size()) {
+      String line = lines.get(index);
+      String[] fields = line.trim().split(" ");
+      if (!line.startsWith("m=") || fields.length < 4 || !fields[2].startsWith("RTP/")) {
+        result.append(line).append(eol);
+        index++;
+        continue;
+      }
+
+      // the attributes of the media, up to the next one
+      int end = index + 1;
+      while (end < lines.size() && !lines.get(end).startsWith("m="))
+        end++;
+
+      Set<String> used = new HashSet<String>();
+      for (int i = 3; i < fields.length; i++)
+        used.add(fields[i]);
+      int fec = payloadType;
+      while (used.contains(Integer.toString(fec)) && fec > 96)
+        fec--;
+      if (used.contains(Integer.toString(fec))) {
+        // no payload type left
+        for (int i = index; i < end; i++)
+          result.append(lines.get(i)).append(eol);
+        index = end;
+        continue;
+      }
+
+      int clockRate = fields[0].equals("m=video") ? 90000 : 8000;
+      String rtpmap = "a=rtpmap:" + fields[3] + " ";
+      for (int i = index + 1; i < end; i++) {
+        String attribute = lines.get(i).trim();
+        if (attribute.startsWith(rtpmap)) {
+          String[] format = attribute.substring(rtpmap.length()).split("/");
+          if (format.length > 1) {
+            try {
+              clockRate = Integer.parseInt(format[1].trim());
+            } catch (NumberFormatException e) {
+              // keep the default
+            }
+          }
+        }
+      }
+
+      result.append(line.trim()).append(' ').append(fec).append(eol);
+      result.append("a=rtpmap:").append(fec).append(" ulpfec/").append(clockRate).append(eol);
+      for (int i = index + 1; i < end; i++)
+        result.append(lines.get(i)).append(eol);
+      index = end;
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,334 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+
+import rtspproxy.Config;
+import rtspproxy.cache.CachedStream;
+import rtspproxy.cache.MediaCache;
+import rtspproxy.rtsp.RtspCode;
+import rtspproxy.rtsp.RtspMessage;
+import rtspproxy.rtsp.RtspRequest;
+import rtspproxy.rtsp.RtspResponse;
+import rtspproxy.rtsp.RtspTransport;
+import rtspproxy.rtsp.RtspTransportList;
+
+/**
+ * Plays from the server the part of a range that is not recorded in the cache, for a
+ * {@link CachedPlayback}.
+ * <p>
+ * The stream is described again, to make sure it didn't change on the server, and each track is
+ * set up on the server connection, interleaved. The packets of the server are spliced after the
+ * ones sent from the cache, see {@link Track#splice(long)}, and recorded, so that the gap is
+ * filled for the next clients.
+ *
+ * @author Matteo Merli
+ */
+public class GapFiller implements Runnable {
+
+  private static Logger log = Logger.getLogger(GapFiller.class);
+
+  /** Used to save a reference to the filler in the server IoSession */
+  protected static final String ATTR = GapFiller.class.toString() + "Attr";
+
+  private static ExecutorService executor = null;
+
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "GapFiller");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  private final CachedPlayback playback;
+  private final CachedStream stream;
+  private final long from;
+  private final long end;
+  private final long stallTime;
+
+  private final int timeout = Config.getInt("proxy.failover.timeout", 10);
+
+  private volatile boolean closed = false;
+  private volatile URL url = null;
+  private volatile IoSession session = null;
+  private NioSocketConnector connector = null;
+  private final BlockingQueue<RtspResponse> responses = new LinkedBlockingQueue<RtspResponse>();
+  private int sequenceNumber = 1;
+  private String sessionId = null;
+  private boolean playing = false;
+
+  private List<Track> tracks = null;
+  private CacheRecording recording = null;
+  private ScheduledFuture<?> keepAlive = null;
+
+  /**
+   * @param playback the playback the packets are sent for
+   * @param stream the cached stream
+   * @param from the media time to play from, in milliseconds
+   * @param end the media time to play to, in milliseconds
+   * @param stallTime when the last packet sent from the cache is played, as given by
+   *          {@link System#nanoTime()}
+   */
+  GapFiller(CachedPlayback playback, CachedStream stream, long from, long end, long stallTime) {
+    this.playback = playback;
+    this.stream = stream;
+    this.from = from;
+    this.end = end;
+    this.stallTime = stallTime;
+  }
+
+  void start() {
+    getExecutor().execute(this);
+  }
+
+  public void run() {
+    try {
+      fill();
+    } catch (IOException e) {
+      if (closed) return;
+      log.warn("Cannot play " + stream.getUrl() + " from the server: " + e.getMessage());
+      close();
+      playback.fillFailed(this);
+    }
+  }
+
+  /**
+   * Describes, sets up and plays the stream on the server, from where the cache stops.
+   */
+  private void fill() throws IOException {
+    url = new URL(stream.getUrl());
+    IoSession newSession = connect(url);
+    synchronized (this) {
+      if (closed) {
+        newSession.close(true);
+        throw new IOException("Closed");
+      }
+      session = newSession;
+      tracks = playback.getTracks();
+    }
+
+    RtspRequest describe = newRequest(RtspRequest.Verb.DESCRIBE, url);
+    describe.setHeader("Accept", "application/sdp");
+    RtspResponse response = send(describe);
+    if (MediaCache.describe(stream.getUrl(), response) != stream)
+      throw new IOException("The stream changed on the server");
+
+    int channel = 0;
+    for (Track track : tracks) {
+      RtspRequest setup = newRequest(RtspRequest.Verb.SETUP, new URL(track.getUrl()));
+      setup.setHeader("Transport", "RTP/AVP/TCP;unicast;interleaved=" + channel + "-"
+          + (channel + 1));
+      response = send(setup);
+      synchronized (this) {
+        if (sessionId == null) sessionId = stripTimeout(response.getHeader("Session"));
+      }
+
+      RtspTransport transport = new RtspTransportList(response.getHeader("Transport")).get(0);
+      int[] channels = transport.getInterleavedChannels();
+      if (channels == null) channels = new int[] {channel, channel + 1};
+      track.resetServer();
+      track.setServerChannels(session, channels[0], channels[1]);
+      if (transport.getSSRC() != null) track.setServerSSRC(transport.getSSRC());
+      channel += 2;
+    }
+
+    String range = "npt=" + (from / 1000.0) + "-" + (end / 1000.0);
+    synchronized (this) {
+      if (closed) throw new IOException("Closed");
+      // set before the first packet of the server is received
+      recording = CacheRecording.start(stream, tracks, range, null);
+      for (Track track : tracks)
+        track.splice(stallTime);
+      playing = true;
+    }
+    RtspRequest play = newRequest(RtspRequest.Verb.PLAY, url);
+    play.setHeader("Range", range);
+    send(play);
+    scheduleKeepAlive();
+    log.debug("Playing " + stream.getUrl() + " from the server, " + range);
+  }
+
+  private IoSession connect(URL url) throws IOException {
+    NioSocketConnector newConnector = ProxyHandler.newServerConnector(timeout * 1000L);
+    synchronized (this) {
+      if (closed) {
+        newConnector.dispose();
+        throw new IOException("Closed");
+      }
+      connector = newConnector;
+    }
+
+    int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    ConnectFuture future = newConnector.connect(new InetSocketAddress(url.getHost(), port));
+    if (!future.awaitUninterruptibly(timeout, TimeUnit.SECONDS) || !future.isConnected()) {
+      throw new IOException("Cannot connect to " + url.getHost() + ":" + port);
+    }
+    IoSession newSession = future.getSession();
+    newSession.setAttribute(ATTR, this);
+    return newSession;
+  }
+
+  private synchronized RtspRequest newRequest(RtspRequest.Verb verb, URL url) {
+    RtspRequest request = new RtspRequest();
+    request.setVerb(verb);
+    request.setUrl(url);
+    request.setHeader("CSeq", Integer.toString(sequenceNumber++));
+    if (sessionId != null) request.setHeader("Session", sessionId);
+    return request;
+  }
+
+  /**
+   * Sends a request to the server and waits for its response.
+   *
+   * @throws IOException if no response is received in time, if the request failed, or if the
+   *           filler was closed meanwhile
+   */
+  private RtspResponse send(RtspRequest request) throws IOException {
+    IoSession current = session;
+    if (closed || current == null) throw new IOException("Closed");
+    current.setAttribute("lastRequestVerb", request.getVerb());
+    current.write(request);
+
+    String cseq = request.getHeader("CSeq");
+    long deadline = System.currentTimeMillis() + timeout * 1000L;
+    while (true) {
+      long wait = Math.min(deadline - System.currentTimeMillis(), 100);
+      RtspResponse response = null;
+      try {
+        if (wait > 0) response = responses.poll(wait, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (closed) throw new IOException("Closed");
+      if (response == null) {
+        if (System.currentTimeMillis() < deadline) continue;
+        throw new IOException("No response to " + request.getVerbString());
+      }
+      if (!cseq.equals(response.getHeader("CSeq", cseq))) continue;
+      if (response.getCode() != RtspCode.OK)
+        throw new IOException(request.getVerbString() + " failed: " + response.getCode().value());
+      return response;
+    }
+  }
+
+  /**
+   * The server is asked for the whole range at once, so the connection is kept alive while the
+   * client watches it.
+   */
+  private void scheduleKeepAlive() {
+    int interval = Config.getInt("proxy.reflection.keepAlive", 30);
+    if (interval <= 0) return;
+    ScheduledFuture<?> task =
+        CachedPlayback.getTimer().scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            IoSession current = session;
+            if (current == null || !current.isConnected()) return;
+            RtspRequest request = newRequest(RtspRequest.Verb.GET_PARAMETER, url);
+            current.setAttribute("lastRequestVerb", request.getVerb());
+            current.write(request);
+          }
+        }, interval, interval, TimeUnit.SECONDS);
+    synchronized (this) {
+      if (closed) task.cancel(false);
+      else keepAlive = task;
+    }
+  }
+
+  /**
+   * Handles a message received on the server connection.
+   */
+  void messageReceived(IoSession from, RtspMessage message) {
+    if (from != session) return;
+    if (message.getType() == RtspMessage.Type.TypeResponse) responses.offer((RtspResponse) message);
+  }
+
+  /**
+   * Called when the server connection is closed.
+   */
+  void upstreamClosed(IoSession from) {
+    if (from != session || closed) return;
+    boolean wasPlaying;
+    synchronized (this) {
+      wasPlaying = playing;
+    }
+    close();
+    // while setting up, the request being sent fails by itself
+    if (wasPlaying) playback.fillFailed(this);
+  }
+
+  private static String stripTimeout(String session) {
+    if (session == null) return null;
+    int semicolon = session.indexOf(';');
+    return semicolon >= 0 ? session.substring(0, semicolon).trim() : session.trim();
+  }
+
+  /**
+   * Stops playing from the server: what was recorded is committed, the server session is torn
+   * down and the tracks stop shifting its packets.
+   */
+  public void close() {
+    IoSession current;
+    NioSocketConnector currentConnector;
+    List<Track> currentTracks;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      if (keepAlive != null) keepAlive.cancel(false);
+      keepAlive = null;
+      if (recording != null) recording.close();
+      recording = null;
+      current = session;
+      session = null;
+      currentConnector = connector;
+      connector = null;
+      currentTracks = tracks;
+    }
+
+    if (current != null && current.isConnected()) {
+      if (sessionId != null) {
+        RtspRequest teardown = newRequest(RtspRequest.Verb.TEARDOWN, url);
+        current.setAttribute("lastRequestVerb", teardown.getVerb());
+        current.write(teardown);
+      }
+      current.close(false);
+    }
+    if (currentConnector != null) currentConnector.dispose();
+    if (currentTracks != null) {
+      for (Track track : currentTracks) {
+        track.resetServer();
+        track.endSplice();
+      }
+    }
+  }
+
+  public String toString() {
+    return "GapFiller(url=\"" + stream.getUrl() + "\", from=" + from + ")";
+  }
+}
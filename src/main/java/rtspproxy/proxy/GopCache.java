@@ -0,0 +1,242 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+import rtspproxy.rtp.BufferPool;
+import rtspproxy.rtp.H264Payload;
+import rtspproxy.rtp.H265Payload;
+import rtspproxy.rtp.RtpPacketView;
+
+/**
+ * Keeps the packets of a live video {@link Track} since its last keyframe, so that a client joining
+ * the stream can start decoding right away instead of waiting for the next keyframe.
+ * <p>
+ * The cache holds a copy of every packet sent to the clients from the first slice of the last IDR
+ * (or IRAP, for H.265) picture, and the last packets carrying parameter sets (SPS, PPS and VPS),
+ * which may have been sent long before. When a client starts playing, these are sent to it in a
+ * burst ahead of the live packets: the parameter sets first, with the timestamp of the keyframe,
+ * then the cached pictures. The burst is renumbered so that its last packet has the sequence number
+ * of the last live packet, the live packets following it without a gap.
+ * <p>
+ * At most <code>proxy.gopCache.maxBytes</code> bytes are held per track: beyond that the cached
+ * pictures are dropped until the next keyframe. The cache is used for the H.264 and H.265 tracks of
+ * reflected {@link LiveStream}s when <code>proxy.gopCache.enable</code> is true.
+ *
+ * @author Matteo Merli
+ */
+public class GopCache {
+
+  private static final boolean enabled = Config.getBoolean("proxy.gopCache.enable", false);
+  private static final int maxBytes = Config.getInt("proxy.gopCache.maxBytes", 2097152);
+
+  private static final AtomicLong totalBytes = new AtomicLong();
+
+  /**
+   * @param encoding the encoding name of a track, or null if unknown
+   * @return true if the packets of a live track with the given encoding should be cached
+   */
+  public static boolean isEnabled(String encoding) {
+    return enabled && isVideo(encoding);
+  }
+
+  private static boolean isVideo(String encoding) {
+    return "H264".equalsIgnoreCase(encoding) || isH265(encoding);
+  }
+
+  private static boolean isH265(String encoding) {
+    return "H265".equalsIgnoreCase(encoding) || "HEVC".equalsIgnoreCase(encoding);
+  }
+
+  private final Track track;
+  private final boolean h265;
+  private final RtpPacketView view = new RtpPacketView();
+
+  /** Copies of the packets since the start of the last keyframe, or empty until one is seen */
+  private final List<IoBuffer> pictures = new ArrayList<IoBuffer>();
+  private int keyframeTimestamp;
+
+  /** Copies of the last packets carrying parameter sets, all with the same timestamp */
+  private final List<IoBuffer> parameterSets = new ArrayList<IoBuffer>();
+  private int parameterSetTimestamp;
+
+  private int bytes = 0;
+  private boolean closed = false;
+
+  private long keyframes = 0;
+  private long overflows = 0;
+  private long bursts = 0;
+  private long packetsBurst = 0;
+
+  /**
+   * @param track the live track whose packets are cached
+   * @param encoding the encoding name of the track, H264 or H265
+   */
+  public GopCache(Track track, String encoding) {
+    this.track = track;
+    this.h265 = isH265(encoding);
+  }
+
+  /**
+   * Sends a packet to the subscribers of the track, after keeping a copy of it.
+   *
+   * @param buffer a buffer containing a RTP packet, which must not be used by the caller after this
+   *          call
+   */
+  public synchronized void send(IoBuffer buffer) {
+    if (!closed) add(buffer);
+    track.sendToSubscribers(buffer);
+  }
+
+  private void add(IoBuffer buffer) {
+    view.wrap(buffer);
+    if (!view.isValid()) return;
+    int offset = view.getPayloadOffset();
+    int length = view.getPayloadLength();
+    int flags =
+        h265 ? H265Payload.classify(buffer, offset, length) : H264Payload.classify(buffer, offset,
+            length);
+    int timestamp = buffer.getInt(buffer.position() + 4);
+
+    if ((flags & H264Payload.PARAMETER_SET) != 0) {
+      if (!parameterSets.isEmpty() && timestamp != parameterSetTimestamp) clear(parameterSets);
+      parameterSetTimestamp = timestamp;
+      parameterSets.add(BufferPool.copy(buffer));
+      bytes += buffer.remaining();
+      totalBytes.addAndGet(buffer.remaining());
+    }
+
+    if ((flags & H264Payload.SLICE) != 0 && (flags & H264Payload.KEYFRAME) != 0
+        && (pictures.isEmpty() || timestamp != keyframeTimestamp)) {
+      // the first slice of a new keyframe
+      clear(pictures);
+      keyframeTimestamp = timestamp;
+      keyframes++;
+    } else if (pictures.isEmpty()) {
+      // waiting for a keyframe
+      return;
+    }
+
+    pictures.add(BufferPool.copy(buffer));
+    bytes += buffer.remaining();
+    totalBytes.addAndGet(buffer.remaining());
+    if (bytes > maxBytes) {
+      overflows++;
+      clear(pictures);
+    }
+  }
+
+  /**
+   * Starts sending the packets of the track to a client, with a burst of the cached packets first.
+   * Nothing is sent ahead of the live packets if the client was already active or if no keyframe
+   * is cached.
+   *
+   * @param subscriber the client
+   * @return the sequence number and the timestamp of the first packet of the burst, as sent by the
+   *         server, or null if there was no burst
+   */
+  public synchronized int[] start(Subscriber subscriber) {
+    if (subscriber.isActive() || pictures.isEmpty() || closed) {
+      subscriber.setActive(true);
+      return null;
+    }
+
+    int count = parameterSets.size() + pictures.size();
+    int sequence = (track.getLastSequence() + 1 - count) & 0xFFFF;
+    int[] first = new int[] {sequence, keyframeTimestamp};
+    for (IoBuffer packet : parameterSets)
+      subscriber.sendRtp(renumber(packet, sequence++, keyframeTimestamp));
+    for (IoBuffer packet : pictures)
+      subscriber.sendRtp(renumber(packet, sequence++, packet.getInt(packet.position() + 4)));
+    bursts++;
+    packetsBurst += count;
+
+    // the live packets are sent with this lock held: none is missed or sent twice
+    subscriber.setActive(true);
+    return first;
+  }
+
+  private static IoBuffer renumber(IoBuffer packet, int sequence, int timestamp) {
+    IoBuffer buffer = BufferPool.copy(packet);
+    int position = buffer.position();
+    buffer.putShort(position + 2, (short) sequence);
+    buffer.putInt(position + 4, timestamp);
+    return buffer;
+  }
+
+  private void clear(List<IoBuffer> packets) {
+    for (IoBuffer packet : packets) {
+      bytes -= packet.remaining();
+      totalBytes.addAndGet(-packet.remaining());
+      packet.free();
+    }
+    packets.clear();
+  }
+
+  /**
+   * Drops the cached packets. The next packets are sent without being cached.
+   */
+  public synchronized void close() {
+    closed = true;
+    clear(pictures);
+    clear(parameterSets);
+  }
+
+  /**
+   * @return the number of bytes held by the cache
+   */
+  public synchronized int getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of packets held by the cache
+   */
+  public synchronized int getPacketCount() {
+    return parameterSets.size() + pictures.size();
+  }
+
+  /**
+   * @return the number of keyframes seen
+   */
+  public synchronized long getKeyframes() {
+    return keyframes;
+  }
+
+  /**
+   * @return the number of times the cached pictures were dropped for going over the limit
+   */
+  public synchronized long getOverflows() {
+    return overflows;
+  }
+
+  /**
+   * @return the number of clients that were sent a burst
+   */
+  public synchronized long getBursts() {
+    return bursts;
+  }
+
+  public synchronized long getPacketsBurst() {
+    return packetsBurst;
+  }
+
+  /**
+   * @return the number of bytes held by the caches of all the tracks
+   */
+  public static long getTotalBytes() {
+    return totalBytes.get();
+  }
+}
@@ -0,0 +1,444 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+
+import rtspproxy.Config;
+import rtspproxy.lib.MemoryGovernor;
+import rtspproxy.rtp.RtpPacket;
+import rtspproxy.rtp.rtcp.RtcpPacket;
+import rtspproxy.rtsp.InterleavedPacket;
+
+/**
+ * The interleaved channels of a RTSP connection, used when RTP and RTCP packets are sent over the
+ * RTSP connection itself instead of UDP.
+ * <p>
+ * On a connection with a server, each channel is bound to the {@link Track} it carries; on a
+ * connection with a client, to the {@link Subscriber} of the track. A packet received on a channel
+ * is relayed to the peer of the track, on the channel (or UDP port) the peer uses for it. Channel
+ * identifiers are a single byte, so the tables are simple arrays.
+ * <p>
+ * Packets are written to the connection through a bounded queue. Only a limited number of bytes
+ * (the write window) is handed to MINA at any time; the following packets wait in the queue until
+ * the connection catches up. When the queue is full the packet to drop is chosen by the
+ * <code>proxy.interleaved.dropPolicy</code> property: the newest one (the default), the oldest one
+ * or, with <code>close</code>, the whole connection is closed. A slow client thus loses packets, as
+ * it would on UDP, instead of growing the MINA write queue without limit. The queued bytes are also
+ * reserved against the {@link MemoryGovernor} budget of the connection, and a packet is dropped
+ * when the reservation is refused.
+ * <p>
+ * The number of bytes received, sent and dropped is counted for every channel, and the queue depth
+ * for every connection.
+ *
+ * @author Matteo Merli
+ */
+public class InterleavedChannels {
+
+  private static Logger log = Logger.getLogger(InterleavedChannels.class);
+
+  /** Used to save the channels of a connection in the IoSession */
+  private static final String ATTR = InterleavedChannels.class.getName() + "Attr";
+
+  private static final int CHANNELS = 256;
+
+  /** What to do with a packet that doesn't fit in a full queue */
+  public enum DropPolicy {
+    /** Drop the packet being sent */
+    NEWEST,
+    /** Drop the packet at the head of the queue, to make room for the new one */
+    OLDEST,
+    /** Close the connection */
+    CLOSE
+  }
+
+  /** Packets dropped on all the connections */
+  private static final AtomicLong totalPacketsDropped = new AtomicLong();
+
+  /** What a channel is bound to. Replaced as a whole, so that lookups need no locking. */
+  private static class Binding {
+    final Track track;
+    final Subscriber subscriber;
+    final boolean rtcp;
+
+    Binding(Track track, Subscriber subscriber, boolean rtcp) {
+      this.track = track;
+      this.subscriber = subscriber;
+      this.rtcp = rtcp;
+    }
+  }
+
+  private final AtomicReferenceArray<Binding> bindings =
+      new AtomicReferenceArray<Binding>(CHANNELS);
+
+  private final AtomicLongArray bytesReceived = new AtomicLongArray(CHANNELS);
+  private final AtomicLongArray bytesSent = new AtomicLongArray(CHANNELS);
+  private final AtomicLongArray packetsDropped = new AtomicLongArray(CHANNELS);
+
+  private final IoSession session;
+  private final int queueSize = Config.getInt("proxy.interleaved.queueSize", 512);
+  private final int writeWindow = Config.getInt("proxy.interleaved.writeWindow", 65536);
+  private final DropPolicy dropPolicy = getDropPolicy();
+  private final MemoryGovernor.Budget budget;
+
+  /** Packets waiting for the connection to catch up. Also used to lock the queue state. */
+  private final ArrayDeque<InterleavedPacket> queue = new ArrayDeque<InterleavedPacket>();
+  /** Bytes written to the session and not sent yet */
+  private int pendingBytes = 0;
+  /** Bytes waiting in the queue */
+  private int queuedBytes = 0;
+  private int maxQueueDepth = 0;
+  /** True while a thread writes packets to the session, which is done outside of the lock */
+  private boolean writing = false;
+  /** Set once the connection is closed: nothing is written anymore */
+  private boolean closed = false;
+
+  private InterleavedChannels(IoSession session) {
+    this.session = session;
+    this.budget = MemoryGovernor.getInstance().getBudget(session);
+  }
+
+  /**
+   * @return the channels of a RTSP connection, created on first use
+   */
+  public static InterleavedChannels get(IoSession session) {
+    synchronized (session) {
+      InterleavedChannels channels = (InterleavedChannels) session.getAttribute(ATTR);
+      if (channels == null) {
+        channels = new InterleavedChannels(session);
+        session.setAttribute(ATTR, channels);
+      }
+      return channels;
+    }
+  }
+
+  /**
+   * @return the channels of a RTSP connection, or null if the connection doesn't use any
+   */
+  public static InterleavedChannels peek(IoSession session) {
+    return (InterleavedChannels) session.getAttribute(ATTR);
+  }
+
+  /**
+   * Binds the RTP and RTCP channels of a track, on a connection with its server.
+   */
+  public void bind(Track track, int rtpChannel, int rtcpChannel) {
+    bindings.set(rtpChannel, new Binding(track, null, false));
+    bindings.set(rtcpChannel, new Binding(track, null, true));
+  }
+
+  /**
+   * Binds the RTP and RTCP channels of a subscriber, on a connection with its client.
+   */
+  public void bind(Subscriber subscriber, int rtpChannel, int rtcpChannel) {
+    bindings.set(rtpChannel, new Binding(subscriber.getTrack(), subscriber, false));
+    bindings.set(rtcpChannel, new Binding(subscriber.getTrack(), subscriber, true));
+  }
+
+  /**
+   * Unbinds the channels of a track or of a subscriber, unless they've been bound to something else
+   * since.
+   *
+   * @param target a Track or a Subscriber
+   */
+  public void unbind(Object target) {
+    for (int i = 0; i < CHANNELS; i++) {
+      Binding binding = bindings.get(i);
+      if (binding != null && (binding.track == target || binding.subscriber == target))
+        bindings.compareAndSet(i, binding, null);
+    }
+  }
+
+  /**
+   * @return the track carried by a channel, or null if the channel is not bound
+   */
+  public Track getTrack(int channel) {
+    Binding binding = bindings.get(channel);
+    return binding != null ? binding.track : null;
+  }
+
+  /**
+   * @return the subscriber bound to a channel of a client connection, or null
+   */
+  public Subscriber getSubscriber(int channel) {
+    Binding binding = bindings.get(channel);
+    return binding != null ? binding.subscriber : null;
+  }
+
+  /**
+   * @return true if the channel carries RTCP packets, false for RTP
+   */
+  public boolean isRtcp(int channel) {
+    Binding binding = bindings.get(channel);
+    return binding != null && binding.rtcp;
+  }
+
+  /**
+   * Relays a packet received on a connection with a server to the subscribers of its track.
+   */
+  public void relayToClients(InterleavedPacket packet) {
+    int channel = packet.getChannel();
+    IoBuffer buffer = packet.getBuffer();
+    bytesReceived.addAndGet(channel, buffer.remaining());
+
+    Binding binding = bindings.get(channel);
+    if (binding == null) {
+      log.debug("Packet received on unknown channel " + channel);
+      buffer.free();
+      return;
+    }
+
+    Track track = binding.track;
+    if (binding.rtcp) {
+      if (buffer.remaining() < RtcpPacket.HEADER_SIZE) {
+        buffer.free();
+        return;
+      }
+      if (track.getServerSSRC() == null) track.setServerSSRC(RtcpPacket.peekSsrc(buffer));
+      track.relayRtcpToClient(buffer);
+    } else {
+      if (buffer.remaining() < RtpPacket.HEADER_SIZE) {
+        buffer.free();
+        return;
+      }
+      if (track.getServerSSRC() == null) track.setServerSSRC(RtpPacket.peekSsrc(buffer));
+      track.relayRtpToClient(buffer);
+    }
+  }
+
+  /**
+   * Relays a packet received on a connection with a client to the server of its track.
+   */
+  public void relayToServer(InterleavedPacket packet) {
+    int channel = packet.getChannel();
+    IoBuffer buffer = packet.getBuffer();
+    bytesReceived.addAndGet(channel, buffer.remaining());
+
+    Binding binding = bindings.get(channel);
+    if (binding == null || binding.subscriber == null) {
+      log.debug("Packet received on unknown channel " + channel);
+      buffer.free();
+      return;
+    }
+
+    if (binding.rtcp) {
+      if (buffer.remaining() < RtcpPacket.HEADER_SIZE) {
+        buffer.free();
+        return;
+      }
+      binding.track.relayRtcpToServer(buffer, binding.subscriber);
+    } else {
+      if (buffer.remaining() < RtpPacket.HEADER_SIZE) {
+        buffer.free();
+        return;
+      }
+      binding.track.relayRtpToServer(buffer);
+    }
+  }
+
+  /**
+   * Sends a packet on a channel of this connection, or queues it if too many bytes are already
+   * waiting to be written. The buffer must not be used by the caller after this call.
+   *
+   * @return false if the packet was dropped
+   */
+  public boolean send(int channel, IoBuffer buffer) {
+    InterleavedPacket packet = new InterleavedPacket(channel, buffer);
+    boolean write = false;
+    boolean close = false;
+    synchronized (queue) {
+      if (closed) {
+        dropped(packet);
+        return false;
+      }
+      if (!writing && queue.isEmpty() && pendingBytes < writeWindow) {
+        pendingBytes += size(packet);
+        writing = true;
+        write = true;
+      } else {
+        if (queue.size() >= queueSize) {
+          if (dropPolicy == DropPolicy.OLDEST) {
+            dropped(poll());
+          } else {
+            close = dropPolicy == DropPolicy.CLOSE;
+            dropped(packet);
+            packet = null;
+          }
+        }
+        if (packet != null && !budget.reserve(size(packet), true)) {
+          dropped(packet);
+          packet = null;
+        }
+        if (packet != null) {
+          queue.add(packet);
+          queuedBytes += size(packet);
+          if (queue.size() > maxQueueDepth) maxQueueDepth = queue.size();
+        }
+      }
+    }
+
+    if (write) write(packet);
+    if (close && !session.isClosing()) {
+      log.info("Closing " + session.getRemoteAddress() + ": interleaved queue full");
+      session.close(true);
+    }
+    return packet != null;
+  }
+
+  /**
+   * Called when a packet has been written to the connection: its buffers are freed and the queued
+   * packets fitting in the write window are written in turn.
+   */
+  public void packetSent(InterleavedPacket packet) {
+    packet.free();
+    synchronized (queue) {
+      if (closed) return;
+      pendingBytes -= size(packet);
+      if (writing || queue.isEmpty() || pendingBytes >= writeWindow) return;
+      writing = true;
+    }
+    write(null);
+  }
+
+  /**
+   * Drops the queued packets once the connection is closed, or a write failed. The packets written
+   * to the connection won't be sent anymore, so they no longer count as pending, and the packets
+   * sent afterwards are dropped.
+   */
+  public void clear() {
+    synchronized (queue) {
+      closed = true;
+      pendingBytes = 0;
+      while (!queue.isEmpty())
+        dropped(poll());
+    }
+  }
+
+  private InterleavedPacket poll() {
+    InterleavedPacket packet = queue.poll();
+    queuedBytes -= size(packet);
+    budget.release(size(packet));
+    return packet;
+  }
+
+  /**
+   * Writes a packet, then the queued packets fitting in the write window. Only one thread writes
+   * at a time, the one that set the writing flag, so that the packets are written in order without
+   * holding the lock while MINA handles them.
+   *
+   * @param packet a packet already counted in the pending bytes, or null
+   */
+  private void write(InterleavedPacket packet) {
+    while (true) {
+      if (packet != null) {
+        bytesSent.addAndGet(packet.getChannel(), packet.getLength());
+        session.write(packet);
+      }
+      synchronized (queue) {
+        if (closed || queue.isEmpty() || pendingBytes >= writeWindow) {
+          writing = false;
+          return;
+        }
+        packet = poll();
+        pendingBytes += size(packet);
+      }
+    }
+  }
+
+  /**
+   * @return the number of bytes of a packet on the connection, with its header
+   */
+  private static int size(InterleavedPacket packet) {
+    return packet.getLength() + InterleavedPacket.HEADER_SIZE;
+  }
+
+  private void dropped(InterleavedPacket packet) {
+    packet.free();
+    packetsDropped.incrementAndGet(packet.getChannel());
+    totalPacketsDropped.incrementAndGet();
+  }
+
+  public long getBytesReceived(int channel) {
+    return bytesReceived.get(channel);
+  }
+
+  public long getBytesSent(int channel) {
+    return bytesSent.get(channel);
+  }
+
+  public long getPacketsDropped(int channel) {
+    return packetsDropped.get(channel);
+  }
+
+  /**
+   * @return the number of packets dropped on all the channels of this connection
+   */
+  public long getPacketsDropped() {
+    long count = 0;
+    for (int i = 0; i < CHANNELS; i++)
+      count += packetsDropped.get(i);
+    return count;
+  }
+
+  /**
+   * @return the number of packets waiting in the queue
+   */
+  public int getQueueDepth() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  public int getMaxQueueDepth() {
+    synchronized (queue) {
+      return maxQueueDepth;
+    }
+  }
+
+  /**
+   * @return the number of bytes written to the connection and not sent yet
+   */
+  public int getPendingBytes() {
+    synchronized (queue) {
+      return pendingBytes;
+    }
+  }
+
+  /**
+   * @return the number of bytes written to the connection or queued, and not sent yet
+   */
+  public int getBacklog() {
+    synchronized (queue) {
+      return pendingBytes + queuedBytes;
+    }
+  }
+
+  /**
+   * @return the number of packets dropped on all the interleaved connections
+   */
+  public static long getTotalPacketsDropped() {
+    return totalPacketsDropped.get();
+  }
+
+  private static DropPolicy getDropPolicy() {
+    String policy = Config.get("proxy.interleaved.dropPolicy", "newest");
+    try {
+      return DropPolicy.valueOf(policy.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      log.warn("Unknown proxy.interleaved.dropPolicy: " + policy);
+      return DropPolicy.NEWEST;
+    }
+  }
+}
@@ -0,0 +1,477 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.session.IoSession;
+
+import rtspproxy.Config;
+import rtspproxy.lib.Npt;
+import rtspproxy.rtsp.RtspCode;
+import rtspproxy.rtsp.RtspMessage;
+import rtspproxy.rtsp.RtspRequest;
+import rtspproxy.rtsp.RtspResponse;
+
+/**
+ * A live stream reflected to several clients.
+ * <p>
+ * When the server answers a <code>PLAY</code> request with an open ended range (a live event), the
+ * RTSP session with the server is handed over to a LiveStream and its tracks are published by
+ * control URL. Other clients setting up the same URLs are then subscribed to the existing tracks,
+ * and their <code>SETUP</code>, <code>PLAY</code>, <code>PAUSE</code> and <code>TEARDOWN</code>
+ * requests are answered by the proxy without contacting the server. The server is sent a
+ * <code>TEARDOWN</code> when the last client leaves.
+ * <p>
+ * As a result the proxy pulls each live stream once, whatever the number of clients watching it.
+ * <p>
+ * When the connection with the server is lost, the stream is moved to another origin if any is
+ * configured, see {@link OriginFailover}; otherwise every client is disconnected.
+ *
+ * @author Matteo Merli
+ */
+public class LiveStream {
+
+  private static Logger log = Logger.getLogger(LiveStream.class);
+
+  /** Used to save a reference to the stream in the server IoSession */
+  protected static final String ATTR = LiveStream.class.toString() + "Attr";
+
+  /** Maps the control URL of reflected tracks to their LiveStream */
+  private static Map<String, LiveStream> trackUrls = new ConcurrentHashMap<String, LiveStream>();
+
+  private static final Object registryLock = new Object();
+
+  private static AtomicInteger streamCount = new AtomicInteger();
+
+  private static ScheduledExecutorService keepAliveTimer = null;
+
+  private static Random random = new Random();
+
+  /** Presentation URL, as requested by the clients */
+  private final URL url;
+  private final String range;
+
+  /** The server the stream is pulled from, replaced when the stream is moved to another origin */
+  private volatile URL serverUrl;
+  private volatile IoSession serverSession;
+  private volatile String serverSessionId;
+
+  /** Moves the stream to another origin, or null if there's none */
+  private OriginFailover failover = null;
+
+  private final List<Track> tracks = new ArrayList<Track>();
+
+  /** Client sessions watching the stream, with the handler of their RTSP connection */
+  private final Map<ProxySession, ProxyHandler> viewers =
+      new ConcurrentHashMap<ProxySession, ProxyHandler>();
+
+  private final AtomicLong sequenceNumber;
+  private volatile ScheduledFuture<?> keepAlive = null;
+  private boolean isClosed = false;
+
+  private LiveStream(URL url, IoSession serverSession, String serverSessionId, String range,
+      long sequenceNumber) {
+    this.url = url;
+    this.serverUrl = url;
+    this.serverSession = serverSession;
+    this.serverSessionId = serverSessionId;
+    this.range = range;
+    this.sequenceNumber = new AtomicLong(sequenceNumber);
+  }
+
+  /**
+   * @param trackUrl the control URL of a track
+   * @return the live stream the track belongs to, or null if the track is not reflected
+   */
+  public static LiveStream getByTrackUrl(String trackUrl) {
+    return trackUrls.get(trackUrl);
+  }
+
+  /**
+   * @return the number of live streams currently reflected
+   */
+  public static int getStreamCount() {
+    return streamCount.get();
+  }
+
+  /**
+   * Tells whether the <code>Range</code> header of a <code>PLAY</code> response describes a live
+   * event: either the start time is <i>now</i> or the range has no end.
+   *
+   * @param range the value of the Range header, may be null
+   */
+  public static boolean isLiveRange(String range) {
+    if (range == null) return false;
+    // Strip the optional ";time=" parameter
+    int semicolon = range.indexOf(';');
+    if (semicolon >= 0) range = range.substring(0, semicolon);
+    range = range.trim();
+    if (!range.startsWith("npt=") || !range.contains("-")) return false;
+
+    Npt npt = Npt.fromString(range);
+    if (npt == null) return false;
+    return npt.isLive() || range.endsWith("-");
+  }
+
+  /**
+   * Turns a session that has just started playing a live event into a reflected live stream.
+   * <p>
+   * The stream takes the ownership of the server connection and of the tracks of the session. If
+   * one of the tracks is already reflected by another stream, nothing is done.
+   *
+   * @param owner the handler of the client that started the stream
+   * @param proxySession the session of the client
+   * @param serverSession the RTSP connection with the server
+   * @param url the presentation URL
+   * @param response the PLAY response received from the server
+   * @return the new live stream, or null if the session could not be reflected
+   */
+  public static LiveStream create(ProxyHandler owner, ProxySession proxySession,
+      IoSession serverSession, URL url, RtspResponse response) {
+    long sequenceNumber = 1;
+    try {
+      sequenceNumber = Long.parseLong(response.getHeader("CSeq", "0")) + 1;
+    } catch (NumberFormatException e) {
+      // start from 1
+    }
+
+    LiveStream stream =
+        new LiveStream(url, serverSession, proxySession.getServerSessionId(),
+            response.getHeader("Range"), sequenceNumber);
+
+    synchronized (registryLock) {
+      for (Track track : proxySession.getTracks()) {
+        if (trackUrls.containsKey(track.getUrl())) {
+          log.debug("Track " + track.getUrl() + " is already reflected");
+          return null;
+        }
+        stream.tracks.add(track);
+      }
+      if (stream.tracks.isEmpty()) return null;
+
+      for (Track track : stream.tracks) {
+        track.setLiveStream(stream);
+        trackUrls.put(track.getUrl(), stream);
+      }
+    }
+
+    List<URL> backups = OriginFailover.getBackups(url);
+    if (!backups.isEmpty()) stream.failover = new OriginFailover(stream, url, backups);
+
+    streamCount.incrementAndGet();
+    serverSession.setAttribute(ATTR, stream);
+    stream.attach(proxySession, owner);
+    stream.scheduleKeepAlive();
+
+    log.info("Reflecting live stream " + url + " (" + stream.tracks.size() + " tracks)");
+    return stream;
+  }
+
+  public URL getUrl() {
+    return url;
+  }
+
+  /**
+   * @return the tracks of the stream
+   */
+  public List<Track> getTracks() {
+    return tracks;
+  }
+
+  /**
+   * @param trackUrl the control URL of a track
+   * @return the track or null if the stream has no track with that URL
+   */
+  public Track getTrack(String trackUrl) {
+    for (Track track : tracks) {
+      if (track.getUrl().equals(trackUrl)) return track;
+    }
+    return null;
+  }
+
+  /**
+   * @return the number of client sessions watching the stream
+   */
+  public int getViewerCount() {
+    return viewers.size();
+  }
+
+  /**
+   * @return the <code>Range</code> header sent to the clients joining the stream
+   */
+  public String getRange() {
+    return range != null ? range : "npt=now-";
+  }
+
+  /**
+   * Builds the <code>RTP-Info</code> header for a client joining the stream: the sequence number
+   * and the timestamp of each track are the ones of the next packet the client will receive.
+   *
+   * @param proxySession the session of the client
+   * @return the header value, or null if no packet was received yet
+   */
+  public String getRtpInfo(ProxySession proxySession) {
+    StringBuilder sb = new StringBuilder();
+    for (Subscriber subscriber : proxySession.getSubscribers()) {
+      Track track = subscriber.getTrack();
+      if (!track.hasReceivedRtp()) continue;
+
+      if (sb.length() > 0) sb.append(",");
+      sb.append("url=").append(track.getUrl());
+      sb.append(";seq=").append(subscriber.toClientSequence(track.getLastSequence() + 1));
+      sb.append(";rtptime=").append(subscriber.toClientTimestamp(track.getLastTimestamp()));
+    }
+    return sb.length() > 0 ? sb.toString() : null;
+  }
+
+  /**
+   * Starts sending the stream to a client. The tracks that cache their last keyframe first send it
+   * to the client, see {@link GopCache}.
+   *
+   * @param proxySession the session of the client
+   * @return the <code>RTP-Info</code> header for the client: the sequence number and the timestamp
+   *         of each track are the ones of the first packet the client will receive, or null if no
+   *         packet was received yet
+   */
+  public String play(ProxySession proxySession) {
+    StringBuilder sb = new StringBuilder();
+    for (Subscriber subscriber : proxySession.getSubscribers()) {
+      Track track = subscriber.getTrack();
+      GopCache cache = subscriber.isMulticast() ? null : track.getGopCache();
+      int[] first = null;
+      int sequence = track.getLastSequence() + 1;
+      int timestamp = track.getLastTimestamp();
+      boolean received = track.hasReceivedRtp();
+      if (cache != null) first = cache.start(subscriber);
+      else subscriber.setActive(true);
+
+      if (first != null) {
+        sequence = first[0];
+        timestamp = first[1];
+      } else if (!received) {
+        continue;
+      }
+      if (sb.length() > 0) sb.append(",");
+      sb.append("url=").append(track.getUrl());
+      sb.append(";seq=").append(subscriber.toClientSequence(sequence));
+      sb.append(";rtptime=").append(subscriber.toClientTimestamp(timestamp));
+    }
+    return sb.length() > 0 ? sb.toString() : null;
+  }
+
+  /**
+   * Adds a client session to the viewers of the stream.
+   */
+  public synchronized void attach(ProxySession proxySession, ProxyHandler proxyHandler) {
+    if (isClosed) return;
+    proxySession.setLiveStream(this);
+    viewers.put(proxySession, proxyHandler);
+    log.debug("Live stream " + url + " has " + viewers.size() + " viewers");
+  }
+
+  /**
+   * Gives a client joining the stream its own numbering of the packets of a track: the client is
+   * announced a random SSRC, and the sequence numbers and the timestamps of its packets start from
+   * random values, as if the stream was started for it (RFC 3550). Viewers of the multicast group
+   * of the track share the numbering of the group.
+   *
+   * @param subscriber the subscriber of the client, before it plays
+   */
+  public void join(Subscriber subscriber) {
+    if (subscriber.isMulticast()) return;
+    synchronized (random) {
+      subscriber.setSsrc(random.nextInt());
+      subscriber.setOffsets(random.nextInt() & 0xFFFF, random.nextInt());
+    }
+  }
+
+  /**
+   * Removes a client session from the viewers of the stream. The stream is closed when the last
+   * viewer leaves.
+   */
+  public void detach(ProxySession proxySession) {
+    boolean last;
+    synchronized (this) {
+      if (viewers.remove(proxySession) == null) return;
+      log.debug("Live stream " + url + " has " + viewers.size() + " viewers");
+      last = viewers.isEmpty();
+    }
+    if (last) close();
+  }
+
+  /**
+   * @return the failover of the stream, or null if no other origin is configured
+   */
+  public OriginFailover getFailover() {
+    return failover;
+  }
+
+  /**
+   * @return false once the stream is closed
+   */
+  public synchronized boolean isActive() {
+    return !isClosed;
+  }
+
+  /**
+   * Called when a connection with a server is closed. If it's the connection the stream is pulled
+   * from, the stream is moved to another origin, or every viewer is disconnected.
+   *
+   * @param session the connection
+   */
+  public void upstreamClosed(IoSession session) {
+    // a previous origin, or one that was being tried
+    if (session != serverSession) return;
+    if (failover != null && isActive()) {
+      log.warn("Lost the server of live stream " + url);
+      failover.start();
+      return;
+    }
+    failed();
+  }
+
+  /**
+   * Called when the stream can't be pulled anymore: every viewer is disconnected.
+   */
+  public void failed() {
+    close();
+
+    List<ProxyHandler> handlers;
+    synchronized (this) {
+      handlers = new ArrayList<ProxyHandler>(viewers.values());
+      viewers.clear();
+    }
+    for (ProxyHandler handler : handlers)
+      handler.closeAll();
+  }
+
+  /**
+   * Handles a message received from the server once the stream has been reflected. Responses are
+   * answers to the keep alive requests; requests cannot be forwarded to a single client and are
+   * discarded.
+   */
+  public void onUpstreamMessage(IoSession session, RtspMessage message) {
+    if (failover != null && failover.messageReceived(session, message)) return;
+    if (message.getType() == RtspMessage.Type.TypeResponse) {
+      RtspResponse response = (RtspResponse) message;
+      if (response.getCode() != RtspCode.OK)
+        log.warn("Live stream " + url + ": server replied " + response.getCode().value());
+    } else {
+      log.debug("Discarding request from server of live stream " + url);
+    }
+  }
+
+  /**
+   * Pulls the stream from another origin, which is playing it.
+   *
+   * @param session the connection with the new origin
+   * @param origin the URL of the stream on the new origin
+   * @param sessionId the RTSP session with the new origin
+   * @param sequenceNumber the next CSeq of the requests sent to the new origin
+   */
+  void switchOrigin(IoSession session, URL origin, String sessionId, long sequenceNumber) {
+    IoSession previous;
+    synchronized (this) {
+      previous = serverSession;
+      this.serverUrl = origin;
+      this.serverSession = session;
+      this.serverSessionId = sessionId;
+      this.sequenceNumber.set(sequenceNumber);
+    }
+    previous.removeAttribute(ATTR);
+    if (previous.isConnected()) previous.close(true);
+    // closed meanwhile: nothing to pull anymore
+    if (!isActive()) releaseServer(session);
+  }
+
+  /**
+   * Stops reflecting the stream and releases the server session.
+   */
+  public void close() {
+    synchronized (this) {
+      if (isClosed) return;
+      isClosed = true;
+    }
+    streamCount.decrementAndGet();
+
+    synchronized (registryLock) {
+      for (Track track : tracks)
+        trackUrls.remove(track.getUrl());
+    }
+    if (keepAlive != null) keepAlive.cancel(false);
+    releaseServer(serverSession);
+
+    for (Track track : tracks)
+      track.close();
+
+    log.info("Stopped reflecting live stream " + url);
+  }
+
+  private synchronized void releaseServer(IoSession session) {
+    if (session == serverSession && session.isConnected()) {
+      sendRequest(RtspRequest.Verb.TEARDOWN);
+      session.close(false);
+    }
+  }
+
+  private void sendRequest(RtspRequest.Verb verb) {
+    RtspRequest request = new RtspRequest();
+    request.setVerb(verb);
+    request.setUrl(serverUrl);
+    request.setHeader("CSeq", Long.toString(sequenceNumber.getAndIncrement()));
+    if (serverSessionId != null) request.setHeader("Session", serverSessionId);
+
+    serverSession.setAttribute("lastRequestVerb", verb);
+    serverSession.write(request);
+  }
+
+  /**
+   * Clients are answered by the proxy, so their keep alive requests never reach the server: the
+   * server session is kept alive by sending a GET_PARAMETER request on a regular basis.
+   */
+  private void scheduleKeepAlive() {
+    int interval = Config.getInt("proxy.reflection.keepAlive", 30);
+    if (interval <= 0) return;
+
+    synchronized (registryLock) {
+      if (keepAliveTimer == null) {
+        keepAliveTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "LiveStreamKeepAlive");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+    }
+
+    keepAlive = keepAliveTimer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        if (serverSession.isConnected()) sendRequest(RtspRequest.Verb.GET_PARAMETER);
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  public String toString() {
+    return "LiveStream(url=\"" + url + "\", viewers=" + viewers.size() + ")";
+  }
+}
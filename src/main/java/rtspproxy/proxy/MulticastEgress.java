@@ -0,0 +1,266 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+import rtspproxy.rtp.DatagramEndpoint;
+import rtspproxy.rtp.PacketHandler;
+
+/**
+ * Sends the packets of a {@link Track} once to a multicast group, whatever the number of clients
+ * watching it.
+ * <p>
+ * Clients asking for a multicast transport for one of the streams listed in
+ * <code>proxy.multicast.egress.streams</code> (URL or path prefixes, or <code>*</code>) are told to
+ * join the group of the track. Each track is given a group from the pool of
+ * <code>proxy.multicast.egress.groupCount</code> addresses starting at
+ * <code>proxy.multicast.egress.group</code>, all using the ports
+ * <code>proxy.multicast.egress.port</code> and the next one. The packets are sent with a time to
+ * live of <code>proxy.multicast.egress.ttl</code> from a single socket.
+ * <p>
+ * The clients are still viewers with their own RTSP session and {@link Subscriber}, so that they
+ * are accounted for and torn down as the others, but their subscribers don't send anything: the
+ * packets are sent to the group as long as at least one viewer is playing, and the group is given
+ * back to the pool once the last viewer has left.
+ *
+ * @author Matteo Merli
+ */
+public class MulticastEgress {
+
+  private static Logger log = Logger.getLogger(MulticastEgress.class);
+
+  private static final Set<String> streams = new HashSet<String>();
+
+  static {
+    for (String stream : Config.get("proxy.multicast.egress.streams", "").split(",")) {
+      if (stream.trim().length() > 0) streams.add(stream.trim());
+    }
+  }
+
+  private static final int ttl = Config.getInt("proxy.multicast.egress.ttl", 16);
+  private static final int port = Config.getInt("proxy.multicast.egress.port", 50000) & ~1;
+  private static final int groupCount = Config.getInt("proxy.multicast.egress.groupCount", 256);
+
+  /** Groups of the pool being used */
+  private static final BitSet usedGroups = new BitSet();
+  /** First address of the pool, as a 32 bit value, or 0 until read from the configuration */
+  private static int firstGroup = 0;
+
+  private static DatagramEndpoint endpoint = null;
+
+  /**
+   * @param url the control URL of a track
+   * @return true if the track can be sent to a multicast group
+   */
+  public static boolean isEnabled(String url) {
+    if (streams.isEmpty() || url == null) return false;
+    if (streams.contains("*")) return true;
+    String path = url;
+    int start = url.indexOf("://");
+    int slash = start >= 0 ? url.indexOf('/', start + 3) : -1;
+    if (slash >= 0) path = url.substring(slash);
+    for (String stream : streams) {
+      if (url.startsWith(stream) || path.startsWith(stream)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the socket sending the packets to the groups, started on first use
+   */
+  private static synchronized DatagramEndpoint getEndpoint() throws IOException {
+    if (endpoint == null) {
+      DatagramEndpoint newEndpoint = new DatagramEndpoint("MulticastEgress",
+          new InetSocketAddress(0), new PacketHandler() {
+            public void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source,
+                IoBuffer buffer) {
+              // nothing is expected on this socket
+              buffer.free();
+            }
+          }, 1);
+      newEndpoint.start();
+      try {
+        newEndpoint.setMulticastOptions(MulticastGroup.getNetworkInterface(), ttl);
+      } catch (IOException e) {
+        newEndpoint.stop();
+        throw e;
+      }
+      endpoint = newEndpoint;
+    }
+    return endpoint;
+  }
+
+  /**
+   * @return a group address of the pool that is not used by another track
+   */
+  private static InetAddress allocateGroup() throws IOException {
+    synchronized (usedGroups) {
+      if (firstGroup == 0) {
+        String first = Config.get("proxy.multicast.egress.group", "239.255.42.1");
+        InetAddress address = InetAddress.getByName(first);
+        if (address.getAddress().length != 4 || !address.isMulticastAddress())
+          throw new IOException("Not an IPv4 multicast group: " + first);
+        firstGroup = toInt(address);
+      }
+      int index = usedGroups.nextClearBit(0);
+      if (index >= groupCount) throw new IOException("No multicast group left in the pool");
+      usedGroups.set(index);
+      return toAddress(firstGroup + index);
+    }
+  }
+
+  private static void releaseGroup(InetAddress group) {
+    synchronized (usedGroups) {
+      usedGroups.clear(toInt(group) - firstGroup);
+    }
+  }
+
+  private static int toInt(InetAddress address) {
+    byte[] bytes = address.getAddress();
+    return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8)
+        | (bytes[3] & 0xFF);
+  }
+
+  private static InetAddress toAddress(int address) throws UnknownHostException {
+    return InetAddress.getByAddress(new byte[] {(byte) (address >>> 24), (byte) (address >>> 16),
+        (byte) (address >>> 8), (byte) address});
+  }
+
+  /**
+   * @return the number of groups of the pool
+   */
+  public static int getGroupCount() {
+    return groupCount;
+  }
+
+  /**
+   * @return the number of groups of the pool being used
+   */
+  public static int getGroupsUsed() {
+    synchronized (usedGroups) {
+      return usedGroups.cardinality();
+    }
+  }
+
+  private final Track track;
+  private final InetAddress group;
+
+  /** The subscriber sending the packets to the group */
+  private final Subscriber sender;
+
+  /** The clients watching the track */
+  private final Set<Subscriber> viewers = new HashSet<Subscriber>();
+  private int activeViewers = 0;
+  private boolean closed = false;
+
+  /**
+   * Allocates a group from the pool for a track.
+   *
+   * @param track the track
+   * @throws IOException if no group is left, or if the packets can't be sent
+   */
+  MulticastEgress(Track track) throws IOException {
+    this.track = track;
+    DatagramEndpoint endpoint = getEndpoint();
+    this.group = allocateGroup();
+    this.sender = new Subscriber(track, null, group, port, port + 1, false);
+    sender.setEndpoints(endpoint, endpoint);
+    track.addSubscriber(sender);
+    log.info("Sending " + track.getUrl() + " to " + group.getHostAddress() + ":" + port);
+  }
+
+  public InetAddress getGroup() {
+    return group;
+  }
+
+  public int getRtpPort() {
+    return port;
+  }
+
+  public int getRtcpPort() {
+    return port + 1;
+  }
+
+  public int getTtl() {
+    return ttl;
+  }
+
+  /**
+   * @return the subscriber sending the packets of the track to the group
+   */
+  public Subscriber getSender() {
+    return sender;
+  }
+
+  synchronized void addViewer(Subscriber viewer) {
+    if (viewers.add(viewer) && viewer.isActive()) activeViewers++;
+    sender.setActive(activeViewers > 0);
+  }
+
+  /**
+   * Removes a viewer. Once the last viewer is gone, the sender is removed from the track and the
+   * group is given back to the pool.
+   *
+   * @return true if the egress is closed
+   */
+  synchronized boolean removeViewer(Subscriber viewer) {
+    if (viewers.remove(viewer) && viewer.isActive()) activeViewers--;
+    sender.setActive(activeViewers > 0);
+    if (viewers.isEmpty()) close();
+    return closed;
+  }
+
+  /**
+   * Stops sending to the group and gives it back to the pool.
+   */
+  synchronized void close() {
+    if (closed) return;
+    closed = true;
+    sender.setActive(false);
+    track.removeSubscriber(sender);
+    releaseGroup(group);
+    log.info("Stopped sending " + track.getUrl() + " to " + group.getHostAddress());
+  }
+
+  synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Called when a viewer starts or stops playing, with the lock of the egress held.
+   */
+  synchronized void viewerActivated(Subscriber viewer, boolean active) {
+    if (!viewers.contains(viewer)) return;
+    activeViewers += active ? 1 : -1;
+    sender.setActive(activeViewers > 0);
+  }
+
+  /**
+   * @return the number of clients watching the track
+   */
+  public synchronized int getViewerCount() {
+    return viewers.size();
+  }
+
+  public String toString() {
+    return "MulticastEgress(" + group.getHostAddress() + ":" + port + ", track=" + track.getUrl()
+        + ")";
+  }
+}
@@ -0,0 +1,338 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+import rtspproxy.rtp.BufferPool;
+import rtspproxy.rtp.DatagramEndpoint;
+import rtspproxy.rtp.PacketHandler;
+import rtspproxy.rtp.RtpPacket;
+import rtspproxy.rtp.rtcp.RtcpPacket;
+
+/**
+ * A multicast group on which a server sends the RTP and RTCP packets of a track.
+ * <p>
+ * The group is joined once, however many tracks receive it: the packets are relayed to every
+ * {@link Track} attached to the group, each one with its own clients, so that the server sends a
+ * single flow whatever the number of viewers. When a source address is known, only its packets are
+ * received (source specific multicast), unless <code>proxy.multicast.sourceFilter</code> is false.
+ * <p>
+ * Once the last track is detached, the group is left after <code>proxy.multicast.linger</code>
+ * seconds, unless a track is attached again meanwhile. The group is joined on the interface set by
+ * <code>proxy.multicast.interface</code> (a name or an address), or on the first interface that
+ * supports multicast.
+ *
+ * @author Matteo Merli
+ */
+public class MulticastGroup {
+
+  private static Logger log = Logger.getLogger(MulticastGroup.class);
+
+  /** The joined groups, by group address, ports and source */
+  private static final Map<String, MulticastGroup> groups = new HashMap<String, MulticastGroup>();
+
+  private static ScheduledExecutorService lingerTimer = null;
+
+  private final String key;
+  private final InetAddress group;
+  private final InetAddress source;
+  private final DatagramEndpoint rtpEndpoint;
+  private final DatagramEndpoint rtcpEndpoint;
+
+  /** Tracks receiving the packets. Replaced as a whole, as the subscribers of a track. */
+  private volatile Track[] tracks = new Track[0];
+
+  private ScheduledFuture<?> leave = null;
+
+  /** Updated by the processor thread of each endpoint */
+  private volatile long rtpPackets = 0;
+  private volatile long rtcpPackets = 0;
+
+  /**
+   * Attaches a track to a multicast group, joining the group if no other track receives it.
+   *
+   * @param track the track
+   * @param group the multicast group address
+   * @param rtpPort the port of the RTP packets
+   * @param rtcpPort the port of the RTCP packets
+   * @param source the address of the sender, or null if unknown
+   * @return the group
+   * @throws IOException if the group can't be joined
+   */
+  public static MulticastGroup attach(Track track, InetAddress group, int rtpPort, int rtcpPort,
+      InetAddress source) throws IOException {
+    if (!Config.getBoolean("proxy.multicast.sourceFilter", true)) source = null;
+    String key =
+        group.getHostAddress() + ":" + rtpPort + "-" + rtcpPort
+            + (source != null ? "/" + source.getHostAddress() : "");
+    synchronized (groups) {
+      MulticastGroup multicastGroup = groups.get(key);
+      if (multicastGroup == null) {
+        multicastGroup = new MulticastGroup(key, group, rtpPort, rtcpPort, source);
+        groups.put(key, multicastGroup);
+      }
+      multicastGroup.add(track);
+      return multicastGroup;
+    }
+  }
+
+  /**
+   * @return the number of groups currently joined
+   */
+  public static int getGroupCount() {
+    synchronized (groups) {
+      return groups.size();
+    }
+  }
+
+  private MulticastGroup(String key, InetAddress group, int rtpPort, int rtcpPort,
+      InetAddress source) throws IOException {
+    this.key = key;
+    this.group = group;
+    this.source = source;
+    NetworkInterface networkInterface = getNetworkInterface();
+
+    rtpEndpoint = open("MulticastRtp", group, rtpPort, new RtpHandler());
+    try {
+      rtpEndpoint.join(group, networkInterface, source);
+      rtcpEndpoint = open("MulticastRtcp", group, rtcpPort, new RtcpHandler());
+      try {
+        rtcpEndpoint.join(group, networkInterface, source);
+      } catch (IOException e) {
+        rtcpEndpoint.stop();
+        throw e;
+      }
+    } catch (IOException e) {
+      rtpEndpoint.stop();
+      throw e;
+    }
+    log.info("Joined multicast group " + key);
+  }
+
+  /**
+   * Binds a socket on the group address, so that only the packets of this group are received by
+   * it, or on the wildcard address when the system doesn't allow it. A single socket is used,
+   * since every socket bound to the port would receive a copy of each packet.
+   */
+  private static DatagramEndpoint open(String name, InetAddress group, int port,
+      PacketHandler handler) throws IOException {
+    DatagramEndpoint endpoint =
+        new DatagramEndpoint(name, new InetSocketAddress(group, port), handler, 1);
+    endpoint.setReuseAddress(true);
+    try {
+      endpoint.start();
+    } catch (IOException e) {
+      log.debug("Cannot bind " + group.getHostAddress() + ":" + port + ": " + e);
+      endpoint = new DatagramEndpoint(name, new InetSocketAddress(port), handler, 1);
+      endpoint.setReuseAddress(true);
+      endpoint.start();
+    }
+    return endpoint;
+  }
+
+  /**
+   * @return the interface used for multicast, set by <code>proxy.multicast.interface</code>
+   */
+  static NetworkInterface getNetworkInterface() throws IOException {
+    String name = Config.get("proxy.multicast.interface", null);
+    if (name != null) {
+      NetworkInterface networkInterface = NetworkInterface.getByName(name);
+      if (networkInterface == null)
+        networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(name));
+      if (networkInterface == null) throw new IOException("Unknown interface: " + name);
+      return networkInterface;
+    }
+
+    try {
+      Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+      while (interfaces.hasMoreElements()) {
+        NetworkInterface networkInterface = interfaces.nextElement();
+        if (networkInterface.isUp() && networkInterface.supportsMulticast()
+            && !networkInterface.isLoopback()) return networkInterface;
+      }
+    } catch (SocketException e) {
+      throw new IOException("Cannot list the network interfaces: " + e);
+    }
+    throw new IOException("No network interface supports multicast");
+  }
+
+  private synchronized void add(Track track) {
+    if (leave != null) {
+      leave.cancel(false);
+      leave = null;
+    }
+    Track[] current = tracks;
+    Track[] updated = new Track[current.length + 1];
+    System.arraycopy(current, 0, updated, 0, current.length);
+    updated[current.length] = track;
+    tracks = updated;
+  }
+
+  /**
+   * Detaches a track from the group. The group is left after the linger period if no track
+   * receives it anymore.
+   *
+   * @param track the track
+   */
+  public void detach(Track track) {
+    int linger = Config.getInt("proxy.multicast.linger", 30);
+    synchronized (this) {
+      Track[] current = tracks;
+      int index = -1;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == track) {
+          index = i;
+          break;
+        }
+      }
+      if (index < 0) return;
+
+      Track[] updated = new Track[current.length - 1];
+      System.arraycopy(current, 0, updated, 0, index);
+      System.arraycopy(current, index + 1, updated, index, updated.length - index);
+      tracks = updated;
+      if (updated.length > 0) return;
+
+      if (linger > 0) {
+        leave = getLingerTimer().schedule(new Runnable() {
+          public void run() {
+            leaveIfUnused();
+          }
+        }, linger, TimeUnit.SECONDS);
+        return;
+      }
+    }
+    // the registry is locked first
+    leaveIfUnused();
+  }
+
+  private void leaveIfUnused() {
+    synchronized (groups) {
+      synchronized (this) {
+        if (tracks.length > 0) return;
+        leave = null;
+        groups.remove(key);
+      }
+    }
+    rtpEndpoint.stop();
+    rtcpEndpoint.stop();
+    log.info("Left multicast group " + key + " after " + getPacketsReceived() + " packets");
+  }
+
+  private static synchronized ScheduledExecutorService getLingerTimer() {
+    if (lingerTimer == null) {
+      lingerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "MulticastLinger");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return lingerTimer;
+  }
+
+  public InetAddress getGroup() {
+    return group;
+  }
+
+  /**
+   * @return the address of the sender the group is filtered on, or null
+   */
+  public InetAddress getSource() {
+    return source;
+  }
+
+  /**
+   * @return the number of tracks receiving the group
+   */
+  public int getTrackCount() {
+    return tracks.length;
+  }
+
+  /**
+   * @return the number of RTP and RTCP packets received from the group
+   */
+  public long getPacketsReceived() {
+    return rtpPackets + rtcpPackets;
+  }
+
+  public String toString() {
+    return "MulticastGroup(" + key + ", tracks=" + tracks.length + ")";
+  }
+
+  /**
+   * Hot-wires the SSRC of the server into the tracks that don't know it yet, as the handlers of
+   * the unicast packets do: the transport of a multicast track may not tell it.
+   *
+   * @param tracks the tracks receiving the packet
+   * @param ssrc the SSRC id of the sender of the packet, as a raw 32 bit value
+   */
+  private static void learnSsrc(Track[] tracks, int ssrc) {
+    for (Track track : tracks) {
+      if (track.getServerSSRC() == null) {
+        log.debug("Adding SSRC identifier: " + Integer.toHexString(ssrc));
+        track.setServerSSRC(ssrc);
+      }
+    }
+  }
+
+  /**
+   * Relays the packets to all the tracks: the last one is given the received buffer, the others a
+   * copy of it.
+   */
+  private class RtpHandler implements PacketHandler {
+    public void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source,
+        IoBuffer buffer) {
+      rtpPackets++;
+      Track[] current = tracks;
+      if (current.length == 0 || buffer.remaining() < RtpPacket.HEADER_SIZE) {
+        buffer.free();
+        return;
+      }
+      learnSsrc(current, RtpPacket.peekSsrc(buffer));
+      for (int i = 0; i < current.length - 1; i++)
+        current[i].relayRtpToClient(BufferPool.copy(buffer));
+      current[current.length - 1].relayRtpToClient(buffer);
+    }
+  }
+
+  private class RtcpHandler implements PacketHandler {
+    public void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source,
+        IoBuffer buffer) {
+      rtcpPackets++;
+      Track[] current = tracks;
+      if (current.length == 0 || buffer.remaining() < RtcpPacket.HEADER_SIZE) {
+        buffer.free();
+        return;
+      }
+      learnSsrc(current, RtcpPacket.peekSsrc(buffer));
+      for (int i = 0; i < current.length - 1; i++)
+        current[i].relayRtcpToClient(BufferPool.copy(buffer));
+      current[current.length - 1].relayRtcpToClient(buffer);
+    }
+  }
+}
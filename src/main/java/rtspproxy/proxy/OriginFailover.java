@@ -0,0 +1,383 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+
+import rtspproxy.Config;
+import rtspproxy.RtpServerService;
+import rtspproxy.lib.Histogram;
+import rtspproxy.rtsp.MediaFormats;
+import rtspproxy.rtsp.RtspCode;
+import rtspproxy.rtsp.RtspMessage;
+import rtspproxy.rtsp.RtspRequest;
+import rtspproxy.rtsp.RtspResponse;
+import rtspproxy.rtsp.RtspTransport;
+import rtspproxy.rtsp.RtspTransportList;
+
+/**
+ * Moves a reflected {@link LiveStream} to another origin server when the connection with its
+ * server is lost, without disconnecting the clients.
+ * <p>
+ * The origins serving the same streams are listed in <code>proxy.failover.origins</code>: groups
+ * of URL prefixes separated by commas, the prefixes of a group being separated by spaces. A stream
+ * whose URL starts with one of the prefixes of a group can be pulled from the same path under the
+ * other prefixes, tried in turn, at most <code>proxy.failover.attempts</code> times each. Each
+ * connection and request is given <code>proxy.failover.timeout</code> seconds.
+ * <p>
+ * The stream is described again by the new origin, and each track is set up again and matched with
+ * the new media by control URL, or else by encoding. Once the new origin is playing, its packets
+ * are spliced into the existing tracks (see {@link Track#splice(long)}), so that the clients see a
+ * continuous stream. The time from the loss of the previous origin to the PLAY response of the new
+ * one is recorded, in milliseconds, in a histogram shared by all the streams.
+ *
+ * @author Matteo Merli
+ */
+public class OriginFailover implements Runnable {
+
+  private static Logger log = Logger.getLogger(OriginFailover.class);
+
+  private static final Histogram switchHistogram = new Histogram(24);
+  private static final AtomicLong failovers = new AtomicLong();
+  private static final AtomicLong failures = new AtomicLong();
+
+  private static ExecutorService executor = null;
+
+  /**
+   * @param url the URL of a stream
+   * @return the URLs of the stream on the other origins, in order, or an empty list
+   */
+  public static List<URL> getBackups(URL url) {
+    List<URL> backups = new ArrayList<URL>();
+    String stream = url.toString();
+    for (String group : Config.get("proxy.failover.origins", "").split(",")) {
+      String[] prefixes = group.trim().split("\\s+");
+      int index = -1;
+      for (int i = 0; i < prefixes.length && index < 0; i++) {
+        if (prefixes[i].length() > 0 && stream.startsWith(prefixes[i])) index = i;
+      }
+      if (index < 0) continue;
+
+      String path = stream.substring(prefixes[index].length());
+      // the next origins first, then the previous ones
+      for (int i = 1; i < prefixes.length; i++) {
+        String prefix = prefixes[(index + i) % prefixes.length];
+        try {
+          backups.add(new URL(prefix + path));
+        } catch (MalformedURLException e) {
+          log.warn("Invalid origin: " + prefix);
+        }
+      }
+      break;
+    }
+    return backups;
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "OriginFailover");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  private final LiveStream stream;
+  /** The URLs of the stream on the origins, the current one first */
+  private final List<URL> origins;
+
+  private final int timeout = Config.getInt("proxy.failover.timeout", 10);
+  private final int attempts = Math.max(Config.getInt("proxy.failover.attempts", 2), 1);
+
+  private boolean running = false;
+  private long lossTime;
+
+  /** The connection being set up and the responses received on it */
+  private volatile IoSession session = null;
+  private NioSocketConnector connector = null;
+  private final BlockingQueue<RtspResponse> responses = new LinkedBlockingQueue<RtspResponse>();
+  private int sequenceNumber = 1;
+  private String sessionId = null;
+
+  private long switchTime = -1;
+
+  /**
+   * @param stream the live stream
+   * @param url the URL of the stream on its current origin
+   * @param backups the URLs of the stream on the other origins
+   */
+  public OriginFailover(LiveStream stream, URL url, List<URL> backups) {
+    this.stream = stream;
+    this.origins = new ArrayList<URL>();
+    origins.add(url);
+    origins.addAll(backups);
+  }
+
+  /**
+   * Starts moving the stream to another origin, unless it's already being moved.
+   */
+  public synchronized void start() {
+    if (running) return;
+    running = true;
+    lossTime = System.nanoTime();
+    getExecutor().execute(this);
+  }
+
+  public void run() {
+    for (int attempt = 0; attempt < attempts; attempt++) {
+      // the origin that was just lost is tried last
+      for (int i = 1; i <= origins.size(); i++) {
+        URL origin = origins.get(i % origins.size());
+        if (!stream.isActive()) return;
+        try {
+          switchTo(origin);
+          // the next loss starts from this origin
+          while (!origins.get(0).equals(origin))
+            origins.add(origins.remove(0));
+          return;
+        } catch (IOException e) {
+          log.warn("Live stream " + stream.getUrl() + ": cannot use origin " + origin + ": "
+              + e.getMessage());
+          IoSession failed = session;
+          session = null;
+          if (failed != null) failed.close(true);
+          if (connector != null) connector.dispose();
+          connector = null;
+        }
+      }
+    }
+    failures.incrementAndGet();
+    synchronized (this) {
+      running = false;
+    }
+    stream.failed();
+  }
+
+  /**
+   * Describes, sets up and plays the stream on an origin.
+   */
+  private void switchTo(URL origin) throws IOException {
+    log.info("Live stream " + stream.getUrl() + ": moving to " + origin);
+    responses.clear();
+    sequenceNumber = 1;
+    sessionId = null;
+    session = connect(origin);
+
+    RtspRequest describe = newRequest(RtspRequest.Verb.DESCRIBE, origin);
+    describe.setHeader("Accept", "application/sdp");
+    RtspResponse response = send(describe);
+    MediaFormats formats = new MediaFormats(response.getBuffer().toString());
+    String base = response.getHeader("Content-Base", origin.toString());
+
+    int channel = 0;
+    Set<String> used = new HashSet<String>();
+    for (Track track : stream.getTracks()) {
+      if (!stream.isActive()) throw new IOException("The stream was closed");
+      String control = findControl(track, formats, used);
+      if (control == null) throw new IOException("No media for track " + track.getUrl());
+      used.add(control);
+
+      boolean tcp =
+          track.isServerInterleaved() || track.getMulticastGroup() != null
+              || "tcp".equalsIgnoreCase(Config.get("proxy.server.transport", "auto"));
+      RtspRequest setup = newRequest(RtspRequest.Verb.SETUP, new URL(resolve(base, control)));
+      if (tcp) {
+        setup.setHeader("Transport", "RTP/AVP/TCP;unicast;interleaved=" + channel + "-"
+            + (channel + 1));
+      } else {
+        setup.setHeader("Transport", "RTP/AVP;unicast;client_port="
+            + RtpServerService.getRtpPort() + "-" + RtpServerService.getRtcpPort());
+      }
+      response = send(setup);
+      if (sessionId == null) sessionId = stripTimeout(response.getHeader("Session"));
+
+      RtspTransport transport = new RtspTransportList(response.getHeader("Transport")).get(0);
+      track.resetServer();
+      if (transport.getLowerTransport() == RtspTransport.LowerTransport.TCP) {
+        int[] channels = transport.getInterleavedChannels();
+        if (channels == null) channels = new int[] {channel, channel + 1};
+        track.setServerChannels(session, channels[0], channels[1]);
+      } else {
+        InetAddress address = ((InetSocketAddress) session.getRemoteAddress()).getAddress();
+        if (transport.getSource() != null) address = InetAddress.getByName(transport.getSource());
+        int[] ports = transport.getServerPort();
+        track.setServerAddress(address, ports[0], ports[1]);
+      }
+      if (transport.getSSRC() != null) track.setServerSSRC(transport.getSSRC());
+      track.splice(lossTime);
+      channel += 2;
+    }
+
+    RtspRequest play = newRequest(RtspRequest.Verb.PLAY, origin);
+    play.setHeader("Range", "npt=now-");
+    send(play);
+
+    IoSession current = session;
+    session = null;
+    connector = null;
+    long elapsed = (System.nanoTime() - lossTime) / 1000000;
+    synchronized (this) {
+      running = false;
+      switchTime = elapsed;
+    }
+    switchHistogram.record(elapsed);
+    failovers.incrementAndGet();
+    stream.switchOrigin(current, origin, sessionId, sequenceNumber);
+    log.info("Live stream " + stream.getUrl() + " moved to " + origin + " in " + elapsed + " ms");
+  }
+
+  private IoSession connect(URL origin) throws IOException {
+    connector = ProxyHandler.newServerConnector(timeout * 1000L);
+
+    int port = origin.getPort() != -1 ? origin.getPort() : origin.getDefaultPort();
+    ConnectFuture future = connector.connect(new InetSocketAddress(origin.getHost(), port));
+    if (!future.awaitUninterruptibly(timeout, TimeUnit.SECONDS) || !future.isConnected()) {
+      throw new IOException("Cannot connect to " + origin.getHost() + ":" + port);
+    }
+    IoSession newSession = future.getSession();
+    newSession.setAttribute(LiveStream.ATTR, stream);
+    return newSession;
+  }
+
+  private RtspRequest newRequest(RtspRequest.Verb verb, URL url) {
+    RtspRequest request = new RtspRequest();
+    request.setVerb(verb);
+    request.setUrl(url);
+    request.setHeader("CSeq", Integer.toString(sequenceNumber++));
+    if (sessionId != null) request.setHeader("Session", sessionId);
+    return request;
+  }
+
+  /**
+   * Sends a request on the new connection and waits for its response.
+   *
+   * @throws IOException if no response is received in time, or if the request failed
+   */
+  private RtspResponse send(RtspRequest request) throws IOException {
+    IoSession current = session;
+    current.setAttribute("lastRequestVerb", request.getVerb());
+    current.write(request);
+
+    String cseq = request.getHeader("CSeq");
+    long deadline = System.currentTimeMillis() + timeout * 1000L;
+    while (true) {
+      long wait = deadline - System.currentTimeMillis();
+      RtspResponse response = null;
+      try {
+        if (wait > 0) response = responses.poll(wait, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (response == null)
+        throw new IOException("No response to " + request.getVerbString());
+      if (!cseq.equals(response.getHeader("CSeq", cseq))) continue;
+      if (response.getCode() != RtspCode.OK)
+        throw new IOException(request.getVerbString() + " failed: " + response.getCode().value());
+      return response;
+    }
+  }
+
+  /**
+   * Handles a message received on a connection with an origin.
+   *
+   * @return false if the message was not received on the connection being set up
+   */
+  boolean messageReceived(IoSession from, RtspMessage message) {
+    if (from != session) return false;
+    if (message.getType() == RtspMessage.Type.TypeResponse) responses.offer((RtspResponse) message);
+    return true;
+  }
+
+  /**
+   * @return the control URL, as written in the SDP of the new origin, of the media of a track
+   */
+  private String findControl(Track track, MediaFormats formats, Set<String> used) {
+    String trackUrl = track.getUrl();
+    for (String control : formats.getControls()) {
+      if (!used.contains(control) && (trackUrl.equals(control) || trackUrl.endsWith("/" + control)))
+        return control;
+    }
+    for (String control : formats.getControls()) {
+      if (!used.contains(control) && track.getEncoding() != null
+          && track.getEncoding().equals(formats.getEncoding(control))) return control;
+    }
+    return null;
+  }
+
+  private static String resolve(String base, String control) {
+    if (control.startsWith("rtsp://") || control.startsWith("rtspu://")) return control;
+    if (control.equals("*")) return base;
+    return base.endsWith("/") ? base + control : base + "/" + control;
+  }
+
+  private static String stripTimeout(String session) {
+    if (session == null) return null;
+    int semicolon = session.indexOf(';');
+    return semicolon >= 0 ? session.substring(0, semicolon).trim() : session.trim();
+  }
+
+  /**
+   * @return true if the stream is being moved to another origin
+   */
+  public synchronized boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * @return the time the last switch took, in milliseconds, or -1 if the stream never switched
+   */
+  public synchronized long getSwitchTime() {
+    return switchTime;
+  }
+
+  /**
+   * @return the time taken by every switch, in milliseconds, for all the streams
+   */
+  public static Histogram getSwitchHistogram() {
+    return switchHistogram;
+  }
+
+  /**
+   * @return the number of streams moved to another origin
+   */
+  public static long getFailovers() {
+    return failovers.get();
+  }
+
+  /**
+   * @return the number of streams that could not be moved to another origin
+   */
+  public static long getFailures() {
+    return failures.get();
+  }
+}
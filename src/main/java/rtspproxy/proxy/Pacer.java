@@ -0,0 +1,284 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+import rtspproxy.lib.Histogram;
+import rtspproxy.lib.TimingWheel;
+
+/**
+ * Smooths the RTP packets sent by a server in bursts, such as the many packets of a keyframe, before
+ * they're relayed to the clients of a {@link Track}.
+ * <p>
+ * The pacer measures the bitrate of the track in media time: the bytes received over an interval
+ * of RTP timestamps, converted to seconds with the clock rate announced in the SDP. Packets are
+ * then sent at <code>proxy.pacing.factor</code> percent of that rate, so that a burst is spread
+ * over the time it represents while the track as a whole never falls behind. A packet never waits
+ * more than <code>proxy.pacing.maxDelay</code> milliseconds, and at most
+ * <code>proxy.pacing.queueSize</code> packets are waiting: beyond these, packets are sent right
+ * away. Until the rate is known, packets are not delayed.
+ * <p>
+ * Waiting packets are released by a timer on a {@link TimingWheel} shared by all the pacers. The
+ * number of wheels, each with its own thread, is set by <code>proxy.pacing.threads</code>.
+ * <p>
+ * The time spent waiting by every packet, in microseconds, and the number of packets found waiting
+ * by every new packet are recorded in histograms shared by all the pacers.
+ *
+ * @author Matteo Merli
+ */
+public class Pacer extends TimingWheel.Timer {
+
+  private static final boolean enabled = Config.getBoolean("proxy.pacing.enable", false);
+  private static final int factor = Math.max(Config.getInt("proxy.pacing.factor", 150), 100);
+  private static final long maxDelay = Config.getInt("proxy.pacing.maxDelay", 100) * 1000000L;
+  private static final int queueSize = Math.max(Config.getInt("proxy.pacing.queueSize", 1024), 1);
+
+  /** Interval of media time over which the rate is measured, in milliseconds */
+  private static final int RATE_WINDOW = 500;
+
+  private static TimingWheel[] wheels = null;
+  private static int nextWheel = 0;
+
+  private static final Histogram delayHistogram = new Histogram(24);
+  private static final Histogram occupancyHistogram = new Histogram(16);
+  private static final AtomicLong queuedPackets = new AtomicLong();
+
+  /**
+   * @return true if the packets of the tracks should be paced
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return one of the wheels shared by the timers of the tracks, in turn
+   */
+  static synchronized TimingWheel nextWheel() {
+    if (wheels == null) {
+      int count = Math.max(Config.getInt("proxy.pacing.threads", 1), 1);
+      long tick = Math.max(Config.getInt("proxy.pacing.tick", 1000), 100) * 1000L;
+      wheels = new TimingWheel[count];
+      for (int i = 0; i < count; i++) {
+        // enough buckets to hold the longest delay in a single turn
+        wheels[i] = new TimingWheel("PacingWheel-" + i, tick, (int) (maxDelay / tick) + 1);
+        wheels[i].start();
+      }
+    }
+    TimingWheel wheel = wheels[nextWheel];
+    nextWheel = (nextWheel + 1) % wheels.length;
+    return wheel;
+  }
+
+  private final Track track;
+  private final int clockRate;
+  private final TimingWheel wheel;
+
+  /** Waiting packets and the time they were queued at, as a circular buffer */
+  private final IoBuffer[] queue = new IoBuffer[queueSize];
+  private final long[] queuedAt = new long[queueSize];
+  private int head = 0;
+  private int count = 0;
+
+  /** Time at which the next packet can be sent */
+  private long nextSend = 0;
+  private boolean scheduled = false;
+  private boolean closed = false;
+
+  /** Bytes received since the start of the current measure interval */
+  private boolean measuring = false;
+  private int windowTimestamp;
+  private long windowBytes;
+  /** Measured rate, in bytes per second, or 0 until known */
+  private double rate = 0;
+  /** Time needed to send a byte at the pacing rate, in nanoseconds */
+  private double byteNanos = 0;
+
+  private long packetsDelayed = 0;
+  private long maxQueued = 0;
+
+  /**
+   * @param track the track whose packets are paced
+   * @param clockRate the RTP clock rate of the track, in Hz
+   */
+  public Pacer(Track track, int clockRate) {
+    this.track = track;
+    this.clockRate = clockRate;
+    this.wheel = nextWheel();
+  }
+
+  /**
+   * Sends a packet to the clients of the track, now or later.
+   *
+   * @param buffer a buffer containing a RTP packet, which must not be used by the caller after this
+   *          call
+   */
+  public synchronized void send(IoBuffer buffer) {
+    if (closed) {
+      track.sendRtpToClients(buffer);
+      return;
+    }
+    long now = System.nanoTime();
+    int size = buffer.remaining();
+    measure(buffer.getInt(buffer.position() + 4), size);
+
+    if (count == 0 && (byteNanos == 0 || nextSend - now <= 0)) {
+      // nothing waiting and not ahead of the rate
+      if (byteNanos > 0) nextSend = Math.max(nextSend, now - wheel.getTickNanos()) + cost(size);
+      delayHistogram.record(0);
+      occupancyHistogram.record(0);
+      track.sendRtpToClients(buffer);
+      return;
+    }
+
+    occupancyHistogram.record(count);
+    if (count == queue.length) {
+      // the queue is full: make room by sending the oldest packet now
+      release(now);
+    }
+    int tail = (head + count) % queue.length;
+    queue[tail] = buffer;
+    queuedAt[tail] = now;
+    count++;
+    queuedPackets.incrementAndGet();
+    packetsDelayed++;
+    if (count > maxQueued) maxQueued = count;
+
+    if (!scheduled) {
+      scheduled = true;
+      wheel.schedule(this, nextSend);
+    }
+  }
+
+  @Override
+  protected synchronized void expire(long now) {
+    scheduled = false;
+    if (closed) return;
+    while (count > 0 && (nextSend - now <= 0 || now - queuedAt[head] >= maxDelay))
+      release(now);
+    if (count > 0) {
+      scheduled = true;
+      wheel.schedule(this, Math.min(nextSend, queuedAt[head] + maxDelay));
+    }
+  }
+
+  /**
+   * Sends the oldest waiting packet.
+   */
+  private void release(long now) {
+    IoBuffer buffer = queue[head];
+    long delay = now - queuedAt[head];
+    queue[head] = null;
+    head = (head + 1) % queue.length;
+    count--;
+    queuedPackets.decrementAndGet();
+
+    // don't build up credit while the timer is late, but catch up on a single tick
+    nextSend = Math.max(nextSend, now - wheel.getTickNanos()) + cost(buffer.remaining());
+    delayHistogram.record(delay / 1000);
+    track.sendRtpToClients(buffer);
+  }
+
+  private long cost(int size) {
+    return (long) (size * byteNanos);
+  }
+
+  /**
+   * Updates the rate with a received packet.
+   *
+   * @param timestamp the RTP timestamp of the packet
+   * @param size the size of the packet, in bytes
+   */
+  private void measure(int timestamp, int size) {
+    if (!measuring) {
+      measuring = true;
+      windowTimestamp = timestamp;
+      windowBytes = 0;
+    }
+    int elapsed = timestamp - windowTimestamp;
+    if (elapsed < 0 || elapsed > clockRate * 10) {
+      // a jump in the timestamps: start a new interval
+      windowTimestamp = timestamp;
+      windowBytes = 0;
+    } else if (elapsed >= (long) clockRate * RATE_WINDOW / 1000) {
+      double measured = windowBytes * (double) clockRate / elapsed;
+      rate = rate == 0 ? measured : rate * 0.75 + measured * 0.25;
+      byteNanos = rate > 0 ? 1e9 * 100 / (rate * factor) : 0;
+      windowTimestamp = timestamp;
+      windowBytes = 0;
+    }
+    windowBytes += size;
+  }
+
+  /**
+   * Stops pacing: the waiting packets are dropped and the next ones are sent right away.
+   */
+  public synchronized void close() {
+    closed = true;
+    while (count > 0) {
+      queue[head].free();
+      queue[head] = null;
+      head = (head + 1) % queue.length;
+      count--;
+      queuedPackets.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return the measured rate of the track, in bytes per second, or 0 if not known yet
+   */
+  public synchronized double getRate() {
+    return rate;
+  }
+
+  /**
+   * @return the number of packets currently waiting
+   */
+  public synchronized int getQueueSize() {
+    return count;
+  }
+
+  /**
+   * @return the maximum number of packets that have been waiting at the same time
+   */
+  public synchronized long getMaxQueueSize() {
+    return maxQueued;
+  }
+
+  /**
+   * @return the number of packets that have not been sent right away
+   */
+  public synchronized long getPacketsDelayed() {
+    return packetsDelayed;
+  }
+
+  /**
+   * @return the time spent waiting by every paced packet, in microseconds, for all the tracks
+   */
+  public static Histogram getDelayHistogram() {
+    return delayHistogram;
+  }
+
+  /**
+   * @return the number of packets found waiting by every paced packet, for all the tracks
+   */
+  public static Histogram getOccupancyHistogram() {
+    return occupancyHistogram;
+  }
+
+  /**
+   * @return the number of packets currently waiting, for all the tracks
+   */
+  public static long getQueuedPackets() {
+    return queuedPackets.get();
+  }
+}
@@ -16,21 +16,27 @@
 package rtspproxy.proxy;
 
 import java.io.IOException;
-import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.apache.mina.core.future.ConnectFuture;
-import org.apache.mina.core.service.IoConnector;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.transport.socket.nio.NioSocketConnector;
 
 import rtspproxy.Config;
 import rtspproxy.RtpClientService;
+import rtspproxy.cache.CachedStream;
+import rtspproxy.cache.CachedTrack;
+import rtspproxy.cache.MediaCache;
+import rtspproxy.filter.RtspServerFilters;
+import rtspproxy.lib.MemoryGovernor;
+import rtspproxy.rtsp.MediaFormats;
 import rtspproxy.rtsp.RtspCode;
 import rtspproxy.rtsp.RtspMessage;
 import rtspproxy.rtsp.RtspRequest;
@@ -51,6 +57,9 @@ public class ProxyHandler {
   private IoSession clientSession = null;
   private IoSession serverSession = null;
 
+  /** Whether live streams are shared between clients */
+  private final boolean reflection = Config.getBoolean("proxy.reflection.enable", true);
+
   /**
    * Creates a new ProxyHandler from a client side protocol session.
    * 
@@ -64,9 +73,25 @@ public class ProxyHandler {
     log.debug("Pass to server");
     if (message.getHeader("Session") != null) {
       ProxySession proxySession = ProxySession.getByClientSessionID(message.getHeader("Session"));
-      if (proxySession != null) {
+      if (proxySession != null && proxySession.getLiveStream() != null
+          && message.getType() == RtspMessage.Type.TypeRequest) {
+        // The session is watching a reflected live stream, the server must not be involved
+        passToLiveStream(proxySession, (RtspRequest) message);
+        return;
+      } else if (proxySession != null && proxySession.getCachedPlayback() != null
+          && message.getType() == RtspMessage.Type.TypeRequest) {
+        // The session is played from the cache, the server must not be involved
+        passToCachedPlayback(proxySession, (RtspRequest) message);
+        return;
+      } else if (proxySession != null) {
         // Session is Ok
         message.setHeader("Session", proxySession.getServerSessionId());
+        if (message.getType() == RtspMessage.Type.TypeRequest) {
+          RtspRequest.Verb verb = ((RtspRequest) message).getVerb();
+          // what was recorded so far is committed, the PLAY response may start a new recording
+          if (verb == RtspRequest.Verb.PLAY || verb == RtspRequest.Verb.PAUSE
+              || verb == RtspRequest.Verb.TEARDOWN) proxySession.stopRecording();
+        }
       } else {
         // Error. The client specified a session ID but it's
         // not valid
@@ -93,6 +118,8 @@ public class ProxyHandler {
     switch (message.getType()) {
       case TypeRequest:
         serverSession.setAttribute("lastRequestVerb", ((RtspRequest) message).getVerb());
+        if (((RtspRequest) message).getVerb() == RtspRequest.Verb.PLAY)
+          serverSession.setAttribute("playURL", ((RtspRequest) message).getUrl());
         sendRequest(serverSession, (RtspRequest) message);
         break;
 
@@ -147,6 +174,117 @@ public class ProxyHandler {
     }
   }
 
+  /**
+   * Forwards a RTSP DESCRIBE request to the server, unless the stream can be described from the
+   * {@link MediaCache}. A stale cached stream is described by the server with a conditional
+   * request, so that it's kept if it didn't change.
+   * <p>
+   * Other requests are answered from the {@link DescribeCache} when it holds the response, or wait
+   * for the response to the same request if one was already forwarded.
+   * 
+   * @param request DESCRIBE request message
+   */
+  public void passDescribeRequestToServer(RtspRequest request) {
+    clientSession.removeAttribute("describeURL");
+    clientSession.removeAttribute("describeConditional");
+    boolean conditional = false;
+    if (MediaCache.isEnabled() && request.getUrl() != null && request.getHeader("Session") == null) {
+      String url = request.getUrl().toString();
+      CachedStream stream = MediaCache.lookup(url);
+      if (stream != null) {
+        log.debug("Describing " + url + " from the cache");
+        describeFromCache(request.getHeader("CSeq"), stream);
+        return;
+      }
+      clientSession.setAttribute("describeURL", url);
+      conditional = MediaCache.addConditions(request);
+      if (conditional) clientSession.setAttribute("describeConditional", Boolean.TRUE);
+    }
+
+    DescribeCache describeCache = DescribeCache.getInstance();
+    String key = conditional ? null : describeCache.getKey(request);
+    // a client whose request is forwarded already can't lead another one
+    if (key != null && clientSession.getAttribute("describeFlight") == null) {
+      RtspResponse response = describeCache.get(key, request);
+      if (response != null) {
+        log.debug("Describing " + request.getUrl() + " from a previous response");
+        describeFromResponse(request, response);
+        return;
+      }
+      DescribeCache.Flight flight = describeCache.join(key, new DescribeCache.Waiter(this, request));
+      if (flight == null) {
+        log.debug("Waiting for the description of " + request.getUrl());
+        return;
+      }
+      clientSession.setAttribute("describeFlight", flight);
+    }
+
+    passToServer(request);
+    if (serverSession == null) abandonDescribe();
+  }
+
+  /**
+   * Answers a DESCRIBE request with a copy of the response to the same request.
+   * 
+   * @param request DESCRIBE request message
+   * @param response the response, which is not modified
+   */
+  private void describeFromResponse(RtspRequest request, RtspResponse response) {
+    if (clientSession == null || !clientSession.isConnected()) return;
+    response = DescribeCache.copy(response, request.getHeader("CSeq"));
+    clientSession.removeAttribute("describeURL");
+    clientSession.removeAttribute("describeConditional");
+    clientSession.removeAttribute("cachedStream");
+    if (MediaCache.isEnabled() && response.getCode() == RtspCode.OK) {
+      CachedStream stream = MediaCache.get(request.getUrl().toString());
+      if (stream != null) clientSession.setAttribute("cachedStream", stream);
+    }
+    if (response.getCode() == RtspCode.OK && response.getBufferSize() > 0) setMediaFormats(response);
+    sendResponse(clientSession, response);
+  }
+
+  /**
+   * Sends again the DESCRIBE requests waiting for the response to the request of this client,
+   * which won't come.
+   */
+  private void abandonDescribe() {
+    if (clientSession == null) return;
+    DescribeCache.Flight flight =
+        (DescribeCache.Flight) clientSession.removeAttribute("describeFlight");
+    if (flight == null) return;
+    for (DescribeCache.Waiter waiter : DescribeCache.getInstance().abandon(flight))
+      waiter.handler.describeAgain(waiter.request);
+  }
+
+  /**
+   * Sends again a DESCRIBE request that was waiting for the response to another one, which won't
+   * come.
+   * 
+   * @param request DESCRIBE request message
+   */
+  void describeAgain(RtspRequest request) {
+    if (clientSession != null && clientSession.isConnected()) passDescribeRequestToServer(request);
+  }
+
+  /**
+   * Answers a DESCRIBE request with the SDP of a cached stream.
+   * 
+   * @param cseq the sequence number of the request
+   * @param stream the cached stream
+   */
+  private void describeFromCache(String cseq, CachedStream stream) {
+    RtspResponse response = RtspResponse.errorResponse(RtspCode.OK);
+    response.setRequestVerb(RtspRequest.Verb.DESCRIBE);
+    if (cseq != null) response.setHeader("CSeq", cseq);
+    response.setHeader("Content-Type", "application/sdp");
+    response.setHeader("Content-Base", stream.getContentBase());
+    response.setBuffer(new StringBuffer(stream.getSdp()));
+    response.setHeader("Content-Length", Integer.toString(stream.getSdp().getBytes().length));
+    clientSession.setAttribute("cachedStream", stream);
+    setMediaFormats(response);
+    sendResponse(clientSession, response);
+  }
+
   /**
    * A SETUP request should treated more carefully tha other RTSP requests. The proxy will perform
    * some hijacking on the communication between client and server, such as modifying RTP/RTCP port.
@@ -154,6 +292,35 @@ public class ProxyHandler {
    * @param request SETUP request message
    */
   public void passSetupRequestToServer(RtspRequest request) {
+    if (request.getHeader("Session") == null && !MemoryGovernor.getInstance().acceptSession()) {
+      log.info("Too much buffered data, refusing new session from " + getClientAddress());
+      sendResponse(clientSession, localResponse(request, RtspCode.ServiceUnavailable));
+      return;
+    }
+
+    if (reflection && request.getUrl() != null) {
+      LiveStream liveStream = LiveStream.getByTrackUrl(request.getUrl().toString());
+      if (liveStream != null) {
+        passSetupRequestToLiveStream(liveStream, request);
+        return;
+      }
+    }
+
+    if (MediaCache.isEnabled() && request.getUrl() != null) {
+      CachedStream stream = MediaCache.getByTrackUrl(request.getUrl().toString());
+      if (stream != null && stream == clientSession.getAttribute("cachedStream")
+          && stream.hasContent()) {
+        ProxySession existing =
+            request.getHeader("Session") != null ? ProxySession.getByClientSessionID(request
+                .getHeader("Session")) : null;
+        // tracks added to a session already played by the server go on with the server
+        if (existing == null || existing.getCachedPlayback() != null) {
+          passSetupRequestToCache(stream, request);
+          return;
+        }
+      }
+    }
+
     ProxySession proxySession = null;
 
     if (request.getHeader("Session") != null) {
@@ -171,6 +338,15 @@ public class ProxyHandler {
         return;
       }
     }
+
+    if (serverSession == null) {
+      try {
+        connectServerSide(request.getUrl());
+      } catch (IOException e) {
+        log.error(e);
+      }
+      if (serverSession == null) return;
+    }
     serverSession.setAttribute("lastRequestVerb", request.getVerb());
 
     log.debug("Client Transport:" + request.getHeader("Transport"));
@@ -178,41 +354,132 @@ public class ProxyHandler {
     RtspTransportList rtspTransportList = new RtspTransportList(request.getHeader("Transport"));
     log.debug("Parsed:" + rtspTransportList.toString());
 
-    int proxyRtpPort = Config.getInt("proxy.server.rtp.port", -1);
-    int proxyRtcpPort = Config.getInt("proxy.server.rtcp.port", -1);
-
-    // I'm saving the client Transport header before modifying it,
-    // because I will need to know which port the client will
-    // use for RTP/RTCP connections.
-    int[] clientPorts = rtspTransportList.get(0).getClientPort();
-    clientSession.setAttribute("clientPorts", clientPorts);
-    clientSession.setAttribute("setupURL", request.getUrl().toString());
-
+    // I'm saving the ports or channels the client asked for before
+    // rewriting the transports, because I will need to know where the
+    // client expects the RTP/RTCP packets.
+    int[] clientPorts = null;
+    int[] clientChannels = null;
+    boolean clientMulticast = false;
     for (RtspTransport transport : rtspTransportList.getList()) {
-      log.debug("Transport:" + transport);
-
-      if (transport.getLowerTransport() == RtspTransport.LowerTransport.TCP) {
-        log.debug("Transport is TCP based.");
-      } else {
-
-        // / int clientPort[] = transport.getClientPort();
-        transport.setClientPort(new int[] {proxyRtpPort, proxyRtcpPort});
-        log.debug("Transport Rewritten: " + transport);
+      if (transport.getDeliveryType() == RtspTransport.DeliveryType.multicast) {
+        // served from the group of the track, whatever the server transport
+        if (MulticastEgress.isEnabled(request.getUrl().toString())) clientMulticast = true;
+      } else if (transport.getLowerTransport() == RtspTransport.LowerTransport.TCP) {
+        if (clientChannels == null) {
+          clientChannels = transport.getInterleavedChannels();
+          if (clientChannels == null) clientChannels = new int[] {0, 1};
+        }
+      } else if (clientPorts == null && transport.getClientPort()[0] > 0) {
+        clientPorts = transport.getClientPort();
       }
     }
+    clientSession.setAttribute("setupURL", request.getUrl().toString());
+    setOrRemoveAttribute(clientSession, "clientPorts", clientPorts);
+    setOrRemoveAttribute(clientSession, "clientChannels", clientChannels);
+    setOrRemoveAttribute(clientSession, "clientMulticast", clientMulticast ? Boolean.TRUE : null);
 
     if (proxySession == null) {
       proxySession = new ProxySession();
       clientSession.setAttribute(ProxySession.ATTR, proxySession);
     }
 
-    request.setHeader("Transport", rtspTransportList.toString());
+    request.setHeader("Transport", getServerTransports(rtspTransportList));
 
     log.debug("Sending SETUP request: \n" + request);
 
     sendRequest(serverSession, request);
   }
 
+  /**
+   * Builds the transports proposed to the server. The lower transport asked to the server doesn't
+   * need to be the one of the client: packets are converted between UDP datagrams and interleaved
+   * channels by the {@link Track}. With <code>proxy.server.transport</code> set to
+   * <code>udp</code> or <code>tcp</code> the server is only offered that one; with
+   * <code>auto</code> (the default) it's offered the transports of the client first, then the other
+   * lower transport, in case the server doesn't support the one of the client.
+   * <p>
+   * With <code>proxy.server.multicast</code>, the server is first asked to send the packets to a
+   * multicast group, which the proxy joins once for all the clients, see {@link MulticastGroup}.
+   * 
+   * @return the Transport header for the server
+   */
+  private String getServerTransports(RtspTransportList clientTransports) {
+    String mode = Config.get("proxy.server.transport", "auto");
+    boolean allowUdp = !mode.equalsIgnoreCase("tcp");
+    boolean allowTcp = !mode.equalsIgnoreCase("udp");
+
+    List<RtspTransport> transports = new ArrayList<RtspTransport>();
+    if (allowUdp && Config.getBoolean("proxy.server.multicast", false)) {
+      RtspTransport multicast = toServerTransport(clientTransports.get(0), false);
+      multicast.setDeliveryType(RtspTransport.DeliveryType.multicast);
+      multicast.setClientPort(new int[] {0, 0});
+      transports.add(multicast);
+    }
+    boolean udp = false;
+    boolean tcp = false;
+    for (RtspTransport transport : clientTransports.getList()) {
+      boolean isTcp = transport.getLowerTransport() == RtspTransport.LowerTransport.TCP;
+      if (isTcp ? !allowTcp : !allowUdp) continue;
+      transports.add(toServerTransport(transport, isTcp));
+      if (isTcp) tcp = true;
+      else udp = true;
+    }
+    RtspTransport first = clientTransports.get(0);
+    if (!udp && allowUdp) transports.add(toServerTransport(first, false));
+    if (!tcp && allowTcp) transports.add(toServerTransport(first, true));
+
+    StringBuilder header = new StringBuilder();
+    for (RtspTransport transport : transports) {
+      if (header.length() > 0) header.append(",");
+      header.append(transport);
+    }
+    return header.toString();
+  }
+
+  /**
+   * @return a copy of a client transport, rewritten for the server: the server is asked to send
+   *         the packets to the proxy ports, or on the next free channels of the server connection.
+   */
+  private RtspTransport toServerTransport(RtspTransport clientTransport, boolean tcp) {
+    RtspTransport transport = new RtspTransport(clientTransport.toString());
+    if (tcp) {
+      transport.setLowerTransport(RtspTransport.LowerTransport.TCP);
+      transport.setClientPort(new int[] {0, 0});
+      transport.setInterleavedChannels(nextServerChannels());
+    } else {
+      if (transport.getLowerTransport() == RtspTransport.LowerTransport.TCP)
+        transport.setLowerTransport(RtspTransport.LowerTransport.UDP);
+      if (transport.getDeliveryType() == RtspTransport.DeliveryType.multicast) {
+        // a multicast client is sent the packets by the proxy
+        transport.setDeliveryType(RtspTransport.DeliveryType.unicast);
+        transport.setDestination(null);
+        transport.setPort(new int[] {0, 0});
+        transport.setTTL(0);
+      }
+      transport.setInterleaved(null);
+      transport.setClientPort(new int[] {Config.getInt("proxy.server.rtp.port", -1),
+          Config.getInt("proxy.server.rtcp.port", -1)});
+    }
+    log.debug("Transport Rewritten: " + transport);
+    return transport;
+  }
+
+  /**
+   * Channels are allocated on the server connection independently of the client ones, so that the
+   * tracks of a session never collide whatever the client asked for.
+   */
+  private int[] nextServerChannels() {
+    Integer next = (Integer) serverSession.getAttribute("nextChannel");
+    int channel = next != null ? next.intValue() : 0;
+    serverSession.setAttribute("nextChannel", (channel + 2) % 256);
+    return new int[] {channel, channel + 1};
+  }
+
+  private static void setOrRemoveAttribute(IoSession session, String key, Object value) {
+    if (value != null) session.setAttribute(key, value);
+    else session.removeAttribute(key);
+  }
+
   /**
    * Forward a RTSP SETUP response message to client.
    * 
@@ -238,7 +505,6 @@ public class ProxyHandler {
 
     // int proxyRtpPort = Config.getInt( "proxy.client.rtp.port", -1 );
     // int proxyRtcpPort = Config.getInt( "proxy.client.rtcp.port", -1 );
-    String netInterface = Config.get("proxy.client.interface", null);
 
     RtspTransport transport = rtspTransportList.getList().get(0);
     log.debug("Transport:" + transport);
@@ -246,8 +512,151 @@ public class ProxyHandler {
     // Create a new Track object
     Track track =
         proxySession.addTrack((String) clientSession.getAttribute("setupURL"), transport.getSSRC());
+    MediaFormats formats = (MediaFormats) clientSession.getAttribute("mediaFormats");
+    if (formats != null) {
+      track.setEncoding(formats.getEncoding(track.getUrl()));
+      track.setClockRate(formats.getClockRate(track.getUrl()));
+      track.setRtxPayloadType(formats.getRtxPayloadType(track.getUrl()));
+    }
+
+    // The server and the client may use different lower transports:
+    // the track converts between UDP datagrams and interleaved channels
+    boolean serverTcp = transport.getLowerTransport() == RtspTransport.LowerTransport.TCP;
+    if (serverTcp) {
+      log.debug("Server transport is TCP based.");
+      int[] serverChannels = transport.getInterleavedChannels();
+      if (serverChannels == null) serverChannels = new int[] {0, 1};
+      track.setServerChannels(serverSession, serverChannels[0], serverChannels[1]);
+    } else if (transport.getDeliveryType() == RtspTransport.DeliveryType.multicast
+        && transport.getDestination() != null) {
+      log.debug("Server transport is multicast.");
+      if (!setMulticastGroup(track, transport)) {
+        response.setCode(RtspCode.UnsupportedTransport);
+        response.setHeader("Session", proxySession.getClientSessionId());
+        response.removeHeader("Transport");
+        sendResponse(clientSession, response);
+        return;
+      }
+      // the clients are served in unicast
+      transport.setDeliveryType(RtspTransport.DeliveryType.unicast);
+      transport.setDestination(null);
+      transport.setPort(new int[] {0, 0});
+      transport.setTTL(0);
+    } else {
+      setServerAddress(track, transport);
+    }
 
-    // Setting client and server info on the track
+    int[] clientPorts = (int[]) clientSession.getAttribute("clientPorts");
+    int[] clientChannels = (int[]) clientSession.getAttribute("clientChannels");
+    if (clientSession.getAttribute("clientMulticast") != null
+        && setMulticastTransport(proxySession, track, transport, true) != null) {
+      log.debug("Client transport is multicast.");
+
+    } else if (clientChannels != null && (serverTcp || clientPorts == null)) {
+      log.debug("Client transport is TCP based.");
+      Subscriber subscriber =
+          proxySession.addSubscriber(track, clientSession, clientChannels[0], clientChannels[1],
+              true);
+      subscriber.setFec(ForwardErrorCorrection.newEncoder(formats, track.getUrl()));
+      transport.setLowerTransport(RtspTransport.LowerTransport.TCP);
+      transport.setInterleavedChannels(clientChannels);
+      transport.setClientPort(new int[] {0, 0});
+      transport.setServerPort(new int[] {0, 0});
+      transport.setSource(null);
+
+    } else if (clientPorts != null) {
+      Subscriber subscriber =
+          proxySession.addSubscriber(track, getClientAddress(), clientPorts[0], clientPorts[1],
+              true);
+      subscriber.setFec(ForwardErrorCorrection.newEncoder(formats, track.getUrl()));
+      if (serverTcp) transport.setLowerTransport(RtspTransport.LowerTransport.UDP);
+      transport.setInterleaved(null);
+      transport.setClientPort(clientPorts);
+      transport.setServerPort(new int[] {RtpClientService.getRtpPort(),
+          RtpClientService.getRtcpPort()});
+      String netInterface = Config.get("proxy.client.interface", null);
+      try {
+        transport.setSource(InetAddress.getByName(netInterface).getHostAddress());
+      } catch (UnknownHostException e) {
+        transport.setSource(netInterface);
+      }
+
+    } else {
+      log.warn("No usable client transport for " + track.getUrl());
+      response.setCode(RtspCode.UnsupportedTransport);
+      response.setHeader("Session", proxySession.getClientSessionId());
+      response.removeHeader("Transport");
+      sendResponse(clientSession, response);
+      return;
+    }
+    transport.setSSRC(track.getProxySSRC().toHexString());
+    log.debug("Transport Rewritten: " + transport);
+
+    response.setHeader("Session", proxySession.getClientSessionId());
+    response.setHeader("Transport", transport.toString());
+
+    log.debug("SENDING RESPONSE TO CLIENT:\n" + response);
+
+    sendResponse(clientSession, response);
+  }
+
+  /**
+   * Joins the multicast group announced by the server for a track.
+   * 
+   * @return false if the group can't be joined
+   */
+  private boolean setMulticastGroup(Track track, RtspTransport transport) {
+    int[] ports = transport.getPort();
+    if (ports == null || ports[0] <= 0) ports = transport.getClientPort();
+    if (ports == null || ports[0] <= 0) {
+      log.warn("No multicast port for " + track.getUrl());
+      return false;
+    }
+    try {
+      InetAddress group = InetAddress.getByName(transport.getDestination());
+      InetAddress source =
+          transport.getSource() != null ? InetAddress.getByName(transport.getSource()) : null;
+      track.setMulticastGroup(group, ports[0], ports[1] > 0 ? ports[1] : ports[0] + 1, source);
+      return true;
+    } catch (IOException e) {
+      log.warn("Cannot receive " + track.getUrl() + " from " + transport.getDestination() + ": "
+          + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Subscribes the client to the multicast group of a track, and rewrites the transport to tell it
+   * the group to join.
+   * 
+   * @return the new subscriber, or null if the track can't be sent to a multicast group
+   */
+  private Subscriber setMulticastTransport(ProxySession proxySession, Track track,
+      RtspTransport transport, boolean active) {
+    Subscriber subscriber;
+    try {
+      subscriber = proxySession.addMulticastSubscriber(track, active);
+    } catch (IOException e) {
+      log.warn("Cannot send " + track.getUrl() + " to a multicast group: " + e.getMessage());
+      return null;
+    }
+    MulticastEgress egress = subscriber.getEgress();
+    transport.setLowerTransport(RtspTransport.LowerTransport.UDP);
+    transport.setDeliveryType(RtspTransport.DeliveryType.multicast);
+    transport.setDestination(egress.getGroup().getHostAddress());
+    transport.setPort(new int[] {egress.getRtpPort(), egress.getRtcpPort()});
+    transport.setTTL(egress.getTtl());
+    transport.setInterleaved(null);
+    transport.setClientPort(new int[] {0, 0});
+    transport.setServerPort(new int[] {0, 0});
+    transport.setSource(null);
+    return subscriber;
+  }
+
+  /**
+   * Sets the address and the UDP ports of the server on a track.
+   */
+  private void setServerAddress(Track track, RtspTransport transport) {
     InetAddress serverAddress = null;
     if (transport.getSource() != null) {
       try {
@@ -260,46 +669,378 @@ public class ProxyHandler {
     }
     int[] serverPorts = transport.getServerPort();
     track.setServerAddress(serverAddress, serverPorts[0], serverPorts[1]);
+  }
 
-    InetAddress clientAddress = null;
-    try {
-      clientAddress =
-          Inet4Address.getByName(((InetSocketAddress) clientSession.getRemoteAddress())
-              .getHostName());
-    } catch (UnknownHostException e) {
-      log.warn("Unknown host: " + clientSession.getRemoteAddress());
+  /**
+   * Forwards a RTSP DESCRIBE response message to client. The payload formats of the media are
+   * saved, so that the tracks set up later know what they carry. Clients protected by FEC are
+   * offered an extra ULPFEC payload type for each media.
+   * <p>
+   * The description is kept in the {@link MediaCache}; a cached stream found unchanged by a
+   * conditional request is described from the cache. The requests of other clients waiting for
+   * this response in the {@link DescribeCache} are answered with a copy of it.
+   * 
+   * @param response DESCRIBE response message
+   */
+  public void passDescribeResponseToClient(RtspResponse response) {
+    DescribeCache.Flight flight =
+        (DescribeCache.Flight) clientSession.removeAttribute("describeFlight");
+    List<DescribeCache.Waiter> waiters = null;
+    RtspResponse original = null;
+    if (flight != null) {
+      waiters = DescribeCache.getInstance().complete(flight, response);
+      if (!waiters.isEmpty()) original = DescribeCache.copy(response, null);
     }
-    int clientPorts[] = (int[]) clientSession.getAttribute("clientPorts");
-    track.setClientAddress(clientAddress, clientPorts[0], clientPorts[1]);
 
-    if (transport.getLowerTransport() == RtspTransport.LowerTransport.TCP) {
-      log.debug("Transport is TCP based.");
+    String url = (String) clientSession.removeAttribute("describeURL");
+    boolean conditional = clientSession.removeAttribute("describeConditional") != null;
+    clientSession.removeAttribute("cachedStream");
+    if (url != null) {
+      if (conditional && response.getCode() == RtspCode.NotModified) {
+        CachedStream stream = MediaCache.notModified(url, response);
+        if (stream != null) {
+          describeFromCache(response.getHeader("CSeq"), stream);
+          return;
+        }
+      } else if (response.getCode() == RtspCode.OK && response.getBufferSize() > 0) {
+        CachedStream stream = MediaCache.describe(url, response);
+        if (stream != null) clientSession.setAttribute("cachedStream", stream);
+      }
+    }
+
+    if (response.getCode() == RtspCode.OK && response.getBufferSize() > 0) setMediaFormats(response);
+    passToClient(response);
+
+    if (original != null) {
+      for (DescribeCache.Waiter waiter : waiters)
+        waiter.handler.describeFromResponse(waiter.request, original);
+    }
+  }
+
+  /**
+   * Saves the payload formats of a description, rewriting it first for the clients protected by
+   * FEC.
+   */
+  private void setMediaFormats(RtspResponse response) {
+    if (ForwardErrorCorrection.isEnabled(getClientAddress())) {
+      String sdp = ForwardErrorCorrection.rewriteSdp(response.getBuffer().toString());
+      response.setBuffer(new StringBuffer(sdp));
+      response.setHeader("Content-Length", Integer.toString(sdp.getBytes().length));
+    }
+    MediaFormats formats = new MediaFormats(response.getBuffer().toString());
+    log.debug("Media formats: " + formats);
+    clientSession.setAttribute("mediaFormats", formats);
+  }
+
+  /**
+   * Forwards a RTSP PLAY response message to client. If the response starts a live event, the
+   * session becomes a reflected {@link LiveStream}, which takes over the server connection.
+   * Otherwise the stream played is recorded in the {@link MediaCache}, see {@link CacheRecording}.
+   * 
+   * @param response PLAY response message
+   */
+  public void passPlayResponseToClient(RtspResponse response) {
+    if (reflection && serverSession != null && response.getCode() == RtspCode.OK
+        && LiveStream.isLiveRange(response.getHeader("Range"))) {
+      ProxySession proxySession = ProxySession.getByServerSessionID(response.getHeader("Session"));
+      URL url = (URL) serverSession.getAttribute("playURL");
+
+      if (proxySession != null && proxySession.getLiveStream() == null && url != null
+          && LiveStream.create(this, proxySession, serverSession, url, response) != null) {
+        // The server connection now belongs to the live stream
+        serverSession.removeAttribute(ProxyHandler.ATTR);
+        serverSession = null;
+      }
+    } else if (MediaCache.isEnabled() && serverSession != null
+        && response.getCode() == RtspCode.OK) {
+      ProxySession proxySession = ProxySession.getByServerSessionID(response.getHeader("Session"));
+      URL url = (URL) serverSession.getAttribute("playURL");
+      if (proxySession != null && url != null) {
+        CachedStream stream = MediaCache.get(url.toString());
+        if (stream == null) stream = MediaCache.getByTrackUrl(url.toString());
+        if (stream != null)
+          proxySession.setRecording(CacheRecording.start(stream, proxySession.getTracks(), response
+              .getHeader("Range"), response.getHeader("RTP-Info")));
+      }
+    }
+
+    passToClient(response);
+  }
+
+  /**
+   * Subscribes the client to a track of a reflected live stream. The SETUP request is answered by
+   * the proxy.
+   * 
+   * @param liveStream the live stream
+   * @param request SETUP request message
+   */
+  private void passSetupRequestToLiveStream(LiveStream liveStream, RtspRequest request) {
+    ProxySession proxySession = null;
+    if (request.getHeader("Session") != null) {
+      proxySession = ProxySession.getByClientSessionID(request.getHeader("Session"));
+      if (proxySession == null) {
+        sendResponse(clientSession, localResponse(request, RtspCode.SessionNotFound));
+        return;
+      } else if (proxySession.getLiveStream() != liveStream) {
+        // Tracks of a session must all come from the same stream
+        sendResponse(clientSession, localResponse(request, RtspCode.AggregateOperationNotAllowed));
+        return;
+      }
+    }
+
+    RtspTransport transport = selectTransport(request);
+    if (transport == null) {
+      sendResponse(clientSession, localResponse(request, RtspCode.UnsupportedTransport));
+      return;
+    }
+
+    if (proxySession == null) {
+      proxySession = new ProxySession();
+      clientSession.setAttribute(ProxySession.ATTR, proxySession);
+    }
+    liveStream.attach(proxySession, this);
+
+    Track track = liveStream.getTrack(request.getUrl().toString());
+    Subscriber subscriber = subscribe(proxySession, track, transport, request.getUrl().toString());
+    if (subscriber == null) {
+      sendResponse(clientSession, localResponse(request, RtspCode.UnsupportedTransport));
+      return;
+    }
+
+    RtspResponse response = localResponse(request, RtspCode.OK);
+    response.setHeader("Session", proxySession.getClientSessionId());
+    response.setHeader("Transport", transport.toString());
+    log.debug("Joined live stream " + liveStream + ": " + subscriber);
+
+    sendResponse(clientSession, response);
+  }
+
+  /**
+   * @return the first transport of a SETUP request that the proxy can serve by itself, or null
+   */
+  private RtspTransport selectTransport(RtspRequest request) {
+    boolean multicast = MulticastEgress.isEnabled(request.getUrl().toString());
+    for (RtspTransport t : new RtspTransportList(request.getHeader("Transport")).getList()) {
+      if (t.getDeliveryType() == RtspTransport.DeliveryType.multicast) {
+        if (!multicast) continue;
+        return t;
+      }
+      if (t.getLowerTransport() == RtspTransport.LowerTransport.TCP) {
+        if (t.getInterleavedChannels() == null) t.setInterleavedChannels(new int[] {0, 1});
+        return t;
+      }
+      if (t.getClientPort() != null && t.getClientPort()[0] > 0) return t;
+    }
+    return null;
+  }
+
+  /**
+   * Subscribes the client to a track served by the proxy itself, inactive until it plays, and
+   * rewrites the transport accordingly.
+   * 
+   * @return the new subscriber, or null if the transport can't be served
+   */
+  private Subscriber subscribe(ProxySession proxySession, Track track, RtspTransport transport,
+      String url) {
+    MediaFormats formats = (MediaFormats) clientSession.getAttribute("mediaFormats");
+    Subscriber subscriber;
+    if (transport.getDeliveryType() == RtspTransport.DeliveryType.multicast) {
+      subscriber = setMulticastTransport(proxySession, track, transport, false);
+      if (subscriber == null) return null;
+
+    } else if (transport.getLowerTransport() == RtspTransport.LowerTransport.TCP) {
+      int[] channels = transport.getInterleavedChannels();
+      subscriber = proxySession.addSubscriber(track, clientSession, channels[0], channels[1], false);
+      subscriber.setFec(ForwardErrorCorrection.newEncoder(formats, url));
+
     } else {
-      transport.setSSRC(track.getProxySSRC().toHexString());
+      int[] clientPorts = transport.getClientPort();
+      subscriber =
+          proxySession.addSubscriber(track, getClientAddress(), clientPorts[0], clientPorts[1],
+              false);
+      subscriber.setFec(ForwardErrorCorrection.newEncoder(formats, url));
+
       transport.setServerPort(new int[] {RtpClientService.getRtpPort(),
           RtpClientService.getRtcpPort()});
-      // transport.setClientPort( );
+      String netInterface = Config.get("proxy.client.interface", null);
       try {
         transport.setSource(InetAddress.getByName(netInterface).getHostAddress());
       } catch (UnknownHostException e) {
         transport.setSource(netInterface);
       }
+    }
+    LiveStream liveStream = proxySession.getLiveStream();
+    if (liveStream != null) liveStream.join(subscriber);
+    transport.setSSRC(subscriber.getSsrc() & 0xFFFFFFFFL);
+    return subscriber;
+  }
+
+  /**
+   * Sets up a track of a stream played from the {@link MediaCache}. The SETUP request is answered
+   * by the proxy; the server is only contacted to play what is not recorded, see
+   * {@link CachedPlayback}.
+   * 
+   * @param stream the cached stream
+   * @param request SETUP request message
+   */
+  private void passSetupRequestToCache(CachedStream stream, RtspRequest request) {
+    String url = request.getUrl().toString();
+    ProxySession proxySession = null;
+    if (request.getHeader("Session") != null) {
+      proxySession = ProxySession.getByClientSessionID(request.getHeader("Session"));
+      if (proxySession == null) {
+        sendResponse(clientSession, localResponse(request, RtspCode.SessionNotFound));
+        return;
+      } else if (proxySession.getCachedPlayback().getStream() != stream) {
+        // Tracks of a session must all come from the same stream
+        sendResponse(clientSession, localResponse(request, RtspCode.AggregateOperationNotAllowed));
+        return;
+      }
+    }
+
+    RtspTransport transport = selectTransport(request);
+    CachedTrack cached = stream.getTrack(url);
+    if (transport == null || cached == null) {
+      sendResponse(clientSession, localResponse(request, RtspCode.UnsupportedTransport));
+      return;
+    }
 
-      // Obtaing client specified ports
-      int ports[] = (int[]) clientSession.getAttribute("clientPorts");
-      transport.setClientPort(ports);
+    if (proxySession == null) {
+      proxySession = new ProxySession();
+      proxySession.setCachedPlayback(new CachedPlayback(stream, proxySession, this));
+      clientSession.setAttribute(ProxySession.ATTR, proxySession);
+    }
 
-      log.debug("Transport Rewritten: " + transport);
+    Track track = proxySession.addTrack(url, null);
+    MediaFormats formats = (MediaFormats) clientSession.getAttribute("mediaFormats");
+    if (formats != null) {
+      track.setEncoding(formats.getEncoding(url));
+      track.setClockRate(formats.getClockRate(url));
+      track.setRtxPayloadType(formats.getRtxPayloadType(url));
     }
+    Subscriber subscriber = subscribe(proxySession, track, transport, url);
+    if (subscriber == null) {
+      sendResponse(clientSession, localResponse(request, RtspCode.UnsupportedTransport));
+      return;
+    }
+    proxySession.getCachedPlayback().addTrack(track, cached);
 
+    RtspResponse response = localResponse(request, RtspCode.OK);
     response.setHeader("Session", proxySession.getClientSessionId());
     response.setHeader("Transport", transport.toString());
+    log.debug("Set up cached track " + url + ": " + subscriber);
 
-    log.debug("SENDING RESPONSE TO CLIENT:\n" + response);
+    sendResponse(clientSession, response);
+  }
+
+  /**
+   * Answers a request of a client playing a stream from the cache. The server is only contacted
+   * to play what is not recorded.
+   * 
+   * @param proxySession the session of the client
+   * @param request the request message
+   */
+  private void passToCachedPlayback(ProxySession proxySession, RtspRequest request) {
+    CachedPlayback playback = proxySession.getCachedPlayback();
+    RtspResponse response = localResponse(request, RtspCode.OK);
+    response.setHeader("Session", proxySession.getClientSessionId());
+
+    switch (request.getVerb()) {
+      case PLAY:
+        if (!playback.play(request.getHeader("Range"))) {
+          response.setCode(RtspCode.InvalidRange);
+          break;
+        }
+        response.setHeader("Range", playback.getRange());
+        String rtpInfo = playback.getRtpInfo();
+        if (rtpInfo != null) response.setHeader("RTP-Info", rtpInfo);
+        break;
+      case PAUSE:
+        playback.pause();
+        break;
+      case TEARDOWN:
+        proxySession.close();
+        break;
+      case OPTIONS:
+        response.setHeader("Public", "DESCRIBE, SETUP, TEARDOWN, PLAY, PAUSE, GET_PARAMETER");
+        break;
+      case GET_PARAMETER:
+      case SET_PARAMETER:
+        // keep alive
+        break;
+      default:
+        response.setCode(RtspCode.MethodNotValidInThisState);
+    }
+
+    sendResponse(clientSession, response);
+  }
+
+  /**
+   * Answers a request of a client watching a reflected live stream. Playback only starts and
+   * stops sending packets to this client; the server is not contacted.
+   * 
+   * @param proxySession the session of the client
+   * @param request the request message
+   */
+  private void passToLiveStream(ProxySession proxySession, RtspRequest request) {
+    LiveStream liveStream = proxySession.getLiveStream();
+    RtspResponse response = localResponse(request, RtspCode.OK);
+    response.setHeader("Session", proxySession.getClientSessionId());
+
+    switch (request.getVerb()) {
+      case PLAY:
+        response.setHeader("Range", liveStream.getRange());
+        String rtpInfo = liveStream.play(proxySession);
+        if (rtpInfo != null) response.setHeader("RTP-Info", rtpInfo);
+        break;
+      case PAUSE:
+        proxySession.setPlaying(false);
+        break;
+      case TEARDOWN:
+        proxySession.close();
+        break;
+      case OPTIONS:
+        response.setHeader("Public", "DESCRIBE, SETUP, TEARDOWN, PLAY, PAUSE, GET_PARAMETER");
+        break;
+      case GET_PARAMETER:
+      case SET_PARAMETER:
+        // keep alive
+        break;
+      default:
+        response.setCode(RtspCode.MethodNotValidInThisState);
+    }
 
     sendResponse(clientSession, response);
   }
 
+  /**
+   * Creates a response to a request that is answered by the proxy itself.
+   */
+  private static RtspResponse localResponse(RtspRequest request, RtspCode code) {
+    RtspResponse response = RtspResponse.errorResponse(code);
+    response.setRequestVerb(request.getVerb());
+    if (request.getHeader("CSeq") != null) response.setHeader("CSeq", request.getHeader("CSeq"));
+    return response;
+  }
+
+  private InetAddress getClientAddress() {
+    return ((InetSocketAddress) clientSession.getRemoteAddress()).getAddress();
+  }
+
+  /**
+   * Creates a connector to the RTSP servers, with the server filter chain and the
+   * {@link ServerSide} handler.
+   * 
+   * @param timeout the connection timeout, in milliseconds
+   */
+  static NioSocketConnector newServerConnector(long timeout) {
+    NioSocketConnector connector = new NioSocketConnector();
+    connector.setConnectTimeoutMillis(timeout);
+    connector.setFilterChainBuilder(new RtspServerFilters());
+    connector.setHandler(new ServerSide());
+    return connector;
+  }
+
   /**
    * Tries to connect to remote RTSP server.
    * 
@@ -315,37 +1056,29 @@ public class ProxyHandler {
     // Start communication.
     log.debug("Trying to connect to '" + host + "' " + port);
 
+    NioSocketConnector connector = newServerConnector(30000);
     try {
-
       /*
-       * TODO: Current implementation wait (future.join()) until the connection with server is
-       * completed. This could block the thread for a long time. Check how to do it in asyncronous
-       * way.
+       * TODO: Current implementation waits until the connection with server is completed. This
+       * could block the thread for a long time. Check how to do it in asyncronous way.
        */
-      // Create TCP/IP connector.
-      IoConnector connector = new NioSocketConnector();
-      connector.setConnectTimeoutMillis(30000);
-      // RtspServerFilters myFilter = new RtspServerFilters();
-      // connector.getFilterChain().addLast("codec", myFilter);
-      connector.setHandler(new ServerSide());
       ConnectFuture future = connector.connect(new InetSocketAddress(host, port));
-      // future.join();
+      future.awaitUninterruptibly();
+      if (!future.isConnected()) {
+        log.warn("Cannot connect to " + host + ":" + port);
+        connector.dispose();
+        sendResponse(clientSession, RtspResponse.errorResponse(RtspCode.DestinationUnreachable));
+        return;
+      }
       serverSession = future.getSession();
 
     } catch (UnresolvedAddressException e) {
       log.warn("Destination unreachable: " + host + ":" + port);
+      connector.dispose();
       sendResponse(clientSession, RtspResponse.errorResponse(RtspCode.DestinationUnreachable));
       return;
     }
 
-    // ------------------
-    IoConnector connector = new NioSocketConnector();
-
-
-    connector.connect(new InetSocketAddress("192.168.14.12", 554));
-
-    // ------------------
-
     log.debug("Connected!");
 
     // Save current ProxyHandler into the ProtocolSession
@@ -359,6 +1092,7 @@ public class ProxyHandler {
    */
   @SuppressWarnings("deprecation")
   public synchronized void closeAll() {
+    abandonDescribe();
     if (clientSession != null && clientSession.isConnected()) clientSession.close();
     if (serverSession != null && serverSession.isConnected()) serverSession.close();
 
@@ -15,11 +15,14 @@
 
 package rtspproxy.proxy;
 
+import java.io.IOException;
+import java.net.InetAddress;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
+import org.apache.mina.core.session.IoSession;
 
 import rtspproxy.lib.number.UnsignedLong;
 
@@ -80,6 +83,20 @@ public class ProxySession {
    */
   private Map<String, Track> trackList = new ConcurrentHashMap<String, Track>();
 
+  /**
+   * The client subscriptions to the tracks of this session, by track control URL.
+   */
+  private Map<String, Subscriber> subscriberList = new ConcurrentHashMap<String, Subscriber>();
+
+  /** The reflected live stream watched in this session, or null */
+  private LiveStream liveStream = null;
+
+  /** The playback of a stream from the cache, or null if the stream is played by the server */
+  private CachedPlayback cachedPlayback = null;
+
+  /** The recording in the cache of the stream played by the server, or null */
+  private CacheRecording recording = null;
+
   /**
    * Construct a new ProxySession. The session ID that will be used when communicating with the
    * client will be generated.
@@ -104,6 +121,142 @@ public class ProxySession {
     return track;
   }
 
+  /**
+   * Subscribes the client to a track of this session, or to a track shared with other sessions.
+   * 
+   * @param track the track
+   * @param clientAddress the client address
+   * @param rtpPort the client port for RTP packets
+   * @param rtcpPort the client port for RTCP packets
+   * @param active whether the client should receive the packets right away
+   * @return the new subscriber
+   */
+  public synchronized Subscriber addSubscriber(Track track, InetAddress clientAddress,
+      int rtpPort, int rtcpPort, boolean active) {
+    Subscriber subscriber = new Subscriber(track, this, clientAddress, rtpPort, rtcpPort, active);
+    Subscriber previous = subscriberList.put(track.getUrl(), subscriber);
+    if (previous != null) previous.getTrack().removeSubscriber(previous);
+
+    track.addSubscriber(subscriber);
+    return subscriber;
+  }
+
+  /**
+   * Subscribes the client to a track, receiving the packets interleaved on its RTSP connection.
+   * 
+   * @see #addSubscriber(Track, InetAddress, int, int, boolean)
+   */
+  public synchronized Subscriber addSubscriber(Track track, IoSession rtspSession, int rtpChannel,
+      int rtcpChannel, boolean active) {
+    Subscriber subscriber =
+        new Subscriber(track, this, rtspSession, rtpChannel, rtcpChannel, active);
+    Subscriber previous = subscriberList.put(track.getUrl(), subscriber);
+    if (previous != null) previous.getTrack().removeSubscriber(previous);
+
+    track.addSubscriber(subscriber);
+    return subscriber;
+  }
+
+  /**
+   * Subscribes the client to a track, receiving the packets from the multicast group of the track.
+   *
+   * @throws IOException if the track can't be sent to a multicast group
+   * @see #addSubscriber(Track, InetAddress, int, int, boolean)
+   */
+  public synchronized Subscriber addMulticastSubscriber(Track track, boolean active)
+      throws IOException {
+    Subscriber subscriber = track.addMulticastSubscriber(this, active);
+    // removed once the new viewer is added, so that the egress stays open
+    Subscriber previous = subscriberList.put(track.getUrl(), subscriber);
+    if (previous != null) previous.getTrack().removeSubscriber(previous);
+    return subscriber;
+  }
+
+  /**
+   * @return the client subscriptions of this session
+   */
+  public Iterable<Subscriber> getSubscribers() {
+    return subscriberList.values();
+  }
+
+  /**
+   * @return the number of frames dropped because the client couldn't keep up, on all the tracks
+   */
+  public long getFramesDropped() {
+    long count = 0;
+    for (Subscriber subscriber : subscriberList.values())
+      if (subscriber.getFrameDropper() != null)
+        count += subscriber.getFrameDropper().getFramesDropped();
+    return count;
+  }
+
+  /**
+   * @return the time, in milliseconds, during which frames of at least one track were dropped
+   *         because the client couldn't keep up. Tracks degraded at the same time are counted once
+   *         each.
+   */
+  public long getDegradedTime() {
+    long time = 0;
+    for (Subscriber subscriber : subscriberList.values())
+      if (subscriber.getFrameDropper() != null)
+        time += subscriber.getFrameDropper().getDegradedTime();
+    return time;
+  }
+
+  /**
+   * @return the tracks created by this session
+   */
+  public Iterable<Track> getTracks() {
+    return trackList.values();
+  }
+
+  /**
+   * Starts or stops sending packets to the client.
+   */
+  public void setPlaying(boolean playing) {
+    for (Subscriber subscriber : subscriberList.values())
+      subscriber.setActive(playing);
+  }
+
+  public LiveStream getLiveStream() {
+    return liveStream;
+  }
+
+  public void setLiveStream(LiveStream liveStream) {
+    this.liveStream = liveStream;
+  }
+
+  public CachedPlayback getCachedPlayback() {
+    return cachedPlayback;
+  }
+
+  public void setCachedPlayback(CachedPlayback cachedPlayback) {
+    this.cachedPlayback = cachedPlayback;
+  }
+
+  public synchronized CacheRecording getRecording() {
+    return recording;
+  }
+
+  /**
+   * Sets the recording of the stream played by the server, ending the previous one.
+   */
+  public synchronized void setRecording(CacheRecording recording) {
+    if (this.recording != null && this.recording != recording) this.recording.close();
+    this.recording = recording;
+  }
+
+  /**
+   * Ends the recording of the stream, if any, committing what was recorded.
+   */
+  public void stopRecording() {
+    setRecording(null);
+  }
+
+  public boolean isClosed() {
+    return isClosed;
+  }
+
   /**
    * @return the RTSP session id used by the client in this session.
    */
@@ -146,9 +299,16 @@ public class ProxySession {
 
     log.debug("TrackList: " + trackList);
 
-    // close all associated tracks
+    if (cachedPlayback != null) cachedPlayback.close();
+    if (recording != null) recording.close();
+    recording = null;
+
+    for (Subscriber subscriber : subscriberList.values())
+      subscriber.getTrack().removeSubscriber(subscriber);
+
+    // close all associated tracks, but the ones owned by a live stream
     for (Map.Entry<String, Track> entry : trackList.entrySet()) {
-      entry.getValue().close();
+      if (entry.getValue().getLiveStream() == null) entry.getValue().close();
     }
 
     isClosed = true;
@@ -167,6 +327,8 @@ public class ProxySession {
 
     if (clientSessionId != null) clientSessionIds.remove(clientSessionId);
     if (serverSessionId != null) serverSessionIds.remove(serverSessionId);
+
+    if (liveStream != null) liveStream.detach(this);
   }
 
   // ///////////////////
@@ -0,0 +1,337 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+import rtspproxy.rtp.BufferPool;
+import rtspproxy.rtp.rtcp.RtcpPacket;
+import rtspproxy.rtp.rtcp.RtcpPacketView;
+import rtspproxy.rtp.rtcp.RtcpPacketWriter;
+
+/**
+ * Terminates the RTCP reports of the clients of a {@link Track} and sends the server a single
+ * receiver report for all of them, so that the RTCP traffic towards the server doesn't grow with
+ * the number of viewers and the server doesn't learn who they are.
+ * <p>
+ * The SR, RR, SDES, BYE and APP packets of the clients are removed from their compound packets;
+ * only the feedback packets (NACKs, PLIs, ...) are still relayed, after a RR of the proxy. The last
+ * report block of each client about the track is kept. Every RTCP interval, the proxy sends the
+ * server a RR with a single report block, taken from the client that lost the largest fraction of
+ * packets or, when <code>proxy.rtcp.summary</code> is <code>median</code>, from the median client.
+ * The sequence numbers of the block are those of the server, and the delay since the last SR
+ * includes the time the block was kept by the proxy, so that the server still measures the round
+ * trip time to the chosen client.
+ * <p>
+ * The interval follows RFC 3550 (section 6.3.1): <code>proxy.rtcp.interval</code> milliseconds
+ * (5 seconds, the minimum of the RFC, which is what the computed interval amounts to with the
+ * proxy as the only receiver), halved for the first report, randomized between 0.5 and 1.5 times
+ * and divided by e - 3/2. The reports of a client older than five intervals are forgotten.
+ * <p>
+ * The reports are aggregated when <code>proxy.rtcp.aggregate</code> is true.
+ *
+ * @author Matteo Merli
+ */
+public class ReceiverReportAggregator implements Runnable {
+
+  private static Logger log = Logger.getLogger(ReceiverReportAggregator.class);
+
+  private static final boolean enabled = Config.getBoolean("proxy.rtcp.aggregate", false);
+  private static final boolean useMedian =
+      "median".equalsIgnoreCase(Config.get("proxy.rtcp.summary", "worst").trim());
+  private static final long interval =
+      Math.max(Config.getInt("proxy.rtcp.interval", 5000), 100) * 1000000L;
+
+  /** Compensation of the randomization of the interval (RFC 3550, section 6.3.1) */
+  private static final double COMPENSATION = Math.E - 1.5;
+
+  /** Number of intervals after which the reports of a silent client are forgotten */
+  private static final int TIMEOUT_INTERVALS = 5;
+
+  private static final AtomicLong totalClientReports = new AtomicLong();
+  private static final AtomicLong totalUpstreamReports = new AtomicLong();
+
+  private static final Random random = new Random();
+
+  private static ScheduledExecutorService timer = null;
+
+  /**
+   * @return true if the reports of the clients should be aggregated
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ReceiverReports");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return timer;
+  }
+
+  /** The last report block of a client about the track */
+  static class Report {
+    int fractionLost;
+    int cumulativeLost;
+    /** Extended highest sequence number, as sent by the server */
+    long highestSequence;
+    long jitter;
+    long lastSr;
+    long delaySinceLastSr;
+    /** When the block was received, as given by {@link System#nanoTime()} */
+    long received;
+  }
+
+  /** Orders the reports from the client that lost the least packets to the one that lost most */
+  private static final Comparator<Report> byLoss = new Comparator<Report>() {
+    public int compare(Report a, Report b) {
+      if (a.fractionLost != b.fractionLost) return a.fractionLost < b.fractionLost ? -1 : 1;
+      return a.jitter < b.jitter ? -1 : (a.jitter == b.jitter ? 0 : 1);
+    }
+  };
+
+  private final Track track;
+  private final boolean median;
+
+  private final Map<Subscriber, Report> reports = new HashMap<Subscriber, Report>();
+  private final RtcpPacketView rtcpView = new RtcpPacketView();
+
+  private ScheduledFuture<?> next = null;
+  private boolean closed = false;
+
+  /**
+   * @param track the track whose reports are aggregated
+   */
+  public ReceiverReportAggregator(Track track) {
+    this(track, useMedian);
+    schedule(interval / 2);
+  }
+
+  /**
+   * Creates an aggregator sending nothing on its own: the reports are only sent by {@link #run()}.
+   *
+   * @param median true to report the median client instead of the worst one
+   */
+  ReceiverReportAggregator(Track track, boolean median) {
+    this.track = track;
+    this.median = median;
+  }
+
+  /**
+   * Keeps the report blocks of a client about the track and removes every packet that is not a
+   * feedback packet from the compound packet.
+   *
+   * @param buffer a buffer containing a valid compound RTCP packet, as received from the client.
+   *          It must not be used by the caller after this call.
+   * @param subscriber the client
+   * @return a compound packet holding the feedback packets of the client, after a RR of the proxy,
+   *         or null if there's nothing left to relay to the server
+   */
+  public IoBuffer handleReports(IoBuffer buffer, Subscriber subscriber) {
+    boolean feedback = false;
+    synchronized (this) {
+      long now = System.nanoTime();
+      RtcpPacketView view = rtcpView.wrap(buffer);
+      boolean more = view.isValid();
+      while (more) {
+        int type = view.getPacketType();
+        if (type == RtcpPacket.TYPE_RTPFB || type == RtcpPacket.TYPE_PSFB) {
+          feedback = true;
+          more = view.next() && view.isValid();
+          continue;
+        }
+        if (type == RtcpPacket.TYPE_SR || type == RtcpPacket.TYPE_RR) {
+          for (int i = 0; i < view.getReportCount(); i++) {
+            if (view.getReportSsrc(i) == subscriber.getSsrc()) record(view, i, subscriber, now);
+          }
+        } else if (type == RtcpPacket.TYPE_BYE && !closed) {
+          reports.remove(subscriber);
+        }
+        view.removePacket();
+        more = view.isValid();
+      }
+      view.wrap(null, 0, 0);
+    }
+
+    if (!feedback) {
+      buffer.free();
+      return null;
+    }
+    // a compound packet must start with a report
+    IoBuffer relayed = BufferPool.allocate(RtcpPacket.HEADER_SIZE + buffer.remaining());
+    RtcpPacketWriter writer = new RtcpPacketWriter(relayed);
+    writer.startReceiverReport(track.getProxySsrcValue());
+    writer.endPacket();
+    relayed.put(buffer);
+    relayed.flip();
+    buffer.free();
+    return relayed;
+  }
+
+  private void record(RtcpPacketView view, int index, Subscriber subscriber, long now) {
+    if (closed) return;
+    Report report = reports.get(subscriber);
+    if (report == null) {
+      report = new Report();
+      reports.put(subscriber, report);
+    }
+    report.fractionLost = view.getFractionLost(index);
+    report.cumulativeLost = view.getCumulativeLost(index);
+    report.highestSequence = toServerSequence(subscriber, view.getHighestSequence(index));
+    report.jitter = view.getJitter(index);
+    report.lastSr = view.getLastSr(index);
+    report.delaySinceLastSr = view.getDelaySinceLastSr(index);
+    report.received = now;
+    totalClientReports.incrementAndGet();
+  }
+
+  /**
+   * @return the extended sequence number of a client, in the sequence space of the server
+   */
+  private long toServerSequence(Subscriber subscriber, long extended) {
+    int sequence = (int) (extended & 0xFFFF);
+    int server = track.toServerSequence(subscriber.fromClientSequence(sequence));
+    return (extended + (short) (server - sequence)) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Forgets the reports of a client that left the track.
+   */
+  public synchronized void remove(Subscriber subscriber) {
+    reports.remove(subscriber);
+  }
+
+  /**
+   * Sends the aggregated report to the server, and schedules the next one.
+   */
+  public void run() {
+    IoBuffer report;
+    synchronized (this) {
+      if (closed) return;
+      try {
+        report = newReport(System.nanoTime());
+      } finally {
+        if (next != null) schedule(interval);
+      }
+    }
+    totalUpstreamReports.incrementAndGet();
+    track.sendRtcpToServer(report);
+  }
+
+  private void schedule(long mean) {
+    long delay = (long) (mean * (0.5 + random.nextDouble()) / COMPENSATION);
+    try {
+      next = getTimer().schedule(this, delay, TimeUnit.NANOSECONDS);
+    } catch (RuntimeException e) {
+      log.warn("Cannot schedule the receiver reports of track " + track.getUrl() + ": " + e);
+    }
+  }
+
+  /**
+   * @param now the current time, as given by {@link System#nanoTime()}
+   * @return a compound packet made of a RR with the report block of the client summarizing the
+   *         others, if any, and of the SDES of the proxy
+   */
+  synchronized IoBuffer newReport(long now) {
+    Report selected = summarize(now);
+    int proxySsrc = track.getProxySsrcValue();
+    String cname = "rtspproxy-" + Integer.toHexString(proxySsrc);
+
+    // the RR, then the SDES: a chunk of the SSRC, the CNAME item and up to 4 bytes of padding
+    IoBuffer buffer =
+        BufferPool.allocate(2 * RtcpPacket.HEADER_SIZE + RtcpPacketView.REPORT_BLOCK_SIZE + 8
+            + cname.length());
+    RtcpPacketWriter writer = new RtcpPacketWriter(buffer);
+    writer.startReceiverReport(proxySsrc);
+    int serverSsrc = track.getServerSsrcValue();
+    if (selected != null && serverSsrc != 0) {
+      long delay = selected.delaySinceLastSr;
+      if (selected.lastSr != 0) delay += ((now - selected.received) << 16) / 1000000000L;
+      writer.addReportBlock(serverSsrc, selected.fractionLost, selected.cumulativeLost,
+          selected.highestSequence, selected.jitter, selected.lastSr, delay);
+    }
+    writer.endPacket();
+    writer.startSdes();
+    writer.addSdesChunk(proxySsrc, cname);
+    writer.endPacket();
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Forgets the reports of the clients that left or went silent, and picks the one to send.
+   *
+   * @return the report of the worst or of the median client, or null if there's none
+   */
+  private Report summarize(long now) {
+    List<Report> current = new ArrayList<Report>(reports.size());
+    for (Iterator<Report> i = reports.values().iterator(); i.hasNext();) {
+      Report report = i.next();
+      if (now - report.received > TIMEOUT_INTERVALS * interval) i.remove();
+      else current.add(report);
+    }
+    if (current.isEmpty()) return null;
+    Collections.sort(current, byLoss);
+    return median ? current.get(current.size() / 2) : current.get(current.size() - 1);
+  }
+
+  /**
+   * Stops sending reports and forgets the reports of the clients.
+   */
+  public synchronized void close() {
+    closed = true;
+    reports.clear();
+    if (next != null) next.cancel(false);
+    next = null;
+  }
+
+  /**
+   * @return the number of clients whose reports are kept
+   */
+  public synchronized int getClientCount() {
+    return reports.size();
+  }
+
+  /**
+   * @return the number of report blocks of the clients terminated by the proxy
+   */
+  public static long getTotalClientReports() {
+    return totalClientReports.get();
+  }
+
+  /**
+   * @return the number of aggregated reports sent to the servers
+   */
+  public static long getTotalUpstreamReports() {
+    return totalUpstreamReports.get();
+  }
+}
@@ -0,0 +1,301 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+import rtspproxy.lib.TimingWheel;
+
+/**
+ * Puts the RTP packets received from the server back in sequence order and drops the duplicates,
+ * before they're relayed to the clients of a {@link Track}.
+ * <p>
+ * Packets are kept in a ring indexed by their sequence number, of
+ * <code>proxy.reorder.depth</code> packets. The packets following a missing one wait for it at
+ * most <code>proxy.reorder.maxDelay</code> milliseconds, or until the ring is full; the missing
+ * packet is then counted as lost and the following ones are sent. A packet arriving after its
+ * successors have been sent is sent anyway and counted as late, unless it has already been sent,
+ * in which case it's a duplicate and is dropped. Sequence numbers are compared modulo 2^16; a jump
+ * of more than {@link #HISTORY} packets is taken as a restart of the stream.
+ * <p>
+ * Reordering adds latency whenever a packet is lost. Tracks whose encoding is listed in
+ * <code>proxy.reorder.bypass</code>, or set with {@link Track#setReorderBypass(boolean)}, are not
+ * reordered.
+ *
+ * @author Matteo Merli
+ */
+public class ReorderBuffer extends TimingWheel.Timer {
+
+  private static final boolean enabled = Config.getBoolean("proxy.reorder.enable", false);
+  private static final int depth = Math.max(Config.getInt("proxy.reorder.depth", 64), 2);
+  private static final long maxDelay = Config.getInt("proxy.reorder.maxDelay", 40) * 1000000L;
+  private static final Set<String> bypass = new HashSet<String>();
+
+  static {
+    for (String encoding : Config.get("proxy.reorder.bypass", "").split(",")) {
+      if (encoding.trim().length() > 0) bypass.add(encoding.trim().toUpperCase());
+    }
+  }
+
+  /** Number of sequence numbers remembered to tell duplicates from late packets */
+  static final int HISTORY = 1024;
+
+  /**
+   * @param encoding the encoding name of the track, or null if unknown
+   * @return true if the packets of a track with the given encoding should be reordered
+   */
+  public static boolean isEnabled(String encoding) {
+    return enabled && (encoding == null || !bypass.contains(encoding.toUpperCase()));
+  }
+
+  private final Track track;
+  private final TimingWheel wheel;
+
+  /** Packets waiting, indexed by sequence number, and the time they were received */
+  private final IoBuffer[] ring;
+  private final long[] receivedAt;
+  private final int mask;
+  private int count = 0;
+
+  /** Sequence number of the next packet to send */
+  private int expected;
+  private boolean started = false;
+
+  /** One bit per sequence number already passed, set if the packet was sent */
+  private final long[] history = new long[HISTORY / 64];
+
+  private boolean scheduled = false;
+  private boolean closed = false;
+
+  private long packetsReceived = 0;
+  private long packetsLost = 0;
+  private long packetsReordered = 0;
+  private long packetsLate = 0;
+  private long duplicates = 0;
+  private long restarts = 0;
+
+  /**
+   * @param track the track whose packets are reordered
+   */
+  public ReorderBuffer(Track track) {
+    this.track = track;
+    this.wheel = Pacer.nextWheel();
+    int size = Integer.highestOneBit(depth - 1) << 1;
+    ring = new IoBuffer[size];
+    receivedAt = new long[size];
+    mask = size - 1;
+  }
+
+  /**
+   * Sends a packet to the clients of the track, now or once the packets before it have been sent.
+   *
+   * @param buffer a buffer containing a RTP packet, which must not be used by the caller after this
+   *          call
+   */
+  public synchronized void add(IoBuffer buffer) {
+    if (closed) {
+      track.paceRtpToClients(buffer);
+      return;
+    }
+    packetsReceived++;
+    int sequence = buffer.getShort(buffer.position() + 2) & 0xFFFF;
+    if (!started) {
+      started = true;
+      expected = sequence;
+    }
+
+    int distance = (short) (sequence - expected);
+    if (distance < 0 && distance >= -HISTORY) {
+      // already passed: sent, or given up as lost
+      if (isSent(sequence)) {
+        duplicates++;
+        buffer.free();
+      } else {
+        packetsLate++;
+        setSent(sequence, true);
+        track.paceRtpToClients(buffer);
+      }
+      return;
+    }
+    if (distance < 0 || distance > HISTORY) {
+      restart(sequence);
+      distance = 0;
+    }
+
+    // make room for the packet
+    while (distance >= ring.length) {
+      skip();
+      distance--;
+    }
+
+    int index = sequence & mask;
+    if (ring[index] != null) {
+      duplicates++;
+      buffer.free();
+      return;
+    }
+    if (distance == 0 && count > 0) packetsReordered++;
+    ring[index] = buffer;
+    receivedAt[index] = System.nanoTime();
+    count++;
+    drain();
+
+    if (count > 0 && !scheduled) {
+      scheduled = true;
+      wheel.schedule(this, oldest() + maxDelay);
+    }
+  }
+
+  @Override
+  protected synchronized void expire(long now) {
+    scheduled = false;
+    if (closed) return;
+    while (count > 0 && now - oldest() >= maxDelay) {
+      // give up waiting for the missing packets
+      while (ring[expected & mask] == null)
+        skip();
+      drain();
+    }
+    if (count > 0) {
+      scheduled = true;
+      wheel.schedule(this, oldest() + maxDelay);
+    }
+  }
+
+  /**
+   * Sends the packets that are in sequence.
+   */
+  private void drain() {
+    while (ring[expected & mask] != null)
+      skip();
+  }
+
+  /**
+   * Moves to the next sequence number, sending its packet or counting it as lost.
+   */
+  private void skip() {
+    int index = expected & mask;
+    IoBuffer buffer = ring[index];
+    if (buffer != null) {
+      ring[index] = null;
+      count--;
+      setSent(expected, true);
+      track.paceRtpToClients(buffer);
+    } else {
+      setSent(expected, false);
+      packetsLost++;
+    }
+    expected = (expected + 1) & 0xFFFF;
+  }
+
+  /**
+   * Sends the waiting packets and starts again from the given sequence number.
+   */
+  private void restart(int sequence) {
+    restarts++;
+    for (int i = 0; i < ring.length && count > 0; i++) {
+      int index = (expected + i) & mask;
+      if (ring[index] != null) {
+        track.paceRtpToClients(ring[index]);
+        ring[index] = null;
+        count--;
+      }
+    }
+    Arrays.fill(history, 0);
+    expected = sequence;
+  }
+
+  /**
+   * @return the time at which the oldest waiting packet was received
+   */
+  private long oldest() {
+    long oldest = 0;
+    boolean found = false;
+    for (int i = 0; i < ring.length; i++) {
+      if (ring[i] != null && (!found || receivedAt[i] - oldest < 0)) {
+        oldest = receivedAt[i];
+        found = true;
+      }
+    }
+    return oldest;
+  }
+
+  private boolean isSent(int sequence) {
+    int bit = sequence & (HISTORY - 1);
+    return (history[bit >> 6] & (1L << bit)) != 0;
+  }
+
+  private void setSent(int sequence, boolean sent) {
+    int bit = sequence & (HISTORY - 1);
+    if (sent) history[bit >> 6] |= 1L << bit;
+    else history[bit >> 6] &= ~(1L << bit);
+  }
+
+  /**
+   * Stops reordering: the waiting packets are dropped and the next ones are sent right away.
+   */
+  public synchronized void close() {
+    closed = true;
+    for (int i = 0; i < ring.length; i++) {
+      if (ring[i] != null) {
+        ring[i].free();
+        ring[i] = null;
+      }
+    }
+    count = 0;
+  }
+
+  /**
+   * @return the number of packets currently waiting for a missing one
+   */
+  public synchronized int getQueueSize() {
+    return count;
+  }
+
+  public synchronized long getPacketsReceived() {
+    return packetsReceived;
+  }
+
+  /**
+   * @return the number of packets given up as lost
+   */
+  public synchronized long getPacketsLost() {
+    return packetsLost;
+  }
+
+  /**
+   * @return the number of packets received after a following one and put back in order
+   */
+  public synchronized long getPacketsReordered() {
+    return packetsReordered;
+  }
+
+  /**
+   * @return the number of packets received after having been given up as lost, and sent anyway
+   */
+  public synchronized long getPacketsLate() {
+    return packetsLate;
+  }
+
+  public synchronized long getDuplicates() {
+    return duplicates;
+  }
+
+  /**
+   * @return the number of jumps in the sequence numbers taken as a restart of the stream
+   */
+  public synchronized long getRestarts() {
+    return restarts;
+  }
+}
@@ -0,0 +1,386 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+import rtspproxy.rtp.BufferPool;
+import rtspproxy.rtp.RtpPacketView;
+import rtspproxy.rtp.rtcp.RtcpPacket;
+import rtspproxy.rtp.rtcp.RtcpPacketView;
+import rtspproxy.rtp.rtcp.RtcpPacketWriter;
+
+/**
+ * Keeps the last RTP packets sent to the clients of a {@link Track}, so that the packets they
+ * report lost with generic NACKs (RFC 4585) are sent again by the proxy instead of the server.
+ * <p>
+ * The packets are held in a ring indexed by sequence number: at most <code>proxy.rtx.depth</code>
+ * packets, and at most <code>proxy.rtx.maxBytes</code> bytes, the oldest packets being dropped
+ * first. The NACKs about the track are removed from the RTCP packets of the clients before they're
+ * relayed to the server. Every lost packet found in the ring is sent again to the client that asked
+ * for it, in a RTX packet (RFC 4588) when the SDP of the track announces a retransmission payload
+ * type, or as it was sent the first time otherwise.
+ * <p>
+ * The packets that the proxy never received itself are asked to the server instead, in a single
+ * NACK for all the clients: a packet already asked for less than
+ * <code>proxy.rtx.nackInterval</code> milliseconds ago isn't asked again. Packets older than the
+ * ring can't be sent again.
+ * <p>
+ * The cache is used when <code>proxy.rtx.enable</code> is true.
+ *
+ * @author Matteo Merli
+ */
+public class RetransmissionCache {
+
+  private static final boolean enabled = Config.getBoolean("proxy.rtx.enable", false);
+  private static final int maxBytes = Config.getInt("proxy.rtx.maxBytes", 1048576);
+  private static final long nackInterval =
+      Config.getInt("proxy.rtx.nackInterval", 100) * 1000000L;
+
+  private static final AtomicLong totalBytes = new AtomicLong();
+  private static final AtomicLong totalRequests = new AtomicLong();
+  private static final AtomicLong totalHits = new AtomicLong();
+  private static final AtomicLong totalBytesResent = new AtomicLong();
+  private static final AtomicLong totalUpstreamRequests = new AtomicLong();
+
+  /**
+   * @return true if the packets of the tracks should be cached
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  private final Track track;
+
+  /** Packets by sequence number modulo the ring size, and their sequence numbers */
+  private final IoBuffer[] packets;
+  private final int[] sequences;
+  private final int mask;
+
+  /** Sequence numbers of the packets asked to the server, and when they were asked */
+  private final int[] requested;
+  private final long[] requestTimes;
+
+  /** Sequence numbers of the oldest and newest packets that may be in the ring */
+  private int oldest;
+  private int newest;
+  private boolean empty = true;
+
+  private int bytes = 0;
+  private boolean closed = false;
+
+  private final RtcpPacketView rtcpView = new RtcpPacketView();
+  private final RtpPacketView rtpView = new RtpPacketView();
+
+  /** Sequence numbers to ask to the server, collected while reading a NACK */
+  private int[] missing = new int[17];
+  private int missingCount;
+
+  private long requests = 0;
+  private long hits = 0;
+  private long upstreamRequests = 0;
+
+  /**
+   * @param track the track whose packets are cached
+   */
+  public RetransmissionCache(Track track) {
+    this.track = track;
+    int depth = Math.max(Config.getInt("proxy.rtx.depth", 1024), 16);
+    int size = Integer.highestOneBit(Math.min(depth, 0x8000) - 1) << 1;
+    packets = new IoBuffer[size];
+    sequences = new int[size];
+    requested = new int[size];
+    requestTimes = new long[size];
+    mask = size - 1;
+    for (int i = 0; i < size; i++)
+      requested[i] = -1;
+  }
+
+  /**
+   * Keeps a copy of a packet sent to the clients. The buffer is left unchanged.
+   *
+   * @param buffer a buffer containing a RTP packet, starting at its current position
+   */
+  public synchronized void add(IoBuffer buffer) {
+    int length = buffer.remaining();
+    if (closed || length > maxBytes) return;
+    int sequence = buffer.getShort(buffer.position() + 2) & 0xFFFF;
+
+    if (empty) {
+      oldest = newest = sequence;
+      empty = false;
+    } else {
+      int ahead = (sequence - newest) & 0xFFFF;
+      if (ahead == 0) {
+        return;
+      } else if (ahead < 0x8000) {
+        if (ahead > mask) {
+          // jumped over the whole ring
+          clear();
+          oldest = sequence;
+        } else if (((sequence - oldest) & 0xFFFF) > mask) {
+          oldest = (sequence - mask) & 0xFFFF;
+        }
+        newest = sequence;
+      } else if (!contains(sequence) || get(sequence) != null) {
+        // too old, or a duplicate
+        return;
+      }
+    }
+
+    int slot = sequence & mask;
+    if (packets[slot] != null) remove(slot);
+    packets[slot] = BufferPool.copy(buffer);
+    sequences[slot] = sequence;
+    bytes += length;
+    totalBytes.addAndGet(length);
+
+    while (bytes > maxBytes && oldest != newest) {
+      if (sequences[oldest & mask] == oldest && packets[oldest & mask] != null)
+        remove(oldest & mask);
+      oldest = (oldest + 1) & 0xFFFF;
+    }
+  }
+
+  /**
+   * @return true if the sequence number is between the oldest and the newest packet of the ring
+   */
+  private boolean contains(int sequence) {
+    return !empty && ((newest - sequence) & 0xFFFF) <= ((newest - oldest) & 0xFFFF);
+  }
+
+  /**
+   * @return the cached packet with the given sequence number, or null
+   */
+  private IoBuffer get(int sequence) {
+    int slot = sequence & mask;
+    IoBuffer packet = packets[slot];
+    return packet != null && sequences[slot] == sequence && contains(sequence) ? packet : null;
+  }
+
+  /**
+   * Answers the generic NACKs of a client about the track: the lost packets still in the ring are
+   * sent again to the client, the others are asked to the server. The NACKs are removed from the
+   * compound packet.
+   *
+   * @param buffer a buffer containing a valid compound RTCP packet, as received from the client
+   * @param subscriber the client
+   * @return true if the compound packet still contains packets to relay to the server
+   */
+  public boolean handleNacks(IoBuffer buffer, Subscriber subscriber) {
+    int rtxPayloadType = track.getRtxPayloadType();
+    IoBuffer request = null;
+    synchronized (this) {
+      RtcpPacketView view = rtcpView.wrap(buffer);
+      boolean more = view.isValid();
+      while (more) {
+        if (view.getPacketType() != RtcpPacket.TYPE_RTPFB
+            || view.getFeedbackType() != RtcpPacket.FMT_NACK || view.getPacketLength() < 12
+            || view.getMediaSsrc() != subscriber.getSsrc()) {
+          more = view.next() && view.isValid();
+          continue;
+        }
+        for (int i = 0; i < view.getNackCount(); i++) {
+          int sequence = view.getNackSequence(i);
+          int bitmask = view.getNackBitmask(i);
+          resend(subscriber, sequence, rtxPayloadType);
+          for (int bit = 0; bit < 16; bit++) {
+            if ((bitmask & (1 << bit)) != 0)
+              resend(subscriber, (sequence + bit + 1) & 0xFFFF, rtxPayloadType);
+          }
+        }
+        view.removePacket();
+        more = view.isValid();
+      }
+      view.wrap(null, 0, 0);
+
+      if (missingCount > 0) {
+        request = newNack();
+        missingCount = 0;
+      }
+    }
+    if (request != null) track.sendRtcpToServer(request);
+    return buffer.hasRemaining();
+  }
+
+  /**
+   * Sends a packet again to a client, or notes that it must be asked to the server.
+   *
+   * @param clientSequence the sequence number of the lost packet, as seen by the client
+   */
+  private void resend(Subscriber subscriber, int clientSequence, int rtxPayloadType) {
+    int sequence = subscriber.fromClientSequence(clientSequence);
+    requests++;
+    totalRequests.incrementAndGet();
+    IoBuffer packet = closed ? null : get(sequence);
+    if (packet != null) {
+      hits++;
+      totalHits.incrementAndGet();
+      totalBytesResent.addAndGet(packet.remaining());
+      if (rtxPayloadType >= 0) subscriber.resendRtp(toRtx(packet, clientSequence, rtxPayloadType),
+          true);
+      else subscriber.resendRtp(BufferPool.copy(packet), false);
+      return;
+    }
+
+    // the packets evicted from the ring, or not received yet, are not asked to the server
+    if (closed || !contains(sequence)) return;
+    int slot = sequence & mask;
+    long now = System.nanoTime();
+    if (requested[slot] == sequence && now - requestTimes[slot] < nackInterval) return;
+    requested[slot] = sequence;
+    requestTimes[slot] = now;
+    if (missingCount == missing.length) {
+      int[] larger = new int[missing.length * 2];
+      System.arraycopy(missing, 0, larger, 0, missingCount);
+      missing = larger;
+    }
+    missing[missingCount++] = track.toServerSequence(sequence);
+    upstreamRequests++;
+    totalUpstreamRequests.incrementAndGet();
+  }
+
+  /**
+   * @return a compound RTCP packet, an empty RR followed by a generic NACK of the missing packets
+   */
+  private IoBuffer newNack() {
+    IoBuffer buffer = BufferPool.allocate(RtcpPacket.HEADER_SIZE + 12 + missingCount * 4);
+    RtcpPacketWriter writer = new RtcpPacketWriter(buffer);
+    writer.startReceiverReport(track.getProxySsrcValue());
+    writer.endPacket();
+    writer.startFeedback(RtcpPacket.TYPE_RTPFB, RtcpPacket.FMT_NACK, track.getProxySsrcValue(),
+        track.getServerSsrcValue());
+    int first = missing[0];
+    int bitmask = 0;
+    for (int i = 1; i < missingCount; i++) {
+      int distance = (missing[i] - first) & 0xFFFF;
+      if (distance >= 1 && distance <= 16) {
+        bitmask |= 1 << (distance - 1);
+      } else {
+        writer.addFci((first << 16) | bitmask);
+        first = missing[i];
+        bitmask = 0;
+      }
+    }
+    writer.addFci((first << 16) | bitmask);
+    writer.endPacket();
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * @return a RTX packet carrying the packet: the same header with the retransmission payload type,
+   *         followed by the original sequence number and the original payload
+   */
+  private IoBuffer toRtx(IoBuffer packet, int clientSequence, int rtxPayloadType) {
+    RtpPacketView view = rtpView.wrap(packet);
+    if (!view.isValid()) {
+      view.wrap(null, 0, 0);
+      return BufferPool.copy(packet);
+    }
+    int position = packet.position();
+    int limit = packet.limit();
+    int payload = view.getPayloadOffset();
+    view.wrap(null, 0, 0);
+
+    IoBuffer rtx = BufferPool.allocate(packet.remaining() + 2);
+    packet.limit(payload);
+    rtx.put(packet);
+    packet.limit(limit);
+    rtx.putShort((short) clientSequence);
+    rtx.put(packet);
+    packet.position(position);
+    rtx.flip();
+    rtx.put(1, (byte) ((rtx.get(1) & 0x80) | rtxPayloadType));
+    return rtx;
+  }
+
+  private void remove(int slot) {
+    IoBuffer packet = packets[slot];
+    packets[slot] = null;
+    bytes -= packet.remaining();
+    totalBytes.addAndGet(-packet.remaining());
+    packet.free();
+  }
+
+  private void clear() {
+    for (int i = 0; i < packets.length; i++) {
+      if (packets[i] != null) remove(i);
+    }
+  }
+
+  /**
+   * Drops the cached packets. The next packets are not cached.
+   */
+  public synchronized void close() {
+    closed = true;
+    clear();
+  }
+
+  /**
+   * @return the number of bytes held by the cache
+   */
+  public synchronized int getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of lost packets reported by the clients
+   */
+  public synchronized long getRequests() {
+    return requests;
+  }
+
+  /**
+   * @return the number of lost packets sent again by the proxy
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the number of lost packets asked to the server
+   */
+  public synchronized long getUpstreamRequests() {
+    return upstreamRequests;
+  }
+
+  /**
+   * @return the number of bytes held by the caches of all the tracks
+   */
+  public static long getTotalBytes() {
+    return totalBytes.get();
+  }
+
+  /**
+   * @return the fraction of the lost packets reported by the clients of all the tracks that were
+   *         sent again by the proxy, between 0 and 1
+   */
+  public static double getHitRate() {
+    long requests = totalRequests.get();
+    return requests > 0 ? (double) totalHits.get() / requests : 0;
+  }
+
+  /**
+   * @return the number of bytes sent again by the proxy instead of the servers
+   */
+  public static long getBytesSaved() {
+    return totalBytesResent.get();
+  }
+
+  /**
+   * @return the number of lost packets asked to the servers, once for all the clients
+   */
+  public static long getTotalUpstreamRequests() {
+    return totalUpstreamRequests.get();
+  }
+}
@@ -19,27 +19,69 @@ import java.net.InetSocketAddress;
 
 import org.apache.log4j.Logger;
 import org.apache.mina.core.buffer.IoBuffer;
-import org.apache.mina.core.service.IoHandlerAdapter;
-import org.apache.mina.core.session.IoSession;
 
-import rtspproxy.lib.Exceptions;
+import rtspproxy.Config;
+import rtspproxy.rtp.DatagramEndpoint;
+import rtspproxy.rtp.PacketHandler;
 import rtspproxy.rtp.rtcp.RtcpPacket;
 
 /**
+ * Handles RTCP packets arriving from servers. As for RTP, packets are relayed in place unless
+ * <code>proxy.rtp.zeroCopy</code> is disabled.
+ * 
  * @author mat
+ * @see ServerRtpPacketHandler
  */
-public class ServerRtcpPacketHandler extends IoHandlerAdapter {
+public class ServerRtcpPacketHandler implements PacketHandler {
 
   private static Logger log = Logger.getLogger(ServerRtcpPacketHandler.class);
 
-  @Override
-  public void messageReceived(IoSession session, Object buffer) throws Exception {
-    RtcpPacket packet = new RtcpPacket((IoBuffer) buffer);
+  private final boolean zeroCopy = Config.getBoolean("proxy.rtp.zeroCopy", true);
+
+  public void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source, IoBuffer buffer) {
+    if (!zeroCopy) {
+      forwardPacket(source, buffer);
+      return;
+    }
+
+    if (buffer.remaining() < RtcpPacket.HEADER_SIZE) {
+      log.debug("Dropping truncated RTCP packet from " + source);
+      buffer.free();
+      return;
+    }
+
+    int ssrc = RtcpPacket.peekSsrc(buffer);
+    Track track = Track.getByServerSSRC(ssrc);
+
+    if (track == null) {
+      track = Track.getByServerAddress(source);
+
+      if (track == null) {
+        // drop packet
+        log.debug("Invalid SSRC identifier: " + Integer.toHexString(ssrc));
+        buffer.free();
+        return;
+      } else {
+        // hot-wire the ssrc into the track
+        log.debug("Adding SSRC identifier: " + Integer.toHexString(ssrc));
+        track.setServerSSRC(ssrc);
+      }
+    }
+
+    track.relayRtcpToClient(buffer);
+  }
+
+  /**
+   * Decodes the packet and forwards it to the client, re-encoding it in a new buffer.
+   */
+  private void forwardPacket(InetSocketAddress source, IoBuffer buffer) {
+    RtcpPacket packet = new RtcpPacket(buffer);
+    buffer.free();
     // log.debug( "Receive RTCP packet: " + packet.getType() );
     Track track = Track.getByServerSSRC(packet.getSsrc());
 
     if (track == null) {
-      track = Track.getByServerAddress((InetSocketAddress) session.getRemoteAddress());
+      track = Track.getByServerAddress(source);
 
       if (track == null) {
         // drop packet
@@ -52,21 +94,6 @@ public class ServerRtcpPacketHandler extends IoHandlerAdapter {
       }
     }
 
-    track.setRtcpServerSession(session);
     track.forwardRtcpToClient(packet);
   }
-
-  @SuppressWarnings("deprecation")
-  @Override
-  public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
-    log.debug("Exception: " + cause);
-    Exceptions.logStackTrace(cause);
-    session.close();
-  }
-
-  @Override
-  public void sessionCreated(IoSession session) throws Exception {
-
-  }
-
 }
@@ -19,31 +19,72 @@ import java.net.InetSocketAddress;
 
 import org.apache.log4j.Logger;
 import org.apache.mina.core.buffer.IoBuffer;
-import org.apache.mina.core.service.IoHandlerAdapter;
-import org.apache.mina.core.session.IoSession;
 
-import rtspproxy.lib.Exceptions;
+import rtspproxy.Config;
+import rtspproxy.rtp.DatagramEndpoint;
+import rtspproxy.rtp.PacketHandler;
 import rtspproxy.rtp.RtpPacket;
 
 /**
+ * Handles RTP packets arriving from servers and relays them to the client associated with the
+ * matching Track.
+ * <p>
+ * By default packets are not decoded: the SSRC is read directly from the received buffer, patched
+ * in place and the very same buffer is sent to the client. Setting
+ * <code>proxy.rtp.zeroCopy</code> to false restores the old behaviour of decoding each packet into
+ * a {@link RtpPacket}.
+ * 
  * @author Matteo Merli
  */
-public class ServerRtpPacketHandler extends IoHandlerAdapter {
+public class ServerRtpPacketHandler implements PacketHandler {
 
   private static Logger log = Logger.getLogger(ServerRtpPacketHandler.class);
 
-  /*
-   * @see org.apache.mina.io.IoHandlerAdapter#dataRead(org.apache.mina.io.IoSession,
-   * org.apache.mina.common.ByteBuffer)
+  private final boolean zeroCopy = Config.getBoolean("proxy.rtp.zeroCopy", true);
+
+  public void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source, IoBuffer buffer) {
+    if (!zeroCopy) {
+      forwardPacket(source, buffer);
+      return;
+    }
+
+    if (buffer.remaining() < RtpPacket.HEADER_SIZE) {
+      log.debug("Dropping truncated RTP packet from " + source);
+      buffer.free();
+      return;
+    }
+
+    int ssrc = RtpPacket.peekSsrc(buffer);
+    Track track = Track.getByServerSSRC(ssrc);
+
+    if (track == null) {
+      track = Track.getByServerAddress(source);
+
+      if (track == null) {
+        // drop packet
+        log.debug("Invalid SSRC identifier: " + Integer.toHexString(ssrc));
+        buffer.free();
+        return;
+      } else {
+        // hot-wire the ssrc into the track
+        log.debug("Adding SSRC identifier: " + Integer.toHexString(ssrc));
+        track.setServerSSRC(ssrc);
+      }
+    }
+
+    track.relayRtpToClient(buffer);
+  }
+
+  /**
+   * Decodes the packet and forwards it to the client, re-encoding it in a new buffer.
    */
-  @Override
-  public void messageReceived(IoSession session, Object buffer) throws Exception {
-    // log.debug( "Received RTP packet" );
-    RtpPacket packet = new RtpPacket((IoBuffer) buffer);
+  private void forwardPacket(InetSocketAddress source, IoBuffer buffer) {
+    RtpPacket packet = new RtpPacket(buffer);
+    buffer.free();
     Track track = Track.getByServerSSRC(packet.getSsrc());
 
     if (track == null) {
-      track = Track.getByServerAddress((InetSocketAddress) session.getRemoteAddress());
+      track = Track.getByServerAddress(source);
 
       if (track == null) {
         // drop packet
@@ -57,30 +98,6 @@ public class ServerRtpPacketHandler extends IoHandlerAdapter {
 
     }
 
-    track.setRtpServerSession(session);
     track.forwardRtpToClient(packet);
   }
-
-  /*
-   * (non-Javadoc)
-   * 
-   * @see org.apache.mina.io.IoHandlerAdapter#exceptionCaught(org.apache.mina.io.IoSession,
-   * java.lang.Throwable)
-   */
-  @SuppressWarnings("deprecation")
-  @Override
-  public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
-    log.debug("Exception: " + cause);
-    Exceptions.logStackTrace(cause);
-    session.close();
-  }
-
-  /*
-   * (non-Javadoc)
-   * 
-   * @see org.apache.mina.io.IoHandlerAdapter#sessionCreated(org.apache.mina.io.IoSession)
-   */
-  @Override
-  public void sessionCreated(IoSession session) throws Exception {}
-
 }
@@ -18,6 +18,8 @@ import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IoSession;
 
 import rtspproxy.lib.Exceptions;
+import rtspproxy.lib.MemoryGovernor;
+import rtspproxy.rtsp.InterleavedPacket;
 import rtspproxy.rtsp.RtspMessage;
 import rtspproxy.rtsp.RtspRequest;
 import rtspproxy.rtsp.RtspResponse;
@@ -37,8 +39,20 @@ public class ServerSide extends IoHandlerAdapter {
   @Override
   public void sessionClosed(IoSession session) {
     log.info("Server connection closed");
+    InterleavedChannels channels = InterleavedChannels.peek(session);
+    if (channels != null) channels.clear();
+    GapFiller filler = (GapFiller) session.getAttribute(GapFiller.ATTR);
+    if (filler != null) {
+      filler.upstreamClosed(session);
+      return;
+    }
+    LiveStream liveStream = (LiveStream) session.getAttribute(LiveStream.ATTR);
+    if (liveStream != null) {
+      liveStream.upstreamClosed(session);
+      return;
+    }
     ProxyHandler proxyHandler = (ProxyHandler) (session.getAttribute(ProxyHandler.ATTR));
-    proxyHandler.closeAll();
+    if (proxyHandler != null) proxyHandler.closeAll();
   }
 
   @Override
@@ -52,6 +66,9 @@ public class ServerSide extends IoHandlerAdapter {
 
   public void onRequestAnnounce(ProxyHandler proxyHandler, RtspRequest request) {
     log.debug("REQUEST ANNOUNCE");
+    // the description of the stream changed
+    if (request.getUrl() != null)
+      DescribeCache.getInstance().invalidate(request.getUrl().toString());
     proxyHandler.passToClient(request);
   }
 
@@ -87,6 +104,9 @@ public class ServerSide extends IoHandlerAdapter {
 
   public void onRequestRedirect(ProxyHandler proxyHandler, RtspRequest request) {
     log.debug("REQUEST REDIRECT");
+    // the description of the stream changed
+    if (request.getUrl() != null)
+      DescribeCache.getInstance().invalidate(request.getUrl().toString());
     proxyHandler.passToClient(request);
   }
 
@@ -112,7 +132,7 @@ public class ServerSide extends IoHandlerAdapter {
 
   public void onResponseDescribe(ProxyHandler proxyHandler, RtspResponse response) {
     log.debug("RESPONSE DESCRIBE");
-    proxyHandler.passToClient(response);
+    proxyHandler.passDescribeResponseToClient(response);
   }
 
   public void onResponseGetParam(ProxyHandler proxyHandler, RtspResponse response) {
@@ -132,7 +152,7 @@ public class ServerSide extends IoHandlerAdapter {
 
   public void onResponsePlay(ProxyHandler proxyHandler, RtspResponse response) {
     log.debug("RESPONSE PLAY");
-    proxyHandler.passToClient(response);
+    proxyHandler.passPlayResponseToClient(response);
   }
 
   public void onResponseRecord(ProxyHandler proxyHandler, RtspResponse response) {
@@ -160,11 +180,41 @@ public class ServerSide extends IoHandlerAdapter {
     proxyHandler.passToClient(response);
   }
 
+  @Override
+  public void messageSent(IoSession session, Object message) {
+    if (message instanceof InterleavedPacket) {
+      InterleavedChannels channels = InterleavedChannels.peek(session);
+      if (channels != null) channels.packetSent((InterleavedPacket) message);
+    }
+  }
+
   @Override
   public void messageReceived(IoSession session, Object message) {
+    if (message instanceof InterleavedPacket) {
+      InterleavedChannels channels = InterleavedChannels.peek(session);
+      if (channels != null) channels.relayToClients((InterleavedPacket) message);
+      // stop reading from the server while the proxy holds too much data
+      MemoryGovernor.getInstance().pauseIfNeeded(session);
+      return;
+    }
+
     RtspMessage rtspMessage = (RtspMessage) message;
     log.debug("Received message:\n" + message);
 
+    GapFiller filler = (GapFiller) session.getAttribute(GapFiller.ATTR);
+    if (filler != null) {
+      // The connection fills the gaps of a stream played from the cache
+      filler.messageReceived(session, rtspMessage);
+      return;
+    }
+
+    LiveStream liveStream = (LiveStream) session.getAttribute(LiveStream.ATTR);
+    if (liveStream != null) {
+      // The connection is shared by the clients of a reflected live stream
+      liveStream.onUpstreamMessage(session, rtspMessage);
+      return;
+    }
+
     ProxyHandler proxyHandler = (ProxyHandler) (session.getAttribute(ProxyHandler.ATTR));
     if (proxyHandler == null) {
       log.fatal("proxyHandler is null");
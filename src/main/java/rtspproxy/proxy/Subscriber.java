@@ -0,0 +1,430 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+
+import rtspproxy.RtpClientService;
+import rtspproxy.rtp.DatagramEndpoint;
+import rtspproxy.rtp.FrameDropper;
+import rtspproxy.rtp.RtpPacket;
+import rtspproxy.rtp.UlpfecEncoder;
+import rtspproxy.rtp.rtcp.RtcpPacket;
+
+/**
+ * A client receiving the packets of a {@link Track}.
+ * <p>
+ * A track usually has a single subscriber, the client that set it up. When a live stream is
+ * reflected, every client watching the stream is a subscriber of the same track and receives its
+ * own copy of each packet.
+ * <p>
+ * Before being sent, the SSRC of every packet is replaced with the one announced to the subscriber,
+ * and the sequence number and the timestamp are shifted by the subscriber offsets. The offsets are
+ * zero unless the numbering of the upstream flow has to be hidden from the client, as for the
+ * clients joining a reflected live stream, see {@link LiveStream#join}.
+ * <p>
+ * Packets are sent to the client RTP and RTCP ports, or, when the client asked for the TCP
+ * transport, interleaved on its RTSP connection. In the latter case, a {@link FrameDropper} drops
+ * whole frames when the connection can't keep up with the stream.
+ * <p>
+ * Clients on lossy links may also be sent ULPFEC packets, generated by the {@link UlpfecEncoder} of
+ * the subscriber from the packets as sent to the client, see {@link ForwardErrorCorrection}.
+ * <p>
+ * A client told to join the multicast group of the track is a viewer of its
+ * {@link MulticastEgress}: its subscriber is not sent anything, the packets being sent once to the
+ * group by the subscriber of the egress.
+ *
+ * @author Matteo Merli
+ */
+public class Subscriber {
+
+  private final Track track;
+  private final ProxySession proxySession;
+
+  private final InetAddress address;
+  private final int rtpPort;
+  private final int rtcpPort;
+
+  /** Client addresses, created once since they are used for every packet */
+  private final InetSocketAddress rtpTarget;
+  private final InetSocketAddress rtcpTarget;
+
+  /** The client RTSP connection, when packets are interleaved, or null */
+  private final IoSession rtspSession;
+  private final InterleavedChannels channels;
+  private final int rtpChannel;
+  private final int rtcpChannel;
+  private final FrameDropper frameDropper;
+
+  /** The egress the client is a viewer of, or null */
+  private final MulticastEgress egress;
+
+  /** The endpoints sending the packets, or null to use those of {@link RtpClientService} */
+  private DatagramEndpoint rtpEndpoint = null;
+  private DatagramEndpoint rtcpEndpoint = null;
+
+  /** SSRC id announced to the client, as a raw 32 bit value */
+  private volatile int ssrc;
+  private volatile int sequenceOffset = 0;
+  private volatile int timestampOffset = 0;
+
+  /** Generates the FEC packets sent to the client, or null */
+  private volatile UlpfecEncoder fec = null;
+
+  /** Sequence number of the next RTX packet (RFC 4588) sent to the client */
+  private int rtxSequence = (int) (Math.random() * 0x10000);
+
+  /** Packets are sent only while the subscriber is playing */
+  private volatile boolean active;
+
+  /*
+   * Only updated by the thread receiving the packets of the track, so there's no need for atomic
+   * increments.
+   */
+  private volatile long packetsSent = 0;
+  private volatile long bytesSent = 0;
+
+  /**
+   * @param track the track the client is subscribed to
+   * @param proxySession the RTSP session of the client
+   * @param address the client address
+   * @param rtpPort the client port for RTP packets
+   * @param rtcpPort the client port for RTCP packets
+   * @param active whether packets should be sent immediately or only after {@link #setActive}
+   */
+  public Subscriber(Track track, ProxySession proxySession, InetAddress address, int rtpPort,
+      int rtcpPort, boolean active) {
+    this.track = track;
+    this.proxySession = proxySession;
+    this.address = address;
+    this.rtpPort = rtpPort;
+    this.rtcpPort = rtcpPort;
+    this.rtpTarget = new InetSocketAddress(address, rtpPort);
+    this.rtcpTarget = new InetSocketAddress(address, rtcpPort);
+    this.rtspSession = null;
+    this.channels = null;
+    this.rtpChannel = -1;
+    this.rtcpChannel = -1;
+    this.frameDropper = null;
+    this.egress = null;
+    this.active = active;
+    this.ssrc = track.getProxySSRC().intValue();
+  }
+
+  /**
+   * Creates a subscriber watching the track on its multicast group.
+   *
+   * @param track the track the client is subscribed to
+   * @param proxySession the RTSP session of the client
+   * @param egress the egress sending the packets of the track to the group
+   * @param active whether the client is playing right away or only after {@link #setActive}
+   */
+  public Subscriber(Track track, ProxySession proxySession, MulticastEgress egress,
+      boolean active) {
+    this.track = track;
+    this.proxySession = proxySession;
+    this.address = egress.getGroup();
+    this.rtpPort = egress.getRtpPort();
+    this.rtcpPort = egress.getRtcpPort();
+    this.rtpTarget = null;
+    this.rtcpTarget = null;
+    this.rtspSession = null;
+    this.channels = null;
+    this.rtpChannel = -1;
+    this.rtcpChannel = -1;
+    this.frameDropper = null;
+    this.egress = egress;
+    this.active = active;
+    this.ssrc = track.getProxySSRC().intValue();
+  }
+
+  /**
+   * Creates a subscriber receiving the packets interleaved on its RTSP connection.
+   *
+   * @param track the track the client is subscribed to
+   * @param proxySession the RTSP session of the client
+   * @param rtspSession the RTSP connection with the client
+   * @param rtpChannel the interleaved channel for RTP packets
+   * @param rtcpChannel the interleaved channel for RTCP packets
+   * @param active whether packets should be sent immediately or only after {@link #setActive}
+   */
+  public Subscriber(Track track, ProxySession proxySession, IoSession rtspSession, int rtpChannel,
+      int rtcpChannel, boolean active) {
+    this.track = track;
+    this.proxySession = proxySession;
+    this.address = ((InetSocketAddress) rtspSession.getRemoteAddress()).getAddress();
+    this.rtpPort = -1;
+    this.rtcpPort = -1;
+    this.rtpTarget = null;
+    this.rtcpTarget = null;
+    this.rtspSession = rtspSession;
+    this.channels = InterleavedChannels.get(rtspSession);
+    this.rtpChannel = rtpChannel;
+    this.rtcpChannel = rtcpChannel;
+    this.frameDropper = new FrameDropper();
+    frameDropper.setH264(track.isH264());
+    this.egress = null;
+    this.active = active;
+    this.ssrc = track.getProxySSRC().intValue();
+  }
+
+  public Track getTrack() {
+    return track;
+  }
+
+  public ProxySession getProxySession() {
+    return proxySession;
+  }
+
+  public InetAddress getAddress() {
+    return address;
+  }
+
+  public int getRtpPort() {
+    return rtpPort;
+  }
+
+  public int getRtcpPort() {
+    return rtcpPort;
+  }
+
+  /**
+   * @return true if packets are sent on the client RTSP connection
+   */
+  public boolean isInterleaved() {
+    return rtspSession != null;
+  }
+
+  public IoSession getRtspSession() {
+    return rtspSession;
+  }
+
+  /**
+   * @return the channels of the client RTSP connection, or null if packets are not interleaved
+   */
+  public InterleavedChannels getChannels() {
+    return channels;
+  }
+
+  public int getRtpChannel() {
+    return rtpChannel;
+  }
+
+  public int getRtcpChannel() {
+    return rtcpChannel;
+  }
+
+  /**
+   * @return true if the client receives the packets from the multicast group of the track
+   */
+  public boolean isMulticast() {
+    return egress != null;
+  }
+
+  /**
+   * @return the egress the client is a viewer of, or null
+   */
+  public MulticastEgress getEgress() {
+    return egress;
+  }
+
+  /**
+   * Sends the packets from other endpoints than those of {@link RtpClientService}.
+   */
+  void setEndpoints(DatagramEndpoint rtpEndpoint, DatagramEndpoint rtcpEndpoint) {
+    this.rtpEndpoint = rtpEndpoint;
+    this.rtcpEndpoint = rtcpEndpoint;
+  }
+
+  /**
+   * @return the dropper protecting the RTSP connection from a slow client, or null if packets are
+   *         not interleaved
+   */
+  public FrameDropper getFrameDropper() {
+    return frameDropper;
+  }
+
+  public boolean isActive() {
+    return active;
+  }
+
+  public void setActive(boolean active) {
+    if (egress == null) {
+      this.active = active;
+      return;
+    }
+    // the egress counts the viewers playing
+    synchronized (egress) {
+      if (this.active == active) return;
+      this.active = active;
+      egress.viewerActivated(this, active);
+    }
+  }
+
+  /**
+   * @return the SSRC id announced to the client, as a raw 32 bit value
+   */
+  public int getSsrc() {
+    return ssrc;
+  }
+
+  public void setSsrc(int ssrc) {
+    this.ssrc = ssrc;
+  }
+
+  /**
+   * Sets the values added to the sequence number and to the timestamp of every RTP packet sent to
+   * this subscriber.
+   */
+  public void setOffsets(int sequenceOffset, int timestampOffset) {
+    this.sequenceOffset = sequenceOffset;
+    this.timestampOffset = timestampOffset;
+  }
+
+  /**
+   * @param sequence a sequence number of the upstream flow
+   * @return the same sequence number, as seen by this subscriber
+   */
+  public int toClientSequence(int sequence) {
+    return (sequence + sequenceOffset) & 0xFFFF;
+  }
+
+  /**
+   * @param sequence a sequence number, as seen by this subscriber
+   * @return the same sequence number in the upstream flow
+   */
+  public int fromClientSequence(int sequence) {
+    return (sequence - sequenceOffset) & 0xFFFF;
+  }
+
+  /**
+   * @param timestamp a timestamp of the upstream flow
+   * @return the same timestamp, as seen by this subscriber
+   */
+  public long toClientTimestamp(int timestamp) {
+    return (timestamp + timestampOffset) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * @return the encoder of the FEC packets sent to the client, or null if there's none
+   */
+  public UlpfecEncoder getFec() {
+    return fec;
+  }
+
+  /**
+   * Protects the packets sent to the client with FEC packets, whose SSRC is the one announced to
+   * the client plus two.
+   *
+   * @param fec the encoder of the FEC packets, or null to stop sending them
+   */
+  public void setFec(UlpfecEncoder fec) {
+    this.fec = fec;
+  }
+
+  public long getPacketsSent() {
+    return packetsSent;
+  }
+
+  public long getBytesSent() {
+    return bytesSent;
+  }
+
+  /**
+   * Rewrites the RTP header in place and sends the packet to the client, unless the frame it belongs
+   * to is dropped because the client is too slow. The buffer must not be used by the caller after
+   * this call.
+   *
+   * @param buffer a buffer containing a RTP packet, starting at its current position
+   */
+  public void sendRtp(IoBuffer buffer) {
+    if (frameDropper != null && !frameDropper.accept(buffer, channels.getBacklog())) {
+      buffer.free();
+      return;
+    }
+
+    rewrite(buffer);
+    UlpfecEncoder encoder = fec;
+    IoBuffer protection = encoder != null ? encoder.add(buffer, ssrc + 2) : null;
+    transmit(buffer);
+    if (protection != null) transmit(protection);
+  }
+
+  /**
+   * Sends again a RTP packet the client reported lost, without going through the frame dropper.
+   * The packet is either sent as it was the first time, or in a RTX packet (RFC 4588): the SSRC of
+   * the retransmission stream is then the one announced to the client plus one, and its sequence
+   * numbers follow their own numbering. The buffer must not be used by the caller after this call.
+   *
+   * @param buffer a buffer containing a RTP packet, as received from the server, or a RTX packet
+   *          built from it whose original sequence number is already the one seen by the client
+   * @param rtx true if the buffer contains a RTX packet
+   */
+  public void resendRtp(IoBuffer buffer, boolean rtx) {
+    rewrite(buffer);
+    if (rtx) {
+      int position = buffer.position();
+      buffer.putInt(position + RtpPacket.SSRC_OFFSET, ssrc + 1);
+      synchronized (this) {
+        buffer.putShort(position + 2, (short) rtxSequence++);
+      }
+    }
+    transmit(buffer);
+  }
+
+  private void rewrite(IoBuffer buffer) {
+    int position = buffer.position();
+    buffer.putInt(position + RtpPacket.SSRC_OFFSET, ssrc);
+    if (sequenceOffset != 0)
+      buffer.putShort(position + 2, (short) (buffer.getShort(position + 2) + sequenceOffset));
+    if (timestampOffset != 0)
+      buffer.putInt(position + 4, buffer.getInt(position + 4) + timestampOffset);
+  }
+
+  private void transmit(IoBuffer buffer) {
+    packetsSent++;
+    bytesSent += buffer.remaining();
+    if (rtspSession != null) channels.send(rtpChannel, buffer);
+    else if (rtpEndpoint != null) rtpEndpoint.send(buffer, rtpTarget);
+    else RtpClientService.getRtpEndpoint().send(buffer, rtpTarget);
+  }
+
+  /**
+   * Rewrites in place every SSRC id of the compound RTCP packet and sends it to the client: the
+   * sender of each packet becomes the SSRC announced to the client, as do any other reference to
+   * the server SSRC. The RTP timestamps of the sender reports are shifted like those of the RTP
+   * packets.
+   *
+   * @param buffer a buffer containing a valid compound RTCP packet, starting at its current
+   *          position
+   */
+  public void sendRtcp(IoBuffer buffer) {
+    // the server SSRC is always known here: it's learnt from the packets being relayed, from
+    // the server or from its multicast group
+    RtcpPacket.rewriteSsrcs(buffer, ssrc, track.getServerSsrcValue(), ssrc);
+    if (timestampOffset != 0) RtcpPacket.shiftRtpTimestamps(buffer, timestampOffset);
+    if (rtspSession != null) channels.send(rtcpChannel, buffer);
+    else if (rtcpEndpoint != null) rtcpEndpoint.send(buffer, rtcpTarget);
+    else RtpClientService.getRtcpEndpoint().send(buffer, rtcpTarget);
+  }
+
+  public String toString() {
+    if (egress != null)
+      return "Subscriber(" + address + ":" + rtpPort + "-" + rtcpPort + " multicast, track="
+          + track.getUrl() + ")";
+    if (rtspSession != null)
+      return "Subscriber(" + address + " interleaved=" + rtpChannel + "-" + rtcpChannel
+          + ", track=" + track.getUrl() + ")";
+    return "Subscriber(" + address + ":" + rtpPort + "-" + rtcpPort + ", track=" + track.getUrl()
+        + ")";
+  }
+}
@@ -15,21 +15,22 @@
 
 package rtspproxy.proxy;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.Random;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 
 import rtspproxy.RtpClientService;
 import rtspproxy.RtpServerService;
+import rtspproxy.cache.TrackRecorder;
+import rtspproxy.lib.ConcurrentLongMap;
+import rtspproxy.lib.SocketAddressMap;
 import rtspproxy.lib.number.UnsignedInt;
+import rtspproxy.rtp.BufferPool;
 import rtspproxy.rtp.RtpPacket;
 import rtspproxy.rtp.rtcp.RtcpPacket;
 
@@ -39,6 +40,16 @@ import rtspproxy.rtp.rtcp.RtcpPacket;
  * <p>
  * These two stream are independent and usually are activated by the same <code>PLAY</code> and
  * <code>TEARDOWN</code> requests.
+ * <p>
+ * The packets received from the server are sent to every {@link Subscriber} of the track. There is
+ * one subscriber per track, unless the track is part of a reflected {@link LiveStream}. When
+ * enabled, the packets are first put back in order by the {@link ReorderBuffer} of the track, then
+ * smoothed by its {@link Pacer}. The video tracks of a live stream keep the packets since their
+ * last keyframe in a {@link GopCache}, sent to the clients joining the stream. The clients that
+ * asked for a multicast transport are viewers of the {@link MulticastEgress} of the track, which
+ * sends the packets once to a multicast group. The packets the clients report lost are sent again
+ * from the {@link RetransmissionCache} of the track. While an on demand stream is played from its
+ * server, the packets are recorded in the media cache by a {@link TrackRecorder}.
  * 
  * @author Matteo Merli
  */
@@ -46,21 +57,23 @@ public class Track {
 
   private static Logger log = Logger.getLogger(Track.class);
 
+  /*
+   * The following tables are looked up for every packet, so they are keyed by primitive values:
+   * SSRC ids as unsigned 32 bit values and socket addresses packed with their port.
+   */
+
   /** Maps a server SSRC id to a Track */
-  private static Map<UnsignedInt, Track> serverSsrcMap =
-      new ConcurrentHashMap<UnsignedInt, Track>();
+  private static ConcurrentLongMap<Track> serverSsrcMap = new ConcurrentLongMap<Track>();
 
-  /** Maps a client address to a Track */
-  private static Map<InetSocketAddress, Track> clientAddressMap =
-      new ConcurrentHashMap<InetSocketAddress, Track>();
+  /** Maps a client address to the Subscriber receiving packets at that address */
+  private static SocketAddressMap<Subscriber> clientAddressMap =
+      new SocketAddressMap<Subscriber>();
 
   /** Maps a server address to a Track */
-  private static Map<InetSocketAddress, Track> serverAddressMap =
-      new ConcurrentHashMap<InetSocketAddress, Track>();
+  private static SocketAddressMap<Track> serverAddressMap = new SocketAddressMap<Track>();
 
   /** Keeps track of the SSRC IDs used by the proxy, to avoid collisions. */
-  private static Set<UnsignedInt> proxySsrcList = Collections
-      .synchronizedSet(new HashSet<UnsignedInt>());
+  private static ConcurrentLongMap<Track> proxySsrcMap = new ConcurrentLongMap<Track>();
 
   /**
    * Control Url of the track. This is the url handle given by the server to control different
@@ -68,32 +81,91 @@ public class Track {
    */
   private String url;
 
-  /** SSRC id given by the server */
-  private UnsignedInt serverSSRC = new UnsignedInt(0);
+  /** SSRC id given by the server, null until known */
+  private UnsignedInt serverSSRC = null;
+  /** SSRC id given by the server, as raw 32 bits */
+  private volatile int serverSsrcValue = 0;
   /** SSRC id selected by the proxy */
-  private UnsignedInt proxySSRC = new UnsignedInt(0);;
+  private UnsignedInt proxySSRC = null;
+  /** SSRC id selected by the proxy, as raw 32 bits ready to be patched into packets */
+  private int proxySsrcValue = 0;
 
   /**
-   * Cached references to IoSession objects used to send packets to server and client.
+   * Clients receiving the packets of this track. Replaced as a whole when a client is added or
+   * removed, so that packets can be fanned out without locking.
    */
-  private IoSession rtpServerSession = null;
-  private IoSession rtcpServerSession = null;
-  private IoSession rtpClientSession = null;
-  private IoSession rtcpClientSession = null;
+  private volatile Subscriber[] subscribers = new Subscriber[0];
+
+  /** The live stream this track belongs to, when it is shared by several clients */
+  private volatile LiveStream liveStream = null;
 
   /**
-   * IP address and RTP/RTCP ports for client and server.
-   * <p>
-   * TODO: When using reflection, there will be more than one connected client at a time to the same
-   * Track. So the track should keep a list of connected clients and forward packets to each of
-   * them.
+   * Sequence number and timestamp of the last RTP packet received from the server, used to tell
+   * late joiners where the stream is.
+   */
+  private volatile int lastSequence;
+  private volatile int lastTimestamp;
+  private volatile boolean receivedRtp = false;
+
+  /**
+   * IP address and RTP/RTCP ports for server.
    */
-  private InetAddress clientAddress;
-  private int clientRtpPort;
-  private int clientRtcpPort;
   private InetAddress serverAddress;
   private int serverRtpPort;
   private int serverRtcpPort;
+  private InetSocketAddress serverRtpTarget;
+  private InetSocketAddress serverRtcpTarget;
+
+  /**
+   * RTSP connection with the server and channels, when the packets are interleaved on it.
+   */
+  private volatile IoSession serverRtspSession = null;
+  private InterleavedChannels serverChannels;
+  private int serverRtpChannel;
+  private int serverRtcpChannel;
+
+  /** Multicast group on which the server sends the packets, or null */
+  private volatile MulticastGroup multicastGroup = null;
+
+  /** Sends the packets to the clients watching the track on a multicast group, or null */
+  private MulticastEgress multicastEgress = null;
+
+  /** Encoding name of the track payload, as announced in the SDP (e.g. "H264"), or null */
+  private volatile String encoding = null;
+
+  /** RTP clock rate of the track payload, as announced in the SDP, or 0 */
+  private int clockRate = 0;
+
+  /** Puts the packets received from the server in order, or null if they're not reordered */
+  private volatile ReorderBuffer reorder = null;
+
+  /** Smooths the packets sent to the clients, or null if they're not paced */
+  private volatile Pacer pacer = null;
+
+  /** Keeps the packets since the last keyframe, or null if they're not cached */
+  private volatile GopCache gopCache = null;
+
+  /** Keeps the last packets sent, to answer the NACKs of the clients, or null */
+  private volatile RetransmissionCache retransmissions = null;
+
+  /** Sends the server a single report for all the clients, or null if their reports are relayed */
+  private volatile ReceiverReportAggregator receiverReports = null;
+
+  /** Records the packets in the media cache, or null */
+  private volatile TrackRecorder recorder = null;
+
+  /** Payload type of the retransmission stream announced to the clients (RFC 4588), or -1 */
+  private volatile int rtxPayloadType = -1;
+
+  /**
+   * Set once the server has been replaced: the sequence numbers and timestamps of the new server
+   * are shifted to follow the last packet of the previous one.
+   */
+  private volatile boolean spliced = false;
+  private volatile boolean rebasePending = false;
+  private volatile long spliceTime;
+  private volatile int sequenceShift = 0;
+  private volatile int timestampShift = 0;
 
   /**
    * Construct a new Track.
@@ -102,7 +174,11 @@ public class Track {
    */
   public Track(String url) {
     this.url = url;
-    setProxySSRC(newSSRC());
+    setProxySSRC(newSSRC(this));
+    if (ReorderBuffer.isEnabled(null)) reorder = new ReorderBuffer(this);
+    if (RetransmissionCache.isEnabled()) retransmissions = new RetransmissionCache(this);
+    if (ReceiverReportAggregator.isEnabled())
+      receiverReports = new ReceiverReportAggregator(this);
   }
 
   /**
@@ -111,6 +187,16 @@ public class Track {
    * @return a Track instance if a matching pair is found or null
    */
   public static Track getByClientAddress(InetSocketAddress clientAddress) {
+    Subscriber subscriber = clientAddressMap.get(clientAddress);
+    return subscriber != null ? subscriber.getTrack() : null;
+  }
+
+  /**
+   * Get the subscriber by looking at client socket address.
+   * 
+   * @return a Subscriber instance if a matching pair is found or null
+   */
+  public static Subscriber getSubscriberByClientAddress(InetSocketAddress clientAddress) {
     return clientAddressMap.get(clientAddress);
   }
 
@@ -131,7 +217,17 @@ public class Track {
    * @return a Track instance if a matching SSRC is found or null
    */
   public static Track getByServerSSRC(UnsignedInt serverSsrc) {
-    return serverSsrcMap.get(serverSsrc);
+    return serverSsrcMap.get(serverSsrc.longValue());
+  }
+
+  /**
+   * Get the track by looking at server SSRC id, as read from the wire.
+   * 
+   * @param serverSsrc the SSRC id as a raw 32 bit value
+   * @return a Track instance if a matching SSRC is found or null
+   */
+  public static Track getByServerSSRC(int serverSsrc) {
+    return serverSsrcMap.get(serverSsrc & 0xFFFFFFFFL);
   }
 
   // /// Member methods
@@ -148,11 +244,14 @@ public class Track {
    * 
    * @param proxySSRC
    */
-  public void setProxySSRC(String proxySSRC) {
+  public synchronized void setProxySSRC(String proxySSRC) {
     try {
-      this.proxySSRC = UnsignedInt.fromString(proxySSRC, 16);
+      UnsignedInt ssrc = UnsignedInt.fromString(proxySSRC, 16);
+      if (this.proxySSRC != null) proxySsrcMap.remove(this.proxySSRC.longValue(), this);
+      this.proxySSRC = ssrc;
+      this.proxySsrcValue = ssrc.intValue();
 
-      proxySsrcList.add(this.proxySSRC);
+      proxySsrcMap.put(ssrc.longValue(), this);
     } catch (NumberFormatException nfe) {
       log.debug("Cannot convert " + proxySSRC + " to integer.");
       throw nfe;
@@ -166,14 +265,27 @@ public class Track {
     return serverSSRC;
   }
 
+  /**
+   * @return the server SSRC id as a raw 32 bit value, or 0 if it's not known yet
+   */
+  public int getServerSsrcValue() {
+    return serverSsrcValue;
+  }
+
+  /**
+   * @return the SSRC id selected by the proxy as a raw 32 bit value
+   */
+  public int getProxySsrcValue() {
+    return proxySsrcValue;
+  }
+
   /**
    * Sets the server SSRC id.
    * 
    * @param serverSSRC
    */
   public void setServerSSRC(String serverSSRC) {
-    this.serverSSRC = UnsignedInt.fromString(serverSSRC, 16);
-    serverSsrcMap.put(this.serverSSRC, this);
+    setServerSSRC(UnsignedInt.fromString(serverSSRC, 16));
   }
 
   /**
@@ -181,9 +293,20 @@ public class Track {
    * 
    * @param serverSSRC
    */
-  public void setServerSSRC(UnsignedInt serverSSRC) {
+  public synchronized void setServerSSRC(UnsignedInt serverSSRC) {
+    if (this.serverSSRC != null) serverSsrcMap.remove(this.serverSSRC.longValue(), this);
     this.serverSSRC = serverSSRC;
-    serverSsrcMap.put(this.serverSSRC, this);
+    this.serverSsrcValue = serverSSRC.intValue();
+    serverSsrcMap.put(serverSSRC.longValue(), this);
+  }
+
+  /**
+   * Sets the server SSRC id.
+   * 
+   * @param serverSSRC the SSRC id as a raw 32 bit value
+   */
+  public void setServerSSRC(int serverSSRC) {
+    setServerSSRC(new UnsignedInt(serverSSRC & 0xFFFFFFFFL));
   }
 
   public String getUrl() {
@@ -194,114 +317,492 @@ public class Track {
     this.url = url;
   }
 
-  public void setRtcpClientSession(IoSession rtcpClientSession) {
-    this.rtcpClientSession = rtcpClientSession;
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Sets the encoding name of the track payload. Tracks whose encoding is listed in
+   * <code>proxy.reorder.bypass</code> are not reordered.
+   */
+  public synchronized void setEncoding(String encoding) {
+    this.encoding = encoding;
+    if (!ReorderBuffer.isEnabled(encoding)) setReorderBypass(true);
+  }
+
+  /**
+   * Disables or enables the reordering of the packets received from the server, for tracks that
+   * can't afford the added latency.
+   *
+   * @param bypass true to relay the packets in the order they're received
+   */
+  public synchronized void setReorderBypass(boolean bypass) {
+    if (bypass && reorder != null) {
+      ReorderBuffer previous = reorder;
+      reorder = null;
+      previous.close();
+    } else if (!bypass && reorder == null) {
+      reorder = new ReorderBuffer(this);
+    }
+  }
+
+  /**
+   * @return the reorder buffer of the track, or null if the packets are not reordered
+   */
+  public ReorderBuffer getReorderBuffer() {
+    return reorder;
+  }
+
+  public int getClockRate() {
+    return clockRate;
   }
 
-  public void setRtcpServerSession(IoSession rtcpServerSession) {
-    this.rtcpServerSession = rtcpServerSession;
+  /**
+   * Sets the RTP clock rate of the track payload. The packets sent to the clients are paced from
+   * then on, if pacing is enabled and the clock rate is known.
+   *
+   * @param clockRate the clock rate, in Hz, or 0 if unknown
+   */
+  public synchronized void setClockRate(int clockRate) {
+    this.clockRate = clockRate;
+    if (pacer == null && clockRate > 0 && Pacer.isEnabled()) pacer = new Pacer(this, clockRate);
   }
 
-  public void setRtpClientSession(IoSession rtpClientSession) {
-    this.rtpClientSession = rtpClientSession;
+  /**
+   * @return the pacer of the track, or null if the packets are not paced
+   */
+  public Pacer getPacer() {
+    return pacer;
   }
 
-  public void setRtpServerSession(IoSession rtpServerSession) {
-    this.rtpServerSession = rtpServerSession;
+  /**
+   * @return the payload type of the retransmission stream announced to the clients (RFC 4588), or
+   *         -1 if the lost packets are sent again as they were sent the first time
+   */
+  public int getRtxPayloadType() {
+    return rtxPayloadType;
+  }
+
+  public void setRtxPayloadType(int rtxPayloadType) {
+    this.rtxPayloadType = rtxPayloadType;
   }
 
   /**
-   * Forwards a RTP packet to server. The packet will be set to the address indicated by the server
-   * at RTP (even) port.
+   * @return the retransmission cache of the track, or null if the NACKs are relayed to the server
+   */
+  public RetransmissionCache getRetransmissionCache() {
+    return retransmissions;
+  }
+
+  /**
+   * @return the aggregator of the reports of the clients, or null if they're relayed to the server
+   */
+  public ReceiverReportAggregator getReceiverReports() {
+    return receiverReports;
+  }
+
+  /**
+   * Replaces the aggregator of the reports of the clients, whatever
+   * <code>proxy.rtcp.aggregate</code> tells.
    * 
-   * @param packet a RTP packet
+   * @param aggregator the aggregator, or null to relay the reports
    */
-  public void forwardRtpToServer(RtpPacket packet) {
-    // modify the SSRC for the server
-    packet.setSsrc(proxySSRC);
+  synchronized void setReceiverReports(ReceiverReportAggregator aggregator) {
+    if (receiverReports != null) receiverReports.close();
+    receiverReports = aggregator;
+  }
+
+  public TrackRecorder getRecorder() {
+    return recorder;
+  }
+
+  /**
+   * Sets the recorder of the packets sent to the clients, or null to stop recording them.
+   */
+  public void setRecorder(TrackRecorder recorder) {
+    this.recorder = recorder;
+  }
 
-    if (rtpServerSession == null)
-      rtpServerSession =
-          RtpServerService.newRtpSession(new InetSocketAddress(serverAddress, serverRtpPort));
+  /**
+   * @return true if the track payload is known to be H.264 video
+   */
+  public boolean isH264() {
+    return "H264".equalsIgnoreCase(encoding);
+  }
 
-    rtpServerSession.write(packet.toByteBuffer());
+  public LiveStream getLiveStream() {
+    return liveStream;
   }
 
   /**
-   * Forwards a RTCP packet to server. The packet will be set to the address indicated by the server
-   * at RTCP (odd) port.
+   * Sets the live stream the track belongs to. The packets of a live video track are cached from
+   * then on, if enabled.
+   */
+  public synchronized void setLiveStream(LiveStream liveStream) {
+    this.liveStream = liveStream;
+    if (liveStream != null && gopCache == null && GopCache.isEnabled(encoding))
+      gopCache = new GopCache(this, encoding);
+  }
+
+  /**
+   * @return the cache of the packets since the last keyframe, or null if they're not cached
+   */
+  public GopCache getGopCache() {
+    return gopCache;
+  }
+
+  /**
+   * @return true once a RTP packet has been received from the server
+   */
+  public boolean hasReceivedRtp() {
+    return receivedRtp;
+  }
+
+  /**
+   * @return the sequence number of the last RTP packet received from the server
+   */
+  public int getLastSequence() {
+    return lastSequence;
+  }
+
+  /**
+   * @return the timestamp of the last RTP packet received from the server, as a raw 32 bit value
+   */
+  public int getLastTimestamp() {
+    return lastTimestamp;
+  }
+
+  public Subscriber[] getSubscribers() {
+    return subscribers;
+  }
+
+  /**
+   * Adds a client to the list of clients receiving the packets of this track. A previous subscriber
+   * at the same address is replaced.
    * 
-   * @param packet a RTCP packet
+   * @param subscriber the subscriber to add
+   */
+  public synchronized void addSubscriber(Subscriber subscriber) {
+    if (subscriber.isMulticast()) {
+      // sent nothing: the egress sends the packets to the group
+      subscriber.getEgress().addViewer(subscriber);
+      return;
+    }
+
+    Subscriber previous =
+        subscriber.isInterleaved() ? subscriber.getChannels().getSubscriber(
+            subscriber.getRtpChannel()) : clientAddressMap.get(subscriber.getAddress(),
+            subscriber.getRtpPort());
+    if (previous != null && previous.getTrack() == this) removeSubscriber(previous);
+
+    Subscriber[] current = subscribers;
+    Subscriber[] updated = new Subscriber[current.length + 1];
+    System.arraycopy(current, 0, updated, 0, current.length);
+    updated[current.length] = subscriber;
+    subscribers = updated;
+
+    if (subscriber.isInterleaved()) {
+      subscriber.getChannels().bind(subscriber, subscriber.getRtpChannel(),
+          subscriber.getRtcpChannel());
+    } else {
+      clientAddressMap.put(subscriber.getAddress(), subscriber.getRtpPort(), subscriber);
+      clientAddressMap.put(subscriber.getAddress(), subscriber.getRtcpPort(), subscriber);
+    }
+    log.debug("Track " + url + " has " + updated.length + " subscribers");
+  }
+
+  /**
+   * Removes a client from the list of clients receiving the packets of this track.
+   * 
+   * @param subscriber the subscriber to remove
+   * @return the number of remaining subscribers
    */
-  public void forwardRtcpToServer(RtcpPacket packet) {
+  public synchronized int removeSubscriber(Subscriber subscriber) {
+    if (subscriber.isMulticast()) {
+      MulticastEgress egress = subscriber.getEgress();
+      if (egress.removeViewer(subscriber) && egress == multicastEgress) multicastEgress = null;
+      return subscribers.length;
+    }
+
+    Subscriber[] current = subscribers;
+    int index = -1;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] == subscriber) {
+        index = i;
+        break;
+      }
+    }
+    if (index < 0) return current.length;
+
+    Subscriber[] updated = new Subscriber[current.length - 1];
+    System.arraycopy(current, 0, updated, 0, index);
+    System.arraycopy(current, index + 1, updated, index, updated.length - index);
+    subscribers = updated;
+    if (receiverReports != null) receiverReports.remove(subscriber);
+
+    if (subscriber.isInterleaved()) {
+      subscriber.getChannels().unbind(subscriber);
+    } else {
+      clientAddressMap.remove(subscriber.getAddress(), subscriber.getRtpPort(), subscriber);
+      clientAddressMap.remove(subscriber.getAddress(), subscriber.getRtcpPort(), subscriber);
+    }
+    return updated.length;
+  }
+
+  /**
+   * Forwards a RTP packet to server, re-encoding it in a new buffer.
+   * 
+   * @param packet a RTP packet
+   * @see #relayRtpToServer(IoBuffer)
+   */
+  public void forwardRtpToServer(RtpPacket packet) {
     // modify the SSRC for the server
     packet.setSsrc(proxySSRC);
 
-    if (rtcpServerSession == null)
-      rtcpServerSession =
-          RtpServerService.newRtcpSession(new InetSocketAddress(serverAddress, serverRtcpPort));
+    relayRtpToServer(packet.toByteBuffer());
+  }
 
-    rtcpServerSession.write(packet.toByteBuffer());
+  /**
+   * Forwards a RTCP packet of a client to server, re-encoding it in a new buffer.
+   * 
+   * @param packet a RTCP packet
+   * @param subscriber the client
+   * @see #relayRtcpToServer(IoBuffer, Subscriber)
+   */
+  public void forwardRtcpToServer(RtcpPacket packet, Subscriber subscriber) {
+    relayRtcpToServer(packet.toByteBuffer(), subscriber);
   }
 
   /**
-   * Forwards a RTP packet to client. The packet will be set to the address indicated by the client
-   * at RTP (even) port.
-   * <p>
-   * TODO: This will be changed to support multiple clients connected to the same (live) track.
+   * Forwards a RTP packet to the clients. The packet will be sent to the address indicated by each
+   * client at RTP (even) port.
    * 
    * @param packet a RTP packet
    */
   public void forwardRtpToClient(RtpPacket packet) {
-    // modify the SSRC for the client
-    packet.setSsrc(proxySSRC);
+    relayRtpToClient(packet.toByteBuffer());
+  }
 
-    if (rtpClientSession == null) {
-      rtpClientSession =
-          RtpClientService.newRtpSession(new InetSocketAddress(clientAddress, clientRtpPort));
+  /**
+   * Forwards a RTCP packet to the clients. The packet will be sent to the address indicated by each
+   * client at RTCP (odd) port.
+   * 
+   * @param packet a RTCP packet
+   */
+  public void forwardRtcpToClient(RtcpPacket packet) {
+    relayRtcpToClient(packet.toByteBuffer());
+  }
+
+  /**
+   * Relays a RTP packet, as received from the server, to the clients. The header is rewritten in
+   * place for each subscriber: the last active subscriber is sent the received buffer itself and
+   * the others a copy of it, so a track with a single client never copies packets.
+   * <p>
+   * The buffer must not be used by the caller after this call.
+   * 
+   * @param buffer a buffer containing a RTP packet, starting at its current position
+   */
+  public void relayRtpToClient(IoBuffer buffer) {
+    if (spliced) rebase(buffer);
+    ReorderBuffer current = reorder;
+    if (current != null) current.add(buffer);
+    else paceRtpToClients(buffer);
+  }
 
+  /**
+   * Shifts the sequence number and the timestamp of a packet received from a server that replaced
+   * another one. The shifts are set by the first packet received after {@link #splice(long)}.
+   */
+  private void rebase(IoBuffer buffer) {
+    int position = buffer.position();
+    int sequence = buffer.getShort(position + 2);
+    int timestamp = buffer.getInt(position + 4);
+    if (rebasePending) {
+      rebasePending = false;
+      if (receivedRtp) {
+        // the media time that passed while no packet was received: none if the packets come
+        // before the time the last one is played, as when filling a gap of the cache
+        long rate = clockRate > 0 ? clockRate : 90000;
+        long elapsed = Math.max(System.nanoTime() - spliceTime, 0) * rate / 1000000000L;
+        sequenceShift = lastSequence + 1 - sequence;
+        timestampShift = (int) (lastTimestamp + elapsed - timestamp);
+      } else {
+        sequenceShift = 0;
+        timestampShift = 0;
+      }
+      log.debug("Track " + url + " spliced: sequence shift " + sequenceShift + ", timestamp shift "
+          + timestampShift);
     }
+    buffer.putShort(position + 2, (short) (sequence + sequenceShift));
+    buffer.putInt(position + 4, timestamp + timestampShift);
+  }
 
-    rtpClientSession.write(packet.toByteBuffer());
+  /**
+   * Sends a RTP packet to the clients, once it has been put in order.
+   * 
+   * @see #relayRtpToClient(IoBuffer)
+   */
+  void paceRtpToClients(IoBuffer buffer) {
+    Pacer current = pacer;
+    if (current != null) current.send(buffer);
+    else sendRtpToClients(buffer);
   }
 
   /**
-   * Forwards a RTCP packet to client. The packet will be set to the address indicated by the client
-   * at RTCP (odd) port.
-   * <p>
-   * TODO: This will be changed to support multiple clients connected to the same (live) track.
+   * Sends a RTP packet to the clients, once it has been paced.
    * 
-   * @param packet a RTCP packet
+   * @see #relayRtpToClient(IoBuffer)
    */
-  public void forwardRtcpToClient(RtcpPacket packet) {
-    // modify the SSRC for the client
-    packet.setSsrc(proxySSRC);
+  void sendRtpToClients(IoBuffer buffer) {
+    GopCache current = gopCache;
+    if (current != null) current.send(buffer);
+    else sendToSubscribers(buffer);
+  }
+
+  /**
+   * Sends a RTP packet to the active subscribers, once it has been cached.
+   * 
+   * @see #relayRtpToClient(IoBuffer)
+   */
+  void sendToSubscribers(IoBuffer buffer) {
+    int position = buffer.position();
+    lastSequence = buffer.getShort(position + 2) & 0xFFFF;
+    lastTimestamp = buffer.getInt(position + 4);
+    receivedRtp = true;
+
+    RetransmissionCache cache = retransmissions;
+    if (cache != null) cache.add(buffer);
+    TrackRecorder currentRecorder = recorder;
+    if (currentRecorder != null) currentRecorder.record(buffer);
+
+    Subscriber[] current = subscribers;
+    int last = lastActive(current);
+    for (int i = 0; i < last; i++) {
+      if (current[i].isActive()) current[i].sendRtp(BufferPool.copy(buffer));
+    }
+    if (last >= 0) current[last].sendRtp(buffer);
+    else buffer.free();
+  }
 
-    if (rtcpClientSession == null) {
-      rtcpClientSession =
-          RtpClientService.newRtcpSession(new InetSocketAddress(clientAddress, clientRtcpPort));
+  /**
+   * Relays a compound RTCP packet, as received from the server, to the clients. Every SSRC id of
+   * the packet is rewritten in place for each subscriber, see
+   * {@link Subscriber#sendRtcp(IoBuffer)}. Malformed packets are dropped.
+   * 
+   * @param buffer a buffer containing a RTCP packet, starting at its current position
+   * @see #relayRtpToClient(IoBuffer)
+   */
+  public void relayRtcpToClient(IoBuffer buffer) {
+    if (!RtcpPacket.isValidCompound(buffer)) {
+      log.debug("Dropping malformed RTCP packet for track " + url);
+      buffer.free();
+      return;
+    }
+    if (spliced && timestampShift != 0) RtcpPacket.shiftRtpTimestamps(buffer, timestampShift);
 
+    Subscriber[] current = subscribers;
+    int last = lastActive(current);
+    for (int i = 0; i < last; i++) {
+      if (current[i].isActive()) current[i].sendRtcp(BufferPool.copy(buffer));
     }
+    if (last >= 0) current[last].sendRtcp(buffer);
+    else buffer.free();
+  }
 
-    rtcpClientSession.write(packet.toByteBuffer());
+  private static int lastActive(Subscriber[] subscribers) {
+    for (int i = subscribers.length - 1; i >= 0; i--) {
+      if (subscribers[i].isActive()) return i;
+    }
+    return -1;
   }
 
   /**
-   * Set the address of the server associated with this track.
-   * <p>
-   * TODO: This will be changed to support multiple clients connected to the same (live) track.
+   * Relays a RTP packet, as received from the client, to the server.
    * 
-   * @param serverHost The serverHost to set.
-   * @param rtpPort the port number used for RTP packets
-   * @param rtcpPort the port number used for RTCP packets
+   * @param buffer a buffer containing a RTP packet, starting at its current position
+   * @see #relayRtpToClient(IoBuffer)
    */
-  public synchronized void setClientAddress(InetAddress clientAddress, int rtpPort, int rtcpPort) {
-    this.clientAddress = clientAddress;
-    this.clientRtpPort = rtpPort;
-    this.clientRtcpPort = rtcpPort;
+  public void relayRtpToServer(IoBuffer buffer) {
+    if (multicastGroup != null) {
+      // the server has no unicast address to send to
+      buffer.free();
+      return;
+    }
+    RtpPacket.patchSsrc(buffer, proxySsrcValue);
+    if (serverRtspSession != null) serverChannels.send(serverRtpChannel, buffer);
+    else RtpServerService.getRtpEndpoint().send(buffer, serverRtpTarget);
+  }
 
-    clientAddressMap.put(new InetSocketAddress(clientAddress, rtpPort), this);
-    clientAddressMap.put(new InetSocketAddress(clientAddress, rtcpPort), this);
+  /**
+   * Relays a compound RTCP packet, as received from a client, to the server, after answering the
+   * NACKs of the client from the retransmission cache of the track, if any. When the reports of the
+   * clients are aggregated, only the feedback packets are relayed.
+   * 
+   * @param buffer a buffer containing a RTCP packet, starting at its current position
+   * @param subscriber the client
+   * @see #relayRtcpToServer(IoBuffer, int)
+   */
+  public void relayRtcpToServer(IoBuffer buffer, Subscriber subscriber) {
+    RetransmissionCache cache = retransmissions;
+    ReceiverReportAggregator aggregator = receiverReports;
+    if ((cache != null || aggregator != null) && RtcpPacket.isValidCompound(buffer)) {
+      if (cache != null && !cache.handleNacks(buffer, subscriber)) {
+        buffer.free();
+        return;
+      }
+      if (aggregator != null) {
+        buffer = aggregator.handleReports(buffer, subscriber);
+        if (buffer == null) return;
+      }
+    }
+    relayRtcpToServer(buffer, subscriber.getSsrc());
+  }
+
+  /**
+   * Relays a compound RTCP packet, as received from a client, to the server. The sender SSRC of
+   * every packet is replaced by the proxy SSRC, and the reports and feedback about the track are
+   * made to refer to the server SSRC instead of the one announced to the client. Malformed packets
+   * are dropped, and so are all the packets of a track received from a multicast group: every
+   * viewer would otherwise send its reports to the server.
+   * 
+   * @param buffer a buffer containing a RTCP packet, starting at its current position
+   * @param subscriberSsrc the SSRC id of the track, as announced to the client
+   */
+  public void relayRtcpToServer(IoBuffer buffer, int subscriberSsrc) {
+    if (multicastGroup != null) {
+      buffer.free();
+      return;
+    }
+    if (!RtcpPacket.isValidCompound(buffer)) {
+      log.debug("Dropping malformed RTCP packet for track " + url);
+      buffer.free();
+      return;
+    }
+    int server = serverSSRC != null ? serverSsrcValue : subscriberSsrc;
+    RtcpPacket.rewriteSsrcs(buffer, proxySsrcValue, subscriberSsrc, server);
+    sendRtcpToServer(buffer);
+  }
+
+  /**
+   * Sends a compound RTCP packet of the proxy to the server. Nothing is sent to a multicast group.
+   * 
+   * @param buffer a buffer containing a RTCP packet whose SSRC ids are those known by the server
+   */
+  void sendRtcpToServer(IoBuffer buffer) {
+    if (multicastGroup != null || (serverRtspSession == null && serverRtcpTarget == null)) {
+      buffer.free();
+      return;
+    }
+    if (serverRtspSession != null) serverChannels.send(serverRtcpChannel, buffer);
+    else RtpServerService.getRtcpEndpoint().send(buffer, serverRtcpTarget);
+  }
+
+  /**
+   * @param sequence a sequence number of the packets sent to the clients
+   * @return the same sequence number, as sent by the current server
+   */
+  int toServerSequence(int sequence) {
+    return spliced ? (sequence - sequenceShift) & 0xFFFF : sequence;
   }
 
   /**
@@ -312,23 +813,168 @@ public class Track {
    * @param rtcpPort the port number used for RTCP packets
    */
   public synchronized void setServerAddress(InetAddress serverAddress, int rtpPort, int rtcpPort) {
+    if (this.serverAddress != null) {
+      serverAddressMap.remove(this.serverAddress, serverRtpPort, this);
+      serverAddressMap.remove(this.serverAddress, serverRtcpPort, this);
+    }
     this.serverAddress = serverAddress;
     this.serverRtpPort = rtpPort;
     this.serverRtcpPort = rtcpPort;
+    this.serverRtpTarget = new InetSocketAddress(serverAddress, rtpPort);
+    this.serverRtcpTarget = new InetSocketAddress(serverAddress, rtcpPort);
 
-    serverAddressMap.put(new InetSocketAddress(serverAddress, rtpPort), this);
-    serverAddressMap.put(new InetSocketAddress(serverAddress, rtcpPort), this);
+    serverAddressMap.put(serverAddress, rtpPort, this);
+    serverAddressMap.put(serverAddress, rtcpPort, this);
   }
 
-  public synchronized void close() {
-    if (serverSSRC != null) serverSsrcMap.remove(serverSSRC);
-    serverAddressMap.remove(new InetSocketAddress(serverAddress, serverRtpPort));
-    serverAddressMap.remove(new InetSocketAddress(serverAddress, serverRtcpPort));
+  /**
+   * Sets the channels used to exchange the packets of this track with the server, interleaved on
+   * its RTSP connection.
+   * 
+   * @param session the RTSP connection with the server
+   * @param rtpChannel the channel of RTP packets
+   * @param rtcpChannel the channel of RTCP packets
+   */
+  public synchronized void setServerChannels(IoSession session, int rtpChannel, int rtcpChannel) {
+    if (serverChannels != null) serverChannels.unbind(this);
+    this.serverChannels = InterleavedChannels.get(session);
+    this.serverRtpChannel = rtpChannel;
+    this.serverRtcpChannel = rtcpChannel;
+    this.serverRtspSession = session;
+    serverChannels.bind(this, rtpChannel, rtcpChannel);
+  }
+
+  /**
+   * Receives the packets of this track from a multicast group, joined by the proxy if no other
+   * track receives it already.
+   * 
+   * @param group the multicast group address
+   * @param rtpPort the port of the RTP packets
+   * @param rtcpPort the port of the RTCP packets
+   * @param source the address of the server sending to the group, or null if unknown
+   * @throws IOException if the group can't be joined
+   */
+  public synchronized void setMulticastGroup(InetAddress group, int rtpPort, int rtcpPort,
+      InetAddress source) throws IOException {
+    if (multicastGroup != null) multicastGroup.detach(this);
+    multicastGroup = null;
+    multicastGroup = MulticastGroup.attach(this, group, rtpPort, rtcpPort, source);
+  }
+
+  /**
+   * Forgets how the packets were exchanged with the server, before the track is set up on another
+   * server.
+   */
+  public synchronized void resetServer() {
+    if (serverChannels != null) serverChannels.unbind(this);
+    serverChannels = null;
+    serverRtspSession = null;
+    if (serverAddress != null) {
+      serverAddressMap.remove(serverAddress, serverRtpPort, this);
+      serverAddressMap.remove(serverAddress, serverRtcpPort, this);
+    }
+    serverAddress = null;
+    if (multicastGroup != null) multicastGroup.detach(this);
+    multicastGroup = null;
+  }
+
+  /**
+   * Splices the packets of a new server after the ones of the previous server: from the next packet
+   * on, the sequence numbers continue where the previous server stopped, and the timestamps account
+   * for the time during which no packet was received. The SSRC seen by the clients doesn't change.
+   * 
+   * @param lossTime the time at which the previous server was lost, as given by
+   *          {@link System#nanoTime()}
+   */
+  public void splice(long lossTime) {
+    spliceTime = lossTime;
+    rebasePending = true;
+    spliced = true;
+  }
+
+  /**
+   * Stops shifting the packets of a server spliced by {@link #splice(long)}, once it's gone.
+   */
+  void endSplice() {
+    spliced = false;
+    rebasePending = false;
+    sequenceShift = 0;
+    timestampShift = 0;
+  }
+
+  /**
+   * Sets the sequence number and the timestamp of the last packet sent to the clients, when the
+   * packets are not relayed from a server. A server spliced afterwards continues from them.
+   */
+  void setLastPacket(int sequence, int timestamp) {
+    lastSequence = sequence & 0xFFFF;
+    lastTimestamp = timestamp;
+    receivedRtp = true;
+  }
+
+  /**
+   * @return the multicast group the packets are received from, or null
+   */
+  public MulticastGroup getMulticastGroup() {
+    return multicastGroup;
+  }
+
+  /**
+   * Gets the egress sending the packets of this track to a multicast group, allocating a group of
+   * the pool on first use, or once the previous egress was closed.
+   * 
+   * @return the egress of the track
+   * @throws IOException if no group is left in the pool, or if the packets can't be sent
+   */
+  public synchronized MulticastEgress getMulticastEgress() throws IOException {
+    if (multicastEgress == null || multicastEgress.isClosed())
+      multicastEgress = new MulticastEgress(this);
+    return multicastEgress;
+  }
+
+  /**
+   * Subscribes a client to this track, receiving the packets from its multicast group. The egress
+   * is fetched and the client added to its viewers at once, so that the last viewer leaving
+   * meanwhile can't close the egress under the new one.
+   * 
+   * @param proxySession the RTSP session of the client
+   * @param active whether the client is playing right away
+   * @return the new subscriber
+   * @throws IOException if the track can't be sent to a multicast group
+   */
+  public synchronized Subscriber addMulticastSubscriber(ProxySession proxySession, boolean active)
+      throws IOException {
+    Subscriber subscriber = new Subscriber(this, proxySession, getMulticastEgress(), active);
+    addSubscriber(subscriber);
+    return subscriber;
+  }
 
-    clientAddressMap.remove(new InetSocketAddress(clientAddress, clientRtpPort));
-    clientAddressMap.remove(new InetSocketAddress(clientAddress, clientRtcpPort));
+  /**
+   * @return true if the packets are exchanged with the server on its RTSP connection
+   */
+  public boolean isServerInterleaved() {
+    return serverRtspSession != null;
+  }
 
-    if (proxySSRC != null) proxySsrcList.remove(proxySSRC);
+  public synchronized void close() {
+    if (serverSSRC != null) serverSsrcMap.remove(serverSSRC.longValue(), this);
+    serverAddressMap.remove(serverAddress, serverRtpPort, this);
+    serverAddressMap.remove(serverAddress, serverRtcpPort, this);
+    if (serverChannels != null) serverChannels.unbind(this);
+    if (multicastGroup != null) multicastGroup.detach(this);
+    if (reorder != null) reorder.close();
+    if (pacer != null) pacer.close();
+    if (gopCache != null) gopCache.close();
+    if (retransmissions != null) retransmissions.close();
+    if (receiverReports != null) receiverReports.close();
+
+    if (multicastEgress != null) multicastEgress.close();
+    multicastEgress = null;
+
+    for (Subscriber subscriber : subscribers)
+      removeSubscriber(subscriber);
+
+    if (proxySSRC != null) proxySsrcMap.remove(proxySSRC.longValue(), this);
     log.debug("Closed track " + url);
   }
 
@@ -342,16 +988,16 @@ public class Track {
   private static Random random = new Random();
 
   /**
-   * Creates a new SSRC id that is unique in the proxy.
+   * Creates a new SSRC id that is unique in the proxy and reserves it for the track.
    * 
-   * @return the session ID
+   * @return the SSRC id
    */
-  private static String newSSRC() {
+  private static String newSSRC(Track track) {
     long id;
     while (true) {
       id = random.nextLong() & 0xFFFFFFFFL;
 
-      if (!proxySsrcList.contains(id)) {
+      if (proxySsrcMap.putIfAbsent(id, track) == null) {
         // Ok, the id is unique
         String ids = Long.toString(id, 16);
         return ids;
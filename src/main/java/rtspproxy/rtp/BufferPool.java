@@ -0,0 +1,392 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.rtp;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.AbstractIoBuffer;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferAllocator;
+
+import rtspproxy.Config;
+
+/**
+ * A pool of direct buffers for the RTP and RTCP packets, handed out by {@link #allocate(int)} once
+ * {@link #install()}ed.
+ * <p>
+ * Direct buffers are sent by the datagram channels without being copied to a temporary direct
+ * buffer first, but they are expensive to allocate: they are re-used instead. Buffers are grouped
+ * by size class, powers of two from 64 bytes to 64 KB. Each thread keeps its own free buffers, so
+ * that the processor threads allocate and free without any locking. A buffer freed by another
+ * thread (a packet written on a RTSP connection, for example) is handed back to the thread that
+ * allocated it through a lock-free queue, which the owner drains when its own list is empty. That
+ * queue is bounded like the free list, and a thread that died gets nothing back: the extra buffers
+ * are left to the garbage collector.
+ * <p>
+ * Buffers return to the pool when {@link IoBuffer#free()} is called. The packet buffers of the data
+ * plane are freed once they have been sent or dropped; a buffer that is never freed is simply
+ * garbage collected. Heap buffers, and direct buffers larger than the biggest size class, are not
+ * pooled. In particular the buffers MINA allocates itself, for the RTSP connections, are heap
+ * buffers as usual.
+ *
+ * @author Matteo Merli
+ */
+public class BufferPool implements IoBufferAllocator {
+
+  private static final int MIN_CLASS_SHIFT = 6;
+  private static final int MAX_CLASS_SHIFT = 16;
+  private static final int CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+  private static final AtomicIntegerFieldUpdater<PooledBuffer> FREED =
+      AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "freed");
+
+  private static final BufferPool instance = new BufferPool();
+  private static volatile boolean installed = false;
+
+  /**
+   * @return the pool shared by the endpoints
+   */
+  public static BufferPool getInstance() {
+    return instance;
+  }
+
+  /**
+   * Makes {@link #allocate(int)} allocate the packet buffers from the pool. The pool also becomes
+   * the MINA allocator, so that the buffers MINA derives from the packets are created by it, but
+   * MINA keeps using heap buffers, which aren't pooled.
+   */
+  public static void install() {
+    IoBuffer.setAllocator(instance);
+    installed = true;
+  }
+
+  public static boolean isInstalled() {
+    return installed;
+  }
+
+  /**
+   * Allocates a buffer for a packet: a pooled direct buffer once the pool is installed, a heap
+   * buffer otherwise. The buffer limit is set to the requested capacity.
+   */
+  public static IoBuffer allocate(int capacity) {
+    if (installed) return instance.allocate(capacity, true);
+    return IoBuffer.allocate(capacity, false);
+  }
+
+  /**
+   * Copies a packet sent to several destinations, or kept after the original is freed.
+   *
+   * @return a new buffer from {@link #allocate(int)} holding a copy of the remaining bytes of the
+   *         buffer, whose position is left unchanged
+   */
+  public static IoBuffer copy(IoBuffer buffer) {
+    int position = buffer.position();
+    IoBuffer copy = allocate(buffer.remaining());
+    copy.put(buffer);
+    copy.flip();
+    buffer.position(position);
+    return copy;
+  }
+
+  /** Maximum number of free buffers kept by a thread, for each size class */
+  private final int threadCacheSize = Config.getInt("proxy.rtp.bufferPool.threadCache", 256);
+
+  private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+    protected Cache initialValue() {
+      retireCaches();
+      Cache cache = new Cache();
+      allCaches.add(cache);
+      return cache;
+    }
+  };
+  /** The caches of the live threads, for the statistics */
+  private final Queue<Cache> allCaches = new ConcurrentLinkedQueue<Cache>();
+  /** Statistics of the threads that died */
+  private final AtomicLong retiredAllocations = new AtomicLong();
+  private final AtomicLong retiredHits = new AtomicLong();
+
+  private final AtomicLong outstanding = new AtomicLong();
+  private final AtomicLong highWater = new AtomicLong();
+  private final AtomicLong unpooled = new AtomicLong();
+
+  /**
+   * The free buffers of a thread.
+   */
+  private class Cache {
+    @SuppressWarnings("unchecked")
+    final ArrayDeque<PooledBuffer>[] free = (ArrayDeque<PooledBuffer>[]) new ArrayDeque<?>[CLASSES];
+    /** Buffers freed by other threads, with their number */
+    @SuppressWarnings("unchecked")
+    final ConcurrentLinkedQueue<PooledBuffer>[] returned =
+        (ConcurrentLinkedQueue<PooledBuffer>[]) new ConcurrentLinkedQueue<?>[CLASSES];
+    final AtomicIntegerArray returnedCount = new AtomicIntegerArray(CLASSES);
+
+    /** The owner thread, not kept alive by its cache */
+    final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+
+    /** Only updated by the owner thread */
+    volatile long allocations = 0;
+    volatile long hits = 0;
+
+    Cache() {
+      for (int i = 0; i < CLASSES; i++) {
+        free[i] = new ArrayDeque<PooledBuffer>();
+        returned[i] = new ConcurrentLinkedQueue<PooledBuffer>();
+      }
+    }
+
+    PooledBuffer get(int sizeClass) {
+      PooledBuffer buffer = free[sizeClass].poll();
+      if (buffer != null) return buffer;
+      ConcurrentLinkedQueue<PooledBuffer> queue = returned[sizeClass];
+      buffer = queue.poll();
+      if (buffer == null) return null;
+      returnedCount.decrementAndGet(sizeClass);
+      // take back the other buffers returned meanwhile, at once
+      PooledBuffer next;
+      while (free[sizeClass].size() < threadCacheSize && (next = queue.poll()) != null) {
+        returnedCount.decrementAndGet(sizeClass);
+        free[sizeClass].add(next);
+      }
+      return buffer;
+    }
+
+    void put(PooledBuffer buffer, int sizeClass) {
+      if (free[sizeClass].size() < threadCacheSize) free[sizeClass].add(buffer);
+    }
+
+    /**
+     * Hands back a buffer freed by another thread, unless the owner died or already has enough
+     * buffers waiting.
+     */
+    void giveBack(PooledBuffer buffer, int sizeClass) {
+      if (!isAlive()) return;
+      if (returnedCount.incrementAndGet(sizeClass) > threadCacheSize) {
+        returnedCount.decrementAndGet(sizeClass);
+        return;
+      }
+      returned[sizeClass].add(buffer);
+    }
+
+    boolean isAlive() {
+      Thread owner = thread.get();
+      return owner != null && owner.isAlive();
+    }
+  }
+
+  /**
+   * Forgets the caches of the threads that died, keeping their statistics.
+   */
+  private void retireCaches() {
+    for (Cache cache : allCaches) {
+      if (cache.isAlive() || !allCaches.remove(cache)) continue;
+      retiredAllocations.addAndGet(cache.allocations);
+      retiredHits.addAndGet(cache.hits);
+    }
+  }
+
+  /**
+   * @return the size class of a capacity, or -1 if it's too large to be pooled
+   */
+  private static int sizeClass(int capacity) {
+    if (capacity <= 1 << MIN_CLASS_SHIFT) return 0;
+    int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    return shift <= MAX_CLASS_SHIFT ? shift - MIN_CLASS_SHIFT : -1;
+  }
+
+  public IoBuffer allocate(int capacity, boolean direct) {
+    int sizeClass = direct ? sizeClass(capacity) : -1;
+    if (sizeClass < 0) {
+      unpooled.incrementAndGet();
+      return new PooledBuffer(allocateNioBuffer(capacity, direct), null);
+    }
+
+    Cache cache = caches.get();
+    cache.allocations++;
+    PooledBuffer buffer = cache.get(sizeClass);
+    if (buffer != null) {
+      cache.hits++;
+      buffer.recycle();
+    } else {
+      buffer =
+          new PooledBuffer(ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS_SHIFT)), cache);
+    }
+    buffer.limit(capacity);
+
+    long count = outstanding.incrementAndGet();
+    if (count > highWater.get()) updateHighWater(count);
+    return buffer;
+  }
+
+  private void updateHighWater(long count) {
+    long current;
+    while (count > (current = highWater.get())) {
+      if (highWater.compareAndSet(current, count)) return;
+    }
+  }
+
+  public ByteBuffer allocateNioBuffer(int capacity, boolean direct) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  public IoBuffer wrap(ByteBuffer nioBuffer) {
+    return new PooledBuffer(nioBuffer, null);
+  }
+
+  /**
+   * Nothing to release: the free buffers are garbage collected with the threads that own them.
+   */
+  public void dispose() {}
+
+  private void release(PooledBuffer buffer) {
+    int sizeClass = sizeClass(buffer.capacity());
+    outstanding.decrementAndGet();
+    // the capacity may have changed, if the buffer was expanded
+    if (sizeClass < 0 || buffer.capacity() != 1 << (sizeClass + MIN_CLASS_SHIFT)) return;
+
+    Cache cache = caches.get();
+    if (cache == buffer.owner) cache.put(buffer, sizeClass);
+    else buffer.owner.giveBack(buffer, sizeClass);
+  }
+
+  /**
+   * @return the number of pooled buffers requested
+   */
+  public long getAllocations() {
+    retireCaches();
+    long count = retiredAllocations.get();
+    for (Cache cache : allCaches)
+      count += cache.allocations;
+    return count;
+  }
+
+  /**
+   * @return the number of pooled buffers requested and served with a free buffer
+   */
+  public long getHits() {
+    retireCaches();
+    long count = retiredHits.get();
+    for (Cache cache : allCaches)
+      count += cache.hits;
+    return count;
+  }
+
+  /**
+   * @return the fraction of the requests served with a free buffer
+   */
+  public double getHitRate() {
+    long allocations = getAllocations();
+    return allocations == 0 ? 0 : (double) getHits() / allocations;
+  }
+
+  /**
+   * @return the number of pooled buffers allocated and not freed yet
+   */
+  public long getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * @return the maximum number of pooled buffers outstanding at the same time
+   */
+  public long getHighWater() {
+    return highWater.get();
+  }
+
+  /**
+   * @return the number of buffers allocated outside of the pool (heap or too large)
+   */
+  public long getUnpooled() {
+    return unpooled.get();
+  }
+
+  /**
+   * A buffer allocated by the pool. The same instance is re-used every time the buffer is
+   * allocated, so that allocating a packet buffer creates no garbage at all.
+   */
+  private class PooledBuffer extends AbstractIoBuffer {
+
+    private ByteBuffer buf;
+    /** The cache of the thread that allocated the buffer, or null if not pooled */
+    private final Cache owner;
+    /** Set to 1 by the first call to free(), which may come from any thread */
+    volatile int freed = 0;
+
+    PooledBuffer(ByteBuffer buf, Cache owner) {
+      super(BufferPool.this, buf.capacity());
+      this.buf = buf;
+      this.owner = owner;
+      buf.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /** A buffer derived from a pooled buffer: it's never pooled itself */
+    PooledBuffer(PooledBuffer parent, ByteBuffer buf) {
+      super(parent);
+      this.buf = buf;
+      this.owner = null;
+    }
+
+    void recycle() {
+      freed = 0;
+      clear();
+      order(ByteOrder.BIG_ENDIAN);
+      setAutoExpand(false);
+      setAutoShrink(false);
+    }
+
+    public ByteBuffer buf() {
+      return buf;
+    }
+
+    protected void buf(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    protected IoBuffer duplicate0() {
+      return new PooledBuffer(this, buf.duplicate());
+    }
+
+    protected IoBuffer slice0() {
+      return new PooledBuffer(this, buf.slice());
+    }
+
+    protected IoBuffer asReadOnlyBuffer0() {
+      return new PooledBuffer(this, buf.asReadOnlyBuffer());
+    }
+
+    public byte[] array() {
+      return buf.array();
+    }
+
+    public int arrayOffset() {
+      return buf.arrayOffset();
+    }
+
+    public boolean hasArray() {
+      return buf.hasArray();
+    }
+
+    /**
+     * Returns the buffer to the pool. Freeing a derived buffer, or a buffer already freed, has no
+     * effect.
+     */
+    public void free() {
+      if (owner == null || isDerived() || !FREED.compareAndSet(this, 0, 1)) return;
+      release(this);
+    }
+  }
+}
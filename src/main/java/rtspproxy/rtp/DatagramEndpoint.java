@@ -0,0 +1,463 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+import rtspproxy.lib.Exceptions;
+
+/**
+ * A UDP port used to receive and send RTP or RTCP packets.
+ * <p>
+ * Each socket of the endpoint is served by its own processor thread, which reads the available
+ * datagrams and hands them to a {@link PacketHandler}. Packets sent from a processor thread
+ * (typically, packets relayed while handling a received one) are not written right away: they are
+ * queued in the {@link PacketBatch} of the thread and sent directly on the datagram channel, all
+ * together, once the received datagrams have been handled. Packets sent from other threads are
+ * written immediately.
+ * <p>
+ * An endpoint can be split in several shards: sockets bound to the same port with SO_REUSEPORT,
+ * each one with its own receive buffer and processor thread. The kernel spreads the incoming flows
+ * among the sockets, so that the packets of a busy proxy are read by several cores. Sharding needs
+ * a JVM and an OS supporting SO_REUSEPORT; otherwise a single socket is used.
+ * <p>
+ * An endpoint can also receive the packets sent to a multicast group, see
+ * {@link #join(InetAddress, NetworkInterface, InetAddress)}, and send packets to multicast groups,
+ * see {@link #setMulticastOptions(NetworkInterface, int)}.
+ * <p>
+ * Unlike the RTSP connections, packets do not go through a MINA filter chain or write queue: a
+ * full socket buffer results in the packet being dropped, as it would be by the network.
+ * <p>
+ * Datagrams are received in buffers of the {@link BufferPool}, and the buffers sent are freed once
+ * written on the socket.
+ *
+ * @author Matteo Merli
+ */
+public class DatagramEndpoint {
+
+  private static Logger log = Logger.getLogger(DatagramEndpoint.class);
+
+  /** Maximum number of datagrams read in a single I/O loop iteration */
+  private static final int MAX_READS_PER_LOOP = 64;
+
+  private static final long SELECT_TIMEOUT = 1000;
+
+  private final String name;
+  private final InetSocketAddress bindAddress;
+  private final PacketHandler handler;
+  private final int maxPacketSize = Config.getInt("proxy.rtp.maxPacketSize", 2048);
+  private final int batchSize = Config.getInt("proxy.rtp.batchSize", 64);
+  private final int receiveBufferSize = Config.getInt("proxy.rtp.receiveBufferSize", 0);
+  private final int shardCount;
+  private boolean reuseAddress = false;
+
+  private volatile Shard[] shards = new Shard[0];
+  private volatile boolean running = false;
+
+  /**
+   * Creates an endpoint with the number of shards set by the <code>proxy.rtp.shards</code>
+   * property, by default one for each available processor.
+   *
+   * @param name a name for the endpoint, used for the processor threads
+   * @param bindAddress the local address to bind
+   * @param handler the handler of the received datagrams
+   */
+  public DatagramEndpoint(String name, InetSocketAddress bindAddress, PacketHandler handler) {
+    this(name, bindAddress, handler,
+        Config.getInt("proxy.rtp.shards", Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * @param name a name for the endpoint, used for the processor threads
+   * @param bindAddress the local address to bind
+   * @param handler the handler of the received datagrams
+   * @param shardCount the number of sockets to bind on the same port
+   */
+  public DatagramEndpoint(String name, InetSocketAddress bindAddress, PacketHandler handler,
+      int shardCount) {
+    this.name = name;
+    this.bindAddress = bindAddress;
+    this.handler = handler;
+    this.shardCount = Math.max(shardCount, 1);
+  }
+
+  /**
+   * Binds the sockets and starts the processor threads.
+   *
+   * @throws IOException if the socket cannot be bound
+   */
+  public synchronized void start() throws IOException {
+    int count = shardCount;
+    if (count > 1 && getReusePortOption() == null) {
+      log.warn(name + ": SO_REUSEPORT is not supported, using a single socket");
+      count = 1;
+    }
+
+    Shard[] newShards = new Shard[count];
+    try {
+      InetSocketAddress address = bindAddress;
+      for (int i = 0; i < count; i++) {
+        newShards[i] = new Shard(i);
+        newShards[i].bind(address, count > 1);
+        // When binding an ephemeral port, all the shards must share the port picked by the first
+        address = newShards[0].getLocalAddress();
+      }
+    } catch (IOException e) {
+      for (int i = 0; i < count; i++)
+        if (newShards[i] != null) newShards[i].close();
+      throw e;
+    }
+
+    shards = newShards;
+    running = true;
+    for (int i = 0; i < count; i++)
+      shards[i].processor.start();
+    log.debug(name + " listening on " + getLocalAddress() + " with " + count + " socket(s)");
+  }
+
+  /**
+   * Closes the sockets and stops the processor threads.
+   */
+  public synchronized void stop() {
+    if (!running) return;
+    running = false;
+    for (int i = 0; i < shards.length; i++)
+      shards[i].close();
+    for (int i = 0; i < shards.length; i++) {
+      try {
+        shards[i].processor.join(SELECT_TIMEOUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Allows other sockets to bind the same port, such as those receiving other multicast groups.
+   * Must be called before {@link #start()}.
+   */
+  public void setReuseAddress(boolean reuseAddress) {
+    this.reuseAddress = reuseAddress;
+  }
+
+  /**
+   * Joins a multicast group on all the sockets of the endpoint. The group is left when the endpoint
+   * is stopped.
+   *
+   * @param group the multicast group address
+   * @param networkInterface the interface on which to join the group
+   * @param source if not null, only the packets sent by this address are received (source
+   *          specific multicast)
+   * @throws IOException if the group can't be joined
+   */
+  public synchronized void join(InetAddress group, NetworkInterface networkInterface,
+      InetAddress source) throws IOException {
+    // DatagramChannel.join is only available from Java 7
+    try {
+      for (int i = 0; i < shards.length; i++) {
+        if (source == null) {
+          DatagramChannel.class.getMethod("join", InetAddress.class, NetworkInterface.class)
+              .invoke(shards[i].channel, group, networkInterface);
+        } else {
+          DatagramChannel.class.getMethod("join", InetAddress.class, NetworkInterface.class,
+              InetAddress.class).invoke(shards[i].channel, group, networkInterface, source);
+        }
+      }
+    } catch (NoSuchMethodException e) {
+      throw new IOException("Multicast is not supported by this JVM");
+    } catch (InvocationTargetException e) {
+      throw new IOException("Cannot join " + group + ": " + e.getCause());
+    } catch (IllegalAccessException e) {
+      throw new IOException("Cannot join " + group + ": " + e);
+    }
+    log.debug(name + " joined " + group + (source != null ? " from " + source : "") + " on "
+        + networkInterface.getName());
+  }
+
+  /**
+   * Sets the interface and the time to live of the packets sent to multicast groups, on all the
+   * sockets of the endpoint. Must be called after {@link #start()}.
+   *
+   * @param networkInterface the interface on which the packets are sent
+   * @param ttl the time to live of the packets
+   * @throws IOException if the options can't be set
+   */
+  public synchronized void setMulticastOptions(NetworkInterface networkInterface, int ttl)
+      throws IOException {
+    for (int i = 0; i < shards.length; i++) {
+      setOption(shards[i].channel, "IP_MULTICAST_IF", networkInterface);
+      setOption(shards[i].channel, "IP_MULTICAST_TTL", Integer.valueOf(ttl));
+    }
+  }
+
+  /**
+   * Sets a standard socket option, looked up by name since they're only available from Java 7.
+   */
+  private static void setOption(DatagramChannel channel, String name, Object value)
+      throws IOException {
+    try {
+      Class<?> optionClass = Class.forName("java.net.SocketOption");
+      Object option = Class.forName("java.net.StandardSocketOptions").getField(name).get(null);
+      DatagramChannel.class.getMethod("setOption", optionClass, Object.class).invoke(channel,
+          option, value);
+    } catch (InvocationTargetException e) {
+      throw new IOException("Cannot set " + name + ": " + e.getCause());
+    } catch (Exception e) {
+      throw new IOException("Cannot set " + name + ": " + e);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public InetSocketAddress getLocalAddress() {
+    return shards[0].getLocalAddress();
+  }
+
+  /**
+   * Sends a packet from this endpoint port. When called from a processor thread, the packet is
+   * queued and will be sent at the end of the current I/O loop iteration.
+   *
+   * @param buffer the packet, between the buffer position and limit. The buffer must not be used
+   *          by the caller after this call.
+   * @param target the destination address
+   */
+  public void send(IoBuffer buffer, InetSocketAddress target) {
+    Thread thread = Thread.currentThread();
+    if (batchSize > 1 && thread instanceof Processor) {
+      ((Processor) thread).batch.add(this, buffer, target);
+    } else {
+      transmit(buffer, target);
+    }
+  }
+
+  /**
+   * Writes a packet on one of the sockets. A processor thread always uses the same socket, so that
+   * the processors of the different endpoints don't all write on the first one.
+   *
+   * @return true if the packet was sent, false if it was dropped
+   */
+  boolean transmit(IoBuffer buffer, InetSocketAddress target) {
+    Shard[] shards = this.shards;
+    Thread thread = Thread.currentThread();
+    Shard shard = shards[0];
+    if (thread instanceof Processor)
+      shard = shards[((Processor) thread).shard.index % shards.length];
+
+    try {
+      if (shard.channel.send(buffer.buf(), target) > 0) return true;
+    } catch (ClosedChannelException e) {
+      // endpoint stopped
+    } catch (IOException e) {
+      log.debug(name + ": cannot send to " + target + ": " + e);
+    } finally {
+      buffer.free();
+    }
+    shard.packetsDropped.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * @return the number of sockets bound by this endpoint
+   */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * @return the number of datagrams received on all the sockets
+   */
+  public long getPacketsReceived() {
+    long count = 0;
+    for (int i = 0; i < shards.length; i++)
+      count += shards[i].packetsReceived;
+    return count;
+  }
+
+  /**
+   * @return the number of datagrams received on a socket
+   */
+  public long getPacketsReceived(int shard) {
+    return shards[shard].packetsReceived;
+  }
+
+  /**
+   * @return the number of datagrams that could not be sent or handled, on all the sockets
+   */
+  public long getPacketsDropped() {
+    long count = 0;
+    for (int i = 0; i < shards.length; i++)
+      count += shards[i].packetsDropped.get();
+    return count;
+  }
+
+  /**
+   * @return the number of datagrams that could not be sent or handled on a socket
+   */
+  public long getPacketsDropped(int shard) {
+    return shards[shard].packetsDropped.get();
+  }
+
+  public String toString() {
+    return "DatagramEndpoint(" + name + ", " + bindAddress + ")";
+  }
+
+  private static Object reusePortOption;
+  private static Method setOptionMethod;
+  private static boolean reusePortChecked = false;
+
+  /**
+   * SO_REUSEPORT is only available from Java 9 and the option is looked up by reflection.
+   *
+   * @return the SO_REUSEPORT socket option, or null if it's not supported
+   */
+  private static synchronized Object getReusePortOption() {
+    if (reusePortChecked) return reusePortOption;
+    reusePortChecked = true;
+    try {
+      Class<?> optionClass = Class.forName("java.net.SocketOption");
+      Object option =
+          Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+      Method supportedOptions = DatagramChannel.class.getMethod("supportedOptions");
+      DatagramChannel channel = DatagramChannel.open();
+      try {
+        if (!((Set<?>) supportedOptions.invoke(channel)).contains(option)) return null;
+      } finally {
+        channel.close();
+      }
+      setOptionMethod = DatagramChannel.class.getMethod("setOption", optionClass, Object.class);
+      reusePortOption = option;
+    } catch (Exception e) {
+      log.debug("SO_REUSEPORT not available: " + e);
+    }
+    return reusePortOption;
+  }
+
+  /**
+   * One of the sockets of the endpoint, with its processor thread and counters.
+   */
+  private class Shard {
+
+    final int index;
+    final DatagramChannel channel;
+    Selector selector;
+    final Processor processor;
+
+    /** Updated by the processor thread only */
+    volatile long packetsReceived = 0;
+    /** Packets can be sent from any processor thread */
+    final AtomicLong packetsDropped = new AtomicLong();
+
+    Shard(int index) throws IOException {
+      this.index = index;
+      this.channel = DatagramChannel.open();
+      this.processor = new Processor(this);
+    }
+
+    void bind(InetSocketAddress address, boolean reusePort) throws IOException {
+      if (reusePort) {
+        try {
+          setOptionMethod.invoke(channel, getReusePortOption(), Boolean.TRUE);
+        } catch (Exception e) {
+          throw new IOException("Cannot set SO_REUSEPORT: " + e);
+        }
+      }
+      if (reuseAddress) channel.socket().setReuseAddress(true);
+      if (receiveBufferSize > 0) channel.socket().setReceiveBufferSize(receiveBufferSize);
+      channel.socket().bind(address);
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+      processor.setName(name + "-" + getLocalAddress().getPort() + "-" + index);
+    }
+
+    InetSocketAddress getLocalAddress() {
+      return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    }
+
+    void close() {
+      try {
+        if (selector != null) selector.close();
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Error closing " + name + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * The thread reading a socket of the endpoint. It owns the batch of the packets it sends.
+   */
+  private class Processor extends Thread {
+
+    final Shard shard;
+    final PacketBatch batch = new PacketBatch(Math.max(batchSize, 1));
+
+    Processor(Shard shard) {
+      this.shard = shard;
+      setDaemon(true);
+    }
+
+    public void run() {
+      Selector selector = shard.selector;
+      DatagramChannel channel = shard.channel;
+      IoBuffer buffer = null;
+      while (running) {
+        try {
+          if (selector.select(SELECT_TIMEOUT) > 0) selector.selectedKeys().clear();
+
+          for (int i = 0; i < MAX_READS_PER_LOOP; i++) {
+            if (buffer == null) buffer = BufferPool.allocate(maxPacketSize);
+            SocketAddress source = channel.receive(buffer.buf());
+            if (source == null) break;
+
+            buffer.flip();
+            shard.packetsReceived++;
+            try {
+              handler.packetReceived(DatagramEndpoint.this, (InetSocketAddress) source, buffer);
+            } catch (RuntimeException e) {
+              shard.packetsDropped.incrementAndGet();
+              log.debug(name + ": error handling packet from " + source + ": " + e);
+              Exceptions.logStackTrace(e);
+            }
+            // the handler owns the buffer now
+            buffer = null;
+          }
+
+          batch.flush();
+
+        } catch (ClosedSelectorException e) {
+          break;
+        } catch (ClosedChannelException e) {
+          break;
+        } catch (IOException e) {
+          if (running) log.warn(name + ": " + e);
+        }
+      }
+      batch.flush();
+    }
+  }
+}
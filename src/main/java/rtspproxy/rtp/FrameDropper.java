@@ -0,0 +1,177 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.rtp;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+
+/**
+ * Decides which RTP packets of a flow to drop when its receiver can't keep up, so that whole frames
+ * are dropped instead of random packets.
+ * <p>
+ * The decision is based on the backlog of the receiver, the number of bytes written and not sent
+ * yet, and is taken once per frame: a frame is made of the packets sharing the same timestamp, and
+ * ends with the marker bit.
+ * <ul>
+ * <li>Above <code>proxy.slowConsumer.highWater</code> bytes the flow is degraded: for H.264, the
+ * frames no other frame refers to are dropped; for other payloads (audio, mostly) every frame is
+ * dropped.</li>
+ * <li>Above <code>proxy.slowConsumer.maxBacklog</code> bytes, H.264 reference frames are dropped
+ * too, and then every packet until the next keyframe, since the following frames couldn't be
+ * decoded anyway.</li>
+ * <li>Below <code>proxy.slowConsumer.lowWater</code> bytes the flow is back to normal.</li>
+ * </ul>
+ * A dropper is used by a single thread; the counters can be read from any thread.
+ */
+public class FrameDropper {
+
+  private enum State {
+    NORMAL, DEGRADED, WAIT_KEYFRAME
+  }
+
+  private final int lowWater = Config.getInt("proxy.slowConsumer.lowWater", 32768);
+  private final int highWater = Config.getInt("proxy.slowConsumer.highWater", 196608);
+  private final int maxBacklog = Config.getInt("proxy.slowConsumer.maxBacklog", 393216);
+
+  private final RtpPacketView view = new RtpPacketView();
+  private volatile boolean h264 = false;
+
+  private State state = State.NORMAL;
+  private boolean first = true;
+  private boolean lastMarker = false;
+  private long lastTimestamp;
+  /** Whether the frame being received has been classified yet, and if it's dropped */
+  private boolean frameDecided;
+  private boolean dropFrame;
+
+  private volatile long framesDropped = 0;
+  private volatile long packetsDropped = 0;
+  private volatile long degradedSince = 0;
+  private volatile long degradedTime = 0;
+  private volatile int degradedCount = 0;
+
+  /**
+   * @param h264 whether the payload is H.264, so that reference frames and keyframes can be told
+   *          apart
+   */
+  public void setH264(boolean h264) {
+    this.h264 = h264;
+  }
+
+  public boolean isH264() {
+    return h264;
+  }
+
+  /**
+   * @param buffer a RTP packet, starting at the buffer position
+   * @param backlog the number of bytes queued for the receiver
+   * @return true if the packet should be sent, false if it's dropped
+   */
+  public boolean accept(IoBuffer buffer, int backlog) {
+    view.wrap(buffer);
+    if (!view.isValid()) return true;
+
+    long timestamp = view.getTimestamp();
+    boolean frameStart = first || lastMarker || timestamp != lastTimestamp;
+    first = false;
+    lastMarker = view.isMarker();
+    lastTimestamp = timestamp;
+
+    if (frameStart) {
+      frameDecided = false;
+      dropFrame = false;
+      updateState(backlog);
+    }
+    if (state == State.NORMAL) return true;
+
+    boolean isH264 = h264;
+    int flags = isH264 ? H264Payload.classify(buffer, view.getPayloadOffset(),
+        view.getPayloadLength()) : 0;
+
+    if (state == State.WAIT_KEYFRAME) {
+      if ((flags & H264Payload.KEYFRAME) != 0 && backlog < highWater) {
+        // resume at the start of the keyframe: the rest of the frame is sent
+        setState(backlog < lowWater ? State.NORMAL : State.DEGRADED);
+        frameDecided = true;
+        dropFrame = false;
+        return true;
+      }
+      if (frameStart) framesDropped++;
+      packetsDropped++;
+      return false;
+    }
+
+    // Degraded: the frame is classified by its first slice. The parameter sets and SEI that may
+    // precede it are sent in any case.
+    if (!frameDecided && (!isH264 || (flags & H264Payload.SLICE) != 0)) {
+      frameDecided = true;
+      dropFrame = !isH264 || (flags & H264Payload.REFERENCE) == 0;
+      if (dropFrame) framesDropped++;
+    }
+    if (dropFrame) packetsDropped++;
+    return !dropFrame;
+  }
+
+  private void updateState(int backlog) {
+    switch (state) {
+      case NORMAL:
+        if (backlog > highWater) setState(State.DEGRADED);
+        break;
+      case DEGRADED:
+        if (backlog < lowWater) setState(State.NORMAL);
+        else if (backlog > maxBacklog && h264) setState(State.WAIT_KEYFRAME);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void setState(State newState) {
+    long now = System.currentTimeMillis();
+    if (state == State.NORMAL) {
+      degradedSince = now;
+      degradedCount++;
+    } else if (newState == State.NORMAL) {
+      degradedTime += now - degradedSince;
+      degradedSince = 0;
+    }
+    state = newState;
+  }
+
+  /**
+   * @return true if frames are being dropped
+   */
+  public boolean isDegraded() {
+    return degradedSince != 0;
+  }
+
+  public long getFramesDropped() {
+    return framesDropped;
+  }
+
+  public long getPacketsDropped() {
+    return packetsDropped;
+  }
+
+  /**
+   * @return the number of times the flow has been degraded
+   */
+  public int getDegradedCount() {
+    return degradedCount;
+  }
+
+  /**
+   * @return the time spent degraded, in milliseconds, including the current period
+   */
+  public long getDegradedTime() {
+    long since = degradedSince;
+    return degradedTime + (since != 0 ? System.currentTimeMillis() - since : 0);
+  }
+}
@@ -0,0 +1,83 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.rtp;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Inspects the payload of H.264 RTP packets (RFC 6184) to tell what kind of frame they carry,
+ * without decoding them: only the NAL unit headers are read.
+ * <p>
+ * Single NAL unit packets, STAP-A aggregates and FU-A fragments are understood. The flags of a
+ * fragment are only set on its first fragment, the following ones carry no NAL unit header.
+ */
+public class H264Payload {
+
+  /** The packet starts a slice (VCL NAL unit) */
+  public static final int SLICE = 1;
+  /** The packet starts a slice used as a reference by other frames (nal_ref_idc != 0) */
+  public static final int REFERENCE = 2;
+  /** The packet starts an IDR slice or carries a SPS: decoding can start from it */
+  public static final int KEYFRAME = 4;
+  /** The packet carries a SPS or a PPS, needed to decode the slices that follow */
+  public static final int PARAMETER_SET = 8;
+
+  public static final int NAL_SLICE = 1;
+  public static final int NAL_IDR = 5;
+  public static final int NAL_SPS = 7;
+  public static final int NAL_PPS = 8;
+  public static final int NAL_STAP_A = 24;
+  public static final int NAL_FU_A = 28;
+
+  private H264Payload() {}
+
+  /**
+   * @param buffer the buffer containing the packet
+   * @param offset absolute index of the RTP payload
+   * @param length size of the RTP payload
+   * @return a combination of {@link #SLICE}, {@link #REFERENCE}, {@link #KEYFRAME} and
+   *         {@link #PARAMETER_SET}
+   */
+  public static int classify(IoBuffer buffer, int offset, int length) {
+    if (length < 1) return 0;
+    int header = buffer.get(offset) & 0xFF;
+    int type = header & 0x1F;
+
+    if (type == NAL_FU_A) {
+      if (length < 2) return 0;
+      int fuHeader = buffer.get(offset + 1) & 0xFF;
+      // only the start fragment tells something
+      if ((fuHeader & 0x80) == 0) return 0;
+      return classifyNal((header & 0x60) | (fuHeader & 0x1F));
+
+    } else if (type == NAL_STAP_A) {
+      int flags = 0;
+      int index = offset + 1;
+      int end = offset + length;
+      while (index + 2 < end) {
+        int size = buffer.getShort(index) & 0xFFFF;
+        flags |= classifyNal(buffer.get(index + 2) & 0xFF);
+        index += 2 + size;
+      }
+      return flags;
+    }
+    return classifyNal(header);
+  }
+
+  private static int classifyNal(int header) {
+    int type = header & 0x1F;
+    if (type == NAL_SPS) return KEYFRAME | PARAMETER_SET;
+    if (type == NAL_PPS) return PARAMETER_SET;
+    if (type < NAL_SLICE || type > NAL_IDR) return 0;
+    int flags = SLICE;
+    if ((header & 0x60) != 0) flags |= REFERENCE;
+    if (type == NAL_IDR) flags |= KEYFRAME;
+    return flags;
+  }
+}
@@ -0,0 +1,76 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.rtp;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Inspects the payload of H.265 RTP packets (RFC 7798) to tell what kind of frame they carry, with
+ * the same flags as {@link H264Payload}.
+ * <p>
+ * Single NAL unit packets, aggregation packets and fragmentation units are understood, without
+ * DONL fields. IRAP pictures (IDR, CRA and BLA) are keyframes, and the sub-layer non-reference
+ * pictures are the only slices that are not used as a reference.
+ */
+public class H265Payload {
+
+  public static final int NAL_IRAP_FIRST = 16;
+  public static final int NAL_IRAP_LAST = 23;
+  public static final int NAL_VPS = 32;
+  public static final int NAL_SPS = 33;
+  public static final int NAL_PPS = 34;
+  public static final int NAL_AP = 48;
+  public static final int NAL_FU = 49;
+
+  private H265Payload() {}
+
+  /**
+   * @param buffer the buffer containing the packet
+   * @param offset absolute index of the RTP payload
+   * @param length size of the RTP payload
+   * @return a combination of the flags of {@link H264Payload}
+   */
+  public static int classify(IoBuffer buffer, int offset, int length) {
+    if (length < 2) return 0;
+    int type = (buffer.get(offset) >> 1) & 0x3F;
+
+    if (type == NAL_FU) {
+      if (length < 3) return 0;
+      int fuHeader = buffer.get(offset + 2) & 0xFF;
+      // only the start fragment tells something
+      if ((fuHeader & 0x80) == 0) return 0;
+      return classifyNal(fuHeader & 0x3F);
+
+    } else if (type == NAL_AP) {
+      int flags = 0;
+      int index = offset + 2;
+      int end = offset + length;
+      while (index + 3 < end) {
+        int size = buffer.getShort(index) & 0xFFFF;
+        flags |= classifyNal((buffer.get(index + 2) >> 1) & 0x3F);
+        index += 2 + size;
+      }
+      return flags;
+    }
+    return classifyNal(type);
+  }
+
+  private static int classifyNal(int type) {
+    if (type == NAL_VPS || type == NAL_SPS)
+      return H264Payload.KEYFRAME | H264Payload.PARAMETER_SET;
+    if (type == NAL_PPS) return H264Payload.PARAMETER_SET;
+    if (type > NAL_IRAP_LAST) return 0;
+    if (type > 9 && type < NAL_IRAP_FIRST) return 0; // reserved
+    int flags = H264Payload.SLICE;
+    // TRAIL_N, TSA_N, STSA_N, RADL_N and RASL_N are even
+    if (type >= NAL_IRAP_FIRST || (type & 1) != 0) flags |= H264Payload.REFERENCE;
+    if (type >= NAL_IRAP_FIRST) flags |= H264Payload.KEYFRAME;
+    return flags;
+  }
+}
@@ -0,0 +1,146 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Packets waiting to be sent by a processor thread.
+ * <p>
+ * Each processor thread of a {@link DatagramEndpoint} owns a batch: the packets sent while the
+ * received datagrams are being handled are queued in the batch, and the whole batch is sent in a
+ * single pass at the end of the I/O loop iteration, or as soon as it is full. The batch arrays are
+ * allocated once and re-used for every iteration.
+ * <p>
+ * Batch size and flush latency counters are shared by all the batches. They are updated once per
+ * flush, not per packet.
+ *
+ * @author Matteo Merli
+ */
+public class PacketBatch {
+
+  private static final AtomicLong flushCount = new AtomicLong();
+  private static final AtomicLong packetCount = new AtomicLong();
+  private static final AtomicLong dropCount = new AtomicLong();
+  private static final AtomicLong maxBatchSize = new AtomicLong();
+  private static final AtomicLong totalLatency = new AtomicLong();
+  private static final AtomicLong maxLatency = new AtomicLong();
+
+  private final DatagramEndpoint[] endpoints;
+  private final IoBuffer[] buffers;
+  private final InetSocketAddress[] targets;
+  private int size = 0;
+
+  /** Time at which the first packet of the batch was queued */
+  private long firstQueued;
+
+  /**
+   * @param capacity the maximum number of packets queued before the batch is flushed
+   */
+  public PacketBatch(int capacity) {
+    endpoints = new DatagramEndpoint[capacity];
+    buffers = new IoBuffer[capacity];
+    targets = new InetSocketAddress[capacity];
+  }
+
+  /**
+   * Queues a packet.
+   *
+   * @param endpoint the endpoint whose socket will send the packet
+   * @param buffer the packet
+   * @param target the destination address
+   */
+  public void add(DatagramEndpoint endpoint, IoBuffer buffer, InetSocketAddress target) {
+    if (size == 0) firstQueued = System.nanoTime();
+    endpoints[size] = endpoint;
+    buffers[size] = buffer;
+    targets[size] = target;
+    if (++size == endpoints.length) flush();
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Sends all the queued packets.
+   */
+  public void flush() {
+    if (size == 0) return;
+
+    int sent = 0;
+    for (int i = 0; i < size; i++) {
+      if (endpoints[i].transmit(buffers[i], targets[i])) sent++;
+      endpoints[i] = null;
+      buffers[i] = null;
+      targets[i] = null;
+    }
+
+    long latency = System.nanoTime() - firstQueued;
+    flushCount.incrementAndGet();
+    packetCount.addAndGet(size);
+    if (sent < size) dropCount.addAndGet(size - sent);
+    totalLatency.addAndGet(latency);
+    updateMax(maxBatchSize, size);
+    updateMax(maxLatency, latency);
+    size = 0;
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current;
+    while (value > (current = max.get())) {
+      if (max.compareAndSet(current, value)) return;
+    }
+  }
+
+  /**
+   * @return the number of batches flushed
+   */
+  public static long getFlushCount() {
+    return flushCount.get();
+  }
+
+  /**
+   * @return the number of packets sent through batches, including the dropped ones
+   */
+  public static long getPacketCount() {
+    return packetCount.get();
+  }
+
+  /**
+   * @return the number of packets that could not be sent because the socket buffer was full
+   */
+  public static long getDropCount() {
+    return dropCount.get();
+  }
+
+  public static double getAverageBatchSize() {
+    long flushes = flushCount.get();
+    return flushes == 0 ? 0 : (double) packetCount.get() / flushes;
+  }
+
+  public static long getMaxBatchSize() {
+    return maxBatchSize.get();
+  }
+
+  /**
+   * @return the average time, in nanoseconds, between the moment the first packet of a batch is
+   *         queued and the end of the flush
+   */
+  public static long getAverageFlushLatency() {
+    long flushes = flushCount.get();
+    return flushes == 0 ? 0 : totalLatency.get() / flushes;
+  }
+
+  public static long getMaxFlushLatency() {
+    return maxLatency.get();
+  }
+}
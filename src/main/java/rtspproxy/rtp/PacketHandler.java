@@ -0,0 +1,32 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp;
+
+import java.net.InetSocketAddress;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Receives the datagrams read by a {@link DatagramEndpoint}.
+ *
+ * @author Matteo Merli
+ */
+public interface PacketHandler {
+
+  /**
+   * Called by the processor thread of the endpoint for every datagram received.
+   * <p>
+   * The buffer is not used anymore by the endpoint after this call, so it can be kept or sent as
+   * is.
+   *
+   * @param endpoint the endpoint that received the packet
+   * @param source the address of the sender
+   * @param buffer a buffer containing the datagram, between its position and its limit
+   */
+  void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source, IoBuffer buffer);
+}
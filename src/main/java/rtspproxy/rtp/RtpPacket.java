@@ -55,6 +55,12 @@ public class RtpPacket implements Packet {
 
   private static Logger logger = Logger.getLogger(RtpPacket.class);
 
+  /** Size of the fixed part of the RTP header. */
+  public static final int HEADER_SIZE = 12;
+
+  /** Offset of the SSRC identifier from the start of the packet. */
+  public static final int SSRC_OFFSET = 8;
+
   /**
    * This field identifies the version of RTP. The version defined by this specification is two (2).
    * (The value 1 is used by the first draft version of RTP and the value 0 is used by the protocol
@@ -142,66 +148,107 @@ public class RtpPacket implements Packet {
   private byte[] payload = {};
 
   /**
-   * Construct a new RtpPacket reading the fields from a ByteBuffer
+   * Construct a new RtpPacket reading the fields from a ByteBuffer. All the remaining bytes of the
+   * buffer are consumed.
    * 
    * @param buffer the buffer containing the packet
    */
   public RtpPacket(IoBuffer buffer) {
-    // Read the packet header
-    byte c = buffer.get();
-    // |V=2|P=1|X=1| CC=4 |
-    this.version = (byte) ((c & 0xC0) >> 6);
-    this.padding = ((c & 0x20) >> 5) == 1;
-    this.extension = ((c & 0x10) >> 4) == 1;
-    this.csrcCount = (byte) (c & 0x0F);
-
-    c = buffer.get();
-    // |M=1| PT=7 |
-    this.marker = ((c & 0x80) >> 7) == 1;
-    this.payloadType = new UnsignedByte(c & 0x7F);
-
-    this.sequence = new UnsignedShort(buffer.getShort());
-    this.timestamp = new UnsignedInt(buffer.getInt());
-    this.ssrc = new UnsignedInt(buffer.getInt());
+    this(new RtpPacketView(buffer));
+    buffer.position(buffer.limit());
+  }
+
+  /**
+   * Construct a new RtpPacket copying the fields from a packet view. The header extension and the
+   * payload are copied, while padding bytes are discarded.
+   * 
+   * @param view a view over the packet
+   */
+  public RtpPacket(RtpPacketView view) {
+    this.version = (byte) view.getVersion();
+    this.padding = view.isPadding();
+    this.extension = view.hasExtension();
+    this.csrcCount = (byte) view.getCsrcCount();
+    this.marker = view.isMarker();
+    this.payloadType = new UnsignedByte(view.getPayloadType());
+    this.sequence = new UnsignedShort(view.getSequence());
+    this.timestamp = new UnsignedInt(view.getTimestamp());
+    this.ssrc = new UnsignedInt(view.getSsrc() & 0xFFFFFFFFL);
 
     // CSRC list
     csrc = new UnsignedInt[csrcCount];
     for (int i = 0; i < csrcCount; i++) {
-      csrc[i] = new UnsignedInt(buffer.getInt());
+      csrc[i] = new UnsignedInt(view.getCsrc(i) & 0xFFFFFFFFL);
     }
 
+    IoBuffer buffer = view.getBuffer();
+
     // Read the extension header if present
     if (extension) {
-      this.profileExtension = buffer.getShort();
-      int length = buffer.getShort();
-      this.headerExtension = new byte[length];
-      buffer.get(this.headerExtension);
+      int extensionOffset = view.getExtensionOffset();
+      this.profileExtension = buffer.getShort(extensionOffset);
+      this.headerExtension = new byte[view.getExtensionLength()];
+      copy(buffer, extensionOffset + RtpPacketView.EXTENSION_HEADER_SIZE, headerExtension);
     }
 
     // Read the payload
-    int payloadSize = buffer.remaining();
-    this.payload = new byte[payloadSize];
-    buffer.get(payload);
+    this.payload = new byte[Math.max(view.getPayloadLength(), 0)];
+    copy(buffer, view.getPayloadOffset(), payload);
 
     if (version != 2) {
       logger.debug("Packet Version is not 2.");
     }
   }
 
+  private static void copy(IoBuffer buffer, int index, byte[] dst) {
+    for (int i = 0; i < dst.length; i++)
+      dst[i] = buffer.get(index + i);
+  }
+
   protected RtpPacket() {
     // Creates an empty packet
   }
 
+  /**
+   * Reads the SSRC identifier of the RTP packet starting at the current position of the buffer,
+   * without decoding the packet and without modifying the buffer position.
+   *
+   * @param buffer the buffer containing the packet
+   * @return the SSRC identifier as a raw 32 bit value
+   */
+  public static int peekSsrc(IoBuffer buffer) {
+    return buffer.getInt(buffer.position() + SSRC_OFFSET);
+  }
+
+  /**
+   * Overwrites, in place, the SSRC identifier of the RTP packet starting at the current position
+   * of the buffer. The buffer position is not modified, so the same buffer can be written
+   * directly to another session.
+   *
+   * @param buffer the buffer containing the packet
+   * @param ssrc the new SSRC identifier as a raw 32 bit value
+   */
+  public static void patchSsrc(IoBuffer buffer, int ssrc) {
+    buffer.putInt(buffer.position() + SSRC_OFFSET, ssrc);
+  }
+
   /**
    * Convert the packet instance into a {@link ByteBuffer} ready to be sent.
    * 
    * @return a new ByteBuffer
    */
   public IoBuffer toByteBuffer() {
-    int packetSize = 12 + csrc.length * 4 + payload.length;
-    if (extension) packetSize += headerExtension.length;
+    // extension data is always sent as a whole number of 32 bit words
+    int extensionWords = (headerExtension.length + 3) / 4;
+
+    int packetSize = HEADER_SIZE + csrc.length * 4 + payload.length;
+    if (extension) packetSize += RtpPacketView.EXTENSION_HEADER_SIZE + extensionWords * 4;
+
+    // keep the packet aligned to 32 bits; at least one byte is needed to hold the padding count
+    int paddingSize = padding ? 4 - (packetSize % 4) : 0;
+    packetSize += paddingSize;
 
-    IoBuffer buffer = IoBuffer.allocate(packetSize);
+    IoBuffer buffer = BufferPool.allocate(packetSize);
     buffer.limit(packetSize);
 
     byte c = 0x00;
@@ -225,11 +272,20 @@ public class RtpPacket implements Packet {
     // Write the extension header if present
     if (extension) {
       buffer.putShort(profileExtension);
-      buffer.putShort((short) headerExtension.length);
+      buffer.putShort((short) extensionWords);
       buffer.put(headerExtension);
+      for (int i = headerExtension.length; i < extensionWords * 4; i++)
+        buffer.put((byte) 0);
     }
 
     buffer.put(payload);
+
+    if (paddingSize > 0) {
+      for (int i = 1; i < paddingSize; i++)
+        buffer.put((byte) 0);
+      buffer.put((byte) paddingSize);
+    }
+
     buffer.rewind();
     return buffer;
   }
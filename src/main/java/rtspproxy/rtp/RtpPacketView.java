@@ -0,0 +1,251 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * A flyweight view over a RTP packet contained in a {@link IoBuffer}.
+ * <p>
+ * All the header fields are read and written directly in the underlying buffer, using absolute
+ * indexes, so the buffer position and limit are never modified. Nothing is allocated when reading
+ * a field, and the same view instance can be re-used for every packet with {@link #wrap(IoBuffer)}.
+ * <p>
+ * Field values are returned as primitive types: the sequence number as an <code>int</code> in the
+ * 0-65535 range, the timestamp as a <code>long</code> in the 0-(2^32 - 1) range and SSRC/CSRC
+ * identifiers as raw 32 bit <code>int</code> values.
+ * <p>
+ * A view is not thread safe.
+ *
+ * @see RtpPacket
+ */
+public class RtpPacketView {
+
+  /** Size of the RTP extension header (profile specific word + length). */
+  public static final int EXTENSION_HEADER_SIZE = 4;
+
+  private IoBuffer buffer;
+  private int offset;
+  private int length;
+
+  /**
+   * Creates an empty view. {@link #wrap(IoBuffer)} must be called before accessing any field.
+   */
+  public RtpPacketView() {}
+
+  /**
+   * Creates a view over the packet contained between the position and the limit of the buffer.
+   *
+   * @param buffer the buffer containing the packet
+   */
+  public RtpPacketView(IoBuffer buffer) {
+    wrap(buffer);
+  }
+
+  /**
+   * Points this view to the packet contained between the position and the limit of the buffer.
+   *
+   * @param buffer the buffer containing the packet
+   * @return this view
+   */
+  public RtpPacketView wrap(IoBuffer buffer) {
+    return wrap(buffer, buffer.position(), buffer.remaining());
+  }
+
+  /**
+   * Points this view to a packet contained in a region of the buffer.
+   *
+   * @param buffer the buffer containing the packet
+   * @param offset absolute index of the first byte of the packet
+   * @param length size of the packet in bytes
+   * @return this view
+   */
+  public RtpPacketView wrap(IoBuffer buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+    return this;
+  }
+
+  /**
+   * Checks that the buffer contains a well formed RTP version 2 packet: the fixed header, the CSRC
+   * list, the extension header and the padding must all fit in the packet length.
+   *
+   * @return true if the packet can be safely accessed through this view
+   */
+  public boolean isValid() {
+    if (length < RtpPacket.HEADER_SIZE || getVersion() != 2) return false;
+
+    int headerLength = RtpPacket.HEADER_SIZE + getCsrcCount() * 4;
+    if (hasExtension()) {
+      if (length < headerLength + EXTENSION_HEADER_SIZE) return false;
+      headerLength += EXTENSION_HEADER_SIZE + getExtensionLength();
+    }
+
+    if (length < headerLength) return false;
+    if (isPadding()) {
+      int padding = getPaddingLength();
+      if (padding == 0 || headerLength + padding > length) return false;
+    }
+    return true;
+  }
+
+  public IoBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @return the absolute index of the first byte of the packet
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the size of the whole packet, including padding
+   */
+  public int getLength() {
+    return length;
+  }
+
+  public int getVersion() {
+    return (buffer.get(offset) & 0xC0) >>> 6;
+  }
+
+  public boolean isPadding() {
+    return (buffer.get(offset) & 0x20) != 0;
+  }
+
+  public boolean hasExtension() {
+    return (buffer.get(offset) & 0x10) != 0;
+  }
+
+  public int getCsrcCount() {
+    return buffer.get(offset) & 0x0F;
+  }
+
+  public boolean isMarker() {
+    return (buffer.get(offset + 1) & 0x80) != 0;
+  }
+
+  public void setMarker(boolean marker) {
+    int b = buffer.get(offset + 1) & 0x7F;
+    buffer.put(offset + 1, (byte) (marker ? b | 0x80 : b));
+  }
+
+  public int getPayloadType() {
+    return buffer.get(offset + 1) & 0x7F;
+  }
+
+  public void setPayloadType(int payloadType) {
+    int b = buffer.get(offset + 1) & 0x80;
+    buffer.put(offset + 1, (byte) (b | (payloadType & 0x7F)));
+  }
+
+  public int getSequence() {
+    return buffer.getShort(offset + 2) & 0xFFFF;
+  }
+
+  public void setSequence(int sequence) {
+    buffer.putShort(offset + 2, (short) sequence);
+  }
+
+  public long getTimestamp() {
+    return buffer.getInt(offset + 4) & 0xFFFFFFFFL;
+  }
+
+  public void setTimestamp(long timestamp) {
+    buffer.putInt(offset + 4, (int) timestamp);
+  }
+
+  public int getSsrc() {
+    return buffer.getInt(offset + RtpPacket.SSRC_OFFSET);
+  }
+
+  public void setSsrc(int ssrc) {
+    buffer.putInt(offset + RtpPacket.SSRC_OFFSET, ssrc);
+  }
+
+  /**
+   * @param index CSRC index, between 0 and {@link #getCsrcCount()} - 1
+   * @return the CSRC identifier
+   */
+  public int getCsrc(int index) {
+    return buffer.getInt(offset + RtpPacket.HEADER_SIZE + index * 4);
+  }
+
+  public void setCsrc(int index, int csrc) {
+    buffer.putInt(offset + RtpPacket.HEADER_SIZE + index * 4, csrc);
+  }
+
+  /**
+   * @return the absolute index of the extension header (the profile specific word)
+   */
+  public int getExtensionOffset() {
+    return offset + RtpPacket.HEADER_SIZE + getCsrcCount() * 4;
+  }
+
+  /**
+   * @return the 16 bits profile specific value of the extension header, or -1 if the packet has no
+   *         extension header
+   */
+  public int getExtensionProfile() {
+    if (!hasExtension()) return -1;
+    return buffer.getShort(getExtensionOffset()) & 0xFFFF;
+  }
+
+  /**
+   * The length field of the extension header counts the number of 32 bit words of extension data,
+   * excluding the four-octet extension header itself.
+   *
+   * @return the size, in bytes, of the extension data or 0 if there is no extension header
+   */
+  public int getExtensionLength() {
+    if (!hasExtension()) return 0;
+    return (buffer.getShort(getExtensionOffset() + 2) & 0xFFFF) * 4;
+  }
+
+  /**
+   * @return the size of the header, including the CSRC list and the extension header
+   */
+  public int getHeaderLength() {
+    int headerLength = RtpPacket.HEADER_SIZE + getCsrcCount() * 4;
+    if (hasExtension()) headerLength += EXTENSION_HEADER_SIZE + getExtensionLength();
+    return headerLength;
+  }
+
+  /**
+   * The last octet of the padding contains a count of how many padding octets should be ignored,
+   * including itself.
+   *
+   * @return the number of padding bytes at the end of the packet
+   */
+  public int getPaddingLength() {
+    if (!isPadding()) return 0;
+    return buffer.get(offset + length - 1) & 0xFF;
+  }
+
+  /**
+   * @return the absolute index of the first byte of the payload
+   */
+  public int getPayloadOffset() {
+    return offset + getHeaderLength();
+  }
+
+  /**
+   * @return the size of the payload, with padding removed
+   */
+  public int getPayloadLength() {
+    return length - getHeaderLength() - getPaddingLength();
+  }
+
+  public String toString() {
+    return "RtpPacketView(seq=" + getSequence() + ", ts=" + getTimestamp() + ", ssrc="
+        + Integer.toHexString(getSsrc()) + ", pt=" + getPayloadType() + ", len=" + length + ")";
+  }
+}
@@ -0,0 +1,201 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.rtp;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+
+/**
+ * Generates ULPFEC packets (RFC 5109) protecting groups of consecutive RTP packets, so that a
+ * receiver can rebuild any single packet lost in a group.
+ * <p>
+ * Each FEC packet carries a single protection level covering the whole packets: the XOR of their
+ * headers fields, lengths and of everything following their 12 bytes RTP header. A group holds at
+ * most 16 packets, whose sequence numbers must be less than 16 apart; a packet too far from the
+ * first one of the group closes it early.
+ * <p>
+ * The XOR is accumulated 8 bytes at a time in an array allocated once, sized for the largest
+ * packet received by the proxy (<code>proxy.rtp.maxPacketSize</code>): the only allocation is the
+ * FEC packet itself, taken from the {@link BufferPool}. Longer packets are not protected.
+ */
+public class UlpfecEncoder {
+
+  /** Size of the FEC header following the RTP header */
+  public static final int FEC_HEADER_SIZE = 10;
+
+  /** Size of the header of a protection level with a 16 bits mask */
+  public static final int LEVEL_HEADER_SIZE = 4;
+
+  public static final int MAX_GROUP_SIZE = 16;
+
+  private static final int maxPacketSize = Config.getInt("proxy.rtp.maxPacketSize", 2048);
+
+  private static final AtomicLong packetsProtected = new AtomicLong();
+  private static final AtomicLong bytesProtected = new AtomicLong();
+  private static final AtomicLong fecPackets = new AtomicLong();
+  private static final AtomicLong fecBytes = new AtomicLong();
+
+  private final int groupSize;
+  private final int payloadType;
+
+  /** XOR of the packets after the RTP header, as big endian 64 bit words */
+  private final long[] words;
+
+  /** Number of packets of the current group, and sequence number of the first one */
+  private int count = 0;
+  private int base;
+  private int mask;
+
+  /** XOR of the first 2 bytes (flags, marker and payload type), timestamps and lengths */
+  private int flagsRecovery;
+  private int timestampRecovery;
+  private int lengthRecovery;
+
+  /** Length of the longest packet of the group, after the RTP header */
+  private int protectionLength;
+  private int lastTimestamp;
+  private int groupBytes;
+
+  /** Sequence number of the next FEC packet */
+  private int sequence = (int) (Math.random() * 0x10000);
+
+  /**
+   * @param groupSize number of packets protected by each FEC packet, between 2 and 16
+   * @param payloadType the payload type of the FEC packets
+   */
+  public UlpfecEncoder(int groupSize, int payloadType) {
+    this.groupSize = Math.max(2, Math.min(groupSize, MAX_GROUP_SIZE));
+    this.payloadType = payloadType;
+    this.words = new long[(maxPacketSize + 7) / 8];
+  }
+
+  public int getGroupSize() {
+    return groupSize;
+  }
+
+  /**
+   * Adds a packet to the current group. The buffer is left unchanged, and must then be sent
+   * before the FEC packet returned, if any.
+   *
+   * @param packet a buffer containing a RTP packet, starting at its current position, as sent to
+   *          the receiver
+   * @param ssrc the SSRC of the FEC packets
+   * @return a FEC packet to send, the caller taking ownership of it, or null
+   */
+  public synchronized IoBuffer add(IoBuffer packet, int ssrc) {
+    int position = packet.position();
+    int length = packet.remaining() - RtpPacket.HEADER_SIZE;
+    if (length < 0 || length > words.length * 8) return null;
+    int packetSequence = packet.getShort(position + 2) & 0xFFFF;
+
+    IoBuffer fec = null;
+    if (count > 0) {
+      int offset = (packetSequence - base) & 0xFFFF;
+      if (offset >= MAX_GROUP_SIZE) {
+        fec = finish(ssrc);
+      } else if ((mask & (0x8000 >>> offset)) != 0) {
+        // already protected
+        return null;
+      }
+    }
+    if (count == 0) base = packetSequence;
+
+    flagsRecovery ^= packet.getShort(position) & 0xFFFF;
+    lastTimestamp = packet.getInt(position + 4);
+    timestampRecovery ^= lastTimestamp;
+    lengthRecovery ^= length;
+    if (length > protectionLength) protectionLength = length;
+
+    int start = position + RtpPacket.HEADER_SIZE;
+    int full = length >>> 3;
+    for (int i = 0; i < full; i++)
+      words[i] ^= packet.getLong(start + (i << 3));
+    int rest = length & 7;
+    if (rest != 0) {
+      long tail = 0;
+      int index = start + (full << 3);
+      for (int j = 0; j < rest; j++)
+        tail |= (packet.get(index + j) & 0xFFL) << (56 - (j << 3));
+      words[full] ^= tail;
+    }
+
+    mask |= 0x8000 >>> ((packetSequence - base) & 0xFFFF);
+    groupBytes += length + RtpPacket.HEADER_SIZE;
+    count++;
+
+    if (fec == null && count == groupSize) fec = finish(ssrc);
+    return fec;
+  }
+
+  /**
+   * @return the FEC packet of the current group, which is then reset
+   */
+  private IoBuffer finish(int ssrc) {
+    int size = RtpPacket.HEADER_SIZE + FEC_HEADER_SIZE + LEVEL_HEADER_SIZE + protectionLength;
+    IoBuffer fec = BufferPool.allocate(size);
+
+    // RTP header
+    fec.put((byte) 0x80).put((byte) payloadType).putShort((short) sequence++);
+    fec.putInt(lastTimestamp).putInt(ssrc);
+
+    // FEC header: E and L cleared, then the recovery fields
+    fec.put((byte) ((flagsRecovery >>> 8) & 0x3F)).put((byte) flagsRecovery);
+    fec.putShort((short) base).putInt(timestampRecovery).putShort((short) lengthRecovery);
+
+    // level 0 header and payload
+    fec.putShort((short) protectionLength).putShort((short) mask);
+    int full = protectionLength >>> 3;
+    for (int i = 0; i < full; i++)
+      fec.putLong(words[i]);
+    for (int j = 0; j < (protectionLength & 7); j++)
+      fec.put((byte) (words[full] >>> (56 - (j << 3))));
+    fec.flip();
+
+    packetsProtected.addAndGet(count);
+    bytesProtected.addAndGet(groupBytes);
+    fecPackets.incrementAndGet();
+    fecBytes.addAndGet(size);
+
+    Arrays.fill(words, 0, (protectionLength + 7) >>> 3, 0L);
+    count = 0;
+    mask = 0;
+    flagsRecovery = 0;
+    timestampRecovery = 0;
+    lengthRecovery = 0;
+    protectionLength = 0;
+    groupBytes = 0;
+    return fec;
+  }
+
+  /**
+   * @return the number of RTP packets protected by the FEC packets sent
+   */
+  public static long getPacketsProtected() {
+    return packetsProtected.get();
+  }
+
+  /**
+   * @return the number of FEC packets sent
+   */
+  public static long getFecPackets() {
+    return fecPackets.get();
+  }
+
+  /**
+   * @return the bytes of FEC packets sent for every byte of the RTP packets they protect
+   */
+  public static double getOverhead() {
+    long protectedBytes = bytesProtected.get();
+    return protectedBytes > 0 ? (double) fecBytes.get() / protectedBytes : 0;
+  }
+}
@@ -19,6 +19,7 @@ import org.apache.mina.core.buffer.IoBuffer;
 
 import rtspproxy.lib.number.UnsignedByte;
 import rtspproxy.lib.number.UnsignedInt;
+import rtspproxy.rtp.BufferPool;
 import rtspproxy.rtp.Packet;
 
 /**
@@ -28,6 +29,46 @@ public class RtcpPacket implements Packet {
 
   // private static Logger log = Logger.getLogger( RtcpPacket.class );
 
+  /** Size of the common RTCP header, including the sender SSRC. */
+  public static final int HEADER_SIZE = 8;
+
+  /** Offset of the sender SSRC identifier from the start of the packet. */
+  public static final int SSRC_OFFSET = 4;
+
+  /*
+   * Packet types as read from the wire, for the code that does not decode packets
+   */
+  public static final int TYPE_SR = 200;
+  public static final int TYPE_RR = 201;
+  public static final int TYPE_SDES = 202;
+  public static final int TYPE_BYE = 203;
+  public static final int TYPE_APP = 204;
+  public static final int TYPE_RTPFB = 205;
+  public static final int TYPE_PSFB = 206;
+
+  /** Feedback message type of a generic NACK, in a RTPFB packet (RFC 4585) */
+  public static final int FMT_NACK = 1;
+
+  /*
+   * SDES item types
+   */
+  public static final int SDES_END = 0;
+  public static final int SDES_CNAME = 1;
+  public static final int SDES_NAME = 2;
+  public static final int SDES_EMAIL = 3;
+  public static final int SDES_PHONE = 4;
+  public static final int SDES_LOC = 5;
+  public static final int SDES_TOOL = 6;
+  public static final int SDES_NOTE = 7;
+  public static final int SDES_PRIV = 8;
+
+  /** Views used to walk compound packets, one per thread since views are not thread safe */
+  private static final ThreadLocal<RtcpPacketView> views = new ThreadLocal<RtcpPacketView>() {
+    protected RtcpPacketView initialValue() {
+      return new RtcpPacketView();
+    }
+  };
+
   public enum Type {
     /** Sender Report */
     SR(200),
@@ -39,6 +80,10 @@ public class RtcpPacket implements Packet {
     BYE(203),
     /** Application specific */
     APP(204),
+    /** Transport layer feedback */
+    RTPFB(205),
+    /** Payload specific feedback */
+    PSFB(206),
 
     NONE(0);
 
@@ -72,13 +117,13 @@ public class RtcpPacket implements Packet {
 
   protected UnsignedInt ssrc;
 
-  // private RtcpInfo rtcpInfo;
+  /** The rest of the compound packet, including any following RTCP packet */
   protected byte[] packetBuffer;
 
   /**
-   * TODO: At this moment, the RTCP packet is not completely parsed, only some informations are
-   * extracted such as the SSRC identificator. The rest of the packet is saved but not processed nor
-   * validated (for now).
+   * Only the header of the first packet is decoded. The rest of the compound packet is saved as is
+   * and can be accessed with a {@link RtcpPacketView} over the buffer returned by
+   * {@link #toByteBuffer()}.
    */
   public RtcpPacket(IoBuffer buffer) {
     byte c = buffer.get();
@@ -91,10 +136,8 @@ public class RtcpPacket implements Packet {
 
     ssrc = new UnsignedInt(buffer.getInt());
 
-    // we have already read 2 * 4 = 8 bytes
-    // out of ( length + 1 ) * 4 totals
-    int size = Math.min(((length + 1) * 4 - 8), buffer.remaining());
-    packetBuffer = new byte[size];
+    // keep the following packets, so that the whole compound packet is relayed
+    packetBuffer = new byte[buffer.remaining()];
     buffer.get(packetBuffer);
 
     /*
@@ -104,26 +147,75 @@ public class RtcpPacket implements Packet {
      * Long.toHexString( (long) ssrc & 0xFFFFFFFFL ) ); System.err.println( "buffer: " +
      * Arrays.toString( packetBuffer ) );
      */
-
-    /**
-     * <pre>
-		 * switch ( Type.fromByte( packetType ) ) {
-		 * 	case SR:
-		 * 	case RR:
-		 * 	case SDES:
-		 * 		rtcpInfo = new SDESInfo( this, buffer );
-		 * 		break;
-		 * 	case BYE:
-		 * 	case APP:
-		 * 	case NONE:
-		 * 		log.debug( &quot;Invalid RTCP	 packet.&quot; );
-		 * }
-		 * </pre>
-     */
   }
 
   protected RtcpPacket() {}
 
+  /**
+   * Reads the sender SSRC identifier of the (first) RTCP packet starting at the current position
+   * of the buffer, without decoding the packet and without modifying the buffer position.
+   *
+   * @param buffer the buffer containing the packet
+   * @return the SSRC identifier as a raw 32 bit value
+   */
+  public static int peekSsrc(IoBuffer buffer) {
+    return buffer.getInt(buffer.position() + SSRC_OFFSET);
+  }
+
+  /**
+   * Overwrites, in place, the sender SSRC identifier of the (first) RTCP packet starting at the
+   * current position of the buffer. The buffer position is not modified.
+   *
+   * @param buffer the buffer containing the packet
+   * @param ssrc the new SSRC identifier as a raw 32 bit value
+   */
+  public static void patchSsrc(IoBuffer buffer, int ssrc) {
+    buffer.putInt(buffer.position() + SSRC_OFFSET, ssrc);
+  }
+
+  /**
+   * Checks that the buffer contains a well formed compound RTCP packet, starting at its current
+   * position. The buffer position is not modified.
+   *
+   * @see RtcpPacketView#isValidCompound()
+   */
+  public static boolean isValidCompound(IoBuffer buffer) {
+    RtcpPacketView view = views.get().wrap(buffer);
+    boolean valid = view.isValidCompound();
+    view.wrap(null, 0, 0);
+    return valid;
+  }
+
+  /**
+   * Rewrites, in place, every SSRC identifier of the compound RTCP packet starting at the current
+   * position of the buffer. The buffer position is not modified.
+   *
+   * @param buffer the buffer containing the packet
+   * @param sender the SSRC of the sender, as seen by the receiver of the packet
+   * @param from the SSRC of a source, as known by the sender of the packet
+   * @param to the SSRC of the same source, as known by the receiver of the packet
+   * @see RtcpPacketView#rewriteSsrcs(int, int, int)
+   */
+  public static void rewriteSsrcs(IoBuffer buffer, int sender, int from, int to) {
+    RtcpPacketView view = views.get().wrap(buffer);
+    view.rewriteSsrcs(sender, from, to);
+    view.wrap(null, 0, 0);
+  }
+
+  /**
+   * Adds an offset, in place, to the RTP timestamp of every SR packet of the compound RTCP packet
+   * starting at the current position of the buffer. The buffer position is not modified.
+   *
+   * @param buffer the buffer containing the packet
+   * @param delta the offset, added modulo 2^32
+   * @see RtcpPacketView#shiftRtpTimestamps(int)
+   */
+  public static void shiftRtpTimestamps(IoBuffer buffer, int delta) {
+    RtcpPacketView view = views.get().wrap(buffer);
+    view.shiftRtpTimestamps(delta);
+    view.wrap(null, 0, 0);
+  }
+
   /**
    * @return Returns the ssrc.
    */
@@ -148,8 +240,8 @@ public class RtcpPacket implements Packet {
    * @see rtspproxy.rtp.Packet#toByteBuffer()
    */
   public IoBuffer toByteBuffer() {
-    int packetSize = (packetBuffer.length + 2) * 4; // content
-    IoBuffer buffer = IoBuffer.allocate(packetSize);
+    int packetSize = HEADER_SIZE + packetBuffer.length;
+    IoBuffer buffer = BufferPool.allocate(packetSize);
     buffer.limit(packetSize);
 
     // |V=2|P=1| SC=5 |
@@ -0,0 +1,671 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp.rtcp;
+
+import java.nio.ByteBuffer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * A flyweight view over the RTCP packets contained in a {@link IoBuffer}.
+ * <p>
+ * RTCP packets are usually sent as compound packets, several RTCP packets stacked one after the
+ * other in the same datagram. The view points to one of them at a time and {@link #next()} moves it
+ * to the following one:
+ *
+ * <pre>
+ * RtcpPacketView view = new RtcpPacketView(buffer);
+ * while (view.isValid()) {
+ *   // ... access view fields
+ *   view.next();
+ * }
+ * </pre>
+ *
+ * As for {@link rtspproxy.rtp.RtpPacketView}, fields are accessed with absolute indexes and the
+ * view never modifies the buffer position or limit. A view is not thread safe.
+ * <p>
+ * Besides the common header, the view gives access to the fields of every packet type: sender
+ * info and report blocks of SR and RR packets, chunks and items of SDES packets, sources of BYE
+ * packets, name of APP packets and media source and FCI entries of transport and payload specific
+ * feedback packets (RFC 4585, 5104). Variable length structures, as SDES chunks and items, are
+ * walked with cursors: absolute indexes returned by the <code>first...</code> and
+ * <code>next...</code> methods, -1 meaning the end was reached.
+ * <p>
+ * {@link #rewriteSsrcs(int, int, int)} replaces, in place, every SSRC identifier carried by the
+ * compound packet.
+ *
+ * @see RtcpPacket
+ */
+public class RtcpPacketView {
+
+  /** Size of the sender info in a SR packet, after the sender SSRC */
+  public static final int SENDER_INFO_SIZE = 20;
+
+  /** Size of a report block in SR and RR packets */
+  public static final int REPORT_BLOCK_SIZE = 24;
+
+  /** Size of the FCI entries carrying a SSRC: FIR, TMMBR and TMMBN */
+  private static final int FCI_ENTRY_SIZE = 8;
+
+  /** "REMB" as a 32 bit value, the identifier of the receiver estimated maximum bitrate FCI */
+  private static final int REMB = 0x52454D42;
+
+  private IoBuffer buffer;
+  /** Absolute index of the current packet */
+  private int offset;
+  /** Absolute index of the end of the compound packet */
+  private int end;
+
+  /**
+   * Creates an empty view. {@link #wrap(IoBuffer)} must be called before accessing any field.
+   */
+  public RtcpPacketView() {}
+
+  /**
+   * Creates a view over the compound packet contained between the position and the limit of the
+   * buffer.
+   *
+   * @param buffer the buffer containing the packet
+   */
+  public RtcpPacketView(IoBuffer buffer) {
+    wrap(buffer);
+  }
+
+  /**
+   * Points this view to the first packet of the compound packet contained between the position
+   * and the limit of the buffer.
+   *
+   * @param buffer the buffer containing the packet
+   * @return this view
+   */
+  public RtcpPacketView wrap(IoBuffer buffer) {
+    return wrap(buffer, buffer.position(), buffer.remaining());
+  }
+
+  /**
+   * Points this view to the first packet of a compound packet contained in a region of the buffer.
+   *
+   * @param buffer the buffer containing the packet
+   * @param offset absolute index of the first byte of the compound packet
+   * @param length size of the compound packet in bytes
+   * @return this view
+   */
+  public RtcpPacketView wrap(IoBuffer buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.end = offset + length;
+    return this;
+  }
+
+  /**
+   * Moves the view to the next packet in the compound packet.
+   *
+   * @return true if there's another packet, false if the end of the compound packet was reached
+   */
+  public boolean next() {
+    offset += getPacketLength();
+    return offset < end;
+  }
+
+  /**
+   * Checks that the view points to a well formed RTCP version 2 packet that fits in the compound
+   * packet.
+   *
+   * @return true if the current packet can be safely accessed through this view
+   */
+  public boolean isValid() {
+    if (end - offset < 4 || getVersion() != 2) return false;
+    return offset + getPacketLength() <= end;
+  }
+
+  public IoBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @return the absolute index of the first byte of the current packet
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the absolute index of the end of the compound packet
+   */
+  public int getEnd() {
+    return end;
+  }
+
+  public int getVersion() {
+    return (buffer.get(offset) & 0xC0) >>> 6;
+  }
+
+  public boolean isPadding() {
+    return (buffer.get(offset) & 0x20) != 0;
+  }
+
+  /**
+   * @return the 5 bits count field, whose meaning depends on the packet type (report count, source
+   *         count or feedback message type)
+   */
+  public int getCount() {
+    return buffer.get(offset) & 0x1F;
+  }
+
+  public void setCount(int count) {
+    int b = buffer.get(offset) & 0xE0;
+    buffer.put(offset, (byte) (b | (count & 0x1F)));
+  }
+
+  /**
+   * @return the packet type, as defined by {@link RtcpPacket.Type}
+   */
+  public int getPacketType() {
+    return buffer.get(offset + 1) & 0xFF;
+  }
+
+  /**
+   * @return the raw length field: the length of the packet in 32 bit words minus one
+   */
+  public int getLengthField() {
+    return buffer.getShort(offset + 2) & 0xFFFF;
+  }
+
+  public void setLengthField(int length) {
+    buffer.putShort(offset + 2, (short) length);
+  }
+
+  /**
+   * @return the size in bytes of the current packet, including the header and any padding
+   */
+  public int getPacketLength() {
+    return (getLengthField() + 1) * 4;
+  }
+
+  /**
+   * @return true if the current packet carries the sender SSRC after the common header. This is
+   *         the case for all the packet types except SDES, where the word is the SSRC of the first
+   *         chunk.
+   */
+  public boolean hasSsrc() {
+    return getPacketLength() >= RtcpPacket.HEADER_SIZE;
+  }
+
+  public int getSsrc() {
+    return buffer.getInt(offset + RtcpPacket.SSRC_OFFSET);
+  }
+
+  public void setSsrc(int ssrc) {
+    buffer.putInt(offset + RtcpPacket.SSRC_OFFSET, ssrc);
+  }
+
+  /**
+   * @return the absolute index of the end of the current packet payload, before any padding
+   */
+  public int getPayloadEnd() {
+    int packetEnd = offset + getPacketLength();
+    if (!isPadding()) return packetEnd;
+    int padding = buffer.get(packetEnd - 1) & 0xFF;
+    return padding <= packetEnd - offset - 4 ? packetEnd - padding : packetEnd;
+  }
+
+  // SR and RR
+
+  /**
+   * @return the absolute index of the first report block of a SR or RR packet
+   */
+  public int getReportBlocksOffset() {
+    return offset + RtcpPacket.HEADER_SIZE
+        + (getPacketType() == RtcpPacket.TYPE_SR ? SENDER_INFO_SIZE : 0);
+  }
+
+  /**
+   * @return the number of report blocks of a SR or RR packet that actually fit in the packet
+   */
+  public int getReportCount() {
+    int available = (getPayloadEnd() - getReportBlocksOffset()) / REPORT_BLOCK_SIZE;
+    return Math.max(0, Math.min(getCount(), available));
+  }
+
+  /**
+   * @return the absolute index of a report block of a SR or RR packet
+   */
+  public int getReportBlockOffset(int index) {
+    return getReportBlocksOffset() + index * REPORT_BLOCK_SIZE;
+  }
+
+  /** @return the NTP timestamp of a SR packet, as a 64 bit fixed point value */
+  public long getNtpTimestamp() {
+    return buffer.getLong(offset + 8);
+  }
+
+  public long getRtpTimestamp() {
+    return buffer.getInt(offset + 16) & 0xFFFFFFFFL;
+  }
+
+  public long getSenderPacketCount() {
+    return buffer.getInt(offset + 20) & 0xFFFFFFFFL;
+  }
+
+  public long getSenderOctetCount() {
+    return buffer.getInt(offset + 24) & 0xFFFFFFFFL;
+  }
+
+  /** @return the SSRC of the source a report block refers to */
+  public int getReportSsrc(int index) {
+    return buffer.getInt(getReportBlockOffset(index));
+  }
+
+  public void setReportSsrc(int index, int ssrc) {
+    buffer.putInt(getReportBlockOffset(index), ssrc);
+  }
+
+  /** @return the fraction of packets lost, as a 8 bit fixed point value */
+  public int getFractionLost(int index) {
+    return buffer.get(getReportBlockOffset(index) + 4) & 0xFF;
+  }
+
+  /** @return the cumulative number of packets lost, as a signed 24 bit value */
+  public int getCumulativeLost(int index) {
+    return buffer.getInt(getReportBlockOffset(index) + 4) << 8 >> 8;
+  }
+
+  public long getHighestSequence(int index) {
+    return buffer.getInt(getReportBlockOffset(index) + 8) & 0xFFFFFFFFL;
+  }
+
+  public long getJitter(int index) {
+    return buffer.getInt(getReportBlockOffset(index) + 12) & 0xFFFFFFFFL;
+  }
+
+  /** @return the middle 32 bits of the NTP timestamp of the last SR received from the source */
+  public long getLastSr(int index) {
+    return buffer.getInt(getReportBlockOffset(index) + 16) & 0xFFFFFFFFL;
+  }
+
+  /** @return the delay since the last SR, in units of 1/65536 seconds */
+  public long getDelaySinceLastSr(int index) {
+    return buffer.getInt(getReportBlockOffset(index) + 20) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Removes a report block from a SR or RR packet. The following bytes of the buffer are moved
+   * back, the report count and the length field are updated and the buffer limit and the end of
+   * the compound packet are reduced accordingly.
+   */
+  public void removeReportBlock(int index) {
+    int blockOffset = getReportBlockOffset(index);
+    int limit = buffer.limit();
+    for (int i = blockOffset + REPORT_BLOCK_SIZE; i < limit; i++)
+      buffer.put(i - REPORT_BLOCK_SIZE, buffer.get(i));
+    buffer.limit(limit - REPORT_BLOCK_SIZE);
+    end -= REPORT_BLOCK_SIZE;
+    setCount(getCount() - 1);
+    setLengthField(getLengthField() - REPORT_BLOCK_SIZE / 4);
+  }
+
+  /**
+   * Removes the current packet from the compound packet. The following bytes of the buffer are
+   * moved back and the buffer limit and the end of the compound packet are reduced accordingly. The
+   * view is left pointing to the packet that followed the removed one, if any.
+   */
+  public void removePacket() {
+    int length = getPacketLength();
+    int limit = buffer.limit();
+    for (int i = offset + length; i < limit; i++)
+      buffer.put(i - length, buffer.get(i));
+    buffer.limit(limit - length);
+    end -= length;
+  }
+
+  // SDES
+
+  /**
+   * @return the absolute index of the first chunk of a SDES packet, or -1 if there is none
+   */
+  public int firstChunk() {
+    return getCount() > 0 && offset + 8 <= getPayloadEnd() ? offset + 4 : -1;
+  }
+
+  /**
+   * @param chunk the absolute index of a chunk
+   * @return the absolute index of the following chunk, or -1 if it was the last one
+   */
+  public int nextChunk(int chunk) {
+    int payloadEnd = getPayloadEnd();
+    int item = chunk + 4;
+    while (item + 1 < payloadEnd && buffer.get(item) != 0)
+      item += 2 + getItemLength(item);
+    if (item >= payloadEnd || buffer.get(item) != 0) return -1;
+    // skip the null item and pad to the next 32 bit boundary
+    int next = offset + ((item + 1 - offset + 3) & ~3);
+    return next + 4 <= payloadEnd ? next : -1;
+  }
+
+  public int getChunkSsrc(int chunk) {
+    return buffer.getInt(chunk);
+  }
+
+  public void setChunkSsrc(int chunk, int ssrc) {
+    buffer.putInt(chunk, ssrc);
+  }
+
+  /**
+   * @return the absolute index of the first item of a chunk, or -1 if the chunk is empty
+   */
+  public int firstItem(int chunk) {
+    return itemAt(chunk + 4);
+  }
+
+  /**
+   * @return the absolute index of the following item in the same chunk, or -1 if there is none
+   */
+  public int nextItem(int item) {
+    return itemAt(item + 2 + getItemLength(item));
+  }
+
+  private int itemAt(int item) {
+    if (item + 2 > getPayloadEnd() || buffer.get(item) == 0) return -1;
+    return item + 2 + getItemLength(item) <= getPayloadEnd() ? item : -1;
+  }
+
+  /** @return the item type, such as {@link RtcpPacket#SDES_CNAME} */
+  public int getItemType(int item) {
+    return buffer.get(item) & 0xFF;
+  }
+
+  public int getItemLength(int item) {
+    return buffer.get(item + 1) & 0xFF;
+  }
+
+  /**
+   * @return the text of an item. This allocates a new string.
+   */
+  public String getItemText(int item) {
+    byte[] text = new byte[getItemLength(item)];
+    for (int i = 0; i < text.length; i++)
+      text[i] = buffer.get(item + 2 + i);
+    try {
+      return new String(text, "UTF-8");
+    } catch (java.io.UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.toString());
+    }
+  }
+
+  // BYE
+
+  /**
+   * @return the number of sources of a BYE packet that actually fit in the packet
+   */
+  public int getByeSsrcCount() {
+    return Math.max(0, Math.min(getCount(), (getPayloadEnd() - offset - 4) / 4));
+  }
+
+  public int getByeSsrc(int index) {
+    return buffer.getInt(offset + 4 + index * 4);
+  }
+
+  public void setByeSsrc(int index, int ssrc) {
+    buffer.putInt(offset + 4 + index * 4, ssrc);
+  }
+
+  /**
+   * @return the absolute index of the length byte of the reason of a BYE packet, or -1 if there's
+   *         no reason
+   */
+  public int getByeReasonOffset() {
+    int reason = offset + 4 + getCount() * 4;
+    return reason < getPayloadEnd() ? reason : -1;
+  }
+
+  // APP
+
+  /** @return the 4 ASCII characters name of an APP packet, as a 32 bit value */
+  public int getAppName() {
+    return buffer.getInt(offset + 8);
+  }
+
+  /** @return the absolute index of the application dependent data of an APP packet */
+  public int getAppDataOffset() {
+    return offset + 12;
+  }
+
+  // RTPFB and PSFB
+
+  /** @return the feedback message type (FMT) of a RTPFB or PSFB packet */
+  public int getFeedbackType() {
+    return getCount();
+  }
+
+  /** @return the SSRC of the media source a feedback packet refers to */
+  public int getMediaSsrc() {
+    return buffer.getInt(offset + 8);
+  }
+
+  public void setMediaSsrc(int ssrc) {
+    buffer.putInt(offset + 8, ssrc);
+  }
+
+  /** @return the absolute index of the feedback control information of a feedback packet */
+  public int getFciOffset() {
+    return offset + 12;
+  }
+
+  /**
+   * @return the number of entries of a generic NACK (RTPFB 1), each made of a packet identifier and
+   *         a bitmask of the following lost packets
+   */
+  public int getNackCount() {
+    return Math.max(0, (getPayloadEnd() - getFciOffset()) / 4);
+  }
+
+  /** @return the sequence number of the lost packet of a generic NACK entry */
+  public int getNackSequence(int index) {
+    return buffer.getShort(getFciOffset() + index * 4) & 0xFFFF;
+  }
+
+  /**
+   * @return the bitmask of a generic NACK entry: bit i set when the packet following the one of the
+   *         entry by i + 1 was lost too
+   */
+  public int getNackBitmask(int index) {
+    return buffer.getShort(getFciOffset() + index * 4 + 2) & 0xFFFF;
+  }
+
+  /**
+   * Some feedback messages carry further SSRC identifiers in their feedback control information:
+   * FIR (PSFB 4), TMMBR and TMMBN (RTPFB 3 and 4) and REMB (PSFB 15).
+   *
+   * @return the number of SSRC identifiers in the FCI of a feedback packet
+   */
+  public int getFciSsrcCount() {
+    int type = getPacketType();
+    int fmt = getFeedbackType();
+    int fci = getFciOffset();
+    int length = getPayloadEnd() - fci;
+    if ((type == RtcpPacket.TYPE_PSFB && fmt == 4)
+        || (type == RtcpPacket.TYPE_RTPFB && (fmt == 3 || fmt == 4)))
+      return Math.max(0, length / FCI_ENTRY_SIZE);
+    if (type == RtcpPacket.TYPE_PSFB && fmt == 15 && length >= 8 && buffer.getInt(fci) == REMB)
+      return Math.min(buffer.get(fci + 4) & 0xFF, (length - 8) / 4);
+    return 0;
+  }
+
+  private int getFciSsrcOffset(int index) {
+    int fci = getFciOffset();
+    if (getPacketType() == RtcpPacket.TYPE_PSFB && getFeedbackType() == 15)
+      return fci + 8 + index * 4;
+    return fci + index * FCI_ENTRY_SIZE;
+  }
+
+  public int getFciSsrc(int index) {
+    return buffer.getInt(getFciSsrcOffset(index));
+  }
+
+  public void setFciSsrc(int index, int ssrc) {
+    buffer.putInt(getFciSsrcOffset(index), ssrc);
+  }
+
+  // Whole compound packet
+
+  /**
+   * Checks that the whole compound packet, from the current packet to the end, is made of well
+   * formed RTCP packets. The view is left pointing to the current packet.
+   *
+   * @return true if every packet is valid
+   */
+  public boolean isValidCompound() {
+    int packet = offset;
+    if (packet >= end) return false;
+    while (packet < end) {
+      if (end - packet < 4) return false;
+      int header = buffer.getInt(packet);
+      int length = ((header & 0xFFFF) + 1) * 4;
+      if ((header >>> 30) != 2 || packet + length > end
+          || length < minimumLength((header >>> 16) & 0xFF))
+        return false;
+      packet += length;
+    }
+    return true;
+  }
+
+  private static int minimumLength(int type) {
+    switch (type) {
+      case RtcpPacket.TYPE_SR:
+        return RtcpPacket.HEADER_SIZE + SENDER_INFO_SIZE;
+      case RtcpPacket.TYPE_APP:
+      case RtcpPacket.TYPE_RTPFB:
+      case RtcpPacket.TYPE_PSFB:
+        return 12;
+      case RtcpPacket.TYPE_RR:
+        return RtcpPacket.HEADER_SIZE;
+      default:
+        return 4;
+    }
+  }
+
+  /**
+   * Rewrites, in place, every SSRC identifier of the compound packet, from the current packet to
+   * the end:
+   * <ul>
+   * <li>the identifier of the sender of each packet (the sender SSRC of SR, RR, APP and feedback
+   * packets, the first chunk of SDES packets and the first source of BYE packets) is replaced by
+   * <code>sender</code></li>
+   * <li>any other identifier equal to <code>from</code> (report blocks, other SDES chunks and BYE
+   * sources, feedback media source and FCI entries) is replaced by <code>to</code></li>
+   * </ul>
+   * The compound packet should be checked with {@link #isValidCompound()} first: the rewriting
+   * stops at the first malformed packet. The view is left pointing to the current packet.
+   *
+   * @param sender the SSRC of the sender, as seen by the receiver of the packet
+   * @param from the SSRC of a source, as known by the sender of the packet
+   * @param to the SSRC of the same source, as known by the receiver of the packet
+   * @return the number of packets rewritten
+   */
+  public int rewriteSsrcs(int sender, int from, int to) {
+    int start = offset;
+    int count = 0;
+    while (offset < end && isValid()) {
+      rewritePacket(sender, from, to);
+      count++;
+      offset += getPacketLength();
+    }
+    offset = start;
+    return count;
+  }
+
+  /**
+   * Adds an offset, in place, to the RTP timestamp of every SR packet of the compound packet, from
+   * the current packet to the end. The view is left pointing to the current packet.
+   *
+   * @param delta the offset, added modulo 2^32
+   * @return the number of SR packets rewritten
+   */
+  public int shiftRtpTimestamps(int delta) {
+    int start = offset;
+    int count = 0;
+    while (offset < end && isValid()) {
+      if (getPacketType() == RtcpPacket.TYPE_SR
+          && getPacketLength() >= RtcpPacket.HEADER_SIZE + SENDER_INFO_SIZE) {
+        buffer.putInt(offset + 16, buffer.getInt(offset + 16) + delta);
+        count++;
+      }
+      offset += getPacketLength();
+    }
+    offset = start;
+    return count;
+  }
+
+  /*
+   * Walks the current packet reading the underlying byte buffer directly, rather than through the
+   * accessors above, since this is done for every relayed packet.
+   */
+  private void rewritePacket(int sender, int from, int to) {
+    ByteBuffer buf = buffer.buf();
+    int header = buf.getInt(offset);
+    int length = ((header & 0xFFFF) + 1) * 4;
+    int payloadEnd = getPayloadEnd();
+    int count = (header >>> 24) & 0x1F;
+
+    switch ((header >>> 16) & 0xFF) {
+      case RtcpPacket.TYPE_SR:
+      case RtcpPacket.TYPE_RR: {
+        if (length < RtcpPacket.HEADER_SIZE) break;
+        buf.putInt(offset + RtcpPacket.SSRC_OFFSET, sender);
+        int block = getReportBlocksOffset();
+        for (int i = 0; i < count && block + REPORT_BLOCK_SIZE <= payloadEnd; i++) {
+          if (buf.getInt(block) == from) buf.putInt(block, to);
+          block += REPORT_BLOCK_SIZE;
+        }
+        break;
+      }
+
+      case RtcpPacket.TYPE_SDES: {
+        int chunk = offset + 4;
+        for (int i = 0; i < count && chunk + 4 <= payloadEnd; i++) {
+          if (i == 0) buf.putInt(chunk, sender);
+          else if (buf.getInt(chunk) == from) buf.putInt(chunk, to);
+          // skip the items up to the null one, then pad to the next 32 bit boundary
+          int item = chunk + 4;
+          while (item + 1 < payloadEnd && buf.get(item) != 0)
+            item += 2 + (buf.get(item + 1) & 0xFF);
+          chunk = offset + ((item + 1 - offset + 3) & ~3);
+        }
+        break;
+      }
+
+      case RtcpPacket.TYPE_BYE: {
+        int source = offset + 4;
+        for (int i = 0; i < count && source + 4 <= payloadEnd; i++) {
+          if (i == 0) buf.putInt(source, sender);
+          else if (buf.getInt(source) == from) buf.putInt(source, to);
+          source += 4;
+        }
+        break;
+      }
+
+      case RtcpPacket.TYPE_RTPFB:
+      case RtcpPacket.TYPE_PSFB:
+        if (length < 12) break;
+        setSsrc(sender);
+        if (getMediaSsrc() == from) setMediaSsrc(to);
+        for (int i = getFciSsrcCount() - 1; i >= 0; i--)
+          if (getFciSsrc(i) == from) setFciSsrc(i, to);
+        break;
+
+      default:
+        // APP and unknown packet types: only the sender is known
+        if (hasSsrc()) setSsrc(sender);
+    }
+  }
+
+  public String toString() {
+    return "RtcpPacketView(type=" + getPacketType() + ", count=" + getCount() + ", len="
+        + getPacketLength() + ")";
+  }
+}
@@ -0,0 +1,193 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp.rtcp;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Writes compound RTCP packets into a {@link IoBuffer}, the counterpart of {@link RtcpPacketView}.
+ * <p>
+ * Each packet is started with one of the <code>start...</code> methods, filled with report blocks,
+ * chunks, sources or FCI entries and completed with {@link #endPacket()}, which pads the packet and
+ * sets its count and length fields:
+ *
+ * <pre>
+ * RtcpPacketWriter writer = new RtcpPacketWriter(buffer);
+ * writer.startReceiverReport(ssrc);
+ * writer.addReportBlock(source, fraction, lost, highest, jitter, lsr, dlsr);
+ * writer.endPacket();
+ * writer.startSdes();
+ * writer.addSdesChunk(ssrc, cname);
+ * writer.endPacket();
+ * buffer.flip();
+ * </pre>
+ *
+ * Packets are written at the buffer position, which must have enough space left. A writer can be
+ * re-used with {@link #wrap(IoBuffer)} and is not thread safe.
+ */
+public class RtcpPacketWriter {
+
+  private IoBuffer buffer;
+  /** Absolute index of the packet being written, or -1 */
+  private int packetStart = -1;
+  private int count;
+
+  public RtcpPacketWriter() {}
+
+  public RtcpPacketWriter(IoBuffer buffer) {
+    wrap(buffer);
+  }
+
+  /**
+   * Writes the next packets at the current position of the buffer.
+   *
+   * @return this writer
+   */
+  public RtcpPacketWriter wrap(IoBuffer buffer) {
+    this.buffer = buffer;
+    this.packetStart = -1;
+    return this;
+  }
+
+  public IoBuffer getBuffer() {
+    return buffer;
+  }
+
+  private void startPacket(int type) {
+    if (packetStart >= 0) throw new IllegalStateException("Packet not ended");
+    packetStart = buffer.position();
+    count = 0;
+    buffer.put((byte) 0x80).put((byte) type).putShort((short) 0);
+  }
+
+  /**
+   * Starts a SR packet.
+   *
+   * @param ssrc the sender SSRC
+   * @param ntpTimestamp the NTP timestamp, as a 64 bit fixed point value
+   * @param rtpTimestamp the RTP timestamp corresponding to the NTP timestamp
+   * @param packets the number of RTP packets sent
+   * @param octets the number of payload octets sent
+   */
+  public void startSenderReport(int ssrc, long ntpTimestamp, long rtpTimestamp, long packets,
+      long octets) {
+    startPacket(RtcpPacket.TYPE_SR);
+    buffer.putInt(ssrc);
+    buffer.putLong(ntpTimestamp);
+    buffer.putInt((int) rtpTimestamp);
+    buffer.putInt((int) packets);
+    buffer.putInt((int) octets);
+  }
+
+  /**
+   * Starts a RR packet.
+   *
+   * @param ssrc the sender SSRC
+   */
+  public void startReceiverReport(int ssrc) {
+    startPacket(RtcpPacket.TYPE_RR);
+    buffer.putInt(ssrc);
+  }
+
+  /**
+   * Adds a report block to the current SR or RR packet.
+   *
+   * @param ssrc the source the block refers to
+   * @param fractionLost fraction of packets lost, as a 8 bit fixed point value
+   * @param cumulativeLost number of packets lost, as a signed 24 bit value
+   * @param highestSequence extended highest sequence number received
+   * @param jitter interarrival jitter
+   * @param lastSr middle 32 bits of the NTP timestamp of the last SR received
+   * @param delaySinceLastSr delay since the last SR, in units of 1/65536 seconds
+   */
+  public void addReportBlock(int ssrc, int fractionLost, int cumulativeLost, long highestSequence,
+      long jitter, long lastSr, long delaySinceLastSr) {
+    buffer.putInt(ssrc);
+    buffer.putInt((fractionLost << 24) | (cumulativeLost & 0xFFFFFF));
+    buffer.putInt((int) highestSequence);
+    buffer.putInt((int) jitter);
+    buffer.putInt((int) lastSr);
+    buffer.putInt((int) delaySinceLastSr);
+    count++;
+  }
+
+  /**
+   * Starts a SDES packet.
+   */
+  public void startSdes() {
+    startPacket(RtcpPacket.TYPE_SDES);
+  }
+
+  /**
+   * Adds a chunk with a single CNAME item to the current SDES packet.
+   */
+  public void addSdesChunk(int ssrc, String cname) {
+    buffer.putInt(ssrc);
+    byte[] text;
+    try {
+      text = cname.getBytes("UTF-8");
+    } catch (java.io.UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.toString());
+    }
+    int length = Math.min(text.length, 255);
+    buffer.put((byte) RtcpPacket.SDES_CNAME).put((byte) length).put(text, 0, length);
+    // null item, then pad the chunk to a 32 bit boundary
+    do {
+      buffer.put((byte) RtcpPacket.SDES_END);
+    } while (((buffer.position() - packetStart) & 3) != 0);
+    count++;
+  }
+
+  /**
+   * Starts a BYE packet. The sources leaving are added with {@link #addByeSsrc(int)}.
+   */
+  public void startBye() {
+    startPacket(RtcpPacket.TYPE_BYE);
+  }
+
+  public void addByeSsrc(int ssrc) {
+    buffer.putInt(ssrc);
+    count++;
+  }
+
+  /**
+   * Starts a transport layer (RTPFB) or payload specific (PSFB) feedback packet. The feedback
+   * control information is added with {@link #addFci(int)}.
+   *
+   * @param type {@link RtcpPacket#TYPE_RTPFB} or {@link RtcpPacket#TYPE_PSFB}
+   * @param format the feedback message type (FMT)
+   * @param ssrc the SSRC of the packet sender
+   * @param mediaSsrc the SSRC of the media source
+   */
+  public void startFeedback(int type, int format, int ssrc, int mediaSsrc) {
+    startPacket(type);
+    count = format;
+    buffer.putInt(ssrc);
+    buffer.putInt(mediaSsrc);
+  }
+
+  /**
+   * Adds a 32 bit word of feedback control information, such as a generic NACK entry.
+   */
+  public void addFci(int word) {
+    buffer.putInt(word);
+  }
+
+  /**
+   * Completes the current packet: pads it to a 32 bit boundary and sets its count and length
+   * fields.
+   */
+  public void endPacket() {
+    if (packetStart < 0) throw new IllegalStateException("No packet started");
+    while (((buffer.position() - packetStart) & 3) != 0)
+      buffer.put((byte) 0);
+    buffer.put(packetStart, (byte) (0x80 | (count & 0x1F)));
+    buffer.putShort(packetStart + 2, (short) ((buffer.position() - packetStart) / 4 - 1));
+    packetStart = -1;
+  }
+}
@@ -0,0 +1,73 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtsp;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.rtp.BufferPool;
+
+/**
+ * A RTP or RTCP packet sent over the RTSP connection, interleaved with the RTSP messages (RFC 2326,
+ * section 10.12). On the wire, each packet is framed by a '$' byte, the one byte channel identifier
+ * and the two bytes length of the packet.
+ * <p>
+ * The packet data is kept in a {@link IoBuffer}, between its position and limit, which usually
+ * shares the memory of the buffer the packet was read into.
+ * 
+ * @author Matteo Merli
+ */
+public class InterleavedPacket {
+
+  /** The byte starting every interleaved frame */
+  public static final byte MAGIC = '$';
+
+  /** Size of the frame header: magic, channel and length */
+  public static final int HEADER_SIZE = 4;
+
+  private final int channel;
+  private final IoBuffer buffer;
+  /** The frame header, once encoded */
+  IoBuffer header = null;
+
+  /**
+   * @param channel the channel identifier, from 0 to 255
+   * @param buffer the packet, between the buffer position and limit
+   */
+  public InterleavedPacket(int channel, IoBuffer buffer) {
+    this.channel = channel;
+    this.buffer = buffer;
+  }
+
+  public int getChannel() {
+    return channel;
+  }
+
+  public IoBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @return the size of the packet, without the frame header
+   */
+  public int getLength() {
+    return buffer.remaining();
+  }
+
+  /**
+   * Returns the buffers of the packet to the {@link BufferPool}, once it has been written or
+   * dropped.
+   */
+  public void free() {
+    buffer.free();
+    if (header != null) header.free();
+  }
+
+  public String toString() {
+    return "InterleavedPacket(channel=" + channel + ", length=" + getLength() + ")";
+  }
+}
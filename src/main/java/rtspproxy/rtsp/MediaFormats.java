@@ -0,0 +1,215 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.rtsp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The payload formats of the media of a session description (SDP), by control URL.
+ * <p>
+ * Only the <code>m=</code>, <code>a=rtpmap</code>, <code>a=fmtp</code> and <code>a=control</code>
+ * lines are looked at: the format of a media is the encoding name and clock rate mapped to its first
+ * payload type, such as <code>H264/90000</code>. Media using a static payload type without
+ * <code>rtpmap</code> have no encoding name, and the clock rate of the payload type as given by RFC
+ * 3551. The retransmission payload type (RFC 4588) associated with the first payload type and the
+ * ULPFEC payload type (RFC 5109) of the media are kept too.
+ */
+public class MediaFormats {
+
+  /** Encoding names, by control URL as written in the SDP (absolute or relative) */
+  private final Map<String, String> encodings = new HashMap<String, String>();
+
+  /** RTP clock rates, by control URL as written in the SDP */
+  private final Map<String, Integer> clockRates = new HashMap<String, Integer>();
+
+  /** RTX payload types associated with the first payload type, by control URL */
+  private final Map<String, Integer> rtxPayloadTypes = new HashMap<String, Integer>();
+
+  /** ULPFEC payload types, by control URL */
+  private final Map<String, Integer> fecPayloadTypes = new HashMap<String, Integer>();
+
+  /** Control URLs of the media, in the order of the SDP */
+  private final List<String> controls = new ArrayList<String>();
+
+  /**
+   * Parses the body of a DESCRIBE response.
+   */
+  public MediaFormats(String sdp) {
+    String payloadType = null;
+    String encoding = null;
+    int clockRate = 0;
+    String control = null;
+    boolean media = false;
+    // payload types of the current media mapped to "rtx", and their associated payload types
+    List<String> rtx = new ArrayList<String>();
+    Map<String, String> apt = new HashMap<String, String>();
+    int fec = -1;
+    for (String line : sdp.split("\r?\n")) {
+      line = line.trim();
+      if (line.startsWith("m=")) {
+        if (media)
+          add(control, encoding, clockRate, getRtxPayloadType(payloadType, rtx, apt), fec);
+        media = true;
+        rtx.clear();
+        apt.clear();
+        fec = -1;
+        String[] fields = line.substring(2).split(" ");
+        payloadType = fields.length > 3 ? fields[3] : null;
+        encoding = null;
+        clockRate = getStaticClockRate(payloadType);
+        control = null;
+      } else if (!media) {
+        // session level attributes
+        continue;
+      } else if (line.startsWith("a=rtpmap:")) {
+        String[] fields = line.substring(9).split("[ /]");
+        if (fields.length > 1 && fields[0].equals(payloadType)) {
+          encoding = fields[1].toUpperCase();
+          if (fields.length > 2) clockRate = parseClockRate(fields[2]);
+        } else if (fields.length > 1 && fields[1].equalsIgnoreCase("rtx")) {
+          rtx.add(fields[0]);
+        } else if (fields.length > 1 && fields[1].equalsIgnoreCase("ulpfec")) {
+          fec = parseClockRate(fields[0]);
+        }
+      } else if (line.startsWith("a=fmtp:")) {
+        String[] fields = line.substring(7).split("[ ;]+");
+        for (int i = 1; i < fields.length; i++) {
+          if (fields[i].startsWith("apt=")) apt.put(fields[0], fields[i].substring(4));
+        }
+      } else if (line.startsWith("a=control:")) {
+        control = line.substring(10).trim();
+      }
+    }
+    if (media) add(control, encoding, clockRate, getRtxPayloadType(payloadType, rtx, apt), fec);
+  }
+
+  private void add(String control, String encoding, int clockRate, int rtxPayloadType,
+      int fecPayloadType) {
+    if (control == null) return;
+    controls.add(control);
+    if (encoding != null) encodings.put(control, encoding);
+    if (clockRate > 0) clockRates.put(control, clockRate);
+    if (rtxPayloadType >= 0) rtxPayloadTypes.put(control, rtxPayloadType);
+    if (fecPayloadType > 0 && fecPayloadType < 128) fecPayloadTypes.put(control, fecPayloadType);
+  }
+
+  private static int getRtxPayloadType(String payloadType, List<String> rtx,
+      Map<String, String> apt) {
+    for (String type : rtx) {
+      if (payloadType != null && payloadType.equals(apt.get(type))) {
+        int value = parseClockRate(type);
+        if (value > 0 && value < 128) return value;
+      }
+    }
+    return -1;
+  }
+
+  private static int parseClockRate(String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return the clock rate of a static payload type (RFC 3551), or 0 if the type is dynamic or
+   *         unknown
+   */
+  private static int getStaticClockRate(String payloadType) {
+    if (payloadType == null) return 0;
+    switch (parseClockRate(payloadType)) {
+      case 0: // PCMU
+      case 3: // GSM
+      case 4: // G723
+      case 5: // DVI4
+      case 7: // LPC
+      case 8: // PCMA
+      case 9: // G722
+      case 15: // G728
+      case 18: // G729
+        return 8000;
+      case 10: // L16 stereo
+      case 11: // L16 mono
+        return 44100;
+      case 14: // MPA
+      case 25: // CelB
+      case 26: // JPEG
+      case 28: // nv
+      case 31: // H261
+      case 32: // MPV
+      case 33: // MP2T
+      case 34: // H263
+        return 90000;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * @param url the control URL used to SETUP a track
+   * @return the encoding name of the track payload, or null if unknown
+   */
+  public String getEncoding(String url) {
+    return find(encodings, url);
+  }
+
+  /**
+   * @param url the control URL used to SETUP a track
+   * @return the RTP clock rate of the track payload, in Hz, or 0 if unknown
+   */
+  public int getClockRate(String url) {
+    Integer clockRate = find(clockRates, url);
+    return clockRate != null ? clockRate : 0;
+  }
+
+  /**
+   * @param url the control URL used to SETUP a track
+   * @return the payload type of the retransmission stream (RFC 4588) of the track, or -1 if none is
+   *         announced
+   */
+  public int getRtxPayloadType(String url) {
+    Integer payloadType = find(rtxPayloadTypes, url);
+    return payloadType != null ? payloadType : -1;
+  }
+
+  /**
+   * @param url the control URL used to SETUP a track
+   * @return the payload type of the ULPFEC packets (RFC 5109) of the track, or -1 if none is
+   *         announced
+   */
+  public int getFecPayloadType(String url) {
+    Integer payloadType = find(fecPayloadTypes, url);
+    return payloadType != null ? payloadType : -1;
+  }
+
+  /**
+   * @return the control URLs of the media, as written in the SDP (absolute or relative), in order
+   */
+  public List<String> getControls() {
+    return controls;
+  }
+
+  private static <T> T find(Map<String, T> map, String url) {
+    T value = map.get(url);
+    if (value != null) return value;
+    // relative control URLs
+    for (Map.Entry<String, T> entry : map.entrySet()) {
+      if (url.endsWith("/" + entry.getKey())) return entry.getValue();
+    }
+    return null;
+  }
+
+  public String toString() {
+    return "MediaFormats" + encodings;
+  }
+}
@@ -13,13 +13,8 @@
 
 package rtspproxy.rtsp;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.CharBuffer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,11 +24,25 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoder;
 import org.apache.mina.filter.codec.ProtocolDecoderException;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.RecoverableProtocolDecoderException;
 
-import rtspproxy.lib.Exceptions;
+import rtspproxy.lib.MemoryGovernor;
+import rtspproxy.rtp.BufferPool;
 
 /**
- * 
+ * Decodes the RTSP messages and the interleaved RTP/RTCP packets ({@link InterleavedPacket}) read
+ * from a RTSP connection.
+ * <p>
+ * The decoder works directly on the received bytes and keeps its state in the session between two
+ * reads, so that messages and packets can be split across several reads and several of them can
+ * be received in a single read. An interleaved packet that is entirely contained in the received
+ * buffer is passed on as a slice of that buffer, without copying it.
+ * <p>
+ * The packets and message bodies split across reads are reserved against the
+ * {@link MemoryGovernor} budget of the connection while they're being received. When the
+ * reservation is refused, the packet or body is skipped: a packet is silently dropped, while the
+ * message is reported as a decoding error. A line longer than {@link #MAX_LINE_LENGTH} bytes is
+ * also reported as a decoding error, rather than kept until it ends.
  */
 public class RtspDecoder implements ProtocolDecoder {
 
@@ -55,6 +64,8 @@ public class RtspDecoder implements ProtocolDecoder {
     Header,
     /** Reading body (entity) */
     Body,
+    /** Skipping a packet or a body */
+    Skip,
     /** Fully formed message */
     Dispatch
   }
@@ -65,161 +76,309 @@ public class RtspDecoder implements ProtocolDecoder {
   private static final Pattern rtspResponsePattern = Pattern.compile("RTSP/1.0 ([0-9]+) .+");
   private static final Pattern rtspHeaderPattern = Pattern.compile("([a-zA-Z\\-]+[0-9]?):\\s?(.*)");
 
+  private static final String CONTEXT = RtspDecoder.class.getName() + ".context";
+
+  /** The longest request, status or header line accepted, without its terminator */
+  public static final int MAX_LINE_LENGTH = 8192;
+
+  /**
+   * Decoding state of a connection, kept in the session between two reads.
+   */
+  private static class Context {
+    ReadState state = ReadState.Ready;
+    RtspMessage rtspMessage;
+    /** Beginning of a line split across reads */
+    StringBuilder line = new StringBuilder();
+    /** Header of an interleaved frame split across reads */
+    byte[] frameHeader = new byte[InterleavedPacket.HEADER_SIZE];
+    int frameHeaderSize;
+    /** An interleaved packet split across reads, being filled */
+    IoBuffer packet;
+    int channel;
+    /** Length of the body of the message being received */
+    int contentLength;
+    /** Bytes reserved for the packet or the message body being received */
+    int reserved;
+    /** Bytes left to skip */
+    int skip;
+  }
+
   /**
    * Do the parsing on the incoming stream. If the stream does not contain the entire RTSP message
-   * wait for other data to arrive, before dispatching the message.
+   * or interleaved packet, wait for other data to arrive, before dispatching it.
    * 
-   * @see org.apache.mina.protocol.ProtocolDecoder#decode(org.apache.mina.protocol.IoSession,
-   *      org.apache.mina.common.ByteBuffer, org.apache.mina.protocol.ProtocolDecoderOutput)
+   * @see org.apache.mina.filter.codec.ProtocolDecoder#decode(IoSession, IoBuffer,
+   *      ProtocolDecoderOutput)
    */
-  @SuppressWarnings("incomplete-switch")
   public void decode(IoSession session, IoBuffer buffer, ProtocolDecoderOutput out)
       throws ProtocolDecoderException {
-    BufferedReader reader = null;
-    try {
-      reader = new BufferedReader(new InputStreamReader(buffer.asInputStream(), "US-ASCII"));
-    } catch (UnsupportedEncodingException e1) {}
-
-    // Retrieve status from session
-    ReadState state = (ReadState) session.getAttribute("state");
-    if (state == null) state = ReadState.Command;
-    RtspMessage rtspMessage = (RtspMessage) session.getAttribute("rtspMessage");
+    Context context = (Context) session.getAttribute(CONTEXT);
+    if (context == null) {
+      context = new Context();
+      session.setAttribute(CONTEXT, context);
+    }
 
     try {
+      while (buffer.hasRemaining()) {
+        switch (context.state) {
+          case Ready:
+            if (buffer.get(buffer.position()) == InterleavedPacket.MAGIC) {
+              context.state = ReadState.Packet;
+              context.frameHeaderSize = 0;
+            } else if (isLineBreak(buffer.get(buffer.position()))) {
+              // skip empty lines between messages
+              buffer.get();
+            } else {
+              context.state = ReadState.Command;
+            }
+            break;
 
-      while (true) {
-
-        if (state != ReadState.Command && state != ReadState.Header)
-        // the "while" loop is only used to read commands and
-        // headers
-          break;
-
-        String line = reader.readLine();
-        if (line == null)
-        // there's no more data in the buffer
-          break;
-
-        if (line.length() == 0) {
-          // This is the empty line that marks the end
-          // of the headers section
-          state = ReadState.Body;
-          break;
-        }
-
-        switch (state) {
+          case Packet:
+            readPacket(session, context, buffer, out);
+            break;
 
           case Command:
-            // log.debug( "Command line: " + line );
-            if (line.startsWith("RTSP")) {
-              // this is a RTSP response
-              Matcher m = rtspResponsePattern.matcher(line);
-              if (!m.matches())
-                throw new ProtocolDecoderException("Malformed response line: " + line);
-
-              RtspCode code = RtspCode.fromString(m.group(1));
-              rtspMessage = new RtspResponse();
-              ((RtspResponse) (rtspMessage)).setCode(code);
-              RtspRequest.Verb verb = (RtspRequest.Verb) session.getAttribute("lastRequestVerb");
-              ((RtspResponse) (rtspMessage)).setRequestVerb(verb);
-
+          case Header:
+            String line = readLine(context, buffer);
+            if (line == null) break;
+
+            if (line.length() == 0) {
+              // This is the empty line that marks the end
+              // of the headers section
+              context.state = ReadState.Body;
+              reserveBody(session, context);
             } else {
-              // this is a RTSP request
-              Matcher m = rtspRequestPattern.matcher(line);
-              if (!m.matches())
-                throw new ProtocolDecoderException("Malformed request line: " + line);
-
-              String verb = m.group(1);
-              String strUrl = m.group(2);
-              URL url = null;
-              if (!strUrl.equalsIgnoreCase("*")) {
-                try {
-                  url = new URL(strUrl);
-                } catch (MalformedURLException e) {
-                  log.info(e);
-                  url = null;
-                  session.setAttribute("state", ReadState.Failed);
-                  throw new ProtocolDecoderException("Invalid URL");
-                }
-              }
-              rtspMessage = new RtspRequest();
-              ((RtspRequest) rtspMessage).setVerb(verb);
-
-              if (((RtspRequest) rtspMessage).getVerb() == RtspRequest.Verb.None) {
-                session.setAttribute("state", ReadState.Failed);
-                throw new ProtocolDecoderException("Invalid method: " + verb);
-              }
-
-              ((RtspRequest) rtspMessage).setUrl(url);
+              processLine(session, context, line);
             }
-            state = ReadState.Header;
             break;
 
-          case Header:
-            // this is an header
-            Matcher m = rtspHeaderPattern.matcher(line);
-
-            if (!m.matches()) throw new ProtocolDecoderException("RTSP header not valid");
+          case Body:
+            readBody(context, buffer);
+            break;
 
-            rtspMessage.setHeader(m.group(1), m.group(2));
+          case Skip:
+            int count = Math.min(context.skip, buffer.remaining());
+            buffer.skip(count);
+            context.skip -= count;
+            if (context.skip == 0) context.state = ReadState.Ready;
             break;
 
+          default:
+            // Failed or Sync: discard the data
+            buffer.position(buffer.limit());
         }
-      }
 
-      if (state == ReadState.Body) {
-        // Read the message body
-        int bufferLen = Integer.parseInt(rtspMessage.getHeader("Content-Length", "0"));
-        if (bufferLen == 0) {
-          // there's no buffer to be read
-          state = ReadState.Dispatch;
+        if (context.state == ReadState.Body
+            && context.rtspMessage.getBufferSize() >= context.contentLength) {
+          // The RTSP message parsing is completed
+          context.state = ReadState.Dispatch;
+        }
 
-        } else {
-          // we have a content buffer to read
-          int bytesToRead = bufferLen - rtspMessage.getBufferSize();
-
-          // if ( bytesToRead < reader. decodeBuf.length() ) {
-          // log.warn( "We are reading more bytes than
-          // Content-Length." );
-          // }
-
-          // read the content buffer
-          CharBuffer bufferContent = CharBuffer.allocate(bytesToRead);
-          reader.read(bufferContent);
-          bufferContent.flip();
-          rtspMessage.appendToBuffer(bufferContent);
-          if (rtspMessage.getBufferSize() >= bufferLen) {
-            // The RTSP message parsing is completed
-            state = ReadState.Dispatch;
-          }
+        if (context.state == ReadState.Dispatch) {
+          // The message is already formed
+          // send it
+          RtspMessage message = context.rtspMessage;
+          context.rtspMessage = null;
+          context.state = ReadState.Ready;
+          release(session, context);
+          out.write(message);
         }
       }
-    } catch (IOException e) {
-      /*
-       * error on input stream should not happen since the input stream is coming from a bytebuffer.
-       */
-      Exceptions.logStackTrace(e);
-      return;
+    } catch (ProtocolDecoderException e) {
+      // the rest of a refused body is skipped before decoding goes on
+      if (context.state == ReadState.Skip) throw e;
+      // Drop the partial message and wait for the next one
+      release(session, context);
+      context.state = ReadState.Ready;
+      context.rtspMessage = null;
+      context.line.setLength(0);
+      buffer.position(buffer.limit());
+      throw e;
+    }
+  }
+
+  private static boolean isLineBreak(byte b) {
+    return b == '\r' || b == '\n';
+  }
+
+  /**
+   * Reads an interleaved packet. When the whole packet is available, it's passed on as a slice of
+   * the received buffer, otherwise the available part is copied into a new buffer until the rest
+   * is received.
+   */
+  private void readPacket(IoSession session, Context context, IoBuffer buffer,
+      ProtocolDecoderOutput out) {
+    if (context.packet == null) {
+      // Read the frame header, which may itself be split
+      while (context.frameHeaderSize < InterleavedPacket.HEADER_SIZE && buffer.hasRemaining())
+        context.frameHeader[context.frameHeaderSize++] = buffer.get();
+      if (context.frameHeaderSize < InterleavedPacket.HEADER_SIZE) return;
+
+      context.channel = context.frameHeader[1] & 0xFF;
+      int length = ((context.frameHeader[2] & 0xFF) << 8) | (context.frameHeader[3] & 0xFF);
+
+      if (buffer.remaining() >= length) {
+        out.write(new InterleavedPacket(context.channel, buffer.getSlice(length)));
+        context.state = ReadState.Ready;
+        return;
+      }
+      if (!MemoryGovernor.getInstance().getBudget(session).reserve(length, true)) {
+        context.skip = length;
+        context.state = ReadState.Skip;
+        return;
+      }
+      context.reserved = length;
+      context.packet = BufferPool.allocate(length);
+    }
+
+    IoBuffer packet = context.packet;
+    int count = Math.min(packet.remaining(), buffer.remaining());
+    int limit = buffer.limit();
+    buffer.limit(buffer.position() + count);
+    packet.put(buffer);
+    buffer.limit(limit);
+
+    if (!packet.hasRemaining()) {
+      packet.flip();
+      context.packet = null;
+      context.state = ReadState.Ready;
+      release(session, context);
+      out.write(new InterleavedPacket(context.channel, packet));
+    }
+  }
 
-    } finally {
-      try {
-        reader.close();
-      } catch (Exception e) {}
+  /**
+   * Reads a line terminated by LF or CRLF.
+   * 
+   * @return the line, without the line terminator, or null if the line is not complete yet
+   * @throws ProtocolDecoderException if the line is longer than {@link #MAX_LINE_LENGTH}
+   */
+  private String readLine(Context context, IoBuffer buffer) throws ProtocolDecoderException {
+    StringBuilder line = context.line;
+    while (buffer.hasRemaining()) {
+      char c = (char) (buffer.get() & 0xFF);
+      if (c == '\n') {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+        String result = line.toString();
+        line.setLength(0);
+        return result;
+      }
+      // one more byte for a CR
+      if (line.length() > MAX_LINE_LENGTH)
+        throw new ProtocolDecoderException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+      line.append(c);
     }
+    return null;
+  }
 
-    if (state == ReadState.Dispatch) {
-      // The message is already formed
-      // send it
-      session.removeAttribute("state");
-      session.removeAttribute("rtspMessage");
-      out.write(rtspMessage);
+  /**
+   * Reserves the body of the message whose headers have been read. If the reservation is refused,
+   * the body is skipped.
+   * 
+   * @throws ProtocolDecoderException if the length of the body is not valid
+   */
+  private void reserveBody(IoSession session, Context context) throws ProtocolDecoderException {
+    int length = getContentLength(context.rtspMessage);
+    context.contentLength = length;
+    if (length == 0) return;
+    if (MemoryGovernor.getInstance().getBudget(session).reserve(length, false)) {
+      context.reserved = length;
       return;
     }
+    context.rtspMessage = null;
+    context.skip = length;
+    context.state = ReadState.Skip;
+    throw new RecoverableProtocolDecoderException("Message body of " + length
+        + " bytes refused");
+  }
+
+  private void release(IoSession session, Context context) {
+    if (context.reserved == 0) return;
+    MemoryGovernor.getInstance().getBudget(session).release(context.reserved);
+    context.reserved = 0;
+  }
+
+  private void readBody(Context context, IoBuffer buffer) {
+    RtspMessage message = context.rtspMessage;
+    int count = Math.min(context.contentLength - message.getBufferSize(), buffer.remaining());
+    StringBuffer content = new StringBuffer(count);
+    for (int i = 0; i < count; i++)
+      content.append((char) (buffer.get() & 0xFF));
+    message.appendToBuffer(content);
+  }
+
+  private static int getContentLength(RtspMessage message) throws ProtocolDecoderException {
+    String value = message.getHeader("Content-Length", "0").trim();
+    int length;
+    try {
+      length = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      length = -1;
+    }
+    if (length < 0) throw new ProtocolDecoderException("Invalid Content-Length: " + value);
+    return length;
+  }
+
+  private void processLine(IoSession session, Context context, String line)
+      throws ProtocolDecoderException {
+    switch (context.state) {
+
+      case Command:
+        // log.debug( "Command line: " + line );
+        if (line.startsWith("RTSP")) {
+          // this is a RTSP response
+          Matcher m = rtspResponsePattern.matcher(line);
+          if (!m.matches()) throw new ProtocolDecoderException("Malformed response line: " + line);
+
+          RtspCode code = RtspCode.fromString(m.group(1));
+          RtspResponse response = new RtspResponse();
+          response.setCode(code);
+          RtspRequest.Verb verb = (RtspRequest.Verb) session.getAttribute("lastRequestVerb");
+          response.setRequestVerb(verb);
+          context.rtspMessage = response;
+
+        } else {
+          // this is a RTSP request
+          Matcher m = rtspRequestPattern.matcher(line);
+          if (!m.matches()) throw new ProtocolDecoderException("Malformed request line: " + line);
+
+          String verb = m.group(1);
+          String strUrl = m.group(2);
+          URL url = null;
+          if (!strUrl.equalsIgnoreCase("*")) {
+            try {
+              url = new URL(strUrl);
+            } catch (MalformedURLException e) {
+              log.info(e);
+              throw new ProtocolDecoderException("Invalid URL");
+            }
+          }
+          RtspRequest request = new RtspRequest();
+          request.setVerb(verb);
+
+          if (request.getVerb() == RtspRequest.Verb.None) {
+            throw new ProtocolDecoderException("Invalid method: " + verb);
+          }
+
+          request.setUrl(url);
+          context.rtspMessage = request;
+        }
+        context.state = ReadState.Header;
+        break;
 
-    // log.debug( "INCOMPLETE MESSAGE \n" + rtspMessage );
+      case Header:
+        // this is an header
+        Matcher m = rtspHeaderPattern.matcher(line);
 
-    // Save attributes in session
-    session.setAttribute("state", state);
-    session.setAttribute("rtspMessage", rtspMessage);
+        if (!m.matches()) throw new ProtocolDecoderException("RTSP header not valid");
+
+        context.rtspMessage.setHeader(m.group(1), m.group(2));
+        break;
+
+      default:
+        break;
+    }
   }
 
   /*
@@ -228,7 +387,11 @@ public class RtspDecoder implements ProtocolDecoder {
    * @see org.apache.mina.filter.codec.ProtocolDecoder#dispose(org.apache.mina.common.IoSession)
    */
   public void dispose(IoSession session) throws Exception {
-    // Do nothing
+    Context context = (Context) session.removeAttribute(CONTEXT);
+    if (context != null) {
+      release(session, context);
+      if (context.packet != null) context.packet.free();
+    }
   }
 
   public void finishDecode(IoSession session, ProtocolDecoderOutput out) throws Exception {
@@ -5,12 +5,30 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
 import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 
+import rtspproxy.rtp.BufferPool;
 
+/**
+ * Encodes RTSP messages and interleaved packets.
+ */
 public class RtspEncoder extends ProtocolEncoderAdapter {
 
   // private static Logger logger = LoggerFactory.getLogger(RtspEncoder.class);
 
   public void encode(IoSession session, Object message, ProtocolEncoderOutput out) throws Exception {
+    if (message instanceof InterleavedPacket) {
+      // The packet is written as is, after its frame header. Both are freed
+      // once the packet has been sent.
+      InterleavedPacket packet = (InterleavedPacket) message;
+      IoBuffer header = BufferPool.allocate(InterleavedPacket.HEADER_SIZE);
+      packet.header = header;
+      header.put(InterleavedPacket.MAGIC).put((byte) packet.getChannel())
+          .putShort((short) packet.getLength());
+      header.flip();
+      out.write(header);
+      out.write(packet.getBuffer());
+      return;
+    }
+
     String request = message.toString();
     byte[] bs = request.getBytes();
     IoBuffer buffer = IoBuffer.allocate(bs.length, false);
@@ -241,6 +241,32 @@ public class RtspTransport {
     return interleaved;
   }
 
+  /**
+   * @return the interleaved RTP and RTCP channels, or null if not specified. A single channel
+   *         means that RTCP uses the following one.
+   */
+  public int[] getInterleavedChannels() {
+    if (interleaved == null) return null;
+    try {
+      int dash = interleaved.indexOf('-');
+      if (dash < 0) {
+        int channel = Integer.parseInt(interleaved.trim());
+        return new int[] {channel, channel + 1};
+      }
+      return new int[] {Integer.parseInt(interleaved.substring(0, dash).trim()),
+          Integer.parseInt(interleaved.substring(dash + 1).trim())};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param channels the interleaved RTP and RTCP channels
+   */
+  public void setInterleavedChannels(int[] channels) {
+    this.interleaved = channels[0] + "-" + channels[1];
+  }
+
   /**
    * @param interleaved The interleaved to set.
    */
@@ -0,0 +1,124 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CachePolicyTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(CachePolicyTest.class);
+  }
+
+  /** Requests an entry, and stores it if it's not cached */
+  private static List<String> request(CachePolicy policy, String key, long size) {
+    if (!policy.access(key) && policy.admit(key, size)) policy.put(key, size);
+    return policy.evict();
+  }
+
+  private static List<String> list(String... keys) {
+    List<String> list = new ArrayList<String>();
+    for (String key : keys)
+      list.add(key);
+    return list;
+  }
+
+  public void testLruEvictsLeastRecentlyUsed() {
+    CachePolicy policy = new LruPolicy(300);
+    request(policy, "a", 100);
+    request(policy, "b", 100);
+    request(policy, "c", 100);
+    assertTrue(policy.access("a"));
+    assertEquals(list("b"), request(policy, "d", 100));
+    assertEquals(300, policy.getSize());
+  }
+
+  public void testLruIsSizeAware() {
+    CachePolicy policy = new LruPolicy(300);
+    request(policy, "a", 100);
+    request(policy, "b", 100);
+    assertEquals(list("a", "b"), request(policy, "c", 250));
+    assertFalse(policy.admit("d", 301));
+
+    // an entry growing while it's recorded
+    policy.put("c", 350);
+    assertEquals(list("c"), policy.evict());
+    assertEquals(0, policy.getSize());
+  }
+
+  public void testSegmentedLruProtectsReusedEntries() {
+    CachePolicy policy = new SegmentedLruPolicy(1000);
+    for (char c = 'a'; c <= 'e'; c++)
+      request(policy, String.valueOf(c), 100);
+    assertTrue(policy.access("a"));
+    assertTrue(policy.access("b"));
+
+    // a scan only replaces the entries on probation
+    for (int i = 0; i < 20; i++)
+      request(policy, "scan" + i, 100);
+    assertTrue(policy.access("a"));
+    assertTrue(policy.access("b"));
+    assertFalse(policy.access("c"));
+    assertEquals(1000, policy.getSize());
+  }
+
+  public void testTinyLfuResistsScans() {
+    CachePolicy policy = new TinyLfuPolicy(10000);
+    for (int i = 0; i < 10; i++)
+      request(policy, "popular" + i, 500);
+    for (int n = 0; n < 5; n++) {
+      for (int i = 0; i < 10; i++)
+        assertTrue(policy.access("popular" + i));
+    }
+
+    List<String> evicted = new ArrayList<String>();
+    for (int i = 0; i < 100; i++)
+      evicted.addAll(request(policy, "scan" + i, 500));
+    for (int i = 0; i < 10; i++)
+      assertTrue(policy.access("popular" + i));
+    for (String key : evicted)
+      assertTrue(key.startsWith("scan"));
+    assertTrue(policy.getSize() <= policy.getCapacity());
+  }
+
+  public void testTinyLfuAdmitsFrequentEntries() {
+    CachePolicy policy = new TinyLfuPolicy(10000);
+    for (int i = 0; i < 19; i++)
+      request(policy, "once" + i, 500);
+    assertTrue(policy.getSize() <= policy.getCapacity());
+
+    // requested several times before being stored, it replaces an entry requested once
+    policy.access("frequent");
+    policy.access("frequent");
+    List<String> evicted = request(policy, "frequent", 500);
+    assertEquals(1, evicted.size());
+    assertTrue(evicted.get(0).startsWith("once"));
+    assertTrue(policy.access("frequent"));
+  }
+
+  public void testFrequencySketch() {
+    FrequencySketch sketch = new FrequencySketch(1024);
+    for (int i = 0; i < 5; i++)
+      sketch.increment("a");
+    for (int i = 0; i < 20; i++)
+      sketch.increment("b");
+    assertEquals(5, sketch.frequency("a"));
+    // the counters saturate
+    assertEquals(15, sketch.frequency("b"));
+    assertEquals(0, sketch.frequency("c"));
+  }
+
+  public void testNewPolicy() {
+    assertTrue(MediaCache.newPolicy("SLRU", 100) instanceof SegmentedLruPolicy);
+    assertTrue(MediaCache.newPolicy("rtspproxy.cache.LruPolicy", 100) instanceof LruPolicy);
+    assertTrue(MediaCache.newPolicy("no.such.Policy", 100) instanceof TinyLfuPolicy);
+  }
+}
@@ -0,0 +1,202 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Replays a trace of requests against the cache policies, offline, and prints their hit ratio,
+ * byte hit ratio and eviction churn (bytes evicted per byte stored).
+ * <p>
+ * Each line of the trace is a request: the key of the stream, its size and the number of bytes
+ * watched from its start, in bytes; the last field is optional, and lines starting with
+ * <code>#</code> are ignored. Without a trace, a synthetic one is generated: streams requested
+ * with a Zipf popularity, mostly watched partially, and interrupted by crawls of streams requested
+ * once.
+ * <p>
+ * With a segment size, the entries are the segments of the streams watched, as with
+ * <code>proxy.cache.granularity = segment</code>; otherwise they are whole streams, growing to the
+ * part watched.
+ * <p>
+ * This is not a unit test: run it by hand with
+ *
+ * <pre>
+ * java -cp ... rtspproxy.cache.CacheTraceReplay [trace|-] [capacityMB] [segmentMB]
+ * </pre>
+ */
+public class CacheTraceReplay {
+
+  private static final long MB = 1024 * 1024;
+
+  /** A request of the trace */
+  private static class Request {
+    final String key;
+    final long size;
+    final long watched;
+
+    Request(String key, long size, long watched) {
+      this.key = key;
+      this.size = size;
+      this.watched = Math.min(watched, size);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String trace = args.length > 0 ? args[0] : "-";
+    long capacity = (args.length > 1 ? Long.parseLong(args[1]) : 100 * 1024) * MB;
+    long segmentSize = (args.length > 2 ? Long.parseLong(args[2]) : 0) * MB;
+
+    List<Request> requests = trace.equals("-") ? generate(100000, 2000) : read(trace);
+    long total = 0;
+    for (Request request : requests)
+      total += request.watched;
+    System.out.println(requests.size() + " requests, " + total / MB + " MB watched, capacity "
+        + capacity / MB + " MB, "
+        + (segmentSize > 0 ? "segments of " + segmentSize / MB + " MB" : "whole streams"));
+
+    for (String name : Arrays.asList("lru", "slru", "tinylfu")) {
+      CachePolicy policy = MediaCache.newPolicy(name, capacity);
+      long start = System.nanoTime();
+      Replay replay = new Replay(policy, segmentSize);
+      for (Request request : requests)
+        replay.request(request);
+      long elapsed = System.nanoTime() - start;
+      System.out.println(String.format(
+          "%-8s hit ratio %.3f, byte hit ratio %.3f, churn %.3f, %d evictions, %d ms", name,
+          replay.getHitRatio(), replay.getByteHitRatio(), replay.getChurn(), replay.evictions,
+          elapsed / 1000000));
+    }
+  }
+
+  /** Runs the requests against a policy, as the cache would */
+  private static class Replay {
+    private final CachePolicy policy;
+    private final long segmentSize;
+    private final Map<String, Long> sizes = new HashMap<String, Long>();
+
+    long accesses = 0;
+    long hits = 0;
+    long bytes = 0;
+    long hitBytes = 0;
+    long writtenBytes = 0;
+    long evictedBytes = 0;
+    long evictions = 0;
+
+    Replay(CachePolicy policy, long segmentSize) {
+      this.policy = policy;
+      this.segmentSize = segmentSize;
+    }
+
+    void request(Request request) {
+      if (segmentSize <= 0) {
+        Long cached = sizes.get(request.key);
+        access(request.key, request.watched, policy.access(request.key) && cached != null
+            ? cached : -1);
+        return;
+      }
+      for (long offset = 0; offset < request.watched; offset += segmentSize) {
+        String key = request.key + "#0/" + offset / segmentSize;
+        long size = Math.min(segmentSize, request.size - offset);
+        access(key, size, policy.access(key) ? size : -1);
+      }
+    }
+
+    /**
+     * @param cached the bytes of the entry cached, or -1 if it's not cached
+     */
+    private void access(String key, long size, long cached) {
+      accesses++;
+      bytes += size;
+      if (cached >= 0) {
+        hits++;
+        hitBytes += Math.min(cached, size);
+      }
+      if (cached >= size) return;
+      if (cached < 0 && !policy.admit(key, size)) return;
+      // what is missing is recorded from the server
+      writtenBytes += size - Math.max(cached, 0);
+      policy.put(key, size);
+      sizes.put(key, size);
+      for (String evicted : policy.evict()) {
+        evictions++;
+        evictedBytes += sizes.remove(evicted);
+      }
+    }
+
+    double getHitRatio() {
+      return accesses > 0 ? (double) hits / accesses : 0;
+    }
+
+    double getByteHitRatio() {
+      return bytes > 0 ? (double) hitBytes / bytes : 0;
+    }
+
+    double getChurn() {
+      return writtenBytes > 0 ? (double) evictedBytes / writtenBytes : 0;
+    }
+  }
+
+  private static List<Request> read(String file) throws Exception {
+    List<Request> requests = new ArrayList<Request>();
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) continue;
+        String[] fields = line.split("\\s+");
+        long size = Long.parseLong(fields[1]);
+        requests.add(new Request(fields[0], size, fields.length > 2 ? Long.parseLong(fields[2])
+            : size));
+      }
+    } finally {
+      in.close();
+    }
+    return requests;
+  }
+
+  /**
+   * @return requests of a catalogue of streams of 100 MB to 4 GB, with a Zipf popularity; most
+   *         viewers stop early. Every 20000 requests, 1000 streams are crawled.
+   */
+  private static List<Request> generate(int count, int streams) {
+    Random random = new Random(42);
+    long[] sizes = new long[streams];
+    double[] cumulative = new double[streams];
+    double sum = 0;
+    for (int i = 0; i < streams; i++) {
+      sizes[i] = (long) (100 * MB * Math.pow(40, random.nextDouble()));
+      sum += 1 / Math.pow(i + 1, 0.9);
+      cumulative[i] = sum;
+    }
+
+    List<Request> requests = new ArrayList<Request>();
+    int crawled = 0;
+    for (int n = 0; n < count; n++) {
+      if (n > 0 && n % 20000 == 0) {
+        for (int i = 0; i < 1000; i++, crawled++) {
+          long size = (long) (100 * MB * Math.pow(40, random.nextDouble()));
+          requests.add(new Request("crawl" + crawled, size, size));
+        }
+      }
+      int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+      if (index < 0) index = -index - 1;
+      index = Math.min(index, streams - 1);
+      double fraction = Math.min(1, -Math.log(1 - random.nextDouble()) * 0.3);
+      requests.add(new Request("stream" + index, sizes[index], (long) (sizes[index] * fraction)));
+    }
+    return requests;
+  }
+}
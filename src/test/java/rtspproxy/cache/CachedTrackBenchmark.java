@@ -0,0 +1,97 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.rtp.BufferPool;
+
+/**
+ * Measures the read rate of a cached track: a track is recorded, then read from start to end by an
+ * increasing number of concurrent readers, as the clients of a popular on demand stream do.
+ * <p>
+ * This is not a unit test: run it by hand with
+ *
+ * <pre>
+ * java -cp ... rtspproxy.cache.CachedTrackBenchmark [megabytes] [maxReaders] [segmentSize]
+ * </pre>
+ */
+public class CachedTrackBenchmark {
+
+  private static final int PACKET_SIZE = 1328;
+
+  public static void main(String[] args) throws Exception {
+    int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+    int maxReaders = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    long segmentSize = args.length > 2 ? Long.parseLong(args[2]) : 64 * 1024 * 1024;
+    BufferPool.install();
+
+    File directory = File.createTempFile("cache", "");
+    directory.delete();
+    directory.mkdirs();
+    final CachedTrack track =
+        new CachedTrack(directory, 0, "rtsp://host/movie.mp4/trackID=1", "H264", 90000,
+            segmentSize);
+
+    IoBuffer packet = IoBuffer.allocate(PACKET_SIZE);
+    long packets = megabytes * 1024L * 1024L / PACKET_SIZE;
+    long start = System.nanoTime();
+    track.startRun();
+    for (int i = 0; i < packets; i++) {
+      packet.clear();
+      packet.put((byte) 0x80).put((byte) 96).putShort((short) i).putInt(i * 90);
+      packet.position(PACKET_SIZE);
+      packet.flip();
+      // a keyframe every second, with a packet every millisecond
+      track.append(packet, i, i % 1000 == 0);
+    }
+    track.endRun();
+    long elapsed = System.nanoTime() - start;
+    System.out.println("recorded " + packets + " packets in " + track.getSegmentCount()
+        + " segments, " + (long) (track.getSize() / 1048576.0 / (elapsed / 1e9)) + " MB/s");
+
+    for (int readers = 1; readers <= maxReaders; readers *= 2) {
+      final AtomicLong read = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+      Thread[] threads = new Thread[readers];
+      for (int i = 0; i < readers; i++) {
+        threads[i] = new Thread() {
+          public void run() {
+            try {
+              CachedTrack.Reader reader = track.newReader();
+              reader.seek(0);
+              IoBuffer buffer;
+              while ((buffer = reader.read()) != null) {
+                read.incrementAndGet();
+                bytes.addAndGet(buffer.remaining());
+                buffer.free();
+              }
+            } catch (Exception e) {
+              e.printStackTrace();
+            }
+          }
+        };
+      }
+      start = System.nanoTime();
+      for (Thread thread : threads)
+        thread.start();
+      for (Thread thread : threads)
+        thread.join();
+      elapsed = System.nanoTime() - start;
+
+      System.out.println("readers=" + readers + ": " + (long) (read.get() / (elapsed / 1e9))
+          + " packets/s, " + (long) (bytes.get() / 1048576.0 / (elapsed / 1e9)) + " MB/s");
+    }
+
+    track.delete();
+    directory.delete();
+  }
+}
@@ -0,0 +1,289 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.lib.Npt;
+
+public class CachedTrackTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(CachedTrackTest.class);
+  }
+
+  private File directory;
+
+  protected void setUp() throws Exception {
+    directory = File.createTempFile("cache", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files)
+        file.delete();
+    }
+    directory.delete();
+  }
+
+  private static IoBuffer packet(int sequence, int timestamp) {
+    IoBuffer buffer = IoBuffer.allocate(20);
+    buffer.put((byte) 0x80).put((byte) 96).putShort((short) sequence);
+    buffer.putInt(timestamp).putInt(0x1234).putInt(sequence).putInt(timestamp);
+    buffer.flip();
+    return buffer;
+  }
+
+  private CachedTrack newTrack() {
+    return newTrack(1024 * 1024);
+  }
+
+  private CachedTrack newTrack(long segmentSize) {
+    return new CachedTrack(directory, 0, "rtsp://host/movie.mp4/trackID=1", "MPEG4-GENERIC",
+        1000, segmentSize);
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    return bytes;
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Records a packet every 20 ms, from start to end */
+  private static void record(CachedTrack track, long start, long end) throws Exception {
+    track.startRun();
+    for (long time = start; time <= end; time += 20)
+      track.append(packet((int) time / 20, (int) time), time, false);
+    track.endRun();
+  }
+
+  public void testReadBack() throws Exception {
+    CachedTrack track = newTrack();
+    record(track, 0, 1000);
+    assertTrue(track.hasContent());
+    assertEquals(1000, track.getCoveredUntil(0));
+
+    CachedTrack.Reader reader = track.newReader();
+    assertTrue(reader.seek(0));
+    assertTrue(reader.isDiscontinuity());
+    assertFalse(reader.isDiscontinuity());
+    for (int time = 0; time <= 1000; time += 20) {
+      assertEquals(time, reader.peek());
+      IoBuffer buffer = reader.read();
+      assertEquals(20, buffer.remaining());
+      assertEquals(time / 20, buffer.getShort(2));
+      assertEquals(time, buffer.getInt(4));
+      buffer.free();
+    }
+    assertEquals(-1, reader.peek());
+    assertNull(reader.read());
+    track.close();
+  }
+
+  public void testSeekUsesIndex() throws Exception {
+    CachedTrack track = newTrack();
+    record(track, 0, 3000);
+
+    CachedTrack.Reader reader = track.newReader();
+    assertTrue(reader.seek(1230));
+    // the index has an entry every 500 ms
+    assertEquals(1000, reader.peek());
+    assertFalse(reader.seek(3500));
+    track.close();
+  }
+
+  public void testRunsAreChained() throws Exception {
+    CachedTrack track = newTrack();
+    record(track, 0, 1000);
+    record(track, 2000, 3000);
+    assertEquals(1000, track.getCoveredUntil(0));
+    assertEquals(-1, track.getCoveredUntil(1500));
+
+    // a run overlapping the end of the first one fills the gap
+    record(track, 900, 2100);
+    assertEquals(3000, track.getCoveredUntil(0));
+
+    CachedTrack.Reader reader = track.newReader();
+    assertTrue(reader.seek(0));
+    long last = -1;
+    int discontinuities = 0;
+    while (reader.peek() >= 0) {
+      if (reader.isDiscontinuity()) discontinuities++;
+      reader.read().free();
+      assertTrue(reader.getLastTime() > last);
+      last = reader.getLastTime();
+    }
+    assertEquals(3000, last);
+    assertEquals(3, discontinuities);
+    track.close();
+  }
+
+  public void testSegmentRollover() throws Exception {
+    CachedTrack track = newTrack(1024);
+    record(track, 0, 3000);
+    assertTrue(track.getSegmentCount() > 1);
+    File[] files = directory.listFiles();
+    for (File file : files)
+      assertTrue(file.length() <= 1024);
+
+    CachedTrack.Reader reader = track.newReader();
+    assertTrue(reader.seek(2630));
+    assertEquals(2500, reader.peek());
+    assertTrue(reader.seek(0));
+    for (int time = 0; time <= 3000; time += 20) {
+      IoBuffer buffer = reader.read();
+      assertEquals(time, buffer.getInt(4));
+      buffer.free();
+    }
+    assertNull(reader.read());
+    track.close();
+  }
+
+  public void testInterruptedRecordingIsRecovered() throws Exception {
+    CachedTrack track = newTrack();
+    record(track, 0, 1000);
+    File index = new File(directory, "track0.index");
+    byte[] committed = read(index);
+    record(track, 1020, 1480);
+    long size = track.getSize();
+    track.close();
+
+    // a crash before the index of the second run is written, after a partial write
+    write(index, committed);
+    RandomAccessFile file = new RandomAccessFile(new File(directory, "track0-000000.seg"), "rw");
+    file.setLength(size + 13);
+    file.close();
+
+    CachedTrack loaded = newTrack();
+    loaded.load();
+    assertEquals(size, loaded.getSize());
+    assertEquals(1480, loaded.getCoveredUntil(0));
+    CachedTrack.Reader reader = loaded.newReader();
+    assertTrue(reader.seek(1400));
+    assertEquals(1020, reader.peek());
+    loaded.close();
+  }
+
+  public void testCorruptRecordIsDiscarded() throws Exception {
+    CachedTrack track = newTrack();
+    record(track, 0, 1000);
+    File index = new File(directory, "track0.index");
+    byte[] committed = read(index);
+    record(track, 1020, 1480);
+    track.close();
+    write(index, committed);
+
+    // a byte of the packet at 1300 ms is lost
+    int recordSize = CachedTrack.RECORD_HEADER_SIZE + 20;
+    long offset = (51 + 14) * recordSize;
+    RandomAccessFile file = new RandomAccessFile(new File(directory, "track0-000000.seg"), "rw");
+    file.seek(offset + CachedTrack.RECORD_HEADER_SIZE + 5);
+    file.write(0xFF);
+    file.close();
+
+    CachedTrack loaded = newTrack();
+    loaded.load();
+    assertEquals(offset, loaded.getSize());
+    assertEquals(1280, loaded.getCoveredUntil(0));
+
+    // recording goes on after the recovered records
+    record(loaded, 1300, 2000);
+    assertEquals(2000, loaded.getCoveredUntil(0));
+    loaded.close();
+  }
+
+  public void testDropSegment() throws Exception {
+    CachedTrack track = newTrack(1024);
+    record(track, 0, 1000);
+    record(track, 2000, 3000);
+    int segments = track.getSegmentCount();
+    // the first run is in segments 0 and 1, the second one starts in segment 1
+    assertEquals(1, track.dropSegment(0).size());
+    assertEquals(segments - 1, track.getSegmentCount());
+    assertEquals(-1, track.getCoveredUntil(0));
+    assertEquals(3000, track.getCoveredUntil(2000));
+    CachedTrack.Reader reader = track.newReader();
+    assertTrue(reader.seek(2000));
+    assertEquals(2000, reader.peek());
+    track.close();
+
+    CachedTrack loaded = newTrack(1024);
+    loaded.load();
+    assertEquals(segments - 1, loaded.getSegmentCount());
+    assertEquals(3000, loaded.getCoveredUntil(2000));
+    record(loaded, 4000, 4200);
+    assertEquals(4200, loaded.getCoveredUntil(4000));
+    loaded.close();
+  }
+
+  public void testUnknownIndexFormat() throws Exception {
+    write(new File(directory, "track0.index"), new byte[] {0, 0, 0, 1, 0, 0, 0, 0});
+    try {
+      newTrack().load();
+      fail("an index of another format must be refused");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testAbortedRun() throws Exception {
+    CachedTrack track = newTrack();
+    record(track, 0, 1000);
+    long size = track.getSize();
+    track.startRun();
+    track.append(packet(100, 2000), 2000, false);
+    track.abortRun();
+    assertEquals(size, track.getSize());
+    assertEquals(-1, track.getCoveredUntil(2000));
+    track.close();
+  }
+
+  public void testNormalize() {
+    assertEquals("rtsp://host/movie.mp4", MediaCache.normalize("RTSP://Host:554/movie.mp4/"));
+    assertEquals("rtsp://host:8554/movie.mp4", MediaCache.normalize("rtsp://HOST:8554/movie.mp4#t"));
+  }
+
+  public void testParseRange() {
+    Npt npt = CachedStream.parseRange("npt=10-120.5;time=20051208T082159Z");
+    assertEquals(10.0, npt.getTimeStart(), 0.001);
+    assertEquals(120.5, npt.getTimeEnd(), 0.001);
+    assertNull(CachedStream.parseRange("npt=now-"));
+    assertNull(CachedStream.parseRange("npt=10-"));
+    assertNull(CachedStream.parseRange("clock=19961108T142300Z-"));
+    assertNull(CachedStream.parseRange(null));
+
+    assertEquals(120500, CachedStream.getDuration("v=0\r\na=range:npt=0-120.5\r\n"));
+    assertEquals(-1, CachedStream.getDuration("v=0\r\na=range:npt=now-\r\n"));
+  }
+}
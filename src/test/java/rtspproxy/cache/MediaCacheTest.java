@@ -0,0 +1,198 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.cache;
+
+import java.io.File;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+import rtspproxy.rtsp.RtspCode;
+import rtspproxy.rtsp.RtspRequest;
+import rtspproxy.rtsp.RtspResponse;
+
+/**
+ * Describes streams into the cache, under a directory of the temporary directory, and describes
+ * them again as if their cached entry was stale.
+ */
+public class MediaCacheTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(MediaCacheTest.class);
+  }
+
+  private static final String URL = "rtsp://Server:554/validated.sdp";
+  private static final String DATE = "Thu, 01 Jan 2026 00:00:00 GMT";
+
+  private static String sdp(String origin, String name) {
+    return "v=0\r\no=- " + origin + " IN IP4 10.0.0.1\r\ns=" + name + "\r\n"
+        + "a=range:npt=0-10\r\nm=video 0 RTP/AVP 96\r\na=rtpmap:96 MP4V-ES/90000\r\n"
+        + "a=control:trackID=1\r\n";
+  }
+
+  private static RtspResponse response(String sdp) {
+    RtspResponse response = RtspResponse.errorResponse(RtspCode.OK);
+    response.setRequestVerb(RtspRequest.Verb.DESCRIBE);
+    response.setHeader("CSeq", "1");
+    response.setHeader("Date", DATE);
+    response.setHeader("Content-Type", "application/sdp");
+    response.setHeader("Content-Base", URL + "/");
+    response.setBuffer(new StringBuffer(sdp));
+    response.setHeader("Content-Length", Integer.toString(sdp.length()));
+    return response;
+  }
+
+  private static RtspRequest describe() throws Exception {
+    RtspRequest request = new RtspRequest();
+    request.setVerb(RtspRequest.Verb.DESCRIBE);
+    request.setUrl(new URL(URL));
+    request.setHeader("CSeq", "2");
+    return request;
+  }
+
+  /** Records a second of packets, so that the stream can be described from the cache */
+  private static void record(CachedStream stream) throws Exception {
+    CachedTrack track = stream.getTracks().get(0);
+    track.startRun();
+    for (int time = 0; time <= 1000; time += 40) {
+      IoBuffer buffer = IoBuffer.allocate(20);
+      buffer.put((byte) 0x80).put((byte) 96).putShort((short) time).putInt(time * 90);
+      buffer.putInt(0x1234).putInt(time).putInt(0);
+      buffer.flip();
+      track.append(buffer, time, false);
+    }
+    track.endRun();
+  }
+
+  protected void setUp() {
+    // rtsp:// URLs, as in Main
+    System.setProperty("java.protocol.handler.pkgs", "rtspproxy");
+    Config.set("proxy.cache.dir", new File(System.getProperty("java.io.tmpdir"),
+        "rtspproxy-cache-test").getPath());
+    CachedStream stream = MediaCache.get(URL);
+    if (stream != null) MediaCache.remove(stream);
+  }
+
+  protected void tearDown() {
+    CachedStream stream = MediaCache.get(URL);
+    if (stream != null) MediaCache.remove(stream);
+  }
+
+  public void testValidator() {
+    String sdp = sdp("1 2", "Movie");
+    RtspResponse response = response(sdp);
+    assertEquals("o=1 2", MediaCache.getValidator(response, sdp));
+    response.setHeader("Last-Modified", " " + DATE);
+    assertEquals("last-modified:" + DATE, MediaCache.getValidator(response, sdp));
+    response.setHeader("ETag", "\"v1\"");
+    assertEquals("etag:\"v1\"", MediaCache.getValidator(response, sdp));
+    assertNull(MediaCache.getValidator(response(""), ""));
+  }
+
+  public void testRevalidated() throws Exception {
+    RtspResponse response = response(sdp("1 1", "Movie"));
+    response.setHeader("ETag", "\"v1\"");
+    CachedStream stream = MediaCache.describe(URL, response);
+    assertNotNull(stream);
+    assertSame(stream, MediaCache.get("rtsp://server/validated.sdp"));
+    // nothing to describe from the cache yet
+    assertNull(MediaCache.lookup(URL));
+    RtspRequest request = describe();
+    assertFalse(MediaCache.addConditions(request));
+
+    record(stream);
+    long hits = MediaCache.getHits();
+    assertSame(stream, MediaCache.lookup(URL));
+    assertEquals(hits + 1, MediaCache.getHits());
+
+    // stale: the server allowed no time without asking it again
+    response.setHeader("Expires", DATE);
+    long validations = MediaCache.getValidations();
+    assertSame(stream, MediaCache.describe(URL, response));
+    assertEquals(validations + 1, MediaCache.getValidations());
+    assertFalse(stream.isFresh(MediaCache.getRevalidateInterval()));
+    long misses = MediaCache.getMisses();
+    assertNull(MediaCache.lookup(URL));
+    assertEquals(misses + 1, MediaCache.getMisses());
+
+    // asked again, conditionally
+    assertTrue(MediaCache.addConditions(request));
+    assertEquals("\"v1\"", request.getHeader("If-None-Match"));
+    assertNull(request.getHeader("If-Modified-Since"));
+    // already conditional
+    assertFalse(MediaCache.addConditions(request));
+
+    RtspResponse notModified = RtspResponse.errorResponse(RtspCode.NotModified);
+    notModified.setHeader("CSeq", "2");
+    assertSame(stream, MediaCache.notModified(URL, notModified));
+    assertEquals(validations + 2, MediaCache.getValidations());
+    assertTrue(stream.isFresh(MediaCache.getRevalidateInterval()));
+    assertSame(stream, MediaCache.lookup(URL));
+    // the packets are kept
+    assertEquals(1000, stream.getCoveredUntil(0));
+    assertFalse(stream.isRemoved());
+  }
+
+  public void testInvalidated() throws Exception {
+    RtspResponse response = response(sdp("1 1", "Movie"));
+    response.setHeader("Last-Modified", DATE);
+    CachedStream stream = MediaCache.describe(URL, response);
+    record(stream);
+
+    RtspRequest request = describe();
+    assertTrue(MediaCache.addConditions(request));
+    assertEquals(DATE, request.getHeader("If-Modified-Since"));
+    assertNull(request.getHeader("If-None-Match"));
+
+    // modified on the server: replaced by an empty entry
+    response = response(sdp("1 1", "Movie"));
+    response.setHeader("Last-Modified", "Fri, 02 Jan 2026 00:00:00 GMT");
+    long invalidations = MediaCache.getInvalidations();
+    CachedStream changed = MediaCache.describe(URL, response);
+    assertEquals(invalidations + 1, MediaCache.getInvalidations());
+    assertNotNull(changed);
+    assertNotSame(stream, changed);
+    assertTrue(stream.isRemoved());
+    assertFalse(changed.hasContent());
+    assertSame(changed, MediaCache.get(URL));
+    assertSame(changed, MediaCache.getByTrackUrl(URL + "/trackID=1"));
+    assertNull(MediaCache.lookup(URL));
+  }
+
+  public void testSdpOrigin() throws Exception {
+    CachedStream stream = MediaCache.describe(URL, response(sdp("1 1", "Movie")));
+    record(stream);
+    assertEquals("o=1 1", stream.getValidator());
+    // the SDP can't be asked for conditionally
+    assertFalse(MediaCache.addConditions(describe()));
+
+    // the same session id and version, whatever the rest of the SDP
+    long validations = MediaCache.getValidations();
+    assertSame(stream, MediaCache.describe(URL, response(sdp("1 1", "Renamed"))));
+    assertEquals(validations + 1, MediaCache.getValidations());
+    assertTrue(stream.hasContent());
+
+    // a new version of the session
+    long invalidations = MediaCache.getInvalidations();
+    CachedStream changed = MediaCache.describe(URL, response(sdp("1 2", "Movie")));
+    assertEquals(invalidations + 1, MediaCache.getInvalidations());
+    assertNotSame(stream, changed);
+    assertTrue(stream.isRemoved());
+    assertEquals("o=1 2", changed.getValidator());
+
+    // not cached anymore, as the server tells
+    RtspResponse response = response(sdp("1 3", "Movie"));
+    response.setHeader("Cache-Control", "no-cache");
+    assertNull(MediaCache.describe(URL, response));
+    assertTrue(changed.isRemoved());
+    assertNull(MediaCache.get(URL));
+  }
+}
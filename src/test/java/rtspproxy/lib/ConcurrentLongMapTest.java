@@ -0,0 +1,104 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.lib;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mat
+ */
+public class ConcurrentLongMapTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(ConcurrentLongMapTest.class);
+  }
+
+  public void testPutGetRemove() {
+    ConcurrentLongMap<String> map = new ConcurrentLongMap<String>(4);
+
+    assertNull(map.get(1));
+    assertNull(map.put(1, "a"));
+    assertEquals("a", map.put(1, "b"));
+    assertEquals("b", map.putIfAbsent(1, "c"));
+    assertEquals("b", map.get(1));
+    assertNull(map.putIfAbsent(0xFFFFFFFFL, "d"));
+    assertEquals(2, map.size());
+
+    assertFalse(map.remove(1, "x"));
+    assertTrue(map.remove(1, "b"));
+    assertNull(map.get(1));
+    assertEquals("d", map.remove(0xFFFFFFFFL));
+    assertTrue(map.isEmpty());
+  }
+
+  public void testGrowAndTombstones() {
+    ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>(1);
+
+    // Repeated insert/remove cycles must not fill the table with tombstones
+    for (int round = 0; round < 10; round++) {
+      for (long i = 0; i < 1000; i++)
+        map.put(i * 65536, i);
+      assertEquals(1000, map.size());
+      for (long i = 0; i < 1000; i++)
+        assertEquals(Long.valueOf(i), map.get(i * 65536));
+      for (long i = 0; i < 1000; i += 2)
+        map.remove(i * 65536);
+      for (long i = 1; i < 1000; i += 2)
+        assertEquals(Long.valueOf(i), map.get(i * 65536));
+      map.clear();
+    }
+  }
+
+  public void testConcurrentChurn() throws Exception {
+    final ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>();
+    final long stable = 0xCAFEBABEL;
+    map.put(stable, stable);
+
+    Thread[] threads = new Thread[4];
+    final boolean[] failed = new boolean[1];
+    for (int t = 0; t < threads.length; t++) {
+      final long base = (t + 1) * 1000000L;
+      threads[t] = new Thread() {
+        public void run() {
+          for (long i = 0; i < 20000; i++) {
+            Long value = Long.valueOf(base + i);
+            map.put(base + i, value);
+            if (map.get(stable) == null || map.get(base + i) != value) failed[0] = true;
+            map.remove(base + i, value);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+
+    assertFalse(failed[0]);
+    assertEquals(1, map.size());
+  }
+
+  public void testSocketAddressMap() throws Exception {
+    SocketAddressMap<String> map = new SocketAddressMap<String>();
+    InetAddress v4 = InetAddress.getByName("10.0.0.1");
+    InetAddress v6 = InetAddress.getByName("::2");
+
+    map.put(v4, 6970, "v4");
+    map.put(v6, 6970, "v6");
+    assertEquals("v4", map.get(new InetSocketAddress("10.0.0.1", 6970)));
+    assertNull(map.get(new InetSocketAddress("10.0.0.1", 6971)));
+    assertEquals("v6", map.get(new InetSocketAddress(v6, 6970)));
+
+    assertFalse(map.remove(v4, 6970, "other"));
+    assertTrue(map.remove(v4, 6970, "v4"));
+    assertTrue(map.remove(v6, 6970, "v6"));
+    assertEquals(0, map.size());
+  }
+}
@@ -0,0 +1,42 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.lib;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(HistogramTest.class);
+  }
+
+  public void testBuckets() {
+    Histogram histogram = new Histogram(5);
+    histogram.record(0);
+    histogram.record(1);
+    histogram.record(3);
+    histogram.record(6);
+    histogram.record(1000);
+
+    assertEquals(1, histogram.getBucket(0));
+    assertEquals(1, histogram.getBucket(1));
+    assertEquals(1, histogram.getBucket(2));
+    assertEquals(1, histogram.getBucket(3));
+    // everything above goes in the last bucket
+    assertEquals(1, histogram.getBucket(4));
+    assertEquals(7, histogram.getBucketLimit(3));
+    assertEquals(Long.MAX_VALUE, histogram.getBucketLimit(4));
+
+    assertEquals(5, histogram.getCount());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(202, histogram.getMean());
+    assertEquals(3, histogram.getPercentile(50));
+    assertEquals(1000, histogram.getPercentile(100));
+  }
+}
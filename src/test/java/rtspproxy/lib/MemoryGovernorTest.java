@@ -0,0 +1,80 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.session.DummySession;
+
+import rtspproxy.Config;
+
+public class MemoryGovernorTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(MemoryGovernorTest.class);
+  }
+
+  @Override
+  protected void setUp() {
+    Config.setInt("proxy.memory.limit", 1000);
+    Config.setInt("proxy.memory.sessionLimit", 400);
+  }
+
+  public void testSessionLimit() {
+    MemoryGovernor governor = new MemoryGovernor();
+    MemoryGovernor.Budget budget = governor.getBudget(new DummySession());
+    assertTrue(budget.reserve(300, false));
+    assertFalse(budget.reserve(200, false));
+    assertEquals(300, budget.getUsed());
+    assertEquals(1, budget.getRefused());
+    assertEquals(1, governor.getRefused());
+
+    budget.release(300);
+    assertEquals(0, governor.getUsed());
+    assertEquals(300, governor.getPeak());
+  }
+
+  public void testLevels() {
+    MemoryGovernor governor = new MemoryGovernor();
+    MemoryGovernor.Budget a = governor.getBudget(new DummySession());
+    MemoryGovernor.Budget b = governor.getBudget(new DummySession());
+    MemoryGovernor.Budget c = governor.getBudget(new DummySession());
+
+    assertTrue(a.reserve(400, true));
+    assertTrue(b.reserve(250, true));
+    assertEquals(MemoryGovernor.Level.NORMAL, governor.getLevel());
+    // media is refused above the drop level, RTSP messages are not
+    assertFalse(c.reserve(100, true));
+    assertTrue(c.reserve(100, false));
+    assertEquals(MemoryGovernor.Level.DROP_MEDIA, governor.getLevel());
+
+    c.force(200);
+    assertEquals(MemoryGovernor.Level.REFUSE_SESSIONS, governor.getLevel());
+    assertFalse(governor.acceptSession());
+    assertEquals(1, governor.getSessionsRefused());
+
+    // closing a connection releases everything it held
+    c.close();
+    assertEquals(650, governor.getUsed());
+    assertEquals(MemoryGovernor.Level.NORMAL, governor.getLevel());
+    assertTrue(governor.acceptSession());
+  }
+
+  public void testHysteresis() {
+    MemoryGovernor governor = new MemoryGovernor();
+    MemoryGovernor.Budget budget = governor.getBudget(new DummySession());
+    budget.force(720);
+    assertEquals(MemoryGovernor.Level.DROP_MEDIA, governor.getLevel());
+    // not far enough below the level
+    budget.release(40);
+    assertEquals(MemoryGovernor.Level.DROP_MEDIA, governor.getLevel());
+    budget.release(40);
+    assertEquals(MemoryGovernor.Level.NORMAL, governor.getLevel());
+  }
+}
@@ -0,0 +1,85 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.lib;
+
+import junit.framework.TestCase;
+
+public class TimingWheelTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(TimingWheelTest.class);
+  }
+
+  private static final long MS = 1000000L;
+
+  private static class CountingTimer extends TimingWheel.Timer {
+    int expired = 0;
+    TimingWheel rescheduleOn = null;
+    long rescheduleAt;
+
+    protected void expire(long now) {
+      expired++;
+      if (rescheduleOn != null) {
+        TimingWheel wheel = rescheduleOn;
+        rescheduleOn = null;
+        wheel.schedule(this, rescheduleAt);
+      }
+    }
+  }
+
+  public void testExpire() {
+    TimingWheel wheel = new TimingWheel("test", 10 * MS, 64);
+    long start = System.nanoTime();
+    CountingTimer a = new CountingTimer();
+    CountingTimer b = new CountingTimer();
+    wheel.schedule(a, start + 50 * MS);
+    wheel.schedule(b, start + 100 * MS);
+
+    wheel.advance(start + 40 * MS);
+    assertEquals(0, a.expired);
+    wheel.advance(start + 70 * MS);
+    assertEquals(1, a.expired);
+    assertEquals(0, b.expired);
+    wheel.advance(start + 120 * MS);
+    assertEquals(1, a.expired);
+    assertEquals(1, b.expired);
+  }
+
+  public void testSeveralTurns() {
+    // 4 buckets of 10 ms: the timer shares its bucket with earlier ticks
+    TimingWheel wheel = new TimingWheel("test", 10 * MS, 3);
+    long start = System.nanoTime();
+    CountingTimer timer = new CountingTimer();
+    wheel.schedule(timer, start + 100 * MS);
+    for (int i = 1; i <= 8; i++) {
+      wheel.advance(start + i * 10 * MS);
+      assertEquals(0, timer.expired);
+    }
+    wheel.advance(start + 120 * MS);
+    assertEquals(1, timer.expired);
+  }
+
+  public void testPastAndReschedule() {
+    TimingWheel wheel = new TimingWheel("test", 10 * MS, 16);
+    long start = System.nanoTime();
+    wheel.advance(start + 100 * MS);
+
+    CountingTimer timer = new CountingTimer();
+    timer.rescheduleOn = wheel;
+    timer.rescheduleAt = start + 150 * MS;
+    // a time in the past expires at the next tick
+    wheel.schedule(timer, start);
+    wheel.advance(start + 110 * MS);
+    assertEquals(1, timer.expired);
+    wheel.advance(start + 130 * MS);
+    assertEquals(1, timer.expired);
+    wheel.advance(start + 170 * MS);
+    assertEquals(2, timer.expired);
+  }
+}
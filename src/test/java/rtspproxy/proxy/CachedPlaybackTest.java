@@ -0,0 +1,360 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.DummySession;
+
+import rtspproxy.Config;
+import rtspproxy.cache.CachedStream;
+import rtspproxy.cache.CachedTrack;
+import rtspproxy.cache.MediaCache;
+import rtspproxy.rtp.DatagramEndpoint;
+import rtspproxy.rtsp.RtspCode;
+import rtspproxy.rtsp.RtspRequest;
+import rtspproxy.rtsp.RtspResponse;
+
+/**
+ * Plays a stream of 10 seconds whose first two seconds are recorded in the cache, with a packet
+ * every 40 ms. The rest is played by a server answering on a local port, which sends its packets
+ * interleaved.
+ */
+public class CachedPlaybackTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(CachedPlaybackTest.class);
+  }
+
+  /** Timestamp units between two packets, at 90 kHz */
+  private static final int INTERVAL = 3600;
+  private static final String ETAG = "\"v1\"";
+  /** The packet the playback of the second 1 starts from, at 520 ms, and the packets before 2 s */
+  private static final int FIRST = 13;
+  private static final int CACHED = 50 - FIRST;
+
+  private static String sdp() {
+    return "v=0\r\no=- 1 1 IN IP4 127.0.0.1\r\ns=Movie\r\na=range:npt=0-10\r\n"
+        + "m=video 0 RTP/AVP 96\r\na=rtpmap:96 MP4V-ES/90000\r\na=control:trackID=1\r\n";
+  }
+
+  /** Records the packets before they are sent to the subscribers */
+  private static class RecordingTrack extends Track {
+    final List<Integer> sequences = new ArrayList<Integer>();
+    final List<Integer> timestamps = new ArrayList<Integer>();
+    /** The number written in the payload of each packet */
+    final List<Integer> numbers = new ArrayList<Integer>();
+
+    RecordingTrack(String url) {
+      super(url);
+    }
+
+    void sendToSubscribers(IoBuffer buffer) {
+      int sequence = buffer.getShort(buffer.position() + 2) & 0xFFFF;
+      int timestamp = buffer.getInt(buffer.position() + 4);
+      int number = buffer.getInt(buffer.position() + 12);
+      // counted once recorded
+      super.sendToSubscribers(buffer);
+      synchronized (sequences) {
+        sequences.add(sequence);
+        timestamps.add(timestamp);
+        numbers.add(number);
+        sequences.notifyAll();
+      }
+    }
+
+    int sent() {
+      synchronized (sequences) {
+        return sequences.size();
+      }
+    }
+
+    void await(int count) throws InterruptedException {
+      synchronized (sequences) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sequences.size() < count && System.currentTimeMillis() < deadline)
+          sequences.wait(100);
+      }
+      assertEquals(count, sent());
+    }
+  }
+
+  /**
+   * A server answering the requests of a single connection, which sends packets interleaved once
+   * asked to play.
+   */
+  private class Server extends Thread {
+    final ServerSocket socket;
+    final List<String> verbs = new ArrayList<String>();
+    final Map<String, String> headers = new HashMap<String, String>();
+    final int packets;
+
+    Server(int packets) throws IOException {
+      super("Server");
+      this.socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+      this.packets = packets;
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        Socket connection = socket.accept();
+        BufferedReader in =
+            new BufferedReader(new InputStreamReader(connection.getInputStream(), "ISO-8859-1"));
+        OutputStream out = connection.getOutputStream();
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (line.length() == 0) continue;
+          String verb = line.substring(0, line.indexOf(' '));
+          String cseq = null;
+          while ((line = in.readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("CSeq")) cseq = value;
+            synchronized (verbs) {
+              headers.put(verb + " " + name, value);
+            }
+          }
+          answer(out, verb, cseq);
+          synchronized (verbs) {
+            verbs.add(verb);
+            verbs.notifyAll();
+          }
+        }
+        connection.close();
+      } catch (IOException e) {
+        // closed
+      }
+    }
+
+    private void answer(OutputStream out, String verb, String cseq) throws IOException {
+      StringBuilder sb = new StringBuilder("RTSP/1.0 200 OK\r\nCSeq: " + cseq + "\r\n");
+      if (verb.equals("DESCRIBE")) {
+        sb.append("ETag: ").append(ETAG).append("\r\n");
+        sb.append("Content-Type: application/sdp\r\n");
+        sb.append("Content-Base: ").append(url).append("/\r\n");
+        sb.append("Content-Length: ").append(sdp().length()).append("\r\n\r\n");
+        sb.append(sdp());
+      } else if (verb.equals("SETUP")) {
+        sb.append("Session: 4242;timeout=60\r\n");
+        sb.append("Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n\r\n");
+      } else if (verb.equals("PLAY")) {
+        sb.append("Session: 4242\r\nRange: npt=2-4\r\n\r\n");
+      } else {
+        sb.append("\r\n");
+      }
+      out.write(sb.toString().getBytes("ISO-8859-1"));
+      if (!verb.equals("PLAY")) return;
+
+      // packets of another numbering, starting from the second 2
+      for (int i = 0; i < packets; i++) {
+        IoBuffer packet = packet(5000 + i, 777000 + i * INTERVAL, 100 + i);
+        out.write(new byte[] {'$', 0, 0, (byte) packet.remaining()});
+        out.write(packet.array(), 0, packet.remaining());
+      }
+      out.flush();
+    }
+
+    /**
+     * Waits for the server to answer a request.
+     */
+    void await(String verb) throws InterruptedException {
+      synchronized (verbs) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!verbs.contains(verb) && System.currentTimeMillis() < deadline)
+          verbs.wait(100);
+        assertTrue(verb + " not received", verbs.contains(verb));
+      }
+    }
+
+    String getHeader(String verb, String name) {
+      synchronized (verbs) {
+        return headers.get(verb + " " + name);
+      }
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  private String url;
+  private String trackUrl;
+  private CachedStream stream;
+
+  private static IoBuffer packet(int sequence, int timestamp, int number) {
+    IoBuffer buffer = IoBuffer.allocate(20);
+    buffer.put((byte) 0x80).put((byte) 96).putShort((short) sequence);
+    buffer.putInt(timestamp).putInt(0x1234).putInt(number).putInt(0);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Describes the stream into the cache, and records the packets from the second 0 to 2.
+   */
+  private void cache(int port) throws Exception {
+    url = "rtsp://127.0.0.1:" + port + "/movie.sdp";
+    trackUrl = url + "/trackID=1";
+    RtspResponse response = RtspResponse.errorResponse(RtspCode.OK);
+    response.setRequestVerb(RtspRequest.Verb.DESCRIBE);
+    response.setHeader("CSeq", "1");
+    response.setHeader("ETag", ETAG);
+    response.setHeader("Content-Base", url + "/");
+    response.setBuffer(new StringBuffer(sdp()));
+    stream = MediaCache.describe(url, response);
+    assertNotNull(stream);
+    assertEquals(10000, stream.getDuration());
+
+    CachedTrack track = stream.getTrack(trackUrl);
+    track.startRun();
+    for (int i = 0; i <= 50; i++)
+      track.append(packet(i, i * INTERVAL, i), i * 40, false);
+    track.endRun();
+    assertEquals(2000, stream.getCoveredUntil(0));
+  }
+
+  protected void setUp() {
+    // rtsp:// URLs, as in Main
+    System.setProperty("java.protocol.handler.pkgs", "rtspproxy");
+    Config.set("proxy.cache.dir", new File(System.getProperty("java.io.tmpdir"),
+        "rtspproxy-cache-test").getPath());
+  }
+
+  protected void tearDown() {
+    if (stream != null) MediaCache.remove(stream);
+  }
+
+  public void testPlayRange() throws Exception {
+    InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    DatagramSocket socket = new DatagramSocket(0, localhost);
+    socket.setSoTimeout(5000);
+    DatagramEndpoint endpoint =
+        new DatagramEndpoint("Sender", new InetSocketAddress(localhost, 0), null);
+    endpoint.start();
+    // nothing listens there: the whole range is recorded
+    cache(socket.getLocalPort());
+
+    ProxySession session = new ProxySession();
+    RecordingTrack track = new RecordingTrack(trackUrl);
+    Subscriber subscriber =
+        session.addSubscriber(track, localhost, socket.getLocalPort(), socket.getLocalPort() + 1,
+            false);
+    subscriber.setEndpoints(endpoint, endpoint);
+    CachedPlayback playback =
+        new CachedPlayback(stream, session, new ProxyHandler(new DummySession()));
+    playback.addTrack(track, stream.getTrack(trackUrl));
+    long served = CachedPlayback.getPacketsServed();
+    long fills = CachedPlayback.getGapFills();
+    try {
+      assertFalse(playback.play("npt=10.5-"));
+      assertFalse(playback.play("clock=19961108T142300Z-"));
+
+      assertTrue(playback.play("npt=1-2"));
+      assertEquals("npt=1.000-2.000", playback.getRange());
+      assertTrue(subscriber.isActive());
+
+      // from the last entry of the index before the second 1, at 520 ms, to the second 2
+      track.await(CACHED);
+      Thread.sleep(100);
+      assertEquals(CACHED, track.sent());
+      assertEquals(served + CACHED, CachedPlayback.getPacketsServed());
+      assertEquals(fills, CachedPlayback.getGapFills());
+      int sequence = track.sequences.get(0);
+      int timestamp = track.timestamps.get(0);
+      for (int i = 0; i < CACHED; i++) {
+        assertEquals(FIRST + i, (int) track.numbers.get(i));
+        assertEquals((sequence + i) & 0xFFFF, (int) track.sequences.get(i));
+        assertEquals(timestamp + i * INTERVAL, (int) track.timestamps.get(i));
+      }
+      // the second 1 is the start of the range
+      assertEquals("url=" + trackUrl + ";seq=" + subscriber.toClientSequence(sequence)
+          + ";rtptime=" + subscriber.toClientTimestamp(timestamp + (25 - FIRST) * INTERVAL),
+          playback.getRtpInfo());
+
+      // as announced to the client
+      DatagramPacket received = new DatagramPacket(new byte[64], 64);
+      socket.receive(received);
+      IoBuffer data = IoBuffer.wrap(received.getData(), 0, received.getLength());
+      assertEquals(subscriber.toClientSequence(sequence), data.getShort(2) & 0xFFFF);
+      assertEquals(subscriber.toClientTimestamp(timestamp), data.getInt(4) & 0xFFFFFFFFL);
+      assertEquals(FIRST, data.getInt(12));
+    } finally {
+      playback.close();
+      session.close();
+      socket.close();
+      endpoint.stop();
+    }
+  }
+
+  public void testGapFill() throws Exception {
+    Server server = new Server(20);
+    server.start();
+    cache(server.socket.getLocalPort());
+
+    ProxySession session = new ProxySession();
+    RecordingTrack track = new RecordingTrack(trackUrl);
+    CachedPlayback playback =
+        new CachedPlayback(stream, session, new ProxyHandler(new DummySession()));
+    playback.addTrack(track, stream.getTrack(trackUrl));
+    long fills = CachedPlayback.getGapFills();
+    long validations = MediaCache.getValidations();
+    try {
+      assertTrue(playback.play("npt=1-4"));
+      assertEquals("npt=1.000-4.000", playback.getRange());
+
+      // the second 1 to 2 from the cache, then the rest from the server
+      track.await(CACHED + 20);
+      assertEquals(fills + 1, CachedPlayback.getGapFills());
+      // described again, unchanged
+      assertEquals(validations + 1, MediaCache.getValidations());
+      assertEquals("RTP/AVP/TCP;unicast;interleaved=0-1", server.getHeader("SETUP", "Transport"));
+      assertEquals("npt=2.0-4.0", server.getHeader("PLAY", "Range"));
+
+      // spliced after the packets of the cache
+      int sequence = track.sequences.get(0);
+      for (int i = 0; i < CACHED + 20; i++) {
+        assertEquals(i < CACHED ? FIRST + i : 100 + i - CACHED, (int) track.numbers.get(i));
+        assertEquals((sequence + i) & 0xFFFF, (int) track.sequences.get(i));
+      }
+      // at the timestamp of the second 2, unless the server was late
+      int timestamp = track.timestamps.get(CACHED);
+      assertTrue(timestamp - (track.timestamps.get(0) + CACHED * INTERVAL) >= 0);
+      for (int i = CACHED; i < CACHED + 20; i++)
+        assertEquals(timestamp + (i - CACHED) * INTERVAL, (int) track.timestamps.get(i));
+    } finally {
+      playback.close();
+      session.close();
+    }
+
+    // the server session is torn down, and the gap recorded
+    server.await("TEARDOWN");
+    assertEquals("4242", server.getHeader("TEARDOWN", "Session"));
+    server.close();
+    assertEquals(2000 + 19 * 40, stream.getCoveredUntil(1000));
+    assertNull(track.getRecorder());
+  }
+}
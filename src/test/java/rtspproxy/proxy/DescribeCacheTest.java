@@ -0,0 +1,266 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import rtspproxy.rtsp.RtspCode;
+import rtspproxy.rtsp.RtspRequest;
+import rtspproxy.rtsp.RtspResponse;
+
+public class DescribeCacheTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(DescribeCacheTest.class);
+  }
+
+  private static final String URL = "rtsp://Server:554/movie.sdp";
+  private static final String SDP =
+      "v=0\r\no=- 1 1 IN IP4 10.0.0.1\r\ns=Movie\r\nm=video 0 RTP/AVP 96\r\n";
+
+  protected void setUp() {
+    // rtsp:// URLs, as in Main
+    System.setProperty("java.protocol.handler.pkgs", "rtspproxy");
+  }
+
+  private static RtspRequest describe(String url, int cseq) throws Exception {
+    RtspRequest request = new RtspRequest();
+    request.setVerb(RtspRequest.Verb.DESCRIBE);
+    request.setUrl(new URL(url));
+    request.setHeader("CSeq", Integer.toString(cseq));
+    request.setHeader("Accept", "application/sdp");
+    return request;
+  }
+
+  private static RtspResponse response(RtspCode code, String sdp) {
+    RtspResponse response = RtspResponse.errorResponse(code);
+    response.setRequestVerb(RtspRequest.Verb.DESCRIBE);
+    response.setHeader("CSeq", "1");
+    response.setHeader("Session", "12345");
+    response.setHeader("Date", "Thu, 01 Jan 2026 00:00:00 GMT");
+    if (sdp != null) {
+      response.setHeader("Content-Type", "application/sdp");
+      response.setHeader("Content-Base", URL + "/");
+      response.setBuffer(new StringBuffer(sdp));
+      response.setHeader("Content-Length", Integer.toString(sdp.length()));
+    }
+    return response;
+  }
+
+  public void testKey() throws Exception {
+    DescribeCache cache = new DescribeCache(true, 10000, 16, true, 10000);
+    RtspRequest request = describe(URL, 1);
+    String key = cache.getKey(request);
+    // the same stream, written another way
+    assertEquals(key, cache.getKey(describe("rtsp://server/movie.sdp", 2)));
+
+    RtspRequest other = describe(URL, 3);
+    other.setHeader("Authorization", "Basic dXNlcjpwYXNz");
+    assertFalse(key.equals(cache.getKey(other)));
+
+    other = describe(URL, 4);
+    other.setHeader("Session", "12345");
+    assertNull(cache.getKey(other));
+    other = describe(URL, 5);
+    other.setHeader("If-Modified-Since", "Thu, 01 Jan 2026 00:00:00 GMT");
+    assertNull(cache.getKey(other));
+
+    assertNull(new DescribeCache(false, 0, 16, false, 0).getKey(request));
+  }
+
+  public void testCoalescing() throws Exception {
+    DescribeCache cache = new DescribeCache(false, 0, 16, true, 10000);
+    RtspRequest first = describe(URL, 1);
+    String key = cache.getKey(first);
+    DescribeCache.Flight flight = cache.join(key, new DescribeCache.Waiter(null, first));
+    assertNotNull(flight);
+    for (int i = 2; i <= 5; i++)
+      assertNull(cache.join(key, new DescribeCache.Waiter(null, describe(URL, i))));
+
+    List<DescribeCache.Waiter> waiters = cache.complete(flight, response(RtspCode.OK, SDP));
+    assertEquals(4, waiters.size());
+    assertEquals("2", waiters.get(0).request.getHeader("CSeq"));
+    // not kept
+    assertNull(cache.get(key, first));
+    assertEquals(0, cache.size());
+
+    // the next request is forwarded again
+    assertNotNull(cache.join(key, new DescribeCache.Waiter(null, describe(URL, 6))));
+  }
+
+  public void testAbandonedFlight() throws Exception {
+    DescribeCache cache = new DescribeCache(true, 10000, 16, true, 10000);
+    RtspRequest first = describe(URL, 1);
+    String key = cache.getKey(first);
+    DescribeCache.Flight flight = cache.join(key, new DescribeCache.Waiter(null, first));
+    assertNull(cache.join(key, new DescribeCache.Waiter(null, describe(URL, 2))));
+
+    List<DescribeCache.Waiter> waiters = cache.abandon(flight);
+    assertEquals(1, waiters.size());
+    // the waiting request is sent again, and forwarded itself
+    DescribeCache.Flight next = cache.join(key, waiters.get(0));
+    assertNotNull(next);
+    assertTrue(cache.complete(next, response(RtspCode.OK, SDP)).isEmpty());
+    assertTrue(cache.complete(flight, response(RtspCode.OK, SDP)).isEmpty());
+  }
+
+  public void testFlightTimeout() throws Exception {
+    final List<DescribeCache.Waiter> resent = new ArrayList<DescribeCache.Waiter>();
+    DescribeCache cache = new DescribeCache(false, 0, 16, true, 50) {
+      void resend(DescribeCache.Waiter waiter) {
+        // as the handler does, the request joins the flights again
+        join(getKey(waiter.request), waiter);
+        synchronized (resent) {
+          resent.add(waiter);
+          resent.notifyAll();
+        }
+      }
+    };
+    RtspRequest first = describe(URL, 1);
+    String key = cache.getKey(first);
+    DescribeCache.Flight flight = cache.join(key, new DescribeCache.Waiter(null, first));
+    assertNull(cache.join(key, new DescribeCache.Waiter(null, describe(URL, 2))));
+    assertNull(cache.join(key, new DescribeCache.Waiter(null, describe(URL, 3))));
+
+    // the server doesn't answer in time: the waiting requests are sent again, without any other
+    // request coming
+    synchronized (resent) {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (resent.size() < 2 && System.currentTimeMillis() < deadline)
+        resent.wait(100);
+      assertTrue(resent.size() >= 2);
+      assertEquals("2", resent.get(0).request.getHeader("CSeq"));
+      assertEquals("3", resent.get(1).request.getHeader("CSeq"));
+    }
+    assertTrue(cache.complete(flight, response(RtspCode.OK, SDP)).isEmpty());
+  }
+
+  public void testNoTimeoutOnceAnswered() throws Exception {
+    final List<DescribeCache.Waiter> resent = new ArrayList<DescribeCache.Waiter>();
+    DescribeCache cache = new DescribeCache(false, 0, 16, true, 50) {
+      void resend(DescribeCache.Waiter waiter) {
+        resent.add(waiter);
+      }
+    };
+    RtspRequest first = describe(URL, 1);
+    String key = cache.getKey(first);
+    DescribeCache.Flight flight = cache.join(key, new DescribeCache.Waiter(null, first));
+    assertNull(cache.join(key, new DescribeCache.Waiter(null, describe(URL, 2))));
+    assertEquals(1, cache.complete(flight, response(RtspCode.OK, SDP)).size());
+    assertTrue(flight.timeout.isCancelled());
+    Thread.sleep(100);
+    assertTrue(resent.isEmpty());
+  }
+
+  public void testCachedResponse() throws Exception {
+    DescribeCache cache = new DescribeCache(true, 10000, 16, true, 10000);
+    RtspRequest first = describe(URL, 1);
+    String key = cache.getKey(first);
+    DescribeCache.Flight flight = cache.join(key, new DescribeCache.Waiter(null, first));
+    cache.complete(flight, response(RtspCode.OK, SDP));
+    assertEquals(1, cache.size());
+
+    RtspResponse cached = cache.get(key, describe(URL, 2));
+    assertNotNull(cached);
+    assertEquals(SDP, cached.getBuffer().toString());
+    assertEquals(URL + "/", cached.getHeader("Content-Base"));
+    assertNull(cached.getHeader("Session"));
+    assertNull(cached.getHeader("CSeq"));
+    assertNull(cached.getHeader("Date"));
+
+    RtspResponse copy = DescribeCache.copy(cached, "7");
+    assertEquals("7", copy.getHeader("CSeq"));
+    assertEquals(RtspCode.OK, copy.getCode());
+    copy.getBuffer().append("a=x\r\n");
+    assertEquals(SDP, cached.getBuffer().toString());
+
+    // forced to ask the server
+    RtspRequest noCache = describe(URL, 3);
+    noCache.setHeader("Cache-Control", "no-cache");
+    assertNull(cache.get(key, noCache));
+  }
+
+  public void testTtl() throws Exception {
+    DescribeCache cache = new DescribeCache(true, 10, 16, true, 10000);
+    RtspRequest first = describe(URL, 1);
+    String key = cache.getKey(first);
+    cache.complete(cache.join(key, new DescribeCache.Waiter(null, first)), response(RtspCode.OK,
+        SDP));
+    assertNotNull(cache.get(key, first));
+    Thread.sleep(50);
+    assertNull(cache.get(key, first));
+    assertEquals(0, cache.size());
+  }
+
+  public void testNotCacheable() throws Exception {
+    DescribeCache cache = new DescribeCache(true, 10000, 16, true, 10000);
+    RtspRequest first = describe(URL, 1);
+    String key = cache.getKey(first);
+    RtspResponse response = response(RtspCode.OK, SDP);
+    response.setHeader("Cache-Control", "no-cache");
+    cache.complete(cache.join(key, new DescribeCache.Waiter(null, first)), response);
+    assertEquals(0, cache.size());
+
+    // already expired, by the server
+    response = response(RtspCode.OK, SDP);
+    response.setHeader("Expires", "Thu, 01 Jan 2026 00:00:00 GMT");
+    cache.complete(cache.join(key, new DescribeCache.Waiter(null, first)), response);
+    assertEquals(0, cache.size());
+  }
+
+  public void testInvalidation() throws Exception {
+    DescribeCache cache = new DescribeCache(true, 10000, 16, true, 10000);
+    RtspRequest plain = describe(URL, 1);
+    RtspRequest authorized = describe(URL, 2);
+    authorized.setHeader("Authorization", "Basic dXNlcjpwYXNz");
+    String plainKey = cache.getKey(plain);
+    String authorizedKey = cache.getKey(authorized);
+    cache.complete(cache.join(plainKey, new DescribeCache.Waiter(null, plain)), response(
+        RtspCode.OK, SDP));
+    cache.complete(cache.join(authorizedKey, new DescribeCache.Waiter(null, authorized)),
+        response(RtspCode.OK, SDP));
+    assertEquals(2, cache.size());
+
+    // a new version of the stream
+    cache.complete(cache.join(plainKey, new DescribeCache.Waiter(null, plain)), response(
+        RtspCode.OK, SDP.replace("o=- 1 1", "o=- 1 2")));
+    assertEquals(1, cache.size());
+    assertNull(cache.get(authorizedKey, authorized));
+    assertNotNull(cache.get(plainKey, plain));
+
+    // an authentication error only concerns its own key
+    cache.complete(cache.join(authorizedKey, new DescribeCache.Waiter(null, authorized)),
+        response(RtspCode.Unauthorized, null));
+    assertEquals(1, cache.size());
+
+    cache.complete(cache.join(authorizedKey, new DescribeCache.Waiter(null, authorized)),
+        response(RtspCode.NotFound, null));
+    assertEquals(0, cache.size());
+
+    cache.complete(cache.join(plainKey, new DescribeCache.Waiter(null, plain)), response(
+        RtspCode.OK, SDP));
+    cache.invalidate("rtsp://server/movie.sdp");
+    assertEquals(0, cache.size());
+  }
+
+  public void testMaxEntries() throws Exception {
+    DescribeCache cache = new DescribeCache(true, 10000, 2, true, 10000);
+    for (int i = 0; i < 3; i++) {
+      RtspRequest request = describe(URL + i, 1);
+      cache.complete(cache.join(cache.getKey(request), new DescribeCache.Waiter(null, request)),
+          response(RtspCode.OK, SDP));
+    }
+    assertEquals(2, cache.size());
+    RtspRequest first = describe(URL + 0, 2);
+    assertNull(cache.get(cache.getKey(first), first));
+  }
+}
@@ -0,0 +1,41 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import junit.framework.TestCase;
+import rtspproxy.rtsp.MediaFormats;
+
+public class ForwardErrorCorrectionTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(ForwardErrorCorrectionTest.class);
+  }
+
+  public void testRewriteSdp() {
+    String sdp = "v=0\r\n" + "o=- 1 1 IN IP4 10.0.0.1\r\n" + "s=Live\r\n" + "a=control:*\r\n"
+        + "m=video 0 RTP/AVP 96 127\r\n" + "a=rtpmap:96 H264/90000\r\n"
+        + "a=rtpmap:127 rtx/90000\r\n" + "a=fmtp:127 apt=96\r\n" + "a=control:trackID=1\r\n"
+        + "m=audio 0 RTP/AVP 97\r\n" + "a=rtpmap:97 mpeg4-generic/44100/2\r\n"
+        + "a=control:trackID=2\r\n" + "m=application 0 udp wb\r\n";
+    String rewritten = ForwardErrorCorrection.rewriteSdp(sdp);
+
+    assertTrue(rewritten.contains("m=video 0 RTP/AVP 96 127 126\r\na=rtpmap:126 ulpfec/90000\r\n"));
+    assertTrue(rewritten.contains("m=audio 0 RTP/AVP 97 127\r\na=rtpmap:127 ulpfec/44100\r\n"));
+    assertTrue(rewritten.endsWith("m=application 0 udp wb\r\n"));
+
+    MediaFormats formats = new MediaFormats(rewritten);
+    assertEquals(126, formats.getFecPayloadType("rtsp://proxy/live.sdp/trackID=1"));
+    assertEquals(127, formats.getRtxPayloadType("rtsp://proxy/live.sdp/trackID=1"));
+    assertEquals(127, formats.getFecPayloadType("rtsp://proxy/live.sdp/trackID=2"));
+    assertEquals(-1, formats.getRtxPayloadType("rtsp://proxy/live.sdp/trackID=2"));
+    assertEquals(-1, new MediaFormats(sdp).getFecPayloadType("rtsp://proxy/live.sdp/trackID=1"));
+
+    assertNotNull(ForwardErrorCorrection.newEncoder(formats, "rtsp://proxy/live.sdp/trackID=2"));
+    assertNull(ForwardErrorCorrection.newEncoder(formats, "rtsp://proxy/live.sdp/trackID=3"));
+  }
+}
@@ -0,0 +1,129 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.rtp.H264Payload;
+import rtspproxy.rtp.H265Payload;
+import rtspproxy.rtp.RtpPacket;
+
+public class GopCacheTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(GopCacheTest.class);
+  }
+
+  /** Records the sequence numbers and timestamps of the packets sent */
+  private static class RecordingSubscriber extends Subscriber {
+    final List<Integer> sequences = new ArrayList<Integer>();
+    final List<Integer> timestamps = new ArrayList<Integer>();
+
+    RecordingSubscriber(Track track) {
+      super(track, null, (InetAddress) null, 0, 0, false);
+    }
+
+    public void sendRtp(IoBuffer buffer) {
+      sequences.add(buffer.getShort(buffer.position() + 2) & 0xFFFF);
+      timestamps.add(buffer.getInt(buffer.position() + 4));
+    }
+  }
+
+  private static IoBuffer packet(int sequence, int timestamp, int... nal) {
+    IoBuffer buffer = IoBuffer.allocate(RtpPacket.HEADER_SIZE + nal.length);
+    buffer.put((byte) 0x80).put((byte) 96).putShort((short) sequence);
+    buffer.putInt(timestamp).putInt(0x1234);
+    for (int b : nal)
+      buffer.put((byte) b);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static List<Integer> list(int... values) {
+    List<Integer> list = new ArrayList<Integer>();
+    for (int value : values)
+      list.add(value);
+    return list;
+  }
+
+  public void testBurst() {
+    Track track = new Track("rtsp://localhost/live.sdp/trackID=1");
+    GopCache cache = new GopCache(track, "H264");
+
+    cache.send(packet(1, 0, 0x41)); // P frame, no keyframe yet
+    assertEquals(0, cache.getPacketCount());
+    cache.send(packet(2, 100, 0x67)); // SPS
+    cache.send(packet(3, 100, 0x68)); // PPS
+    cache.send(packet(4, 100, 0x7C, 0x85)); // FU-A start of an IDR slice
+    cache.send(packet(5, 100, 0x7C, 0x45)); // FU-A end
+    cache.send(packet(7, 200, 0x41)); // P frame, after a lost packet
+    assertEquals(1, cache.getKeyframes());
+    assertEquals(5, cache.getPacketCount());
+    assertTrue(GopCache.getTotalBytes() >= cache.getBytes());
+
+    RecordingSubscriber subscriber = new RecordingSubscriber(track);
+    int[] first = cache.start(subscriber);
+    assertTrue(subscriber.isActive());
+    assertEquals(3, first[0]);
+    assertEquals(100, first[1]);
+    // renumbered up to the last live packet
+    assertEquals(list(3, 4, 5, 6, 7), subscriber.sequences);
+    assertEquals(list(100, 100, 100, 100, 200), subscriber.timestamps);
+
+    // already playing: nothing is sent again
+    assertNull(cache.start(subscriber));
+    assertEquals(1, cache.getBursts());
+
+    // a new keyframe replaces the cached pictures, not the parameter sets
+    cache.send(packet(8, 300, 0x65));
+    assertEquals(3, cache.getPacketCount());
+    cache.close();
+    assertEquals(0, cache.getBytes());
+    track.close();
+  }
+
+  public void testLimit() {
+    Track track = new Track("rtsp://localhost/live.sdp/trackID=2");
+    GopCache cache = new GopCache(track, "H264");
+    int size = 0;
+    cache.send(packet(1, 0, 0x65));
+    for (int i = 2; size < 4 * 1024 * 1024; i++) {
+      IoBuffer packet = packet(i, i, new int[1400]);
+      packet.put(RtpPacket.HEADER_SIZE, (byte) 0x41);
+      size += packet.remaining();
+      cache.send(packet);
+    }
+    assertTrue(cache.getOverflows() > 0);
+    assertTrue(cache.getBytes() <= 2097152);
+    cache.close();
+    track.close();
+  }
+
+  public void testH265() {
+    IoBuffer idr = packet(0, 0, 19 << 1, 1);
+    assertEquals(H264Payload.SLICE | H264Payload.REFERENCE | H264Payload.KEYFRAME,
+        H265Payload.classify(idr, RtpPacket.HEADER_SIZE, 2));
+    IoBuffer trailN = packet(0, 0, 0, 1);
+    assertEquals(H264Payload.SLICE, H265Payload.classify(trailN, RtpPacket.HEADER_SIZE, 2));
+    // FU start of a CRA picture
+    IoBuffer fu = packet(0, 0, 49 << 1, 1, 0x80 | 21);
+    assertEquals(H264Payload.SLICE | H264Payload.REFERENCE | H264Payload.KEYFRAME,
+        H265Payload.classify(fu, RtpPacket.HEADER_SIZE, 3));
+    // AP with VPS, SPS and PPS
+    IoBuffer ap =
+        packet(0, 0, 48 << 1, 1, 0, 2, 32 << 1, 1, 0, 2, 33 << 1, 1, 0, 2, 34 << 1, 1);
+    assertEquals(H264Payload.KEYFRAME | H264Payload.PARAMETER_SET,
+        H265Payload.classify(ap, RtpPacket.HEADER_SIZE, 14));
+  }
+}
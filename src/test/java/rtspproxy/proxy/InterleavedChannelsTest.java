@@ -0,0 +1,124 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+
+import rtspproxy.Config;
+import rtspproxy.rtsp.InterleavedPacket;
+
+public class InterleavedChannelsTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(InterleavedChannelsTest.class);
+  }
+
+  private DummySession session;
+  /** Packets written to the session, in order */
+  private List<InterleavedPacket> written;
+
+  @Override
+  protected void setUp() {
+    // two 96 bytes packets (with their header) fill the window
+    Config.setInt("proxy.interleaved.writeWindow", 150);
+    Config.setInt("proxy.interleaved.queueSize", 3);
+    written = new ArrayList<InterleavedPacket>();
+    session = new DummySession();
+    session.setHandler(new IoHandlerAdapter() {
+      @Override
+      public void messageSent(IoSession session, Object message) {
+        // packetSent() is called by the test, to simulate a slow peer
+        written.add((InterleavedPacket) message);
+      }
+    });
+  }
+
+  @Override
+  protected void tearDown() {
+    Config.setInt("proxy.interleaved.writeWindow", 65536);
+    Config.setInt("proxy.interleaved.queueSize", 512);
+    Config.set("proxy.interleaved.dropPolicy", "newest");
+  }
+
+  private static IoBuffer packet(int id) {
+    IoBuffer buffer = IoBuffer.allocate(92);
+    buffer.put(0, (byte) id);
+    return buffer;
+  }
+
+  public void testWindowAndQueue() {
+    InterleavedChannels channels = InterleavedChannels.get(session);
+    for (int i = 0; i < 5; i++)
+      assertTrue(channels.send(0, packet(i)));
+    assertEquals(2, written.size());
+    assertEquals(3, channels.getQueueDepth());
+    assertEquals(2 * 96, channels.getPendingBytes());
+
+    // the queue is full: the newest packet is dropped
+    assertFalse(channels.send(1, packet(5)));
+    assertEquals(1, channels.getPacketsDropped(1));
+    assertEquals(1, channels.getPacketsDropped());
+
+    // each packet sent lets the next one in
+    channels.packetSent(written.get(0));
+    assertEquals(3, written.size());
+    assertEquals(2, channels.getQueueDepth());
+    channels.packetSent(written.get(1));
+    channels.packetSent(written.get(2));
+    channels.packetSent(written.get(3));
+    assertEquals(5, written.size());
+    assertEquals(0, channels.getQueueDepth());
+    assertEquals(3, channels.getMaxQueueDepth());
+    for (int i = 0; i < 5; i++)
+      assertEquals(i, written.get(i).getBuffer().get(0));
+    assertEquals(5 * 92, channels.getBytesSent(0));
+  }
+
+  public void testDropOldest() {
+    Config.set("proxy.interleaved.dropPolicy", "oldest");
+    InterleavedChannels channels = InterleavedChannels.get(session);
+    for (int i = 0; i < 6; i++)
+      assertTrue(channels.send(0, packet(i)));
+    assertEquals(1, channels.getPacketsDropped(0));
+
+    for (int i = 0; i < 5; i++)
+      channels.packetSent(written.get(i));
+    // packet 2 was the oldest in the queue when packet 5 arrived
+    assertEquals(5, written.size());
+    assertEquals(3, written.get(2).getBuffer().get(0));
+    assertEquals(5, written.get(4).getBuffer().get(0));
+  }
+
+  public void testClear() {
+    InterleavedChannels channels = InterleavedChannels.get(session);
+    for (int i = 0; i < 4; i++)
+      channels.send(0, packet(i));
+    long dropped = InterleavedChannels.getTotalPacketsDropped();
+    channels.clear();
+    assertEquals(0, channels.getQueueDepth());
+    assertEquals(2, channels.getPacketsDropped(0));
+    assertEquals(dropped + 2, InterleavedChannels.getTotalPacketsDropped());
+
+    // the packets written won't be sent, and nothing more is written
+    assertEquals(0, channels.getPendingBytes());
+    assertEquals(0, channels.getBacklog());
+    assertFalse(channels.send(0, packet(4)));
+    assertEquals(2, written.size());
+    channels.packetSent(written.get(0));
+    assertEquals(0, channels.getPendingBytes());
+  }
+}
@@ -0,0 +1,132 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.DummySession;
+
+import rtspproxy.rtp.DatagramEndpoint;
+import rtspproxy.rtsp.RtspCode;
+import rtspproxy.rtsp.RtspResponse;
+
+public class LiveStreamTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(LiveStreamTest.class);
+  }
+
+  public void testLiveRange() {
+    assertTrue(LiveStream.isLiveRange("npt=now-"));
+    assertTrue(LiveStream.isLiveRange("npt=0.000-"));
+    assertTrue(LiveStream.isLiveRange("npt=0-;time=19970123T143720Z"));
+
+    assertFalse(LiveStream.isLiveRange(null));
+    assertFalse(LiveStream.isLiveRange("npt=0-596.48"));
+    assertFalse(LiveStream.isLiveRange("clock=19961108T142300Z-19961108T143520Z"));
+  }
+
+  public void testSubscribers() throws Exception {
+    InetAddress address = InetAddress.getByName("127.0.0.1");
+    ProxySession session1 = new ProxySession();
+    ProxySession session2 = new ProxySession();
+
+    Track track = session1.addTrack("rtsp://localhost/live.sdp/trackID=1", null);
+    Subscriber s1 = session1.addSubscriber(track, address, 5000, 5001, true);
+    Subscriber s2 = session2.addSubscriber(track, address, 6000, 6001, false);
+
+    assertEquals(2, track.getSubscribers().length);
+    assertSame(s1, Track.getSubscriberByClientAddress(new InetSocketAddress(address, 5001)));
+    assertSame(s2, Track.getSubscriberByClientAddress(new InetSocketAddress(address, 6000)));
+    assertSame(track, Track.getByClientAddress(new InetSocketAddress(address, 6001)));
+    assertEquals(track.getProxySSRC().intValue(), s2.getSsrc());
+
+    session2.setPlaying(true);
+    assertTrue(s2.isActive());
+
+    session2.close();
+    assertEquals(1, track.getSubscribers().length);
+    assertNull(Track.getSubscriberByClientAddress(new InetSocketAddress(address, 6000)));
+
+    session1.close();
+    assertEquals(0, track.getSubscribers().length);
+    assertNull(Track.getByClientAddress(new InetSocketAddress(address, 5000)));
+  }
+
+  /**
+   * A client joining the stream is given its own SSRC and numbering, in the packets it receives and
+   * in the RTP-Info of its PLAY response.
+   */
+  public void testJoin() throws Exception {
+    System.setProperty("java.protocol.handler.pkgs", "rtspproxy");
+    InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    DatagramSocket socket = new DatagramSocket(0, localhost);
+    socket.setSoTimeout(5000);
+    DatagramEndpoint endpoint =
+        new DatagramEndpoint("Sender", new InetSocketAddress(localhost, 0), null);
+    endpoint.start();
+
+    ProxySession owner = new ProxySession();
+    Track track = owner.addTrack("rtsp://localhost/joined.sdp/trackID=1", null);
+    owner.addSubscriber(track, localhost, 7000, 7001, false);
+    RtspResponse response = RtspResponse.errorResponse(RtspCode.OK);
+    response.setHeader("CSeq", "4");
+    response.setHeader("Range", "npt=now-");
+    LiveStream stream = LiveStream.create(new ProxyHandler(new DummySession()), owner,
+        new DummySession(), new URL("rtsp://localhost/joined.sdp"), response);
+    assertNotNull(stream);
+
+    ProxySession viewer = new ProxySession();
+    stream.attach(viewer, new ProxyHandler(new DummySession()));
+    Subscriber subscriber =
+        viewer.addSubscriber(track, localhost, socket.getLocalPort(), socket.getLocalPort() + 1,
+            false);
+    subscriber.setEndpoints(endpoint, endpoint);
+    stream.join(subscriber);
+    assertTrue(subscriber.getSsrc() != track.getProxySSRC().intValue());
+    try {
+      IoBuffer packet = IoBuffer.allocate(20);
+      packet.put(0, (byte) 0x80);
+      packet.putShort(2, (short) 100);
+      packet.putInt(4, 9000);
+      packet.putInt(8, 0x11223344);
+      track.sendToSubscribers(packet);
+
+      String rtpInfo = stream.play(viewer);
+      assertTrue(subscriber.isActive());
+      assertEquals("url=" + track.getUrl() + ";seq=" + subscriber.toClientSequence(101)
+          + ";rtptime=" + subscriber.toClientTimestamp(9000), rtpInfo);
+
+      packet = IoBuffer.allocate(20);
+      packet.put(0, (byte) 0x80);
+      packet.putShort(2, (short) 101);
+      packet.putInt(4, 12000);
+      packet.putInt(8, 0x11223344);
+      track.sendToSubscribers(packet);
+
+      DatagramPacket received = new DatagramPacket(new byte[64], 64);
+      socket.receive(received);
+      IoBuffer data = IoBuffer.wrap(received.getData(), 0, received.getLength());
+      assertEquals(subscriber.toClientSequence(101), data.getShort(2) & 0xFFFF);
+      assertEquals(subscriber.toClientTimestamp(12000), data.getInt(4) & 0xFFFFFFFFL);
+      assertEquals(subscriber.getSsrc(), data.getInt(8));
+      assertEquals(101, subscriber.fromClientSequence(data.getShort(2) & 0xFFFF));
+    } finally {
+      socket.close();
+      endpoint.stop();
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Allocates the groups of the pool to tracks, with their viewers. Nothing is sent to the groups.
+ * The tests pass without checking anything when no interface supports multicast.
+ */
+public class MulticastEgressTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(MulticastEgressTest.class);
+  }
+
+  private final List<Track> tracks = new ArrayList<Track>();
+
+  @Override
+  protected void tearDown() {
+    for (Track track : tracks)
+      track.close();
+  }
+
+  /**
+   * @return false if no interface supports multicast, in which case the test is skipped
+   */
+  private static boolean multicastAvailable() {
+    try {
+      MulticastGroup.getNetworkInterface();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private Track newTrack(String name) {
+    Track track = new Track("rtsp://localhost/" + name + ".sdp/trackID=1");
+    tracks.add(track);
+    return track;
+  }
+
+  public void testGroupPool() throws Exception {
+    if (!multicastAvailable()) return;
+    int used = MulticastEgress.getGroupsUsed();
+    List<MulticastEgress> egresses = new ArrayList<MulticastEgress>();
+    Set<InetAddress> groups = new HashSet<InetAddress>();
+    try {
+      while (MulticastEgress.getGroupsUsed() < MulticastEgress.getGroupCount()) {
+        MulticastEgress egress = new MulticastEgress(newTrack("pool" + egresses.size()));
+        egresses.add(egress);
+        assertTrue(egress.getGroup().isMulticastAddress());
+        // each track has its own group
+        assertTrue(groups.add(egress.getGroup()));
+      }
+      assertEquals(MulticastEgress.getGroupCount() - used, egresses.size());
+
+      // the pool is exhausted
+      try {
+        new MulticastEgress(newTrack("exhausted"));
+        fail("Group allocated from an exhausted pool");
+      } catch (IOException e) {
+        // expected
+      }
+
+      // a group given back is allocated again
+      MulticastEgress released = egresses.remove(egresses.size() / 2);
+      released.close();
+      assertTrue(released.isClosed());
+      assertEquals(MulticastEgress.getGroupCount() - 1, MulticastEgress.getGroupsUsed());
+      MulticastEgress egress = new MulticastEgress(newTrack("reused"));
+      egresses.add(egress);
+      assertEquals(released.getGroup(), egress.getGroup());
+    } finally {
+      for (MulticastEgress egress : egresses)
+        egress.close();
+    }
+    assertEquals(used, MulticastEgress.getGroupsUsed());
+  }
+
+  public void testViewers() throws Exception {
+    if (!multicastAvailable()) return;
+    int used = MulticastEgress.getGroupsUsed();
+    Track track = newTrack("viewers");
+    Subscriber first = track.addMulticastSubscriber(null, false);
+    MulticastEgress egress = first.getEgress();
+    assertNotNull(egress);
+    assertSame(egress, track.getMulticastEgress());
+    assertEquals(used + 1, MulticastEgress.getGroupsUsed());
+    assertEquals(egress.getGroup(), first.getAddress());
+    // nobody is playing yet
+    assertFalse(egress.getSender().isActive());
+
+    Subscriber second = track.addMulticastSubscriber(null, true);
+    assertSame(egress, second.getEgress());
+    assertEquals(2, egress.getViewerCount());
+    assertTrue(egress.getSender().isActive());
+
+    // the packets are sent while a viewer is playing
+    first.setActive(true);
+    second.setActive(false);
+    assertTrue(egress.getSender().isActive());
+    // already playing
+    first.setActive(true);
+    first.setActive(false);
+    assertFalse(egress.getSender().isActive());
+    second.setActive(true);
+    assertTrue(egress.getSender().isActive());
+
+    // the sender is the only subscriber of the track
+    assertEquals(1, track.removeSubscriber(second));
+    assertEquals(1, egress.getViewerCount());
+    assertFalse(egress.getSender().isActive());
+    assertFalse(egress.isClosed());
+
+    // the last viewer leaving closes the egress
+    track.removeSubscriber(first);
+    assertTrue(egress.isClosed());
+    // its sender removed from the track, and its group given back
+    assertEquals(0, track.getSubscribers().length);
+    assertEquals(used, MulticastEgress.getGroupsUsed());
+
+    // the next viewer is given a new egress
+    Subscriber third = track.addMulticastSubscriber(null, true);
+    assertNotSame(egress, third.getEgress());
+    assertFalse(third.getEgress().isClosed());
+    track.removeSubscriber(third);
+    assertEquals(used, MulticastEgress.getGroupsUsed());
+  }
+
+  /**
+   * Viewers come and go while others join: a viewer is never added to an egress closed by the
+   * last viewer leaving.
+   */
+  public void testConcurrentViewers() throws Exception {
+    if (!multicastAvailable()) return;
+    int used = MulticastEgress.getGroupsUsed();
+    final Track track = newTrack("concurrent");
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < 500; j++) {
+              Subscriber subscriber = track.addMulticastSubscriber(null, true);
+              MulticastEgress egress = subscriber.getEgress();
+              assertFalse(egress.isClosed());
+              assertTrue(egress.getSender().isActive());
+              track.removeSubscriber(subscriber);
+            }
+          } catch (Throwable t) {
+            synchronized (errors) {
+              errors.add(t);
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    if (!errors.isEmpty()) throw new AssertionError(errors.get(0));
+    assertEquals(used, MulticastEgress.getGroupsUsed());
+  }
+}
@@ -0,0 +1,243 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+
+/**
+ * Joins multicast groups on the interface used by the proxy, and sends them packets looped back
+ * to this host. The tests pass without checking anything when no interface supports multicast.
+ */
+public class MulticastGroupTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(MulticastGroupTest.class);
+  }
+
+  private static final int SERVER_SSRC = 0x5A5A5A5A;
+
+  private static int nextPort = 41000 + (int) (System.currentTimeMillis() % 1000) * 4;
+
+  private InetAddress group;
+  private int port;
+  private MulticastSocket sender;
+  private final List<Track> tracks = new ArrayList<Track>();
+
+  /** A track keeping the packets relayed to its clients */
+  private static class ReceivingTrack extends Track {
+    final List<byte[]> rtp = new ArrayList<byte[]>();
+    final List<byte[]> rtcp = new ArrayList<byte[]>();
+
+    ReceivingTrack(String url) {
+      super(url);
+    }
+
+    public void relayRtpToClient(IoBuffer buffer) {
+      keep(rtp, buffer);
+    }
+
+    public void relayRtcpToClient(IoBuffer buffer) {
+      keep(rtcp, buffer);
+    }
+
+    private void keep(List<byte[]> packets, IoBuffer buffer) {
+      byte[] data = new byte[buffer.remaining()];
+      buffer.get(data);
+      buffer.free();
+      synchronized (packets) {
+        packets.add(data);
+        packets.notifyAll();
+      }
+    }
+
+    byte[] await(List<byte[]> packets, int count) throws InterruptedException {
+      synchronized (packets) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (packets.size() < count && System.currentTimeMillis() < deadline)
+          packets.wait(100);
+        return packets.size() < count ? null : packets.get(count - 1);
+      }
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    group = InetAddress.getByName("239.255.42.42");
+    synchronized (MulticastGroupTest.class) {
+      port = nextPort;
+      nextPort += 4;
+    }
+    Config.setInt("proxy.multicast.linger", 0);
+  }
+
+  @Override
+  protected void tearDown() {
+    for (Track track : tracks)
+      track.close();
+    if (sender != null) sender.close();
+    Config.setInt("proxy.multicast.linger", 30);
+  }
+
+  /**
+   * @return false if no interface supports multicast, in which case the test is skipped
+   */
+  private boolean multicastAvailable() throws IOException {
+    try {
+      sender = new MulticastSocket();
+      sender.setNetworkInterface(MulticastGroup.getNetworkInterface());
+      // looped back, as by default, and never sent out of this host
+      sender.setTimeToLive(0);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private ReceivingTrack newTrack(String name) {
+    ReceivingTrack track = new ReceivingTrack("rtsp://localhost/" + name + ".sdp/trackID=1");
+    tracks.add(track);
+    return track;
+  }
+
+  private void send(int port, byte[] data) throws IOException {
+    sender.send(new DatagramPacket(data, data.length, group, port));
+  }
+
+  private static byte[] rtp(int sequence) {
+    byte[] data = new byte[12 + 20];
+    data[0] = (byte) 0x80;
+    data[1] = (byte) 96;
+    data[2] = (byte) (sequence >> 8);
+    data[3] = (byte) sequence;
+    data[8] = (byte) (SERVER_SSRC >> 24);
+    data[9] = (byte) (SERVER_SSRC >> 16);
+    data[10] = (byte) (SERVER_SSRC >> 8);
+    data[11] = (byte) SERVER_SSRC;
+    return data;
+  }
+
+  private static byte[] senderReport() {
+    byte[] data = new byte[28];
+    data[0] = (byte) 0x80;
+    data[1] = (byte) 200;
+    data[3] = 6;
+    data[4] = (byte) (SERVER_SSRC >> 24);
+    data[5] = (byte) (SERVER_SSRC >> 16);
+    data[6] = (byte) (SERVER_SSRC >> 8);
+    data[7] = (byte) SERVER_SSRC;
+    return data;
+  }
+
+  public void testSharedGroup() throws Exception {
+    if (!multicastAvailable()) return;
+    int groups = MulticastGroup.getGroupCount();
+    Track first = newTrack("shared1");
+    Track second = newTrack("shared2");
+    MulticastGroup multicastGroup = MulticastGroup.attach(first, group, port, port + 1, null);
+    // the same group and ports: the group is joined once
+    assertSame(multicastGroup, MulticastGroup.attach(second, group, port, port + 1, null));
+    assertEquals(groups + 1, MulticastGroup.getGroupCount());
+    assertEquals(2, multicastGroup.getTrackCount());
+    assertEquals(group, multicastGroup.getGroup());
+
+    // other ports, another group
+    Track other = newTrack("other");
+    MulticastGroup otherGroup = MulticastGroup.attach(other, group, port + 2, port + 3, null);
+    assertNotSame(multicastGroup, otherGroup);
+    assertEquals(groups + 2, MulticastGroup.getGroupCount());
+
+    multicastGroup.detach(first);
+    assertEquals(1, multicastGroup.getTrackCount());
+    // not attached anymore
+    multicastGroup.detach(first);
+    assertEquals(1, multicastGroup.getTrackCount());
+    assertEquals(groups + 2, MulticastGroup.getGroupCount());
+
+    // without linger, the group is left with its last track
+    multicastGroup.detach(second);
+    assertEquals(0, multicastGroup.getTrackCount());
+    otherGroup.detach(other);
+    assertEquals(groups, MulticastGroup.getGroupCount());
+  }
+
+  public void testLinger() throws Exception {
+    if (!multicastAvailable()) return;
+    Config.setInt("proxy.multicast.linger", 1);
+    int groups = MulticastGroup.getGroupCount();
+    Track track = newTrack("linger");
+    MulticastGroup multicastGroup = MulticastGroup.attach(track, group, port, port + 1, null);
+    multicastGroup.detach(track);
+    assertEquals(groups + 1, MulticastGroup.getGroupCount());
+
+    // attached again before the group is left: the same group is kept
+    Thread.sleep(500);
+    assertSame(multicastGroup, MulticastGroup.attach(track, group, port, port + 1, null));
+    Thread.sleep(1000);
+    assertEquals(groups + 1, MulticastGroup.getGroupCount());
+    assertEquals(1, multicastGroup.getTrackCount());
+
+    // left once the linger is over
+    multicastGroup.detach(track);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (MulticastGroup.getGroupCount() > groups && System.currentTimeMillis() < deadline)
+      Thread.sleep(50);
+    assertEquals(groups, MulticastGroup.getGroupCount());
+    MulticastGroup joined = MulticastGroup.attach(track, group, port, port + 1, null);
+    assertNotSame(multicastGroup, joined);
+    joined.detach(track);
+  }
+
+  public void testPacketsCopied() throws Exception {
+    if (!multicastAvailable()) return;
+    ReceivingTrack first = newTrack("copied1");
+    ReceivingTrack second = newTrack("copied2");
+    MulticastGroup multicastGroup = MulticastGroup.attach(first, group, port, port + 1, null);
+    MulticastGroup.attach(second, group, port, port + 1, null);
+    try {
+      byte[] packet = rtp(1000);
+      send(port, packet);
+      assertTrue(Arrays.equals(packet, first.await(first.rtp, 1)));
+      assertTrue(Arrays.equals(packet, second.await(second.rtp, 1)));
+
+      packet = senderReport();
+      send(port + 1, packet);
+      assertTrue(Arrays.equals(packet, first.await(first.rtcp, 1)));
+      assertTrue(Arrays.equals(packet, second.await(second.rtcp, 1)));
+      assertEquals(2, multicastGroup.getPacketsReceived());
+    } finally {
+      multicastGroup.detach(first);
+      multicastGroup.detach(second);
+    }
+  }
+
+  public void testServerSsrcLearnt() throws Exception {
+    if (!multicastAvailable()) return;
+    ReceivingTrack track = newTrack("ssrc");
+    MulticastGroup multicastGroup = MulticastGroup.attach(track, group, port, port + 1, null);
+    try {
+      assertNull(track.getServerSSRC());
+      send(port, rtp(1));
+      assertNotNull(track.await(track.rtp, 1));
+      assertEquals(SERVER_SSRC, track.getServerSsrcValue());
+    } finally {
+      multicastGroup.detach(track);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+
+public class OriginFailoverTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(OriginFailoverTest.class);
+  }
+
+  /** Records the sequence numbers and timestamps of the packets sent */
+  private static class RecordingTrack extends Track {
+    final List<Integer> sequences = new ArrayList<Integer>();
+    final List<Integer> timestamps = new ArrayList<Integer>();
+
+    RecordingTrack() {
+      super("rtsp://localhost/live.sdp/trackID=1");
+    }
+
+    void sendToSubscribers(IoBuffer buffer) {
+      sequences.add(buffer.getShort(buffer.position() + 2) & 0xFFFF);
+      timestamps.add(buffer.getInt(buffer.position() + 4));
+      super.sendToSubscribers(buffer);
+    }
+  }
+
+  private static IoBuffer packet(int sequence, int timestamp) {
+    IoBuffer buffer = IoBuffer.allocate(12);
+    buffer.put((byte) 0x80).put((byte) 96).putShort((short) sequence);
+    buffer.putInt(timestamp).putInt(0x1234);
+    buffer.flip();
+    return buffer;
+  }
+
+  protected void setUp() {
+    // rtsp:// URLs, as in Main
+    System.setProperty("java.protocol.handler.pkgs", "rtspproxy");
+  }
+
+  public void testBackups() throws Exception {
+    Config.set("proxy.failover.origins",
+        "rtsp://a/live/ rtsp://b/live/ rtsp://c/live/, rtsp://d/vod/ rtsp://e/vod/");
+    try {
+      List<URL> backups = OriginFailover.getBackups(new URL("rtsp://b/live/news.sdp"));
+      assertEquals(2, backups.size());
+      assertEquals("rtsp://c/live/news.sdp", backups.get(0).toString());
+      assertEquals("rtsp://a/live/news.sdp", backups.get(1).toString());
+
+      backups = OriginFailover.getBackups(new URL("rtsp://e/vod/movie.mp4"));
+      assertEquals(1, backups.size());
+      assertEquals("rtsp://d/vod/movie.mp4", backups.get(0).toString());
+
+      assertTrue(OriginFailover.getBackups(new URL("rtsp://f/live/news.sdp")).isEmpty());
+    } finally {
+      Config.set("proxy.failover.origins", "");
+    }
+  }
+
+  public void testSplice() {
+    RecordingTrack track = new RecordingTrack();
+    track.relayRtpToClient(packet(100, 1000));
+    track.relayRtpToClient(packet(101, 4000));
+
+    // the new origin starts somewhere else
+    track.splice(System.nanoTime());
+    track.relayRtpToClient(packet(5000, 777000));
+    track.relayRtpToClient(packet(5001, 780000));
+
+    assertEquals(102, (int) track.sequences.get(2));
+    assertEquals(103, (int) track.sequences.get(3));
+    int first = track.timestamps.get(2);
+    assertTrue(first - 4000 >= 0 && first - 4000 < 90000);
+    assertEquals(3000, track.timestamps.get(3) - first);
+    track.close();
+  }
+}
@@ -0,0 +1,196 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferWrapper;
+
+import rtspproxy.Config;
+
+/**
+ * Paces a track of 100 kB/s, made of packets of 1000 bytes every 10 ms of media time, with the
+ * default <code>proxy.pacing.factor</code>, <code>maxDelay</code> and <code>queueSize</code>.
+ */
+public class PacerTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(PacerTest.class);
+  }
+
+  private static final int CLOCK_RATE = 90000;
+  private static final int SIZE = 1000;
+  /** 10 ms of media time */
+  private static final int INTERVAL = CLOCK_RATE / 100;
+  private static final double RATE = SIZE * 100;
+  /** Time to send a packet at 150% of the rate, in milliseconds */
+  private static final double PACKET_MILLIS = 1000.0 * SIZE * 100 / (RATE * 150);
+  private static final long MAX_DELAY = 100;
+  private static final int QUEUE_SIZE = Math.max(Config.getInt("proxy.pacing.queueSize", 1024), 1);
+
+  /** Records the packets sent to the clients, with the time they were sent at */
+  private static class RecordingTrack extends Track {
+    final List<Integer> sequences = new ArrayList<Integer>();
+    final List<Long> times = new ArrayList<Long>();
+
+    RecordingTrack() {
+      super("rtsp://localhost/paced.sdp/trackID=1");
+    }
+
+    void sendRtpToClients(IoBuffer buffer) {
+      synchronized (sequences) {
+        sequences.add(buffer.getShort(buffer.position() + 2) & 0xFFFF);
+        times.add(System.nanoTime());
+        sequences.notifyAll();
+      }
+    }
+
+    int sent() {
+      synchronized (sequences) {
+        return sequences.size();
+      }
+    }
+
+    void await(int count) throws InterruptedException {
+      synchronized (sequences) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sequences.size() < count && System.currentTimeMillis() < deadline)
+          sequences.wait(100);
+      }
+      assertEquals(count, sent());
+    }
+
+    /**
+     * @return the time between the sending of two packets, in milliseconds
+     */
+    double millis(int from, int to) {
+      synchronized (sequences) {
+        return (times.get(to) - times.get(from)) / 1e6;
+      }
+    }
+  }
+
+  /** The number of packets dropped by the pacer */
+  private int freed;
+
+  private IoBuffer packet(int sequence) {
+    IoBuffer buffer = new IoBufferWrapper(IoBuffer.allocate(SIZE)) {
+      public void free() {
+        freed++;
+      }
+    };
+    buffer.put((byte) 0x80).put((byte) 96).putShort((short) sequence);
+    buffer.putInt(sequence * INTERVAL).putInt(0x1234);
+    buffer.position(SIZE);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Sends packets at their rate until it's measured.
+   *
+   * @return the sequence number of the next packet
+   */
+  private int measure(RecordingTrack track, Pacer pacer) throws Exception {
+    int sequence = 0;
+    while (pacer.getRate() == 0) {
+      pacer.send(packet(sequence++));
+      Thread.sleep(10);
+    }
+    assertEquals(RATE, pacer.getRate(), RATE / 10);
+    track.await(sequence);
+    return sequence;
+  }
+
+  public void testUndelayedUntilMeasured() {
+    RecordingTrack track = new RecordingTrack();
+    Pacer pacer = new Pacer(track, CLOCK_RATE);
+    // half a second of media received at once, not enough to measure the rate
+    for (int i = 0; i < 50; i++)
+      pacer.send(packet(i));
+    assertEquals(0.0, pacer.getRate());
+    assertEquals(50, track.sent());
+    assertEquals(0, pacer.getPacketsDelayed());
+    assertEquals(0, pacer.getQueueSize());
+    pacer.close();
+  }
+
+  public void testBurstSpread() throws Exception {
+    RecordingTrack track = new RecordingTrack();
+    Pacer pacer = new Pacer(track, CLOCK_RATE);
+    int first = measure(track, pacer);
+
+    // the packets of a burst are spread at the pacing rate
+    for (int i = 0; i < 10; i++)
+      pacer.send(packet(first + i));
+    assertTrue(pacer.getPacketsDelayed() >= 9);
+    track.await(first + 10);
+    assertTrue(track.millis(first, first + 9) >= 9 * PACKET_MILLIS - 10);
+    for (int i = 0; i < first + 10; i++)
+      assertEquals(i, (int) track.sequences.get(i));
+    assertEquals(0, pacer.getQueueSize());
+    pacer.close();
+  }
+
+  public void testMaxDelay() throws Exception {
+    RecordingTrack track = new RecordingTrack();
+    Pacer pacer = new Pacer(track, CLOCK_RATE);
+    int first = measure(track, pacer);
+
+    // a burst that would take 667 ms at the pacing rate
+    long start = System.nanoTime();
+    for (int i = 0; i < 100; i++)
+      pacer.send(packet(first + i));
+    track.await(first + 100);
+    long elapsed = (System.nanoTime() - start) / 1000000;
+    assertTrue("Burst sent in " + elapsed + " ms", elapsed < MAX_DELAY * 4);
+    pacer.close();
+  }
+
+  public void testQueueSize() throws Exception {
+    RecordingTrack track = new RecordingTrack();
+    Pacer pacer = new Pacer(track, CLOCK_RATE);
+    int first = measure(track, pacer);
+
+    for (int i = 0; i < QUEUE_SIZE + 100; i++)
+      pacer.send(packet(first + i));
+    // the oldest packets are sent to make room for the new ones
+    assertEquals(QUEUE_SIZE, pacer.getMaxQueueSize());
+    assertTrue(pacer.getQueueSize() <= QUEUE_SIZE);
+    assertTrue(track.sent() >= first + 100);
+    track.await(first + QUEUE_SIZE + 100);
+    pacer.close();
+  }
+
+  public void testClose() throws Exception {
+    RecordingTrack track = new RecordingTrack();
+    Pacer pacer = new Pacer(track, CLOCK_RATE);
+    int first = measure(track, pacer);
+    freed = 0;
+
+    for (int i = 0; i < 10; i++)
+      pacer.send(packet(first + i));
+    assertTrue(pacer.getQueueSize() > 0);
+    // the waiting packets are dropped
+    pacer.close();
+    int sent = track.sent();
+    assertEquals(0, pacer.getQueueSize());
+    assertTrue(freed > 0);
+    assertEquals(first + 10 - sent, freed);
+
+    // and the next ones are sent right away
+    pacer.send(packet(first + 10));
+    assertEquals(sent + 1, track.sent());
+    Thread.sleep(MAX_DELAY * 2);
+    assertEquals(sent + 1, track.sent());
+  }
+}
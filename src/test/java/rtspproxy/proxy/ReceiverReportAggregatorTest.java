@@ -0,0 +1,129 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.rtp.rtcp.RtcpPacket;
+import rtspproxy.rtp.rtcp.RtcpPacketView;
+import rtspproxy.rtp.rtcp.RtcpPacketWriter;
+
+public class ReceiverReportAggregatorTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(ReceiverReportAggregatorTest.class);
+  }
+
+  private static final int SERVER_SSRC = 0x5555;
+
+  private static Track newTrack() {
+    Track track = new Track("rtsp://localhost/live.sdp/trackID=1");
+    track.setServerSSRC(SERVER_SSRC);
+    return track;
+  }
+
+  private static Subscriber newSubscriber(Track track, int ssrc, int sequenceOffset) {
+    Subscriber subscriber = new Subscriber(track, null, (InetAddress) null, 0, 0, false);
+    subscriber.setSsrc(ssrc);
+    subscriber.setOffsets(sequenceOffset, 0);
+    return subscriber;
+  }
+
+  /**
+   * @return a RR of a client with a report block about the given source, followed by its SDES
+   */
+  private static IoBuffer report(int source, int fractionLost, long highestSequence, long jitter) {
+    IoBuffer buffer = IoBuffer.allocate(128);
+    RtcpPacketWriter writer = new RtcpPacketWriter(buffer);
+    writer.startReceiverReport(0x2222);
+    writer.addReportBlock(source, fractionLost, fractionLost * 10, highestSequence, jitter,
+        0x12345678, 65536);
+    writer.endPacket();
+    writer.startSdes();
+    writer.addSdesChunk(0x2222, "client@10.0.0.2");
+    writer.endPacket();
+    buffer.flip();
+    return buffer;
+  }
+
+  public void testReportsTerminated() {
+    Track track = newTrack();
+    ReceiverReportAggregator aggregator = new ReceiverReportAggregator(track, false);
+    Subscriber subscriber = newSubscriber(track, 0x1111, 0);
+
+    assertNull(aggregator.handleReports(report(0x1111, 10, 100, 5), subscriber));
+    assertEquals(1, aggregator.getClientCount());
+
+    // the feedback is still relayed, after a RR of the proxy
+    IoBuffer buffer = report(0x1111, 10, 100, 5);
+    buffer.limit(buffer.limit() + 12);
+    RtcpPacketWriter writer = new RtcpPacketWriter(buffer);
+    buffer.position(buffer.limit() - 12);
+    writer.startFeedback(RtcpPacket.TYPE_PSFB, 1, 0x2222, 0x1111);
+    writer.endPacket();
+    buffer.position(0);
+
+    IoBuffer relayed = aggregator.handleReports(buffer, subscriber);
+    assertNotNull(relayed);
+    assertTrue(RtcpPacket.isValidCompound(relayed));
+    RtcpPacketView view = new RtcpPacketView(relayed);
+    assertEquals(RtcpPacket.TYPE_RR, view.getPacketType());
+    assertEquals(0, view.getReportCount());
+    assertEquals(track.getProxySsrcValue(), view.getSsrc());
+    assertTrue(view.next());
+    assertEquals(RtcpPacket.TYPE_PSFB, view.getPacketType());
+    assertFalse(view.next());
+
+    aggregator.remove(subscriber);
+    assertEquals(0, aggregator.getClientCount());
+    aggregator.close();
+    track.close();
+  }
+
+  public void testWorstAndMedian() {
+    Track track = newTrack();
+    ReceiverReportAggregator worst = new ReceiverReportAggregator(track, false);
+    ReceiverReportAggregator median = new ReceiverReportAggregator(track, true);
+    int[] losses = {5, 60, 0, 20, 10};
+    for (int i = 0; i < losses.length; i++) {
+      Subscriber subscriber = newSubscriber(track, 0x1000 + i, 1000);
+      worst.handleReports(report(0x1000 + i, losses[i], 0x10000 + 1100 + i, i), subscriber);
+      median.handleReports(report(0x1000 + i, losses[i], 0x10000 + 1100 + i, i), subscriber);
+    }
+
+    long now = System.nanoTime();
+    RtcpPacketView view = new RtcpPacketView(worst.newReport(now));
+    assertEquals(RtcpPacket.TYPE_RR, view.getPacketType());
+    assertEquals(1, view.getReportCount());
+    assertEquals(SERVER_SSRC, view.getReportSsrc(0));
+    assertEquals(60, view.getFractionLost(0));
+    assertEquals(600, view.getCumulativeLost(0));
+    // sequence numbers of the server
+    assertEquals(0x10000 + 101, view.getHighestSequence(0));
+    assertEquals(0x12345678, view.getLastSr(0));
+    assertTrue(view.getDelaySinceLastSr(0) >= 65536);
+    assertTrue(view.next());
+    assertEquals(RtcpPacket.TYPE_SDES, view.getPacketType());
+
+    view = new RtcpPacketView(median.newReport(now));
+    assertEquals(10, view.getFractionLost(0));
+
+    // the reports of silent clients are forgotten
+    view = new RtcpPacketView(worst.newReport(now + 3600 * 1000000000L));
+    assertEquals(0, view.getReportCount());
+    assertEquals(0, worst.getClientCount());
+
+    worst.close();
+    median.close();
+    track.close();
+  }
+}
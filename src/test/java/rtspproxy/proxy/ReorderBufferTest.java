@@ -0,0 +1,110 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+public class ReorderBufferTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(ReorderBufferTest.class);
+  }
+
+  /** Records the sequence numbers of the packets sent */
+  private static class RecordingTrack extends Track {
+    final List<Integer> sent = new ArrayList<Integer>();
+
+    RecordingTrack() {
+      super("rtsp://localhost/test.sdp/trackID=1");
+    }
+
+    void paceRtpToClients(IoBuffer buffer) {
+      sent.add(buffer.getShort(buffer.position() + 2) & 0xFFFF);
+    }
+  }
+
+  private static IoBuffer packet(int sequence) {
+    IoBuffer buffer = IoBuffer.allocate(12);
+    buffer.put((byte) 0x80).put((byte) 96).putShort((short) sequence);
+    buffer.putInt(0).putInt(0x1234);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static List<Integer> list(int... values) {
+    List<Integer> list = new ArrayList<Integer>();
+    for (int value : values)
+      list.add(value);
+    return list;
+  }
+
+  public void testReorder() {
+    RecordingTrack track = new RecordingTrack();
+    ReorderBuffer reorder = new ReorderBuffer(track);
+    for (int sequence : new int[] {1, 2, 4, 3, 5, 5, 3})
+      reorder.add(packet(sequence));
+
+    assertEquals(list(1, 2, 3, 4, 5), track.sent);
+    assertEquals(0, reorder.getQueueSize());
+    assertEquals(1, reorder.getPacketsReordered());
+    assertEquals(2, reorder.getDuplicates());
+    assertEquals(0, reorder.getPacketsLost());
+    track.close();
+  }
+
+  public void testWrapAround() {
+    RecordingTrack track = new RecordingTrack();
+    ReorderBuffer reorder = new ReorderBuffer(track);
+    for (int sequence : new int[] {65534, 0, 65535, 1})
+      reorder.add(packet(sequence));
+
+    assertEquals(list(65534, 65535, 0, 1), track.sent);
+    assertEquals(0, reorder.getRestarts());
+    track.close();
+  }
+
+  public void testLoss() {
+    RecordingTrack track = new RecordingTrack();
+    ReorderBuffer reorder = new ReorderBuffer(track);
+    reorder.add(packet(10));
+    reorder.add(packet(12));
+    assertEquals(list(10), track.sent);
+    assertEquals(1, reorder.getQueueSize());
+
+    // the missing packet is given up after the delay
+    reorder.expire(System.nanoTime() + 1000000000L);
+    assertEquals(list(10, 12), track.sent);
+    assertEquals(1, reorder.getPacketsLost());
+
+    // sent anyway when it arrives, but only once
+    reorder.add(packet(11));
+    reorder.add(packet(11));
+    assertEquals(list(10, 12, 11), track.sent);
+    assertEquals(1, reorder.getPacketsLate());
+    assertEquals(1, reorder.getDuplicates());
+    track.close();
+  }
+
+  public void testRestart() {
+    RecordingTrack track = new RecordingTrack();
+    ReorderBuffer reorder = new ReorderBuffer(track);
+    reorder.add(packet(100));
+    reorder.add(packet(102));
+    reorder.add(packet(30000));
+    reorder.add(packet(30001));
+
+    assertEquals(list(100, 102, 30000, 30001), track.sent);
+    assertEquals(1, reorder.getRestarts());
+    track.close();
+  }
+}
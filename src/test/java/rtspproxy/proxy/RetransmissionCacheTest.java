@@ -0,0 +1,153 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.rtp.rtcp.RtcpPacket;
+import rtspproxy.rtp.rtcp.RtcpPacketView;
+import rtspproxy.rtp.rtcp.RtcpPacketWriter;
+
+public class RetransmissionCacheTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(RetransmissionCacheTest.class);
+  }
+
+  /** Records the RTCP packets sent to the server */
+  private static class RecordingTrack extends Track {
+    final List<IoBuffer> sent = new ArrayList<IoBuffer>();
+
+    RecordingTrack() {
+      super("rtsp://localhost/live.sdp/trackID=1");
+    }
+
+    void sendRtcpToServer(IoBuffer buffer) {
+      sent.add(buffer);
+    }
+  }
+
+  /** Records the packets sent again */
+  private static class RecordingSubscriber extends Subscriber {
+    final List<IoBuffer> resent = new ArrayList<IoBuffer>();
+
+    RecordingSubscriber(Track track) {
+      super(track, null, (InetAddress) null, 0, 0, false);
+      setSsrc(0x1111);
+    }
+
+    public void resendRtp(IoBuffer buffer, boolean rtx) {
+      resent.add(buffer);
+    }
+  }
+
+  private static IoBuffer packet(int sequence) {
+    IoBuffer buffer = IoBuffer.allocate(14);
+    buffer.put((byte) 0x80).put((byte) 96).putShort((short) sequence);
+    buffer.putInt(sequence * 100).putInt(0x1234).putShort((short) sequence);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static IoBuffer nack(int mediaSsrc, int sequence, int bitmask) {
+    IoBuffer buffer = IoBuffer.allocate(64);
+    RtcpPacketWriter writer = new RtcpPacketWriter(buffer);
+    writer.startReceiverReport(0x2222);
+    writer.endPacket();
+    writer.startFeedback(RtcpPacket.TYPE_RTPFB, RtcpPacket.FMT_NACK, 0x2222, mediaSsrc);
+    writer.addFci((sequence << 16) | bitmask);
+    writer.endPacket();
+    buffer.flip();
+    return buffer;
+  }
+
+  public void testNacks() {
+    RecordingTrack track = new RecordingTrack();
+    RetransmissionCache cache = new RetransmissionCache(track);
+    RecordingSubscriber subscriber = new RecordingSubscriber(track);
+    for (int sequence = 1; sequence <= 10; sequence++) {
+      if (sequence != 5) cache.add(packet(sequence));
+    }
+
+    // 3, 4 and 5 lost
+    IoBuffer buffer = nack(0x1111, 3, 0x3);
+    assertTrue(cache.handleNacks(buffer, subscriber));
+    assertEquals(RtcpPacket.HEADER_SIZE, buffer.remaining());
+    assertEquals(2, subscriber.resent.size());
+    assertEquals(3, subscriber.resent.get(0).getShort(2));
+    assertEquals(4, subscriber.resent.get(1).getShort(2));
+    assertEquals(3, cache.getRequests());
+    assertEquals(2, cache.getHits());
+
+    // 5 was never received: asked once to the server
+    assertEquals(1, track.sent.size());
+    RtcpPacketView view = new RtcpPacketView(track.sent.get(0));
+    assertEquals(RtcpPacket.TYPE_RR, view.getPacketType());
+    assertTrue(view.next());
+    assertEquals(RtcpPacket.TYPE_RTPFB, view.getPacketType());
+    assertEquals(1, view.getNackCount());
+    assertEquals(5, view.getNackSequence(0));
+    assertEquals(0, view.getNackBitmask(0));
+    assertTrue(cache.handleNacks(nack(0x1111, 5, 0), subscriber));
+    assertEquals(1, track.sent.size());
+    assertEquals(1, cache.getUpstreamRequests());
+
+    // NACKs about another source are left alone
+    buffer = nack(0x3333, 3, 0);
+    assertTrue(cache.handleNacks(buffer, subscriber));
+    assertEquals(RtcpPacket.HEADER_SIZE + 16, buffer.remaining());
+    cache.close();
+    track.close();
+  }
+
+  public void testRtx() {
+    RecordingTrack track = new RecordingTrack();
+    track.setRtxPayloadType(97);
+    RetransmissionCache cache = new RetransmissionCache(track);
+    RecordingSubscriber subscriber = new RecordingSubscriber(track);
+    subscriber.setOffsets(1000, 0);
+    IoBuffer marked = packet(7);
+    marked.put(1, (byte) (0x80 | 96));
+    cache.add(marked);
+    cache.handleNacks(nack(0x1111, 1007, 0), subscriber);
+
+    assertEquals(1, subscriber.resent.size());
+    IoBuffer rtx = subscriber.resent.get(0);
+    assertEquals(16, rtx.remaining());
+    // the marker bit of the original packet is kept
+    assertEquals(0x80 | 97, rtx.get(1) & 0xFF);
+    assertEquals(1007, rtx.getShort(12));
+    assertEquals(7, rtx.getShort(14));
+    cache.close();
+    track.close();
+  }
+
+  public void testWindow() {
+    RecordingTrack track = new RecordingTrack();
+    RetransmissionCache cache = new RetransmissionCache(track);
+    RecordingSubscriber subscriber = new RecordingSubscriber(track);
+    for (int sequence = 0; sequence < 3000; sequence++)
+      cache.add(packet(sequence & 0xFFFF));
+    cache.handleNacks(nack(0x1111, 100, 0), subscriber);
+    assertEquals(0, subscriber.resent.size());
+    // too old to be asked to the server
+    assertEquals(0, track.sent.size());
+    cache.handleNacks(nack(0x1111, 2999, 0), subscriber);
+    assertEquals(1, subscriber.resent.size());
+    assertTrue(cache.getBytes() <= 1024 * 14);
+    cache.close();
+    assertEquals(0, cache.getBytes());
+    track.close();
+  }
+}
@@ -0,0 +1,244 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.proxy;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+import rtspproxy.RtpClientService;
+import rtspproxy.RtpServerService;
+import rtspproxy.rtp.rtcp.RtcpPacket;
+import rtspproxy.rtp.rtcp.RtcpPacketView;
+import rtspproxy.rtp.rtcp.RtcpPacketWriter;
+
+/**
+ * Relays packets through {@link ServerRtpPacketHandler} and {@link ClientRtpPacketHandler}, with
+ * and without <code>proxy.rtp.zeroCopy</code>, between sockets standing for the client and the
+ * server. The RTCP packets of the clients go through the receiver reports aggregator of the track
+ * on both paths.
+ */
+public class RtpPacketHandlerTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(RtpPacketHandlerTest.class);
+  }
+
+  private static final int SERVER_SSRC = 0xCAFEBABE;
+  private static final int CLIENT_SSRC = 0x12345678;
+  /** The SSRC of the track, as announced to the client */
+  private static final int SUBSCRIBER_SSRC = 0x0BADF00D;
+
+  private InetAddress localhost;
+  private DatagramSocket client;
+  private DatagramSocket clientRtcp;
+  private DatagramSocket server;
+  private DatagramSocket serverRtcp;
+
+  private RtpServerService serverService;
+  private RtpClientService clientService;
+
+  @Override
+  protected void setUp() throws Exception {
+    localhost = InetAddress.getByName("127.0.0.1");
+    client = new DatagramSocket(0, localhost);
+    client.setSoTimeout(5000);
+    clientRtcp = new DatagramSocket(0, localhost);
+    clientRtcp.setSoTimeout(5000);
+    server = new DatagramSocket(0, localhost);
+    server.setSoTimeout(5000);
+    serverRtcp = new DatagramSocket(0, localhost);
+    serverRtcp.setSoTimeout(5000);
+    Config.setBoolean("proxy.server.dynamicPorts", true);
+    Config.setBoolean("proxy.client.dynamicPorts", true);
+  }
+
+  @Override
+  protected void tearDown() {
+    if (serverService != null) serverService.stop();
+    if (clientService != null) clientService.stop();
+    client.close();
+    clientRtcp.close();
+    server.close();
+    serverRtcp.close();
+    Config.setBoolean("proxy.server.dynamicPorts", false);
+    Config.setBoolean("proxy.client.dynamicPorts", false);
+    Config.setBoolean("proxy.rtp.zeroCopy", true);
+  }
+
+  private void startServices(boolean zeroCopy) throws Exception {
+    // read by the handlers when they're created
+    Config.setBoolean("proxy.rtp.zeroCopy", zeroCopy);
+    serverService = new RtpServerService();
+    serverService.start();
+    clientService = new RtpClientService();
+    clientService.start();
+  }
+
+  private static byte[] packet(int ssrc, int sequence) {
+    byte[] data = new byte[12 + 32];
+    data[0] = (byte) 0x80;
+    data[1] = (byte) 96;
+    data[2] = (byte) (sequence >> 8);
+    data[3] = (byte) sequence;
+    data[4] = 0x11;
+    data[5] = 0x22;
+    data[6] = 0x33;
+    data[7] = 0x44;
+    data[8] = (byte) (ssrc >> 24);
+    data[9] = (byte) (ssrc >> 16);
+    data[10] = (byte) (ssrc >> 8);
+    data[11] = (byte) ssrc;
+    for (int i = 12; i < data.length; i++)
+      data[i] = (byte) (i * 7);
+    return data;
+  }
+
+  private static byte[] receive(DatagramSocket socket) throws Exception {
+    DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+    socket.receive(packet);
+    byte[] data = new byte[packet.getLength()];
+    System.arraycopy(packet.getData(), 0, data, 0, data.length);
+    return data;
+  }
+
+  private static int ssrc(byte[] data) {
+    return (data[8] & 0xFF) << 24 | (data[9] & 0xFF) << 16 | (data[10] & 0xFF) << 8
+        | (data[11] & 0xFF);
+  }
+
+  /**
+   * Checks that only the SSRC of the relayed packet differs from the original one.
+   */
+  private static void assertRelayed(byte[] sent, byte[] received, int ssrc) {
+    assertEquals(sent.length, received.length);
+    assertEquals(ssrc, ssrc(received));
+    byte[] expected = sent.clone();
+    System.arraycopy(received, 8, expected, 8, 4);
+    assertTrue(Arrays.equals(expected, received));
+  }
+
+  private void relay(boolean zeroCopy) throws Exception {
+    startServices(zeroCopy);
+    ProxySession session = new ProxySession();
+    Track track = session.addTrack("rtsp://localhost/relay.sdp/trackID=" + (zeroCopy ? 1 : 2),
+        Integer.toHexString(SERVER_SSRC));
+    track.setServerAddress(localhost, server.getLocalPort(), serverRtcp.getLocalPort());
+    session.addSubscriber(track, localhost, client.getLocalPort(), clientRtcp.getLocalPort(), true);
+    try {
+      // server to client
+      byte[] sent = packet(SERVER_SSRC, 1000);
+      server.send(new DatagramPacket(sent, sent.length, RtpServerService.getRtpAddress()));
+      byte[] received = receive(client);
+      assertRelayed(sent, received, track.getProxySSRC().intValue());
+
+      // client to server
+      sent = packet(CLIENT_SSRC, 2000);
+      client.send(new DatagramPacket(sent, sent.length, new InetSocketAddress(localhost,
+          RtpClientService.getRtpPort())));
+      received = receive(server);
+      assertRelayed(sent, received, track.getProxySSRC().intValue());
+    } finally {
+      session.close();
+    }
+  }
+
+  public void testZeroCopy() throws Exception {
+    relay(true);
+  }
+
+  public void testDecoded() throws Exception {
+    relay(false);
+  }
+
+  /**
+   * @return a RR of the client about the track, followed by its SDES, and by a PLI if asked
+   */
+  private static byte[] report(boolean pli) {
+    IoBuffer buffer = IoBuffer.allocate(128);
+    RtcpPacketWriter writer = new RtcpPacketWriter(buffer);
+    writer.startReceiverReport(CLIENT_SSRC);
+    writer.addReportBlock(SUBSCRIBER_SSRC, 10, 100, 1000, 5, 0, 0);
+    writer.endPacket();
+    writer.startSdes();
+    writer.addSdesChunk(CLIENT_SSRC, "client@127.0.0.1");
+    writer.endPacket();
+    if (pli) {
+      writer.startFeedback(RtcpPacket.TYPE_PSFB, 1, CLIENT_SSRC, SUBSCRIBER_SSRC);
+      writer.endPacket();
+    }
+    buffer.flip();
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    return data;
+  }
+
+  private void aggregate(boolean zeroCopy) throws Exception {
+    startServices(zeroCopy);
+    ProxySession session = new ProxySession();
+    Track track = session.addTrack("rtsp://localhost/aggregate.sdp/trackID=" + (zeroCopy ? 1 : 2),
+        Integer.toHexString(SERVER_SSRC));
+    track.setServerAddress(localhost, server.getLocalPort(), serverRtcp.getLocalPort());
+    ReceiverReportAggregator aggregator = new ReceiverReportAggregator(track, false);
+    track.setReceiverReports(aggregator);
+    Subscriber subscriber =
+        session.addSubscriber(track, localhost, client.getLocalPort(), clientRtcp.getLocalPort(),
+            true);
+    subscriber.setSsrc(SUBSCRIBER_SSRC);
+    InetSocketAddress proxy = new InetSocketAddress(localhost, RtpClientService.getRtcpPort());
+    try {
+      // the report is kept, and nothing is relayed to the server
+      byte[] sent = report(false);
+      clientRtcp.send(new DatagramPacket(sent, sent.length, proxy));
+      long deadline = System.currentTimeMillis() + 5000;
+      while (aggregator.getClientCount() == 0 && System.currentTimeMillis() < deadline)
+        Thread.sleep(10);
+      assertEquals(1, aggregator.getClientCount());
+
+      // the feedback is relayed alone, about the server SSRC
+      sent = report(true);
+      clientRtcp.send(new DatagramPacket(sent, sent.length, proxy));
+      RtcpPacketView view = new RtcpPacketView(IoBuffer.wrap(receive(serverRtcp)));
+      assertEquals(RtcpPacket.TYPE_RR, view.getPacketType());
+      assertEquals(0, view.getReportCount());
+      assertEquals(track.getProxySsrcValue(), view.getSsrc());
+      assertTrue(view.next());
+      assertEquals(RtcpPacket.TYPE_PSFB, view.getPacketType());
+      assertEquals(track.getProxySsrcValue(), view.getSsrc());
+      assertEquals(SERVER_SSRC, view.getMediaSsrc());
+      assertFalse(view.next());
+
+      // the first report never reached the server
+      serverRtcp.setSoTimeout(200);
+      try {
+        receive(serverRtcp);
+        fail("Client report relayed to the server");
+      } catch (SocketTimeoutException e) {
+        // expected
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+  public void testReportsAggregatedZeroCopy() throws Exception {
+    aggregate(true);
+  }
+
+  public void testReportsAggregatedDecoded() throws Exception {
+    aggregate(false);
+  }
+}
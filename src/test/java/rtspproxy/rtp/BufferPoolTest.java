@@ -0,0 +1,160 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.rtp;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+
+public class BufferPoolTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(BufferPoolTest.class);
+  }
+
+  public void testReuse() {
+    BufferPool pool = new BufferPool();
+    IoBuffer buffer = pool.allocate(1500, true);
+    assertTrue(buffer.isDirect());
+    assertEquals(2048, buffer.capacity());
+    assertEquals(1500, buffer.limit());
+    assertEquals(1, pool.getOutstanding());
+
+    buffer.putInt(12345).flip();
+    buffer.free();
+    assertEquals(0, pool.getOutstanding());
+    // freeing twice doesn't return the buffer twice
+    buffer.free();
+    assertEquals(0, pool.getOutstanding());
+
+    IoBuffer again = pool.allocate(2000, true);
+    assertSame(buffer, again);
+    assertEquals(0, again.position());
+    assertEquals(2000, again.limit());
+    assertEquals(1, pool.getHits());
+    assertEquals(2, pool.getAllocations());
+
+    // not a pooled size
+    IoBuffer other = pool.allocate(100, true);
+    assertNotSame(again, other);
+    assertEquals(2, pool.getOutstanding());
+    assertEquals(2, pool.getHighWater());
+  }
+
+  public void testUnpooled() {
+    BufferPool pool = new BufferPool();
+    IoBuffer heap = pool.allocate(100, false);
+    assertFalse(heap.isDirect());
+    IoBuffer large = pool.allocate(100000, true);
+    assertEquals(2, pool.getUnpooled());
+    assertEquals(0, pool.getOutstanding());
+    heap.free();
+    large.free();
+    assertEquals(0, pool.getOutstanding());
+  }
+
+  public void testCopy() {
+    IoBuffer buffer = IoBuffer.allocate(16);
+    buffer.putInt(1).putInt(2).putInt(3).flip();
+    buffer.position(4);
+    IoBuffer copy = BufferPool.copy(buffer);
+    assertEquals(4, buffer.position());
+    assertEquals(0, copy.position());
+    assertEquals(8, copy.remaining());
+    assertEquals(2, copy.getInt(0));
+    assertEquals(3, copy.getInt(4));
+    // the copy is rewritten without changing the original
+    copy.putInt(0, 7);
+    assertEquals(2, buffer.getInt(4));
+  }
+
+  /**
+   * Freeing a duplicate or a slice must not return the original buffer to the pool.
+   */
+  public void testDerived() {
+    BufferPool pool = new BufferPool();
+    IoBuffer buffer = pool.allocate(64, true);
+    buffer.duplicate().free();
+    buffer.slice().free();
+    assertEquals(1, pool.getOutstanding());
+    buffer.free();
+    assertEquals(0, pool.getOutstanding());
+  }
+
+  /**
+   * A buffer freed by another thread goes back to the thread that allocated it.
+   */
+  public void testFreeFromOtherThread() throws Exception {
+    BufferPool pool = new BufferPool();
+    final IoBuffer buffer = pool.allocate(1024, true);
+    Thread thread = new Thread() {
+      public void run() {
+        buffer.free();
+      }
+    };
+    thread.start();
+    thread.join();
+    assertEquals(0, pool.getOutstanding());
+    assertSame(buffer, pool.allocate(1024, true));
+    assertEquals(1, pool.getHits());
+  }
+
+  /**
+   * Only threadCache buffers freed by other threads are handed back to their owner.
+   */
+  public void testReturnedQueueBounded() throws Exception {
+    Config.setInt("proxy.rtp.bufferPool.threadCache", 2);
+    try {
+      BufferPool pool = new BufferPool();
+      final IoBuffer[] buffers = new IoBuffer[4];
+      for (int i = 0; i < buffers.length; i++)
+        buffers[i] = pool.allocate(512, true);
+      Thread thread = new Thread() {
+        public void run() {
+          for (IoBuffer buffer : buffers)
+            buffer.free();
+        }
+      };
+      thread.start();
+      thread.join();
+      assertEquals(0, pool.getOutstanding());
+
+      for (int i = 0; i < buffers.length; i++)
+        pool.allocate(512, true);
+      assertEquals(2, pool.getHits());
+    } finally {
+      Config.setInt("proxy.rtp.bufferPool.threadCache", 256);
+    }
+  }
+
+  /**
+   * The statistics of a thread that died are kept, and the buffers it allocated are not handed
+   * back to it.
+   */
+  public void testDeadThread() throws Exception {
+    final BufferPool pool = new BufferPool();
+    final IoBuffer[] buffer = new IoBuffer[1];
+    Thread thread = new Thread() {
+      public void run() {
+        buffer[0] = pool.allocate(256, true);
+      }
+    };
+    thread.start();
+    thread.join();
+    buffer[0].free();
+    assertEquals(0, pool.getOutstanding());
+    assertEquals(1, pool.getAllocations());
+
+    assertNotSame(buffer[0], pool.allocate(256, true));
+    assertEquals(2, pool.getAllocations());
+    assertEquals(0, pool.getHits());
+  }
+}
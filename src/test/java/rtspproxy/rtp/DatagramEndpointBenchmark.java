@@ -0,0 +1,101 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+
+/**
+ * Measures the egress rate of the fan-out path: every packet received by a relay endpoint is sent
+ * to a number of destinations from its processor thread, as a reflected live track does.
+ * <p>
+ * This is not a unit test: run it by hand with
+ *
+ * <pre>
+ * java -cp ... rtspproxy.rtp.DatagramEndpointBenchmark [batchSize] [fanout] [packets] [pool]
+ * </pre>
+ */
+public class DatagramEndpointBenchmark {
+
+  private static final int PACKET_SIZE = 1328;
+
+  public static void main(String[] args) throws Exception {
+    int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    final int fanout = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int packets = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+    boolean pool = args.length > 3 ? Boolean.parseBoolean(args[3]) : true;
+    Config.setInt("proxy.rtp.batchSize", batchSize);
+    if (pool) BufferPool.install();
+
+    InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    // Nobody reads the destination socket: the kernel drops the packets once its buffer is full,
+    // which is fine since only the sending side is measured.
+    final DatagramSocket sink = new DatagramSocket(0, localhost);
+    final InetSocketAddress target = (InetSocketAddress) sink.getLocalSocketAddress();
+
+    DatagramEndpoint relay =
+        new DatagramEndpoint("Relay", new InetSocketAddress(localhost, 0), new PacketHandler() {
+          public void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source,
+              IoBuffer buffer) {
+            int position = buffer.position();
+            for (int i = 1; i < fanout; i++) {
+              IoBuffer copy = BufferPool.allocate(buffer.remaining());
+              copy.put(buffer);
+              copy.flip();
+              buffer.position(position);
+              endpoint.send(copy, target);
+            }
+            endpoint.send(buffer, target);
+          }
+        });
+    relay.start();
+
+    DatagramSocket source = new DatagramSocket(0, localhost);
+    byte[] data = new byte[PACKET_SIZE];
+    DatagramPacket packet = new DatagramPacket(data, data.length, relay.getLocalAddress());
+
+    long start = System.nanoTime();
+    for (int i = 0; i < packets; i++) {
+      source.send(packet);
+      // don't overrun the relay socket buffer
+      if (i % 16 == 0) Thread.sleep(1);
+    }
+    // wait until the relay has drained its socket
+    long received = -1;
+    long end = System.nanoTime();
+    while (relay.getPacketsReceived() != received) {
+      received = relay.getPacketsReceived();
+      end = System.nanoTime();
+      Thread.sleep(200);
+    }
+    long elapsed = end - start;
+
+    long sent = relay.getPacketsReceived() * fanout;
+    System.out.println("batchSize=" + batchSize + " fanout=" + fanout + ": received "
+        + relay.getPacketsReceived() + "/" + packets + ", " + (long) (sent / (elapsed / 1e9))
+        + " packets/s sent, average batch " + PacketBatch.getAverageBatchSize() + ", max batch "
+        + PacketBatch.getMaxBatchSize() + ", average flush latency "
+        + PacketBatch.getAverageFlushLatency() / 1000 + " us, dropped "
+        + PacketBatch.getDropCount());
+    if (pool) {
+      BufferPool bufferPool = BufferPool.getInstance();
+      System.out.println("buffer pool: hit rate " + bufferPool.getHitRate() + ", outstanding "
+          + bufferPool.getOutstanding() + ", high water " + bufferPool.getHighWater());
+    }
+
+    relay.stop();
+    source.close();
+    sink.close();
+  }
+}
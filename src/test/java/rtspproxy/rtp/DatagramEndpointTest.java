@@ -0,0 +1,140 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+public class DatagramEndpointTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(DatagramEndpointTest.class);
+  }
+
+  /**
+   * Packets sent back from the handler are queued in the processor batch and flushed at the end of
+   * the loop iteration.
+   */
+  public void testEcho() throws Exception {
+    InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    DatagramEndpoint endpoint =
+        new DatagramEndpoint("Echo", new InetSocketAddress(localhost, 0), new PacketHandler() {
+          public void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source,
+              IoBuffer buffer) {
+            buffer.put(buffer.position(), (byte) (buffer.get(buffer.position()) + 1));
+            endpoint.send(buffer, source);
+          }
+        });
+    endpoint.start();
+
+    DatagramSocket socket = new DatagramSocket(0, localhost);
+    socket.setSoTimeout(5000);
+    try {
+      long flushes = PacketBatch.getFlushCount();
+      int count = 20;
+      for (int i = 0; i < count; i++) {
+        byte[] data = new byte[] {(byte) i, 1, 2, 3};
+        socket.send(new DatagramPacket(data, data.length, endpoint.getLocalAddress()));
+      }
+
+      boolean[] received = new boolean[count + 1];
+      for (int i = 0; i < count; i++) {
+        DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+        socket.receive(packet);
+        assertEquals(4, packet.getLength());
+        received[packet.getData()[0]] = true;
+      }
+      for (int i = 1; i <= count; i++)
+        assertTrue(received[i]);
+
+      assertEquals(count, endpoint.getPacketsReceived());
+      assertEquals(0, endpoint.getPacketsDropped());
+      assertTrue(PacketBatch.getFlushCount() > flushes);
+      assertTrue(PacketBatch.getMaxBatchSize() >= 1);
+    } finally {
+      socket.close();
+      endpoint.stop();
+    }
+  }
+
+  public void testBatchFlushWhenFull() throws Exception {
+    InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    DatagramSocket socket = new DatagramSocket(0, localhost);
+    socket.setSoTimeout(5000);
+    DatagramEndpoint endpoint =
+        new DatagramEndpoint("Sender", new InetSocketAddress(localhost, 0), null);
+    endpoint.start();
+    try {
+      PacketBatch batch = new PacketBatch(2);
+      InetSocketAddress target = (InetSocketAddress) socket.getLocalSocketAddress();
+      batch.add(endpoint, IoBuffer.wrap(new byte[] {1}), target);
+      assertEquals(1, batch.size());
+      batch.add(endpoint, IoBuffer.wrap(new byte[] {2}), target);
+      assertEquals(0, batch.size());
+
+      DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+      socket.receive(packet);
+      assertEquals(1, packet.getData()[0]);
+      socket.receive(packet);
+      assertEquals(2, packet.getData()[0]);
+    } finally {
+      socket.close();
+      endpoint.stop();
+    }
+  }
+
+  /**
+   * All the shards share the same port, and every received datagram is counted by one of them.
+   */
+  public void testShards() throws Exception {
+    InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    DatagramEndpoint endpoint =
+        new DatagramEndpoint("Sharded", new InetSocketAddress(localhost, 0), new PacketHandler() {
+          public void packetReceived(DatagramEndpoint endpoint, InetSocketAddress source,
+              IoBuffer buffer) {
+            endpoint.send(buffer, source);
+          }
+        }, 4);
+    endpoint.start();
+
+    int clients = 8;
+    DatagramSocket[] sockets = new DatagramSocket[clients];
+    try {
+      assertTrue(endpoint.getShardCount() == 4 || endpoint.getShardCount() == 1);
+      for (int i = 0; i < clients; i++) {
+        sockets[i] = new DatagramSocket(0, localhost);
+        sockets[i].setSoTimeout(5000);
+        byte[] data = new byte[] {(byte) i};
+        sockets[i].send(new DatagramPacket(data, data.length, endpoint.getLocalAddress()));
+      }
+      // Replies come from the endpoint port, whatever the shard
+      for (int i = 0; i < clients; i++) {
+        DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+        sockets[i].receive(packet);
+        assertEquals(i, packet.getData()[0]);
+        assertEquals(endpoint.getLocalAddress().getPort(), packet.getPort());
+      }
+
+      long total = 0;
+      for (int i = 0; i < endpoint.getShardCount(); i++)
+        total += endpoint.getPacketsReceived(i);
+      assertEquals(clients, total);
+      assertEquals(clients, endpoint.getPacketsReceived());
+    } finally {
+      for (int i = 0; i < clients; i++)
+        if (sockets[i] != null) sockets[i].close();
+      endpoint.stop();
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.rtp;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import rtspproxy.Config;
+
+public class FrameDropperTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(FrameDropperTest.class);
+  }
+
+  private static final int LOW = 1000;
+  private static final int HIGH = 5000;
+  private static final int MAX = 10000;
+
+  @Override
+  protected void setUp() {
+    Config.setInt("proxy.slowConsumer.lowWater", LOW);
+    Config.setInt("proxy.slowConsumer.highWater", HIGH);
+    Config.setInt("proxy.slowConsumer.maxBacklog", MAX);
+  }
+
+  @Override
+  protected void tearDown() {
+    Config.setInt("proxy.slowConsumer.lowWater", 32768);
+    Config.setInt("proxy.slowConsumer.highWater", 196608);
+    Config.setInt("proxy.slowConsumer.maxBacklog", 393216);
+  }
+
+  /**
+   * @param nal the first payload bytes
+   */
+  private static IoBuffer packet(int timestamp, boolean marker, int... nal) {
+    IoBuffer buffer = IoBuffer.allocate(RtpPacket.HEADER_SIZE + nal.length + 10);
+    buffer.put((byte) 0x80).put((byte) ((marker ? 0x80 : 0) | 96)).putShort((short) 0);
+    buffer.putInt(timestamp).putInt(0x1234);
+    for (int b : nal)
+      buffer.put((byte) b);
+    buffer.position(buffer.limit()).flip();
+    return buffer;
+  }
+
+  /** FU-A start fragment of a NAL with the given header */
+  private static IoBuffer fuStart(int timestamp, int nalHeader) {
+    return packet(timestamp, false, (nalHeader & 0x60) | 28, 0x80 | (nalHeader & 0x1F));
+  }
+
+  private static IoBuffer fuEnd(int timestamp) {
+    return packet(timestamp, true, 0x7C, 0x41);
+  }
+
+  public void testClassify() {
+    IoBuffer idr = packet(0, true, 0x65);
+    assertEquals(H264Payload.SLICE | H264Payload.REFERENCE | H264Payload.KEYFRAME,
+        H264Payload.classify(idr, RtpPacket.HEADER_SIZE, 1));
+    IoBuffer b = fuStart(0, 0x01);
+    assertEquals(H264Payload.SLICE, H264Payload.classify(b, RtpPacket.HEADER_SIZE, 2));
+    IoBuffer end = fuEnd(0);
+    assertEquals(0, H264Payload.classify(end, RtpPacket.HEADER_SIZE, 2));
+    // STAP-A with SPS and PPS
+    IoBuffer stap = packet(0, false, 0x78, 0, 1, 0x67, 0, 1, 0x68);
+    assertEquals(H264Payload.KEYFRAME | H264Payload.PARAMETER_SET,
+        H264Payload.classify(stap, RtpPacket.HEADER_SIZE, 7));
+  }
+
+  public void testDegraded() {
+    FrameDropper dropper = new FrameDropper();
+    dropper.setH264(true);
+
+    // P frame, while the client keeps up
+    assertTrue(dropper.accept(fuStart(1, 0x41), 0));
+    assertTrue(dropper.accept(fuEnd(1), HIGH + 1));
+    assertFalse(dropper.isDegraded());
+
+    // the backlog is over the high water mark at the start of a B frame: it's dropped whole
+    assertFalse(dropper.accept(fuStart(2, 0x01), HIGH + 1));
+    assertTrue(dropper.isDegraded());
+    assertFalse(dropper.accept(fuEnd(2), 0));
+    // reference frames are still sent, SEI before a non reference slice too
+    assertTrue(dropper.accept(fuStart(3, 0x41), HIGH + 1));
+    assertTrue(dropper.accept(fuEnd(3), HIGH + 1));
+    assertTrue(dropper.accept(packet(4, false, 0x06), HIGH));
+    assertFalse(dropper.accept(packet(4, true, 0x01), HIGH));
+
+    assertEquals(2, dropper.getFramesDropped());
+    assertEquals(3, dropper.getPacketsDropped());
+
+    // back to normal under the low water mark
+    assertTrue(dropper.accept(packet(5, true, 0x01), LOW - 1));
+    assertFalse(dropper.isDegraded());
+    assertEquals(1, dropper.getDegradedCount());
+  }
+
+  public void testWaitKeyframe() {
+    FrameDropper dropper = new FrameDropper();
+    dropper.setH264(true);
+
+    assertFalse(dropper.accept(packet(1, true, 0x01), HIGH + 1));
+    // reference frames are dropped too over the maximum backlog...
+    assertFalse(dropper.accept(fuStart(2, 0x41), MAX + 1));
+    assertFalse(dropper.accept(fuEnd(2), 0));
+    // ... and all the frames depending on them, until the next keyframe
+    assertFalse(dropper.accept(packet(3, true, 0x41), 0));
+    assertFalse(dropper.accept(packet(4, false, 0x09), 0));
+    assertTrue(dropper.accept(packet(4, false, 0x67), 0));
+    assertTrue(dropper.accept(fuStart(4, 0x65), 0));
+    assertTrue(dropper.accept(fuEnd(4), 0));
+    assertTrue(dropper.accept(packet(5, true, 0x01), 0));
+    assertFalse(dropper.isDegraded());
+    assertEquals(4, dropper.getFramesDropped());
+  }
+
+  public void testOtherPayloads() {
+    FrameDropper dropper = new FrameDropper();
+    assertTrue(dropper.accept(packet(1, true, 0x41), 0));
+    // every frame is dropped while degraded, there's no keyframe to wait for
+    assertFalse(dropper.accept(packet(2, true, 0x41), MAX + 1));
+    assertFalse(dropper.accept(packet(3, true, 0x65), HIGH));
+    assertTrue(dropper.accept(packet(4, true, 0x41), 0));
+    assertEquals(2, dropper.getFramesDropped());
+  }
+}
@@ -0,0 +1,75 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Compares the cost of reading a RTP header with {@link RtpPacket} and with {@link RtpPacketView}.
+ * <p>
+ * This is not a unit test: run it by hand with
+ * 
+ * <pre>
+ * java -cp ... rtspproxy.rtp.RtpPacketViewBenchmark [iterations]
+ * </pre>
+ */
+public class RtpPacketViewBenchmark {
+
+  private static final int PAYLOAD_SIZE = 1316;
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+    IoBuffer buffer = IoBuffer.allocate(RtpPacket.HEADER_SIZE + PAYLOAD_SIZE);
+    buffer.put((byte) 0x80).put((byte) 96).putShort((short) 1).putInt(1000).putInt(0xCAFEBABE);
+    buffer.put(new byte[PAYLOAD_SIZE]);
+    buffer.flip();
+
+    // warm up both paths before measuring
+    for (int round = 0; round < 3; round++) {
+      runPacket(buffer, iterations / 10);
+      runView(buffer, iterations / 10);
+    }
+
+    report("RtpPacket(IoBuffer)", iterations, runPacket(buffer, iterations));
+    report("RtpPacketView", iterations, runView(buffer, iterations));
+  }
+
+  private static long runPacket(IoBuffer buffer, int iterations) {
+    long sum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      buffer.rewind();
+      buffer.putShort(2, (short) i);
+      RtpPacket packet = new RtpPacket(buffer);
+      sum += packet.getSequence().intValue() + packet.getSsrc().longValue();
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sum == 42) System.out.print("");
+    return elapsed;
+  }
+
+  private static long runView(IoBuffer buffer, int iterations) {
+    RtpPacketView view = new RtpPacketView();
+    long sum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      buffer.putShort(2, (short) i);
+      view.wrap(buffer, 0, buffer.limit());
+      sum += view.getSequence() + view.getSsrc() + view.getPayloadLength();
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sum == 42) System.out.print("");
+    return elapsed;
+  }
+
+  private static void report(String name, int iterations, long elapsed) {
+    System.out.println(name + ": " + ((double) elapsed / iterations) + " ns/packet ("
+        + (elapsed / 1000000) + " ms for " + iterations + " packets)");
+  }
+}
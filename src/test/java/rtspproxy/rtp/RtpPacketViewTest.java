@@ -0,0 +1,115 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * @author mat
+ */
+public class RtpPacketViewTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(RtpPacketViewTest.class);
+  }
+
+  /**
+   * Packet with 1 CSRC, a 2 words extension header and 3 bytes of padding.
+   */
+  private static IoBuffer samplePacket() {
+    IoBuffer buffer = IoBuffer.allocate(64);
+    buffer.put((byte) 0xB1); // V=2 P=1 X=1 CC=1
+    buffer.put((byte) 0xE0); // M=1 PT=96
+    buffer.putShort((short) 0xFFFE);
+    buffer.putInt(0xF0000001);
+    buffer.putInt(0xCAFEBABE);
+    buffer.putInt(0x11223344); // CSRC
+    buffer.putShort((short) 0xBEDE);
+    buffer.putShort((short) 2); // 2 words of extension data
+    buffer.putInt(0x01020304);
+    buffer.putInt(0x05060708);
+    buffer.put(new byte[] {10, 20, 30, 40, 50});
+    buffer.put(new byte[] {0, 0, 3}); // padding
+    buffer.flip();
+    return buffer;
+  }
+
+  public void testHeaderFields() {
+    IoBuffer buffer = samplePacket();
+    RtpPacketView view = new RtpPacketView(buffer);
+
+    assertTrue(view.isValid());
+    assertEquals(2, view.getVersion());
+    assertTrue(view.isPadding());
+    assertTrue(view.hasExtension());
+    assertEquals(1, view.getCsrcCount());
+    assertTrue(view.isMarker());
+    assertEquals(96, view.getPayloadType());
+    assertEquals(0xFFFE, view.getSequence());
+    assertEquals(0xF0000001L, view.getTimestamp());
+    assertEquals(0xCAFEBABE, view.getSsrc());
+    assertEquals(0x11223344, view.getCsrc(0));
+    assertEquals(0xBEDE, view.getExtensionProfile());
+    assertEquals(8, view.getExtensionLength());
+    assertEquals(28, view.getHeaderLength());
+    assertEquals(3, view.getPaddingLength());
+    assertEquals(28, view.getPayloadOffset());
+    assertEquals(5, view.getPayloadLength());
+    assertEquals(0, buffer.position());
+  }
+
+  public void testSetters() {
+    IoBuffer buffer = samplePacket();
+    RtpPacketView view = new RtpPacketView(buffer);
+
+    view.setMarker(false);
+    view.setPayloadType(33);
+    view.setSequence(0x1FFFF);
+    view.setTimestamp(0x1FFFFFFFFL);
+    view.setSsrc(0x12345678);
+
+    assertFalse(view.isMarker());
+    assertEquals(33, view.getPayloadType());
+    assertEquals(0xFFFF, view.getSequence());
+    assertEquals(0xFFFFFFFFL, view.getTimestamp());
+    assertEquals(0x12345678, view.getSsrc());
+    // other fields in the same bytes are untouched
+    assertEquals(2, view.getVersion());
+    assertEquals(1, view.getCsrcCount());
+  }
+
+  public void testInvalidPackets() {
+    RtpPacketView view = new RtpPacketView();
+
+    IoBuffer buffer = samplePacket();
+    buffer.limit(20); // truncated extension
+    assertFalse(view.wrap(buffer).isValid());
+
+    buffer = samplePacket();
+    buffer.put(buffer.limit() - 1, (byte) 100); // padding larger than the packet
+    assertFalse(view.wrap(buffer).isValid());
+
+    buffer = samplePacket();
+    buffer.put(0, (byte) 0x41); // version 1
+    assertFalse(view.wrap(buffer).isValid());
+  }
+
+  public void testRtpPacketOnView() {
+    RtpPacket packet = new RtpPacket(samplePacket());
+    assertTrue(Arrays.equals(new byte[] {10, 20, 30, 40, 50}, packet.getPayload()));
+
+    RtpPacket copy = new RtpPacket(packet.toByteBuffer());
+    assertTrue(Arrays.equals(packet.getPayload(), copy.getPayload()));
+    assertEquals(packet.getSsrc(), copy.getSsrc());
+    assertTrue(copy.isExtension());
+  }
+}
@@ -0,0 +1,65 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Measures the cost of generating ULPFEC packets with {@link UlpfecEncoder}, per RTP packet
+ * protected, and the bandwidth overhead of the FEC packets, for several group sizes.
+ * <p>
+ * This is not a unit test: run it by hand with
+ *
+ * <pre>
+ * java -cp ... rtspproxy.rtp.UlpfecEncoderBenchmark [iterations]
+ * </pre>
+ */
+public class UlpfecEncoderBenchmark {
+
+  private static final int PAYLOAD_SIZE = 1316;
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+    IoBuffer buffer = BufferPool.allocate(RtpPacket.HEADER_SIZE + PAYLOAD_SIZE);
+    buffer.put((byte) 0x80).put((byte) 96).putShort((short) 1).putInt(1000).putInt(0xCAFEBABE);
+    for (int i = 0; i < PAYLOAD_SIZE; i++)
+      buffer.put((byte) i);
+    buffer.flip();
+
+    for (int groupSize : new int[] {2, 4, 8, 16}) {
+      UlpfecEncoder encoder = new UlpfecEncoder(groupSize, 127);
+      // warm up before measuring
+      for (int round = 0; round < 3; round++)
+        run(encoder, buffer, iterations / 10);
+
+      long[] result = run(encoder, buffer, iterations);
+      double overhead = (double) result[1] / ((long) iterations * buffer.remaining());
+      System.out.println("Groups of " + groupSize + ": " + ((double) result[0] / iterations)
+          + " ns/packet, " + Math.round(overhead * 1000) / 10.0 + "% overhead ("
+          + (result[0] / 1000000) + " ms for " + iterations + " packets)");
+    }
+  }
+
+  /**
+   * @return the time spent, in nanoseconds, and the number of FEC bytes generated
+   */
+  private static long[] run(UlpfecEncoder encoder, IoBuffer buffer, int iterations) {
+    long fecBytes = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      buffer.putShort(2, (short) i);
+      IoBuffer fec = encoder.add(buffer, 0x1234);
+      if (fec != null) {
+        fecBytes += fec.remaining();
+        fec.free();
+      }
+    }
+    return new long[] {System.nanoTime() - start, fecBytes};
+  }
+}
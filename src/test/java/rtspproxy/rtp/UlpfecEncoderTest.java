@@ -0,0 +1,152 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+public class UlpfecEncoderTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(UlpfecEncoderTest.class);
+  }
+
+  private static final int SSRC = 0x1234;
+
+  private static byte[] packet(Random random, int sequence) {
+    byte[] packet = new byte[RtpPacket.HEADER_SIZE + 1 + random.nextInt(1300)];
+    random.nextBytes(packet);
+    packet[0] = (byte) 0x80;
+    packet[1] = (byte) (random.nextBoolean() ? 0x80 | 96 : 96);
+    packet[2] = (byte) (sequence >> 8);
+    packet[3] = (byte) sequence;
+    for (int i = 0; i < 4; i++)
+      packet[8 + i] = (byte) (SSRC >> (24 - i * 8));
+    return packet;
+  }
+
+  private static byte[] toArray(IoBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    buffer.free();
+    return bytes;
+  }
+
+  private static int getShort(byte[] bytes, int index) {
+    return ((bytes[index] & 0xFF) << 8) | (bytes[index + 1] & 0xFF);
+  }
+
+  private static int getInt(byte[] bytes, int index) {
+    return (getShort(bytes, index) << 16) | getShort(bytes, index + 2);
+  }
+
+  /**
+   * Rebuilds the packet missing from a group, as a receiver would (RFC 5109, section 10.1).
+   */
+  private static byte[] recover(byte[] fec, List<byte[]> received, int sequence) {
+    int offset = RtpPacket.HEADER_SIZE;
+    int flags = getShort(fec, offset);
+    int timestamp = getInt(fec, offset + 4);
+    int length = getShort(fec, offset + 8);
+    int protectionLength = getShort(fec, offset + 10);
+    byte[] payload =
+        Arrays.copyOfRange(fec, offset + UlpfecEncoder.FEC_HEADER_SIZE
+            + UlpfecEncoder.LEVEL_HEADER_SIZE, fec.length);
+    assertEquals(protectionLength, payload.length);
+
+    for (byte[] packet : received) {
+      flags ^= getShort(packet, 0);
+      timestamp ^= getInt(packet, 4);
+      length ^= packet.length - RtpPacket.HEADER_SIZE;
+      for (int i = RtpPacket.HEADER_SIZE; i < packet.length; i++)
+        payload[i - RtpPacket.HEADER_SIZE] ^= packet[i];
+    }
+
+    byte[] packet = new byte[RtpPacket.HEADER_SIZE + length];
+    packet[0] = (byte) (0x80 | ((flags >> 8) & 0x3F));
+    packet[1] = (byte) flags;
+    packet[2] = (byte) (sequence >> 8);
+    packet[3] = (byte) sequence;
+    for (int i = 0; i < 4; i++) {
+      packet[4 + i] = (byte) (timestamp >> (24 - i * 8));
+      packet[8 + i] = (byte) (SSRC >> (24 - i * 8));
+    }
+    System.arraycopy(payload, 0, packet, RtpPacket.HEADER_SIZE, length);
+    return packet;
+  }
+
+  public void testHeader() {
+    UlpfecEncoder encoder = new UlpfecEncoder(3, 127);
+    Random random = new Random(1);
+    assertNull(encoder.add(IoBuffer.wrap(packet(random, 65534)), SSRC));
+    assertNull(encoder.add(IoBuffer.wrap(packet(random, 65535)), SSRC));
+    byte[] fec = toArray(encoder.add(IoBuffer.wrap(packet(random, 0)), SSRC));
+
+    assertEquals(127, fec[1]);
+    assertEquals(SSRC, getInt(fec, 8));
+    assertEquals(0, fec[RtpPacket.HEADER_SIZE] & 0xC0);
+    assertEquals(65534, getShort(fec, RtpPacket.HEADER_SIZE + 2));
+    assertEquals(0xE000, getShort(fec, RtpPacket.HEADER_SIZE + 12));
+
+    // a packet too far from the first one closes the group
+    assertNull(encoder.add(IoBuffer.wrap(packet(random, 10)), SSRC));
+    fec = toArray(encoder.add(IoBuffer.wrap(packet(random, 30)), SSRC));
+    assertEquals(10, getShort(fec, RtpPacket.HEADER_SIZE + 2));
+    assertEquals(0x8000, getShort(fec, RtpPacket.HEADER_SIZE + 12));
+  }
+
+  /**
+   * Sends a stream through a link losing packets at random, and checks that every lost packet
+   * alone in its group is rebuilt exactly.
+   */
+  public void testLossRecovery() {
+    int groupSize = 4;
+    double loss = 0.05;
+    UlpfecEncoder encoder = new UlpfecEncoder(groupSize, 127);
+    Random random = new Random(42);
+
+    List<byte[]> group = new ArrayList<byte[]>();
+    List<byte[]> received = new ArrayList<byte[]>();
+    int lost = 0;
+    int recovered = 0;
+    for (int sequence = 0; sequence < 20000; sequence++) {
+      byte[] packet = packet(random, sequence & 0xFFFF);
+      group.add(packet);
+      if (random.nextDouble() >= loss) received.add(packet);
+      else lost++;
+
+      IoBuffer buffer = encoder.add(IoBuffer.wrap(packet), SSRC);
+      if (buffer == null) continue;
+      byte[] fec = toArray(buffer);
+      assertEquals(groupSize, group.size());
+      if (group.size() - received.size() == 1 && random.nextDouble() >= loss) {
+        for (byte[] original : group) {
+          if (!received.contains(original)) {
+            int missing = getShort(original, 2);
+            assertTrue(Arrays.equals(original, recover(fec, received, missing)));
+            recovered++;
+          }
+        }
+      }
+      group.clear();
+      received.clear();
+    }
+
+    double rate = (double) recovered / lost;
+    System.out.println("ULPFEC, groups of " + groupSize + ", " + (loss * 100) + "% loss: " + lost
+        + " packets lost, " + recovered + " recovered (" + Math.round(rate * 100) + "%)");
+    // a lost packet is recovered when the 3 others and the FEC packet arrive: 0.95^4 = 81%
+    assertTrue(rate > 0.75);
+  }
+}
@@ -0,0 +1,84 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp.rtcp;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Measures the cost of validating and rewriting every SSRC of a typical compound RTCP packet
+ * (SR with a report block, SDES and BYE) in place, compared with decoding and re-encoding it with
+ * {@link RtcpPacket}.
+ * <p>
+ * This is not a unit test: run it by hand with
+ * 
+ * <pre>
+ * java -cp ... rtspproxy.rtp.rtcp.RtcpPacketViewBenchmark [iterations]
+ * </pre>
+ */
+public class RtcpPacketViewBenchmark {
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+    IoBuffer buffer = IoBuffer.allocate(256);
+    RtcpPacketWriter writer = new RtcpPacketWriter(buffer);
+    writer.startSenderReport(1, 0x0102030405060708L, 90000, 10, 12000);
+    writer.addReportBlock(2, 12, 3, 65546, 40, 0xABCD, 0x10000);
+    writer.endPacket();
+    writer.startSdes();
+    writer.addSdesChunk(1, "server@example.com");
+    writer.endPacket();
+    writer.startBye();
+    writer.addByeSsrc(1);
+    writer.endPacket();
+    buffer.flip();
+
+    // warm up both paths before measuring
+    for (int round = 0; round < 3; round++) {
+      runPacket(buffer, iterations / 10);
+      runRewrite(buffer, iterations / 10);
+    }
+
+    report("RtcpPacket(IoBuffer).toByteBuffer()", iterations, runPacket(buffer, iterations));
+    report("RtcpPacket.rewriteSsrcs", iterations, runRewrite(buffer, iterations));
+  }
+
+  private static long runPacket(IoBuffer buffer, int iterations) {
+    long sum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      buffer.rewind();
+      RtcpPacket packet = new RtcpPacket(buffer);
+      sum += packet.toByteBuffer().remaining();
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sum == 42) System.out.print("");
+    return elapsed;
+  }
+
+  private static long runRewrite(IoBuffer buffer, int iterations) {
+    buffer.rewind();
+    long sum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      if (RtcpPacket.isValidCompound(buffer)) {
+        RtcpPacket.rewriteSsrcs(buffer, i, 2, i + 1);
+        RtcpPacket.rewriteSsrcs(buffer, 1, i + 1, 2);
+      }
+      sum += RtcpPacket.peekSsrc(buffer);
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sum == 42) System.out.print("");
+    return elapsed;
+  }
+
+  private static void report(String name, int iterations, long elapsed) {
+    System.out.println(name + ": " + ((double) elapsed / iterations) + " ns/packet ("
+        + (elapsed / 1000000) + " ms for " + iterations + " packets)");
+  }
+}
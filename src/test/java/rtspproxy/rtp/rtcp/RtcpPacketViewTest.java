@@ -0,0 +1,161 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtp.rtcp;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+public class RtcpPacketViewTest extends TestCase {
+
+  private static final int SERVER = 0x11111111;
+  private static final int CLIENT = 0x22222222;
+  private static final int PROXY = 0x33333333;
+  private static final int OTHER = 0x44444444;
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(RtcpPacketViewTest.class);
+  }
+
+  /**
+   * SR with two report blocks + SDES with two chunks + BYE + FIR.
+   */
+  private static IoBuffer compound() {
+    IoBuffer buffer = IoBuffer.allocate(512);
+    RtcpPacketWriter writer = new RtcpPacketWriter(buffer);
+    writer.startSenderReport(SERVER, 0x0102030405060708L, 90000, 10, 12000);
+    writer.addReportBlock(CLIENT, 12, -3, 65546, 40, 0xABCD, 0x10000);
+    writer.addReportBlock(OTHER, 0, 0, 1, 0, 0, 0);
+    writer.endPacket();
+    writer.startSdes();
+    writer.addSdesChunk(SERVER, "server@example.com");
+    writer.addSdesChunk(CLIENT, "x");
+    writer.endPacket();
+    writer.startBye();
+    writer.addByeSsrc(SERVER);
+    writer.addByeSsrc(CLIENT);
+    writer.endPacket();
+    writer.startFeedback(RtcpPacket.TYPE_PSFB, 4, SERVER, CLIENT);
+    writer.addFci(CLIENT);
+    writer.addFci(0x05000000);
+    writer.endPacket();
+    buffer.flip();
+    return buffer;
+  }
+
+  public void testParse() {
+    IoBuffer buffer = compound();
+    assertTrue(RtcpPacket.isValidCompound(buffer));
+    RtcpPacketView view = new RtcpPacketView(buffer);
+
+    assertEquals(RtcpPacket.TYPE_SR, view.getPacketType());
+    assertEquals(SERVER, view.getSsrc());
+    assertEquals(0x0102030405060708L, view.getNtpTimestamp());
+    assertEquals(90000, view.getRtpTimestamp());
+    assertEquals(10, view.getSenderPacketCount());
+    assertEquals(12000, view.getSenderOctetCount());
+    assertEquals(2, view.getReportCount());
+    assertEquals(CLIENT, view.getReportSsrc(0));
+    assertEquals(12, view.getFractionLost(0));
+    assertEquals(-3, view.getCumulativeLost(0));
+    assertEquals(65546, view.getHighestSequence(0));
+    assertEquals(40, view.getJitter(0));
+    assertEquals(0xABCD, view.getLastSr(0));
+    assertEquals(0x10000, view.getDelaySinceLastSr(0));
+    assertEquals(OTHER, view.getReportSsrc(1));
+
+    assertTrue(view.next());
+    assertEquals(RtcpPacket.TYPE_SDES, view.getPacketType());
+    int chunk = view.firstChunk();
+    assertEquals(SERVER, view.getChunkSsrc(chunk));
+    int item = view.firstItem(chunk);
+    assertEquals(RtcpPacket.SDES_CNAME, view.getItemType(item));
+    assertEquals("server@example.com", view.getItemText(item));
+    assertEquals(-1, view.nextItem(item));
+    chunk = view.nextChunk(chunk);
+    assertEquals(CLIENT, view.getChunkSsrc(chunk));
+    assertEquals("x", view.getItemText(view.firstItem(chunk)));
+    assertEquals(-1, view.nextChunk(chunk));
+
+    assertTrue(view.next());
+    assertEquals(RtcpPacket.TYPE_BYE, view.getPacketType());
+    assertEquals(2, view.getByeSsrcCount());
+    assertEquals(CLIENT, view.getByeSsrc(1));
+    assertEquals(-1, view.getByeReasonOffset());
+
+    assertTrue(view.next());
+    assertEquals(RtcpPacket.TYPE_PSFB, view.getPacketType());
+    assertEquals(4, view.getFeedbackType());
+    assertEquals(CLIENT, view.getMediaSsrc());
+    assertEquals(1, view.getFciSsrcCount());
+    assertEquals(CLIENT, view.getFciSsrc(0));
+
+    assertFalse(view.next());
+    assertEquals(0, buffer.position());
+  }
+
+  public void testRewrite() {
+    IoBuffer buffer = compound();
+    RtcpPacket.rewriteSsrcs(buffer, PROXY, CLIENT, SERVER);
+    RtcpPacketView view = new RtcpPacketView(buffer);
+
+    assertEquals(PROXY, view.getSsrc());
+    assertEquals(SERVER, view.getReportSsrc(0));
+    assertEquals(OTHER, view.getReportSsrc(1));
+    view.next();
+    int chunk = view.firstChunk();
+    assertEquals(PROXY, view.getChunkSsrc(chunk));
+    assertEquals(SERVER, view.getChunkSsrc(view.nextChunk(chunk)));
+    view.next();
+    assertEquals(PROXY, view.getByeSsrc(0));
+    assertEquals(SERVER, view.getByeSsrc(1));
+    view.next();
+    assertEquals(PROXY, view.getSsrc());
+    assertEquals(SERVER, view.getMediaSsrc());
+    assertEquals(SERVER, view.getFciSsrc(0));
+  }
+
+  public void testRemoveReportBlock() {
+    IoBuffer buffer = compound();
+    int length = buffer.remaining();
+    RtcpPacketView view = new RtcpPacketView(buffer);
+    view.removeReportBlock(0);
+
+    assertEquals(length - RtcpPacketView.REPORT_BLOCK_SIZE, buffer.remaining());
+    assertEquals(1, view.getReportCount());
+    assertEquals(OTHER, view.getReportSsrc(0));
+    assertTrue(view.isValidCompound());
+    assertTrue(view.next());
+    assertEquals(RtcpPacket.TYPE_SDES, view.getPacketType());
+    assertEquals(SERVER, view.getChunkSsrc(view.firstChunk()));
+  }
+
+  public void testMalformed() {
+    IoBuffer buffer = compound();
+    // the length of the second packet now goes past the end of the datagram
+    buffer.putShort(new RtcpPacketView(buffer).getPacketLength() + 2, (short) 200);
+    assertFalse(RtcpPacket.isValidCompound(buffer));
+
+    // a SR too short to hold the sender info
+    IoBuffer sr = IoBuffer.allocate(8);
+    sr.put((byte) 0x80).put((byte) RtcpPacket.TYPE_SR).putShort((short) 1).putInt(SERVER);
+    sr.flip();
+    assertFalse(RtcpPacket.isValidCompound(sr));
+  }
+
+  /**
+   * The decoded packet keeps the whole compound packet when re-encoded.
+   */
+  public void testDecodedCompound() {
+    IoBuffer buffer = compound();
+    int length = buffer.remaining();
+    IoBuffer encoded = new RtcpPacket(buffer).toByteBuffer();
+    assertEquals(length, encoded.remaining());
+    assertTrue(RtcpPacket.isValidCompound(encoded));
+  }
+}
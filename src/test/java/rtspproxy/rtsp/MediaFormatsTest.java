@@ -0,0 +1,39 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+
+package rtspproxy.rtsp;
+
+import junit.framework.TestCase;
+
+public class MediaFormatsTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(MediaFormatsTest.class);
+  }
+
+  public void testParse() {
+    String sdp = "v=0\r\n" + "o=- 1 1 IN IP4 10.0.0.1\r\n" + "s=Live\r\n" + "a=control:*\r\n"
+        + "m=video 0 RTP/AVP 96\r\n" + "a=rtpmap:96 H264/90000\r\n"
+        + "a=fmtp:96 packetization-mode=1\r\n" + "a=control:trackID=1\r\n"
+        + "m=audio 0 RTP/AVP 97 0\r\n" + "a=rtpmap:0 PCMU/8000\r\n"
+        + "a=rtpmap:97 mpeg4-generic/44100/2\r\n"
+        + "a=control:rtsp://10.0.0.1/live.sdp/trackID=2\r\n" + "m=audio 0 RTP/AVP 8\r\n"
+        + "a=control:trackID=3\r\n";
+    MediaFormats formats = new MediaFormats(sdp);
+    assertEquals("H264", formats.getEncoding("rtsp://proxy/live.sdp/trackID=1"));
+    assertEquals("MPEG4-GENERIC", formats.getEncoding("rtsp://10.0.0.1/live.sdp/trackID=2"));
+    assertNull(formats.getEncoding("rtsp://proxy/live.sdp/trackID=3"));
+    assertNull(formats.getEncoding("rtsp://proxy/live.sdp/trackID=11"));
+
+    assertEquals(90000, formats.getClockRate("rtsp://proxy/live.sdp/trackID=1"));
+    assertEquals(44100, formats.getClockRate("rtsp://10.0.0.1/live.sdp/trackID=2"));
+    // static payload type
+    assertEquals(8000, formats.getClockRate("rtsp://proxy/live.sdp/trackID=3"));
+    assertEquals(0, formats.getClockRate("rtsp://proxy/live.sdp/trackID=11"));
+  }
+}
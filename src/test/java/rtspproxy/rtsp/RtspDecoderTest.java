@@ -0,0 +1,228 @@
+/***************************************************************************
+ * * This program is free software; you can redistribute it and/or modify * it under the terms of
+ * the GNU General Public License as published by * the Free Software Foundation; either version 2
+ * of the License, or * (at your option) any later version. * * Copyright (C) 2005 - Matteo Merli -
+ * matteo.merli@gmail.com * *
+ ***************************************************************************/
+
+package rtspproxy.rtsp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.AbstractProtocolDecoderOutput;
+import org.apache.mina.filter.codec.AbstractProtocolEncoderOutput;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+
+public class RtspDecoderTest extends TestCase {
+
+  private RtspDecoder decoder;
+  private IoSession session;
+  private List<Object> messages;
+  private AbstractProtocolDecoderOutput out;
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(RtspDecoderTest.class);
+  }
+
+  protected void setUp() {
+    // rtsp:// URLs, as in Main
+    System.setProperty("java.protocol.handler.pkgs", "rtspproxy");
+    decoder = new RtspDecoder();
+    session = new DummySession();
+    messages = new ArrayList<Object>();
+    out = new AbstractProtocolDecoderOutput() {
+      public void flush(NextFilter nextFilter, IoSession session) {}
+    };
+  }
+
+  private void decode(byte[] data, int offset, int length) throws Exception {
+    decoder.decode(session, IoBuffer.wrap(data, offset, length).slice(), out);
+    while (!out.getMessageQueue().isEmpty())
+      messages.add(out.getMessageQueue().poll());
+  }
+
+  private void decode(byte[] data) throws Exception {
+    decode(data, 0, data.length);
+  }
+
+  private static byte[] frame(int channel, int length) {
+    byte[] frame = new byte[InterleavedPacket.HEADER_SIZE + length];
+    frame[0] = '$';
+    frame[1] = (byte) channel;
+    frame[2] = (byte) (length >> 8);
+    frame[3] = (byte) length;
+    for (int i = 0; i < length; i++)
+      frame[InterleavedPacket.HEADER_SIZE + i] = (byte) i;
+    return frame;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    int length = 0;
+    for (byte[] part : parts)
+      length += part.length;
+    byte[] result = new byte[length];
+    int offset = 0;
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, result, offset, part.length);
+      offset += part.length;
+    }
+    return result;
+  }
+
+  private void assertPacket(Object message, int channel, int length) {
+    assertTrue(message instanceof InterleavedPacket);
+    InterleavedPacket packet = (InterleavedPacket) message;
+    assertEquals(channel, packet.getChannel());
+    assertEquals(length, packet.getLength());
+    IoBuffer buffer = packet.getBuffer();
+    for (int i = 0; i < length; i++)
+      assertEquals((byte) i, buffer.get(buffer.position() + i));
+  }
+
+  /**
+   * Requests and interleaved packets received in the same read.
+   */
+  public void testMixed() throws Exception {
+    byte[] request =
+        "PLAY rtsp://example.com/stream RTSP/1.0\r\nCSeq: 4\r\nSession: 1234\r\n\r\n".getBytes();
+    byte[] response = "RTSP/1.0 200 OK\r\nCSeq: 5\r\nContent-Length: 4\r\n\r\nabcd".getBytes();
+    decode(concat(frame(0, 100), request, frame(1, 20), response, frame(0, 0)));
+
+    assertEquals(5, messages.size());
+    assertPacket(messages.get(0), 0, 100);
+    RtspRequest play = (RtspRequest) messages.get(1);
+    assertEquals(RtspRequest.Verb.PLAY, play.getVerb());
+    assertEquals("1234", play.getHeader("Session"));
+    assertPacket(messages.get(2), 1, 20);
+    RtspResponse ok = (RtspResponse) messages.get(3);
+    assertEquals(RtspCode.OK, ok.getCode());
+    assertEquals("abcd", ok.getBuffer().toString());
+    assertPacket(messages.get(4), 0, 0);
+  }
+
+  /**
+   * Every possible split of a stream made of a packet, a response and another packet.
+   */
+  public void testSplit() throws Exception {
+    byte[] response = "RTSP/1.0 200 OK\r\nCSeq: 5\r\nContent-Length: 3\r\n\r\nxyz".getBytes();
+    byte[] data = concat(frame(2, 300), response, frame(3, 50));
+
+    for (int split = 1; split < data.length; split++) {
+      setUp();
+      decode(data, 0, split);
+      decode(data, split, data.length - split);
+
+      assertEquals("split at " + split, 3, messages.size());
+      assertPacket(messages.get(0), 2, 300);
+      assertEquals("xyz", ((RtspResponse) messages.get(1)).getBuffer().toString());
+      assertPacket(messages.get(2), 3, 50);
+    }
+  }
+
+  /**
+   * A packet received byte by byte.
+   */
+  public void testByteByByte() throws Exception {
+    byte[] data = frame(7, 40);
+    for (int i = 0; i < data.length; i++)
+      decode(data, i, 1);
+    assertEquals(1, messages.size());
+    assertPacket(messages.get(0), 7, 40);
+  }
+
+  /**
+   * A packet entirely contained in the read buffer shares its memory.
+   */
+  public void testNoCopy() throws Exception {
+    byte[] data = frame(0, 10);
+    decode(data);
+    IoBuffer buffer = ((InterleavedPacket) messages.get(0)).getBuffer();
+    data[InterleavedPacket.HEADER_SIZE] = 42;
+    assertEquals(42, buffer.get(buffer.position()));
+  }
+
+  /**
+   * A message with an invalid Content-Length is dropped, and the next one is decoded.
+   */
+  public void testInvalidContentLength() throws Exception {
+    byte[] next = "RTSP/1.0 200 OK\r\nCSeq: 3\r\nContent-Length: 2\r\n\r\nok".getBytes();
+    String[] lengths = {"abc", "-5", "99999999999"};
+    for (int i = 0; i < lengths.length; i++) {
+      byte[] invalid =
+          ("RTSP/1.0 200 OK\r\nCSeq: 2\r\nContent-Length: " + lengths[i] + "\r\n\r\nbody")
+              .getBytes();
+      try {
+        decode(invalid);
+        fail("Content-Length: " + lengths[i]);
+      } catch (ProtocolDecoderException e) {
+        // expected
+      }
+      decode(next);
+      assertEquals(i + 1, messages.size());
+      RtspResponse ok = (RtspResponse) messages.get(i);
+      assertEquals("3", ok.getHeader("CSeq"));
+      assertEquals("ok", ok.getBuffer().toString());
+    }
+  }
+
+  public void testLineTooLong() throws Exception {
+    byte[] next = "RTSP/1.0 200 OK\r\nCSeq: 3\r\nContent-Length: 2\r\n\r\nok".getBytes();
+    // the longest line accepted
+    StringBuilder value = new StringBuilder();
+    while (value.length() < RtspDecoder.MAX_LINE_LENGTH - "X-Long: ".length())
+      value.append('a');
+    decode(("RTSP/1.0 200 OK\r\nCSeq: 2\r\nX-Long: " + value + "\r\n\r\n").getBytes());
+    assertEquals(1, messages.size());
+    assertEquals(value.toString(), ((RtspResponse) messages.get(0)).getHeader("X-Long"));
+
+    // a line that never ends, received in several reads
+    decode("RTSP/1.0 200 OK\r\nCSeq: 2\r\nX-Long: ".getBytes());
+    byte[] chunk = new byte[1024];
+    Arrays.fill(chunk, (byte) 'a');
+    try {
+      for (int i = 0; i <= RtspDecoder.MAX_LINE_LENGTH / chunk.length; i++)
+        decode(chunk);
+      fail("Line of more than " + RtspDecoder.MAX_LINE_LENGTH + " bytes");
+    } catch (ProtocolDecoderException e) {
+      // expected
+    }
+    decode(next);
+    assertEquals(2, messages.size());
+    assertEquals("3", ((RtspResponse) messages.get(1)).getHeader("CSeq"));
+  }
+
+  /**
+   * An encoded packet decodes to the same packet.
+   */
+  public void testEncode() throws Exception {
+    AbstractProtocolEncoderOutput encoded = new AbstractProtocolEncoderOutput() {
+      public WriteFuture flush() {
+        return null;
+      }
+    };
+    byte[] payload = new byte[30];
+    for (int i = 0; i < payload.length; i++)
+      payload[i] = (byte) i;
+    new RtspEncoder().encode(session, new InterleavedPacket(5, IoBuffer.wrap(payload)), encoded);
+
+    IoBuffer data = IoBuffer.allocate(64);
+    while (!encoded.getMessageQueue().isEmpty())
+      data.put((IoBuffer) encoded.getMessageQueue().poll());
+    data.flip();
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    decode(bytes);
+
+    assertEquals(1, messages.size());
+    assertPacket(messages.get(0), 5, 30);
+  }
+}